@@ -0,0 +1,80 @@
+package eu.rcauth.masterportal.client;
+
+import edu.uiuc.ncsa.security.oauth_2_0.OA2Constants;
+
+import net.sf.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Builds the claims to forward to the MP-Server from the ID token, which was
+ * already verified during the token request, such that the /userinfo request
+ * can be skipped. Claims that only make sense for the ID token itself (issuer,
+ * audience, lifetime, nonce etc.) are left out.
+ */
+public class IDTokenClaims {
+    /** claims describing the ID token itself instead of the user, which should not be forwarded */
+    public static final Set<String> TOKEN_CLAIMS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            "iss", "aud", "azp", "exp", "iat", "nbf", "nonce", "auth_time", "at_hash", "c_hash", "jti")));
+
+    private final Collection<String> required;
+
+    /**
+     * @param required claims that need to be present in the ID token, otherwise
+     *                 the claims should be obtained from the /userinfo endpoint.
+     */
+    public IDTokenClaims(Collection<String> required) {
+        this.required = required;
+    }
+
+    /** @return claims that need to be present in the ID token */
+    public Collection<String> getRequired() {
+        return required;
+    }
+
+    /**
+     * @param parameters parameters of the token response, containing the
+     *                   verified and parsed ID token
+     * @return the user claims from the ID token, or null when there is no
+     * parsed ID token or not all required claims are present. Other values in
+     * the token response are never used as claims.
+     */
+    public JSONObject getClaims(Map<?, ?> parameters) {
+        if (parameters == null)
+            return null;
+        Object parsed = parameters.get(OA2Constants.ID_TOKEN);
+        if (!(parsed instanceof Map))
+            return null;
+        Map<?, ?> idToken = (Map<?, ?>) parsed;
+
+        JSONObject claims = new JSONObject();
+        for (Map.Entry<?, ?> entry : idToken.entrySet()) {
+            String name = String.valueOf(entry.getKey());
+            Object value = entry.getValue();
+            if (TOKEN_CLAIMS.contains(name) || !isClaimValue(value))
+                continue;
+            claims.put(name, value);
+        }
+
+        if (!claims.containsKey("sub"))
+            return null;
+        for (String claim : required) {
+            if (!claims.containsKey(claim))
+                return null;
+        }
+        return claims;
+    }
+
+    /**
+     * @return whether the value is something that could be in a JSON claim
+     */
+    private static boolean isClaimValue(Object value) {
+        return value instanceof String || value instanceof Number || value instanceof Boolean ||
+               value instanceof Collection || value instanceof Map;
+    }
+}
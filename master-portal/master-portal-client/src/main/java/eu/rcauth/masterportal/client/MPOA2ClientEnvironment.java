@@ -1,6 +1,15 @@
 package eu.rcauth.masterportal.client;
 
+import eu.rcauth.masterportal.client.http.DSConnectionPool;
+import eu.rcauth.masterportal.client.http.DSMetadataCache;
+import eu.rcauth.masterportal.myproxy.MeteredMPConnectionProvider;
+import eu.rcauth.masterportal.myproxy.ReplicatedMPConnectionProvider;
+import eu.rcauth.masterportal.servlet.util.SealedValue;
+import eu.rcauth.masterportal.util.KeyPairPool;
+import eu.rcauth.masterportal.storage.sql.PurgeConfiguration;
+
 import edu.uiuc.ncsa.oa4mp.oauth2.client.OA2ClientEnvironment;
+import edu.uiuc.ncsa.myproxy.MyProxyConnectable;
 import edu.uiuc.ncsa.myproxy.MyProxyServiceFacade;
 import edu.uiuc.ncsa.myproxy.oa4mp.client.storage.AssetProvider;
 import edu.uiuc.ncsa.myproxy.oa4mp.client.storage.AssetStore;
@@ -37,7 +46,11 @@ public class MPOA2ClientEnvironment extends OA2ClientEnvironment {
             Provider<DelegationService> delegationServiceProvider, Provider<AssetStore> assetStoreProvider,
             boolean showRedirectPage, boolean requestProxies, String errorPagePath, String redirectPagePath,
             String successPagePath, String secret, Collection<String> scopes, String wellKnownURI, boolean oidcEnabled,
-            boolean showIDToken, List<MyProxyFacadeProvider> mfp, String myproxyPassword) {
+            boolean showIDToken, List<MyProxyFacadeProvider> mfp, String myproxyPassword,
+            int myproxyReplicationQuorum, int myproxyReplicationRepairs,
+            PurgeConfiguration assetPurgeConfiguration, SealedValue sessionSealer,
+            DSConnectionPool dsConnectionPool, IDTokenClaims idTokenClaims, DSMetadataCache dsMetadataCache,
+            KeyPairPool keyPairPool) {
         super(logger, constants, accessTokenUri, authorizationUri, callback, initializeURI, resourceServerUri,
                 certLifetime, clientId, skin, enableAssetCleanup, maxAssetLifetime, keypairLifetime,
                 assetProvider, clientProvider, tokenForgeProvider, delegationServiceProvider, assetStoreProvider,
@@ -46,6 +59,14 @@ public class MPOA2ClientEnvironment extends OA2ClientEnvironment {
 
         this.mfps = mfp;
         this.myproxyPassword = myproxyPassword;
+        this.myproxyReplicationQuorum = myproxyReplicationQuorum;
+        this.myproxyReplicationRepairs = myproxyReplicationRepairs;
+        this.assetPurgeConfiguration = assetPurgeConfiguration;
+        this.sessionSealer = sessionSealer;
+        this.dsConnectionPool = dsConnectionPool;
+        this.idTokenClaims = idTokenClaims;
+        this.dsMetadataCache = dsMetadataCache;
+        this.keyPairPool = keyPairPool;
     }
 
     /* MYPROXY CONNECTION CONFIGURATION */
@@ -71,6 +92,47 @@ public class MPOA2ClientEnvironment extends OA2ClientEnvironment {
         return myProxyServices;
     }
 
+    protected MeteredMPConnectionProvider<MyProxyConnectable> mpConnectionProvider;
+
+    /**
+     * Get the shared provider for connections to the MyProxy Server(s)
+     *
+     * @return provider for all MyProxy connections of this client
+     */
+    public synchronized MeteredMPConnectionProvider<MyProxyConnectable> getMPConnectionProvider() {
+        if (mpConnectionProvider == null) {
+            if (myproxyReplicationQuorum > 0)
+                mpConnectionProvider = new ReplicatedMPConnectionProvider<>(getMyLogger(), getMyProxyServices(),
+                                                                            myproxyReplicationRepairs);
+            else
+                mpConnectionProvider = new MeteredMPConnectionProvider<>(getMyLogger(), getMyProxyServices());
+        }
+        return mpConnectionProvider;
+    }
+
+    protected final int myproxyReplicationQuorum;
+
+    /**
+     * Get the number of MyProxy Servers that need to store a new credential
+     *
+     * @return the quorum, or 0 when the credential is stored in a single MyProxy Server
+     */
+    public int getMyproxyReplicationQuorum() {
+        return myproxyReplicationQuorum;
+    }
+
+    protected final int myproxyReplicationRepairs;
+
+    /**
+     * Get the maximum number of retries of a failed replicated upload, during
+     * which the private key of the credential is kept in memory
+     *
+     * @return the number of retries, 0 to not retry
+     */
+    public int getMyproxyReplicationRepairs() {
+        return myproxyReplicationRepairs;
+    }
+
     protected String myproxyPassword;
 
     /**
@@ -81,4 +143,99 @@ public class MPOA2ClientEnvironment extends OA2ClientEnvironment {
     public String getMyproxyPassword() {
         return myproxyPassword;
     }
+
+    /* BATCHED PURGE OF EXPIRED ASSETS */
+
+    protected final PurgeConfiguration assetPurgeConfiguration;
+
+    /**
+     * Get the configuration for purging expired assets in batches
+     *
+     * @return the purge configuration, or null when not configured
+     */
+    public PurgeConfiguration getAssetPurgeConfiguration() {
+        return assetPurgeConfiguration;
+    }
+
+    /* SEALED SESSION CORRELATION */
+
+    protected final SealedValue sessionSealer;
+
+    /**
+     * Get the sealer for the MP-Server code and state cookie
+     *
+     * @return the sealer, or null when code and state are kept in the asset store
+     */
+    public SealedValue getSessionSealer() {
+        return sessionSealer;
+    }
+
+    /* DS HTTP CONNECTION POOL */
+
+    protected final DSConnectionPool dsConnectionPool;
+
+    /**
+     * Get the pool of keep-alive connections to the Delegation Server
+     *
+     * @return the pool, or null when each service client uses its own connections
+     */
+    public DSConnectionPool getDSConnectionPool() {
+        return dsConnectionPool;
+    }
+
+    protected final DSMetadataCache dsMetadataCache;
+
+    /**
+     * Get the cache of the DS discovery document and keys
+     *
+     * @return the cache, or null when they are fetched for every token request
+     */
+    public DSMetadataCache getDSMetadataCache() {
+        return dsMetadataCache;
+    }
+
+    /* CLAIMS FROM ID TOKEN */
+
+    protected final IDTokenClaims idTokenClaims;
+
+    /**
+     * Get the builder for the forwarded claims from the ID token
+     *
+     * @return the builder, or null when the claims always come from /userinfo
+     */
+    public IDTokenClaims getIDTokenClaims() {
+        return idTokenClaims;
+    }
+
+    /* KEYPAIR POOL */
+
+    protected final KeyPairPool keyPairPool;
+
+    /**
+     * Get the pool of keypairs for the certificate requests to the DS
+     *
+     * @return the pool, or null when keypairs are generated per request
+     */
+    public KeyPairPool getKeyPairPool() {
+        return keyPairPool;
+    }
+
+
+    /* SHUTDOWN */
+
+    /**
+     * Stops the background threads and closes the connections of the
+     * keypair pool, DS metadata cache, DS connection pool and replicated
+     * MyProxy uploads, called when the web application is stopped.
+     */
+    public synchronized void shutdown() {
+        if (keyPairPool != null)
+            keyPairPool.stop();
+        if (dsMetadataCache != null)
+            dsMetadataCache.stop();
+        if (dsConnectionPool != null)
+            dsConnectionPool.close();
+        if (mpConnectionProvider instanceof ReplicatedMPConnectionProvider)
+            ((ReplicatedMPConnectionProvider<MyProxyConnectable>) mpConnectionProvider).stop();
+    }
 }
@@ -1,6 +1,8 @@
 package eu.rcauth.masterportal.client;
 
 import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PrivateKey;
 import java.security.cert.X509Certificate;
 import java.util.Map;
 
@@ -20,6 +22,8 @@ import edu.uiuc.ncsa.security.oauth_2_0.client.ATResponse2;
 import edu.uiuc.ncsa.security.util.pkcs.ProxyUtil;
 import eu.emi.security.authn.x509.impl.OpensslNameUtils;
 import eu.emi.security.authn.x509.proxy.ProxyUtils;
+import eu.rcauth.masterportal.myproxy.ReplicatedMPConnectionProvider;
+import eu.rcauth.masterportal.util.KeyPairPool;
 
 public class MPOA2MPService extends OA2MPService {
 
@@ -92,6 +96,28 @@ public class MPOA2MPService extends OA2MPService {
         }
     }
 
+    /**
+     * Returns a single-use keypair for the certificate request from the
+     * {@link MPOA2ClientEnvironment#getKeyPairPool()} when configured, such
+     * that the key generation is not part of the /getcert latency. Otherwise
+     * falls back to the parent's keypair handling.
+     *
+     * @return keypair for the next certificate request
+     */
+    @Override
+    public KeyPair getNextKeyPair() {
+        KeyPairPool pool = ((MPOA2ClientEnvironment)getEnvironment()).getKeyPairPool();
+        if (pool != null)
+            return pool.take();
+        try {
+            return super.getNextKeyPair();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new GeneralException("Cannot generate keypair", e);
+        }
+    }
+
     /**
      * This extended method makes sure that the SCOPE parameter
      * provided in the parameter map is not getting overwritten
@@ -136,6 +162,10 @@ public class MPOA2MPService extends OA2MPService {
      * <p>
      * Use MyProxy STORE command to store the Proxy certificate found in the assetResp.
      * Call this in case /getcert returns a Proxy.
+     * <p>
+     * When a replication quorum is configured, the credential is stored in all
+     * configured MyProxy Servers in parallel, returning once the quorum
+     * succeeded, see {@link ReplicatedMPConnectionProvider#replicate}.
      *
      * @param assetResp The asset response of a /getcert request
      * @param asset The asset created to identify the ongoing session
@@ -143,34 +173,66 @@ public class MPOA2MPService extends OA2MPService {
      */
     public void uploadCert(AssetResponse assetResp, OA2Asset asset) throws Throwable {
 
-        String myproxyPassword  = ((MPOA2ClientEnvironment)getEnvironment()).getMyproxyPassword();
+        MPOA2ClientEnvironment env = (MPOA2ClientEnvironment)getEnvironment();
+        String myproxyPassword  = env.getMyproxyPassword();
         long lifetime = getEnvironment().getCertLifetime();
 
-        MyProxyConnectable mp = createMPConnection(asset.getIdentifier(), asset.getUsername(), myproxyPassword, lifetime);
-
-        mp.setLifetime(lifetime * 1000);
+        // Note: the private key is removed from the asset once we return,
+        // hence keep a reference for the replicas that finish later. Their
+        // repairs keep it until they succeed or are superseded or given up,
+        // see ReplicatedMPConnectionProvider and replicationRepairs.
+        final X509Certificate[] chain = assetResp.getX509Certificates();
+        final PrivateKey privateKey = asset.getPrivateKey();
 
         // Get the end entity certificate DN in openssl format. The openssl format is
         // necessary because that's what MyProxy Server expects.
-        X509Certificate eec = ProxyUtils.getEndUserCertificate( assetResp.getX509Certificates() );
+        X509Certificate eec = ProxyUtils.getEndUserCertificate( chain );
         String rfcDN = eec.getSubjectDN().getName();
-        String opensslDN = OpensslNameUtils.convertFromRfc2253( rfcDN , false);
+        final String opensslDN = OpensslNameUtils.convertFromRfc2253( rfcDN , false);
+
+        MPConnectionProvider<MyProxyConnectable> facades = env.getMPConnectionProvider();
+        if (env.getMyproxyReplicationQuorum() > 0 && facades instanceof ReplicatedMPConnectionProvider) {
+            logger.info("3.b Replicating credential to MyProxy servers");
+            ((ReplicatedMPConnectionProvider<MyProxyConnectable>)facades).replicate(
+                    asset.getIdentifier(), asset.getUsername(), myproxyPassword, lifetime,
+                    env.getMyproxyReplicationQuorum(),
+                    mp -> storeCert(mp, chain, privateKey, lifetime, opensslDN));
+        } else {
+            MyProxyConnectable mp = createMPConnection(asset.getIdentifier(), asset.getUsername(), myproxyPassword, lifetime);
+            storeCert(mp, chain, privateKey, lifetime, opensslDN);
+        }
+    }
+
+    /**
+     * Store the certificate chain and its matching key in the MyProxy Server
+     * using the MyProxy PUT or STORE command.
+     *
+     * @param mp The MyProxy connection
+     * @param chain The certificate chain
+     * @param privateKey The matching private key
+     * @param lifetime The lifetime in seconds of the stored credential
+     * @param opensslDN The EEC DN in openssl format, allowed to renew
+     * @throws Throwable MyProxy related exceptions
+     */
+    protected void storeCert(MyProxyConnectable mp, X509Certificate[] chain, PrivateKey privateKey, long lifetime,
+                             String opensslDN) throws Throwable {
+        mp.setLifetime(lifetime * 1000);
 
         // This enables users with an existing valid proxy to renew their proxy
         mp.setRenewer(opensslDN);
 
         // see if the result is a proxy or an EEC
-        if ( ProxyUtil.isProxy(assetResp.getX509Certificates()) ) {
+        if ( ProxyUtil.isProxy(chain) ) {
 
             logger.info("3.b Using MyProxy STORE to store credential");
             // Proxy Certificate use STORE
-            mp.doStore( assetResp.getX509Certificates() , asset.getPrivateKey());
+            mp.doStore( chain , privateKey);
 
         } else {
 
             logger.info("3.b Using MyProxy PUT to store credential");
             // User EE Certificate use PUT
-            mp.doPut( assetResp.getX509Certificates() , asset.getPrivateKey());
+            mp.doPut( chain , privateKey);
 
         }
 
@@ -179,9 +241,10 @@ public class MPOA2MPService extends OA2MPService {
     /* HELPER METHODS */
 
     /**
-     * Create a connection to a MyProxy Server. This method uses the MyProxy Server
-     * connection configuration, and is written after the MyProxy Connection model
-     * in the OA4MP Server component.
+     * Create a connection to a MyProxy Server. This method uses the shared
+     * connection provider of the environment, see
+     * {@link MPOA2ClientEnvironment#getMPConnectionProvider()}, and is written
+     * after the MyProxy Connection model in the OA4MP Server component.
      *
      * @param identifier The asset(session) identifier to identify the connection by
      * @param userName The username used in the MyProxy connection
@@ -194,7 +257,7 @@ public class MPOA2MPService extends OA2MPService {
             long lifetime) throws GeneralSecurityException {
 
         MPOA2ClientEnvironment env = (MPOA2ClientEnvironment)getEnvironment();
-        MPConnectionProvider<MyProxyConnectable> facades = new MPConnectionProvider<>(logger, env.getMyProxyServices() );
+        MPConnectionProvider<MyProxyConnectable> facades = env.getMPConnectionProvider();
         // use null for the LOA since we are not supporting any at the moment
         return facades.findConnection(identifier, userName, password, null, lifetime);
     }
@@ -0,0 +1,114 @@
+package eu.rcauth.masterportal.client.http;
+
+import eu.rcauth.masterportal.util.StatisticsLogger;
+
+import edu.uiuc.ncsa.security.core.util.MyLoggingFacade;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of keep-alive HTTP connections towards the Delegation Server, shared
+ * by all {@link PooledServiceClient}s of the MP-Client. Connections are
+ * reused for at most the configured keep-alive time (or less when the server
+ * says so), idle ones are closed in the background.
+ * <p>
+ * Statistics (requests, leased, available and pending connections) are
+ * available via the getters and are logged periodically.
+ */
+public class DSConnectionPool {
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+    private final MyLoggingFacade logger;
+    private final StatisticsLogger statisticsLogger;
+
+    private final AtomicLong requests = new AtomicLong();
+
+    /**
+     * @param maxTotal maximum number of connections
+     * @param maxPerRoute maximum number of connections per route (i.e. DS endpoint host)
+     * @param connectTimeout connect timeout in milliseconds, 0 for none
+     * @param readTimeout read (socket) timeout in milliseconds, 0 for none
+     * @param keepAlive maximum time in milliseconds to keep an idle connection
+     * @param logger for the periodic statistics, may be null
+     */
+    public DSConnectionPool(int maxTotal, int maxPerRoute, int connectTimeout, int readTimeout,
+                            final long keepAlive, MyLoggingFacade logger) {
+        this.logger = logger;
+        this.statisticsLogger = new StatisticsLogger(logger);
+
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxTotal);
+        connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setConnectionRequestTimeout(connectTimeout)
+                .setSocketTimeout(readTimeout)
+                .build();
+
+        httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+                    // Use the server's Keep-Alive timeout when smaller than ours
+                    @Override
+                    public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                        long duration = super.getKeepAliveDuration(response, context);
+                        return (duration > 0 && duration < keepAlive) ? duration : keepAlive;
+                    }
+                })
+                .evictExpiredConnections()
+                .evictIdleConnections(keepAlive, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * @return the shared HTTP client, note that it should not be closed by
+     * the caller.
+     */
+    public CloseableHttpClient getHttpClient() {
+        requests.incrementAndGet();
+        statisticsLogger.logIfDue(this);
+        return httpClient;
+    }
+
+    /** @return number of requests done via this pool */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /** @return current connection statistics over all routes */
+    public PoolStats getStats() {
+        return connectionManager.getTotalStats();
+    }
+
+    /**
+     * Closes all connections, the pool cannot be used afterwards.
+     */
+    public void close() {
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            if (logger != null)
+                logger.warn("Cannot close DS connection pool: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public String toString() {
+        PoolStats stats = getStats();
+        return "DS connection pool: " + requests.get() + " requests, " + stats.getLeased() + " leased, " +
+               stats.getAvailable() + " available, " + stats.getPending() + " pending, max " + stats.getMax();
+    }
+}
@@ -0,0 +1,239 @@
+package eu.rcauth.masterportal.client.http;
+
+import edu.uiuc.ncsa.security.core.exceptions.GeneralException;
+import edu.uiuc.ncsa.security.core.util.MyLoggingFacade;
+
+import net.sf.json.JSONObject;
+
+import org.apache.http.Header;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory cache of the discovery document (well-known) of the Delegation
+ * Server and of the signing keys (JWKS) it points to, used by the
+ * {@link PooledServiceClient}. Both are refreshed in the background based on
+ * the <code>Cache-Control: max-age</code> of the response, bounded by the
+ * configured minimum and maximum refresh interval. Once fetched, lookups
+ * always return the cached document, such that logins never wait for the
+ * metadata.
+ * <p>
+ * Since a key rotation at the DS can only be noticed by a failing token
+ * request, {@link #refreshNow()} schedules an immediate background refetch,
+ * at most once per minimum refresh interval.
+ */
+public class DSMetadataCache {
+    /** name of the JWKS URI in the discovery document */
+    public static final String JWKS_URI = "jwks_uri";
+
+    private static final Pattern MAX_AGE = Pattern.compile("max-age\\s*=\\s*(\\d+)");
+
+    private final DSConnectionPool pool;
+    private final URI wellKnown;
+    private final long minRefresh;
+    private final long maxRefresh;
+    private final MyLoggingFacade logger;
+
+    private final Map<URI, Entry> entries = new ConcurrentHashMap<>();
+    private final Set<URI> refreshing = ConcurrentHashMap.newKeySet();
+    private volatile URI jwks = null;
+    private final AtomicLong lastForcedRefresh = new AtomicLong(0L);
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "ds-metadata-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** cached document with the time it should be refreshed */
+    private static class Entry {
+        final String body;
+        final long refreshAt;
+
+        Entry(String body, long refreshAt) {
+            this.body = body;
+            this.refreshAt = refreshAt;
+        }
+    }
+
+    /**
+     * Creates the cache and starts fetching the discovery document and keys
+     * in the background.
+     * @param pool connection pool to the DS
+     * @param wellKnown URI of the discovery document
+     * @param minRefresh minimum time in milliseconds between refreshes of a document
+     * @param maxRefresh maximum time in milliseconds between refreshes of a document
+     * @param logger for errors during refresh
+     */
+    public DSMetadataCache(DSConnectionPool pool, URI wellKnown, long minRefresh, long maxRefresh,
+                           MyLoggingFacade logger) {
+        this.pool = pool;
+        this.wellKnown = wellKnown;
+        this.minRefresh = minRefresh;
+        this.maxRefresh = maxRefresh;
+        this.logger = logger;
+        scheduleRefresh(wellKnown, true);
+    }
+
+    /**
+     * @param uri URI of the document
+     * @return whether the document is handled by this cache, i.e. is the
+     * discovery document or the JWKS.
+     */
+    public boolean handles(URI uri) {
+        return wellKnown.equals(uri) || uri.equals(jwks);
+    }
+
+    /**
+     * Returns the cached document, scheduling a background refresh when it
+     * is due. Only when the document has never been fetched successfully,
+     * it is fetched directly.
+     * @param uri URI of the document, see {@link #handles(URI)}
+     * @return the document
+     * @throws GeneralException when it cannot be fetched
+     */
+    public String get(URI uri) {
+        Entry entry = entries.get(uri);
+        if (entry == null)
+            return fetch(uri).body;
+        if (entry.refreshAt <= System.currentTimeMillis())
+            scheduleRefresh(uri, false);
+        return entry.body;
+    }
+
+    /**
+     * Schedules an immediate background refresh of all documents, e.g. after
+     * the ID token could not be verified due to a key rotation. Does nothing
+     * when called again within the minimum refresh interval.
+     */
+    public void refreshNow() {
+        long now = System.currentTimeMillis();
+        long last = lastForcedRefresh.get();
+        if (now - last < minRefresh || !lastForcedRefresh.compareAndSet(last, now))
+            return;
+        scheduleRefresh(wellKnown, true);
+        URI keys = jwks;
+        if (keys != null)
+            scheduleRefresh(keys, true);
+    }
+
+    /**
+     * Stops the background refreshes.
+     */
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Schedules a background refresh of the document, unless one is already
+     * pending.
+     * @param force whether to refresh also when the document is not yet due
+     */
+    private void scheduleRefresh(URI uri, boolean force) {
+        if (!refreshing.add(uri))
+            return;
+        try {
+            executor.execute(() -> {
+                try {
+                    refresh(uri, force);
+                } finally {
+                    refreshing.remove(uri);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // stopped
+            refreshing.remove(uri);
+        }
+    }
+
+    /**
+     * Refreshes the document, keeping the old one on failure.
+     */
+    private void refresh(URI uri, boolean force) {
+        Entry entry = entries.get(uri);
+        if (!force && entry != null && entry.refreshAt > System.currentTimeMillis())
+            return;
+        try {
+            fetch(uri);
+        } catch (GeneralException e) {
+            if (logger != null)
+                logger.warn("Cannot refresh " + uri + ", keeping cached version: " + e.getMessage());
+            // Try again after the minimum interval
+            if (entry != null)
+                entries.put(uri, new Entry(entry.body, System.currentTimeMillis() + minRefresh));
+        }
+    }
+
+    /**
+     * Fetches and stores the document. For the discovery document, also the
+     * JWKS URI is updated and its keys are fetched when not yet cached.
+     */
+    private Entry fetch(URI uri) {
+        HttpGet get = new HttpGet(uri);
+        Entry entry;
+        try (CloseableHttpResponse response = pool.getHttpClient().execute(get)) {
+            String body = response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity());
+            int status = response.getStatusLine().getStatusCode();
+            if (status != HttpStatus.SC_OK)
+                throw new GeneralException("Fetching " + uri + " failed with status " + status);
+            entry = new Entry(body, System.currentTimeMillis() + getMaxAge(response));
+        } catch (IOException e) {
+            throw new GeneralException("Fetching " + uri + " failed: " + e.getMessage(), e);
+        }
+        entries.put(uri, entry);
+
+        if (wellKnown.equals(uri)) {
+            try {
+                String keys = JSONObject.fromObject(entry.body).optString(JWKS_URI, null);
+                if (keys != null) {
+                    URI keysURI = URI.create(keys);
+                    jwks = keysURI;
+                    if (!entries.containsKey(keysURI))
+                        scheduleRefresh(keysURI, true);
+                }
+            } catch (RuntimeException e) {
+                if (logger != null)
+                    logger.warn("Cannot get " + JWKS_URI + " from " + uri + ": " + e.getMessage());
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * @return the max-age of the response in milliseconds, bounded by the
+     * minimum and maximum refresh interval.
+     */
+    private long getMaxAge(CloseableHttpResponse response) {
+        long maxAge = maxRefresh;
+        for (Header header : response.getHeaders("Cache-Control")) {
+            String value = header.getValue();
+            if (value.contains("no-cache") || value.contains("no-store")) {
+                maxAge = minRefresh;
+                break;
+            }
+            Matcher matcher = MAX_AGE.matcher(value);
+            if (matcher.find()) {
+                try {
+                    maxAge = 1000L * Long.parseLong(matcher.group(1));
+                } catch (NumberFormatException e) {
+                    // ignore, use the default
+                }
+            }
+        }
+        return Math.max(minRefresh, Math.min(maxRefresh, maxAge));
+    }
+}
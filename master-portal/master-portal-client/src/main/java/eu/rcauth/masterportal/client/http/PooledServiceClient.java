@@ -0,0 +1,64 @@
+package eu.rcauth.masterportal.client.http;
+
+import edu.uiuc.ncsa.security.core.exceptions.GeneralException;
+import edu.uiuc.ncsa.security.servlet.ServiceClient;
+import edu.uiuc.ncsa.security.servlet.ServiceClientHTTPException;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.net.URI;
+
+/**
+ * {@link ServiceClient} sending its requests over the shared keep-alive
+ * connections of a {@link DSConnectionPool}, instead of over its own
+ * connections, and serving the DS metadata from a {@link DSMetadataCache}.
+ * Error handling is the same as in the parent: any non-200 response results
+ * in a {@link ServiceClientHTTPException} containing the status and the
+ * response body.
+ */
+public class PooledServiceClient extends ServiceClient {
+    private final DSConnectionPool pool;
+    private final DSMetadataCache metadataCache;
+
+    /**
+     * @param address address of the DS endpoint
+     * @param pool shared connection pool
+     * @param metadataCache cache for the DS discovery document and keys, may be null
+     */
+    public PooledServiceClient(URI address, DSConnectionPool pool, DSMetadataCache metadataCache) {
+        super(address);
+        this.pool = pool;
+        this.metadataCache = metadataCache;
+    }
+
+    @Override
+    protected String doRequest(HttpRequestBase httpRequestBase) {
+        // The discovery document and keys are fetched for every token
+        // request, serve them from the cache when possible
+        if (metadataCache != null && httpRequestBase instanceof HttpGet &&
+                metadataCache.handles(httpRequestBase.getURI()))
+            return metadataCache.get(httpRequestBase.getURI());
+
+        // Closing the response (and consuming the entity) returns the
+        // connection to the pool
+        try (CloseableHttpResponse response = pool.getHttpClient().execute(httpRequestBase)) {
+            String body = response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity());
+            int status = response.getStatusLine().getStatusCode();
+            if (status != HttpStatus.SC_OK) {
+                ServiceClientHTTPException x = new ServiceClientHTTPException(
+                        "Error contacting server with code of " + status);
+                x.setContent(body);
+                x.setStatus(status);
+                throw x;
+            }
+            return body;
+        } catch (IOException e) {
+            throw new GeneralException("Error invoking " + httpRequestBase.getURI() + ": " + e.getMessage(), e);
+        }
+    }
+}
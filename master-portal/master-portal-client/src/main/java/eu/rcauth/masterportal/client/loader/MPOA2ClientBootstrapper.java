@@ -5,6 +5,7 @@ import edu.uiuc.ncsa.security.core.exceptions.MyConfigurationException;
 import edu.uiuc.ncsa.security.core.util.ConfigurationLoader;
 
 import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
 
 import org.apache.commons.configuration.tree.ConfigurationNode;
 
@@ -18,6 +19,8 @@ public class MPOA2ClientBootstrapper extends OA2ClientBootstrapper {
     public static final String MP_OA2_CONFIG_FILE_KEY = "oa4mp:mp-oa2.client.config.file";
     public static final String MP_OA2_CONFIG_NAME_KEY = "oa4mp:mp-oa2.client.config.name";
 
+    private MPOA2ClientLoader<?> loader = null;
+
     @Override
     public String getOa4mpConfigFileKey() {
         return MP_OA2_CONFIG_FILE_KEY;
@@ -30,11 +33,24 @@ public class MPOA2ClientBootstrapper extends OA2ClientBootstrapper {
 
     @Override
     public ConfigurationLoader getConfigurationLoader(ConfigurationNode node) throws MyConfigurationException {
-        return new MPOA2ClientLoader(node);
+        loader = new MPOA2ClientLoader<>(node);
+        return loader;
     }
 
     @Override
     public ConfigurationLoader getConfigurationLoader(ServletContext servletContext) throws Exception {
         return super.getConfigurationLoader(servletContext);
     }
+
+    /**
+     * Shuts down the background threads and connections of the client
+     * environment, see
+     * {@link eu.rcauth.masterportal.client.MPOA2ClientEnvironment#shutdown()}.
+     */
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+        if (loader != null)
+            loader.shutdown();
+        super.contextDestroyed(event);
+    }
 }
@@ -5,14 +5,24 @@ import edu.uiuc.ncsa.myproxy.oa4mp.server.OA4MPConfigTags;
 import edu.uiuc.ncsa.oa4mp.oauth2.client.OA2ClientLoader;
 
 import org.apache.commons.configuration.tree.ConfigurationNode;
+import eu.rcauth.masterportal.client.IDTokenClaims;
 import eu.rcauth.masterportal.client.MPOA2Asset;
 import eu.rcauth.masterportal.client.MPOA2ClientEnvironment;
 import eu.rcauth.masterportal.client.MPOA2MPService;
+import eu.rcauth.masterportal.client.http.DSConnectionPool;
+import eu.rcauth.masterportal.client.http.DSMetadataCache;
+import eu.rcauth.masterportal.client.http.PooledServiceClient;
 import eu.rcauth.masterportal.client.storage.MPOA2AssetConverter;
 import eu.rcauth.masterportal.client.storage.MPOA2AssetSerializationKeys;
+import eu.rcauth.masterportal.client.storage.impl.AssetCache;
 import eu.rcauth.masterportal.client.storage.impl.MPOA2AssetProvider;
 import eu.rcauth.masterportal.client.storage.sql.MPOA2SQLAssetStoreProvider;
+import eu.rcauth.masterportal.myproxy.ReplicatedMPConnectionProvider;
 import eu.rcauth.masterportal.servlet.MPOA4MPConfigTags;
+import eu.rcauth.masterportal.servlet.util.SealedValue;
+import eu.rcauth.masterportal.util.ConfigAttributes;
+import eu.rcauth.masterportal.util.KeyPairPool;
+import eu.rcauth.masterportal.storage.sql.PurgeConfiguration;
 
 import edu.uiuc.ncsa.myproxy.oa4mp.client.ClientEnvironment;
 import edu.uiuc.ncsa.myproxy.oa4mp.client.ClientXMLTags;
@@ -28,7 +38,10 @@ import edu.uiuc.ncsa.security.core.configuration.provider.TypedProvider;
 import edu.uiuc.ncsa.security.core.exceptions.GeneralException;
 import edu.uiuc.ncsa.security.delegation.storage.Client;
 import edu.uiuc.ncsa.security.delegation.token.TokenForge;
+import edu.uiuc.ncsa.security.servlet.ServiceClient;
 
+import java.io.File;
+import java.net.URI;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -45,6 +58,9 @@ import javax.inject.Provider;
  */
 public class MPOA2ClientLoader<T extends ClientEnvironment> extends OA2ClientLoader<T> {
 
+    /** environments created by this loader, see {@link #shutdown()} */
+    private final List<MPOA2ClientEnvironment> environments = new LinkedList<>();
+
     public MPOA2ClientLoader(ConfigurationNode node) {
         super(node);
     }
@@ -65,8 +81,7 @@ public class MPOA2ClientLoader<T extends ClientEnvironment> extends OA2ClientLoa
                             Provider<Client> clientProvider,
                             HashMap<String, String> constants) {
         try {
-            // Note we suppress an unchecked cast to T
-            return (T)new MPOA2ClientEnvironment(
+            MPOA2ClientEnvironment environment = new MPOA2ClientEnvironment(
                     myLogger, constants,
                     getAccessTokenURI(),
                     getAuthorizeURI(),
@@ -95,13 +110,38 @@ public class MPOA2ClientLoader<T extends ClientEnvironment> extends OA2ClientLoa
                     isOIDCEnabled(),
                     isShowIDToken(),
                     getMyProxyFacadeProvider(),
-                    getMyProxyPassword()
+                    getMyProxyPassword(),
+                    getMyProxyReplicationQuorum(),
+                    getMyProxyReplicationRepairs(),
+                    getAssetPurgeConfiguration(),
+                    getSessionSealer(),
+                    getDSConnectionPool(),
+                    getIDTokenClaims(),
+                    getDSMetadataCache(),
+                    getKeyPairPool()
             );
+            synchronized (environments) {
+                environments.add(environment);
+            }
+            // Note we suppress an unchecked cast to T
+            return (T)environment;
         } catch (Throwable e) {
             throw new GeneralException("Unable to create client environment", e);
         }
     }
 
+    /**
+     * Shuts down the environments created by this loader, called when the web
+     * application is stopped, see {@link MPOA2ClientEnvironment#shutdown()}.
+     */
+    public void shutdown() {
+        synchronized (environments) {
+            for (MPOA2ClientEnvironment environment : environments)
+                environment.shutdown();
+            environments.clear();
+        }
+    }
+
 
     /* ASSET EXTENSION */
 
@@ -133,13 +173,13 @@ public class MPOA2ClientLoader<T extends ClientEnvironment> extends OA2ClientLoa
 
             // Database storage
             masp.addListener(new MPOA2SQLAssetStoreProvider(cn, ClientXMLTags.MYSQL_STORE, getMySQLConnectionPoolProvider(),
-                                                            getAssetProvider(), assetConverter));
+                                                            getAssetProvider(), assetConverter, getAssetCache()));
             masp.addListener(new MPOA2SQLAssetStoreProvider(cn, ClientXMLTags.MARIADB_STORE, getMariaDBConnectionPoolProvider(),
-                                                            getAssetProvider(), assetConverter));
+                                                            getAssetProvider(), assetConverter, getAssetCache()));
 
             // Database storage for POSTGRES
             masp.addListener(new MPOA2SQLAssetStoreProvider(cn, ClientXMLTags.POSTGRESQL_STORE, getPgConnectionPoolProvider(),
-                                                            getAssetProvider(), assetConverter));
+                                                            getAssetProvider(), assetConverter, getAssetCache()));
 
             // and a memory store, So only if one is requested it is available.
             masp.addListener(new TypedProvider<MemoryAssetStore>(cn, ClientXMLTags.MEMORY_STORE, ClientXMLTags.ASSET_STORE) {
@@ -162,6 +202,227 @@ public class MPOA2ClientLoader<T extends ClientEnvironment> extends OA2ClientLoa
     }
 
 
+    /* SEALED SESSION CORRELATION */
+
+    /** lifetime in milliseconds of the sealed code and state, equal to the cookie max age */
+    protected static final long SEALED_SESSION_MAX_AGE = 15 * 60 * 1000L;
+
+    /**
+     * @return sealer for the MP-Server code and state, or null when no
+     * {@link MPOA4MPConfigTags#SEALED_SESSION} node is configured.
+     */
+    protected SealedValue getSessionSealer() {
+        ConfigurationNode node = Configurations.getFirstNode(cn, MPOA4MPConfigTags.SEALED_SESSION);
+        if (node == null)
+            return null;
+        String keyFile = Configurations.getFirstAttribute(node, MPOA4MPConfigTags.SEALED_SESSION_KEY_FILE);
+        if (keyFile == null || keyFile.isEmpty())
+            throw new GeneralException("Missing " + MPOA4MPConfigTags.SEALED_SESSION_KEY_FILE +
+                                       " attribute in node " + MPOA4MPConfigTags.SEALED_SESSION);
+        myLogger.info("Sealing MP-Server code and state into a cookie instead of the asset store");
+        return SealedValue.fromKeyFile(new File(keyFile), SEALED_SESSION_MAX_AGE);
+    }
+
+
+    /* ASSET CACHE */
+
+    /** default time to live in seconds of a cached asset, equal to the cookie max age */
+    protected static final long DEFAULT_ASSET_CACHE_TTL = 900;
+    /** default maximum number of cached assets */
+    protected static final int DEFAULT_ASSET_CACHE_MAX_SIZE = 10000;
+
+    private AssetCache assetCache = null;
+
+    /**
+     * @return cache for a SQL asset store, or null when no
+     * {@link MPOA4MPConfigTags#ASSET_CACHE} node is configured.
+     */
+    protected AssetCache getAssetCache() {
+        if (assetCache != null)
+            return assetCache;
+        ConfigurationNode node = Configurations.getFirstNode(cn, MPOA4MPConfigTags.ASSET_CACHE);
+        if (node == null)
+            return null;
+
+        long ttl = ConfigAttributes.getLong(node, MPOA4MPConfigTags.ASSET_CACHE_TTL,
+                                            DEFAULT_ASSET_CACHE_TTL, 0, myLogger);
+        int maxSize = ConfigAttributes.getInt(node, MPOA4MPConfigTags.ASSET_CACHE_MAX_SIZE,
+                                              DEFAULT_ASSET_CACHE_MAX_SIZE, 0, myLogger);
+        if (ttl == 0 || maxSize == 0) {
+            myLogger.info("Asset cache disabled");
+            return null;
+        }
+
+        myLogger.info("Caching up to " + maxSize + " assets for " + ttl + " seconds");
+        assetCache = new AssetCache(1000L * ttl, maxSize, myLogger);
+        return assetCache;
+    }
+
+
+    /* CLAIMS FROM ID TOKEN */
+
+    /**
+     * @return the claims builder using the ID token, or null when no
+     * {@link MPOA4MPConfigTags#ID_TOKEN_CLAIMS} node is configured.
+     */
+    protected IDTokenClaims getIDTokenClaims() {
+        ConfigurationNode node = Configurations.getFirstNode(cn, MPOA4MPConfigTags.ID_TOKEN_CLAIMS);
+        if (node == null)
+            return null;
+        if (!isOIDCEnabled()) {
+            myLogger.warn("Ignoring " + MPOA4MPConfigTags.ID_TOKEN_CLAIMS + " since OIDC is not enabled");
+            return null;
+        }
+
+        List<String> required = new LinkedList<>();
+        String value = Configurations.getFirstAttribute(node, MPOA4MPConfigTags.ID_TOKEN_CLAIMS_REQUIRED);
+        if (value != null) {
+            for (String claim : value.split(",")) {
+                if (!claim.trim().isEmpty())
+                    required.add(claim.trim());
+            }
+        }
+        myLogger.info("Taking claims from the ID token when it contains " + (required.isEmpty() ? "sub" : required));
+        return new IDTokenClaims(required);
+    }
+
+
+    /* KEYPAIR POOL */
+
+    /** default number of keypairs to keep ready */
+    protected static final int DEFAULT_KEYPAIR_POOL_SIZE = 10;
+    /** default maximum age in seconds of a pooled keypair */
+    protected static final int DEFAULT_KEYPAIR_POOL_MAX_AGE = 3600;
+
+    private KeyPairPool keyPairPool = null;
+
+    /**
+     * @return started pool of keypairs for the DS certificate requests, or
+     * null when no {@link MPOA4MPConfigTags#KEYPAIR_POOL} node is configured.
+     */
+    protected KeyPairPool getKeyPairPool() {
+        if (keyPairPool != null)
+            return keyPairPool;
+
+        ConfigurationNode node = Configurations.getFirstNode(cn, MPOA4MPConfigTags.KEYPAIR_POOL);
+        if (node == null)
+            return null;
+
+        int size = ConfigAttributes.getInt(node, MPOA4MPConfigTags.KEYPAIR_POOL_SIZE,
+                                           DEFAULT_KEYPAIR_POOL_SIZE, 0, myLogger);
+        int maxAge = ConfigAttributes.getInt(node, MPOA4MPConfigTags.KEYPAIR_POOL_MAX_AGE,
+                                             DEFAULT_KEYPAIR_POOL_MAX_AGE, 0, myLogger);
+        if (size <= 0 || maxAge <= 0) {
+            myLogger.info("Keypair pool disabled");
+            return null;
+        }
+
+        myLogger.info("Keeping " + size + " keypairs ready for at most " + maxAge + " seconds");
+        keyPairPool = new KeyPairPool("client", size, 1000L * maxAge, myLogger);
+        keyPairPool.start();
+        return keyPairPool;
+    }
+
+
+    /* DS HTTP CONNECTION POOL */
+
+    /** default maximum number of connections to the DS */
+    protected static final int DEFAULT_DS_HTTP_CLIENT_MAX_TOTAL = 50;
+    /** default maximum number of connections per DS endpoint host */
+    protected static final int DEFAULT_DS_HTTP_CLIENT_MAX_PER_ROUTE = 20;
+    /** default connect timeout in seconds */
+    protected static final int DEFAULT_DS_HTTP_CLIENT_CONNECT_TIMEOUT = 10;
+    /** default read timeout in seconds */
+    protected static final int DEFAULT_DS_HTTP_CLIENT_READ_TIMEOUT = 60;
+    /** default maximum idle time in seconds of a connection */
+    protected static final int DEFAULT_DS_HTTP_CLIENT_KEEP_ALIVE = 60;
+
+    private DSConnectionPool dsConnectionPool = null;
+
+    /**
+     * Overrides the creation of the service clients for the DS endpoints, to
+     * use the shared {@link DSConnectionPool} when configured.
+     */
+    @Override
+    protected ServiceClient createServiceClient(URI host) {
+        DSConnectionPool pool = getDSConnectionPool();
+        if (pool == null)
+            return super.createServiceClient(host);
+        return new PooledServiceClient(host, pool, getDSMetadataCache());
+    }
+
+    /**
+     * @return pool of HTTP connections to the DS, or null when no
+     * {@link MPOA4MPConfigTags#DS_HTTP_CLIENT} node is configured.
+     */
+    protected DSConnectionPool getDSConnectionPool() {
+        if (dsConnectionPool != null)
+            return dsConnectionPool;
+        ConfigurationNode node = Configurations.getFirstNode(cn, MPOA4MPConfigTags.DS_HTTP_CLIENT);
+        if (node == null)
+            return null;
+
+        int maxTotal = ConfigAttributes.getInt(node, MPOA4MPConfigTags.DS_HTTP_CLIENT_MAX_TOTAL,
+                                               DEFAULT_DS_HTTP_CLIENT_MAX_TOTAL, 0, myLogger);
+        int maxPerRoute = ConfigAttributes.getInt(node, MPOA4MPConfigTags.DS_HTTP_CLIENT_MAX_PER_ROUTE,
+                                                  DEFAULT_DS_HTTP_CLIENT_MAX_PER_ROUTE, 0, myLogger);
+        int connectTimeout = ConfigAttributes.getInt(node, MPOA4MPConfigTags.DS_HTTP_CLIENT_CONNECT_TIMEOUT,
+                                                     DEFAULT_DS_HTTP_CLIENT_CONNECT_TIMEOUT, 0, myLogger);
+        int readTimeout = ConfigAttributes.getInt(node, MPOA4MPConfigTags.DS_HTTP_CLIENT_READ_TIMEOUT,
+                                                  DEFAULT_DS_HTTP_CLIENT_READ_TIMEOUT, 0, myLogger);
+        int keepAlive = ConfigAttributes.getInt(node, MPOA4MPConfigTags.DS_HTTP_CLIENT_KEEP_ALIVE,
+                                                DEFAULT_DS_HTTP_CLIENT_KEEP_ALIVE, 0, myLogger);
+        if (maxTotal <= 0 || maxPerRoute <= 0 || keepAlive <= 0)
+            throw new GeneralException("Invalid value in " + MPOA4MPConfigTags.DS_HTTP_CLIENT +
+                                       " node: maxTotal, maxPerRoute and keepAlive should be positive");
+
+        myLogger.info("Using up to " + maxTotal + " (" + maxPerRoute + " per host) keep-alive connections to the DS");
+        dsConnectionPool = new DSConnectionPool(maxTotal, maxPerRoute, 1000 * connectTimeout, 1000 * readTimeout,
+                                                1000L * keepAlive, myLogger);
+        return dsConnectionPool;
+    }
+
+    /** default minimum refresh interval in seconds of the DS metadata */
+    protected static final int DEFAULT_DS_METADATA_CACHE_MIN_REFRESH = 60;
+    /** default maximum refresh interval in seconds of the DS metadata */
+    protected static final int DEFAULT_DS_METADATA_CACHE_MAX_REFRESH = 3600;
+
+    private DSMetadataCache dsMetadataCache = null;
+
+    /**
+     * @return cache for the DS discovery document and keys, or null when no
+     * {@link MPOA4MPConfigTags#DS_METADATA_CACHE} node is configured. Note
+     * that it needs the {@link DSConnectionPool}.
+     */
+    protected DSMetadataCache getDSMetadataCache() {
+        if (dsMetadataCache != null)
+            return dsMetadataCache;
+        ConfigurationNode node = Configurations.getFirstNode(cn, MPOA4MPConfigTags.DS_METADATA_CACHE);
+        if (node == null)
+            return null;
+        DSConnectionPool pool = getDSConnectionPool();
+        if (pool == null || getWellKnownURI() == null) {
+            myLogger.warn("Ignoring " + MPOA4MPConfigTags.DS_METADATA_CACHE + ", it needs both a " +
+                          MPOA4MPConfigTags.DS_HTTP_CLIENT + " node and a well-known URI");
+            return null;
+        }
+
+        int minRefresh = ConfigAttributes.getInt(node, MPOA4MPConfigTags.DS_METADATA_CACHE_MIN_REFRESH,
+                                                 DEFAULT_DS_METADATA_CACHE_MIN_REFRESH, 0, myLogger);
+        int maxRefresh = ConfigAttributes.getInt(node, MPOA4MPConfigTags.DS_METADATA_CACHE_MAX_REFRESH,
+                                                 DEFAULT_DS_METADATA_CACHE_MAX_REFRESH, 0, myLogger);
+        if (minRefresh <= 0 || maxRefresh < minRefresh)
+            throw new GeneralException("Invalid value in " + MPOA4MPConfigTags.DS_METADATA_CACHE +
+                                       " node: need 0 < minRefresh <= maxRefresh");
+
+        myLogger.info("Caching DS metadata from " + getWellKnownURI() + " for " + minRefresh + " to " +
+                      maxRefresh + " seconds");
+        dsMetadataCache = new DSMetadataCache(pool, URI.create(getWellKnownURI()), 1000L * minRefresh,
+                                              1000L * maxRefresh, myLogger);
+        return dsMetadataCache;
+    }
+
+
     /* MYPROXY SERVER CONNECTOR */
 
     protected LinkedList<MyProxyFacadeProvider> mfp = null;
@@ -194,4 +455,39 @@ public class MPOA2ClientLoader<T extends ClientEnvironment> extends OA2ClientLoa
         return Configurations.getFirstAttribute(node, MPOA4MPConfigTags.MYPROXY_PASSWORD);
     }
 
+    /**
+     * @return number of MyProxy servers that need to store a new credential,
+     * 0 when uploading to a single server (with fail-over).
+     */
+    protected int getMyProxyReplicationQuorum() {
+        ConfigurationNode node =  Configurations.getFirstNode(cn, MPOA4MPConfigTags.MYPROXY);
+        if (node == null)
+            return 0;
+        int quorum = ConfigAttributes.getInt(node, MPOA4MPConfigTags.MYPROXY_REPLICATION_QUORUM, 0, 0, myLogger);
+        int replicas = getMyProxyFacadeProvider().size();
+        if (quorum > replicas)
+            throw new GeneralException(MPOA4MPConfigTags.MYPROXY_REPLICATION_QUORUM + " " + quorum +
+                                       " exceeds the number of MyProxy servers " + replicas);
+        if (quorum > 0)
+            myLogger.info("Replicating credentials to " + replicas + " MyProxy servers with a quorum of " + quorum);
+        return quorum;
+    }
+
+    /**
+     * @return maximum number of retries of a failed replicated upload, 0 to
+     * not retry
+     */
+    protected int getMyProxyReplicationRepairs() {
+        ConfigurationNode node =  Configurations.getFirstNode(cn, MPOA4MPConfigTags.MYPROXY);
+        return ConfigAttributes.getInt(node, MPOA4MPConfigTags.MYPROXY_REPLICATION_REPAIRS,
+                                       ReplicatedMPConnectionProvider.DEFAULT_REPAIR_ATTEMPTS, 0, myLogger);
+    }
+
+
+    /* BATCHED PURGE OF EXPIRED ASSETS */
+
+    protected PurgeConfiguration getAssetPurgeConfiguration() {
+        return PurgeConfiguration.fromNode(cn, myLogger);
+    }
+
 }
@@ -0,0 +1,72 @@
+package eu.rcauth.masterportal.client.servlet;
+
+import eu.rcauth.masterportal.client.MPOA2ClientEnvironment;
+import eu.rcauth.masterportal.client.storage.MPOA2AssetSerializationKeys;
+import eu.rcauth.masterportal.storage.sql.ExpiredRowPurger;
+import eu.rcauth.masterportal.storage.sql.PurgeConfiguration;
+import eu.rcauth.masterportal.storage.sql.SchemaMigrator;
+import eu.rcauth.masterportal.servlet.MPOA4MPConfigTags;
+
+import edu.uiuc.ncsa.myproxy.oa4mp.client.servlet.ClientServlet;
+import edu.uiuc.ncsa.myproxy.oa4mp.client.storage.AssetStore;
+import edu.uiuc.ncsa.security.storage.sql.SQLStore;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet without endpoint, loaded on startup, which periodically deletes
+ * the assets older than the configured maximum asset lifetime in batches,
+ * using an {@link ExpiredRowPurger} on their creation timestamp. On startup
+ * it checks (or creates) the index on that column. When no purge is
+ * configured or the asset store is not a SQL store, it does nothing.
+ * <p>
+ * Note that this replaces the row-by-row asset cleanup, which can hence be
+ * disabled.
+ */
+public class MPOA2AssetPurgeServlet extends ClientServlet {
+    private ExpiredRowPurger purger = null;
+
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        MPOA2ClientEnvironment ce = (MPOA2ClientEnvironment) getCE();
+
+        PurgeConfiguration config = ce.getAssetPurgeConfiguration();
+        if (config == null)
+            return;
+
+        AssetStore assetStore = ce.getAssetStore();
+        if (!(assetStore instanceof SQLStore)) {
+            warn("Purging expired assets is only supported for SQL stores");
+            return;
+        }
+        SQLStore store = (SQLStore) assetStore;
+        MPOA2AssetSerializationKeys keys = new MPOA2AssetSerializationKeys();
+        new SchemaMigrator(store.getConnectionPool(), store.getTable())
+                .index(keys.creationTime())
+                .checkOrMigrate(config.isMigrateSchema(),
+                                "set " + MPOA4MPConfigTags.PURGE_MIGRATE_SCHEMA + " in the " + MPOA4MPConfigTags.PURGE +
+                                " node to create it", ce.getMyLogger());
+        purger = new ExpiredRowPurger("assets", store.getConnectionPool(), store.getTable(),
+                                      store.getTable().getPrimaryKeyColumnName(), keys.creationTime(),
+                                      ce.getMaxAssetLifetime(), config);
+        purger.start(ce.getMyLogger());
+    }
+
+    @Override
+    public void destroy() {
+        if (purger != null)
+            purger.stop();
+        super.destroy();
+    }
+
+    /**
+     * This servlet has no endpoint.
+     */
+    @Override
+    protected void doIt(HttpServletRequest request, HttpServletResponse response) throws Throwable {
+        response.sendError(HttpServletResponse.SC_NOT_FOUND);
+    }
+}
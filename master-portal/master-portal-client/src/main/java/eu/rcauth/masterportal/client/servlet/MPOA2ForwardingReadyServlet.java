@@ -3,12 +3,14 @@ package eu.rcauth.masterportal.client.servlet;
 import edu.uiuc.ncsa.myproxy.oa4mp.client.ClientEnvironment;
 import edu.uiuc.ncsa.myproxy.oa4mp.client.servlet.ClientServlet;
 import edu.uiuc.ncsa.oa4mp.oauth2.client.OA2MPService;
+import edu.uiuc.ncsa.security.core.exceptions.GeneralException;
 import edu.uiuc.ncsa.security.delegation.token.AuthorizationGrant;
 import edu.uiuc.ncsa.security.delegation.token.impl.AuthorizationGrantImpl;
 import edu.uiuc.ncsa.security.oauth_2_0.OA2Constants;
 import edu.uiuc.ncsa.security.oauth_2_0.OA2Errors;
 import edu.uiuc.ncsa.security.oauth_2_0.OA2RedirectableError;
 import edu.uiuc.ncsa.security.oauth_2_0.UserInfo;
+import edu.uiuc.ncsa.security.oauth_2_0.client.ATResponse2;
 
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletContext;
@@ -18,8 +20,14 @@ import javax.servlet.http.HttpServletResponse;
 import eu.rcauth.masterportal.MPServerContext;
 import eu.rcauth.masterportal.MPClientContext;
 import eu.rcauth.masterportal.client.MPOA2Asset;
+import eu.rcauth.masterportal.client.MPOA2ClientEnvironment;
+import eu.rcauth.masterportal.client.IDTokenClaims;
+import eu.rcauth.masterportal.client.http.DSMetadataCache;
+import eu.rcauth.masterportal.servlet.util.SealedValue;
 import eu.rcauth.masterportal.servlet.util.CookieUtils;
 
+import net.sf.json.JSONObject;
+
 import java.net.URI;
 import java.io.StringWriter;
 import java.io.PrintWriter;
@@ -71,6 +79,7 @@ public class MPOA2ForwardingReadyServlet extends ClientServlet {
         AuthorizationGrant grant = new AuthorizationGrantImpl(URI.create(token));
         //String identifier = getIdentifierCookie(request, response);
         String identifier = CookieUtils.clearCookie(request, response, MPClientContext.MP_CLIENT_REQUEST_ID);
+        String correlation = CookieUtils.clearCookie(request, response, MPClientContext.MP_CLIENT_REQUEST_CORRELATION);
 
         MPOA2Asset asset = null;
 
@@ -91,34 +100,84 @@ public class MPOA2ForwardingReadyServlet extends ClientServlet {
         }
 
         // do the /token request
+        ATResponse2 atResponse2;
         try {
-            // Note: getAccessToken stores in the asset, we don't need the returned ATResponse2
+            // Note: getAccessToken stores in the asset, we only need the
+            // returned ATResponse2 for the ID token claims.
             // It also set the "sub" and "iat" claims, the refresh token and
             // the id token (last one our patch) into this asset.
-            oa2MPService.getAccessToken(asset, grant);
+            atResponse2 = oa2MPService.getAccessToken(asset, grant);
         } catch(Throwable e)    {
             StringWriter errors = new StringWriter();
             e.printStackTrace(new PrintWriter(errors));
             warn(errors.toString());
+            // The DS might have rotated its keys: refetch them in the background
+            DSMetadataCache metadataCache = ((MPOA2ClientEnvironment) getCE()).getDSMetadataCache();
+            if (metadataCache != null)
+                metadataCache.refreshNow();
             throw new OA2RedirectableError(OA2Errors.SERVER_ERROR, e.getMessage(), state);
         }
 
-        // NOTE: We currently could get all claims also from the ID token.
-        // However, the ID token also contains iss, aud, auth_time, iat,
-        // exp and nonce which we should not forward. Also we might remove
-        // the 'profile-like' claims, which should ideally be returned from
-        // the /userinfo endpoint only.
-        info("2.a Getting user info.");
-        userInfo = oa2MPService.getUserInfo(identifier);
-        if (userInfo == null) {
-            error("2.a Could not get userinfo");
-            throw new OA2RedirectableError(OA2Errors.SERVER_ERROR, "The userinfo endpoint returned null!", state);
+        // NOTE: We can get all claims also from the (already verified) ID
+        // token, when configured. However, the ID token also contains iss,
+        // aud, auth_time, iat, exp and nonce which we should not forward,
+        // see IDTokenClaims. Also the 'profile-like' claims should ideally be
+        // returned from the /userinfo endpoint only, hence we fall back to
+        // it when not all required claims are in the ID token.
+        String claims = null;
+        IDTokenClaims idTokenClaims = ((MPOA2ClientEnvironment) getCE()).getIDTokenClaims();
+        if (idTokenClaims != null) {
+            JSONObject json = idTokenClaims.getClaims(atResponse2.getParameters());
+            if (json != null) {
+                info("2.a Using claims from the ID token.");
+                claims = json.toString();
+            } else {
+                info("2.a No verified ID token with the required claims, falling back to user info.");
+            }
+        }
+        if (claims == null) {
+            info("2.a Getting user info.");
+            userInfo = oa2MPService.getUserInfo(identifier);
+            if (userInfo == null) {
+                error("2.a Could not get userinfo");
+                throw new OA2RedirectableError(OA2Errors.SERVER_ERROR, "The userinfo endpoint returned null!", state);
+            }
+            claims = userInfo.toJSon().toString();
         }
 
         String userSubject = asset.getUsername();
-        String reqState = asset.getMPServerRequestState();
-        String reqCode = asset.getMPServerRequestCode();
-        String claims = userInfo.toJSon().toString();
+        String reqState, reqCode;
+        SealedValue sealer = ((MPOA2ClientEnvironment) getCE()).getSessionSealer();
+        if (sealer != null && correlation != null) {
+            // code and state were sealed into a cookie bound to this identifier
+            String[] codeState;
+            try {
+                codeState = sealer.open(correlation, identifier);
+            } catch (GeneralException e) {
+                error("2.a Invalid sealed code&state cookie: " + e.getMessage());
+                throw new OA2RedirectableError(OA2Errors.SERVER_ERROR, "Invalid session cookie.", state);
+            }
+            if (codeState.length != 2) {
+                error("2.a Invalid sealed code&state cookie: expected 2 values, got " + codeState.length);
+                throw new OA2RedirectableError(OA2Errors.SERVER_ERROR, "Invalid session cookie.", state);
+            }
+            reqCode = codeState[0];
+            reqState = codeState[1];
+        } else {
+            // Without a sealer, or when the sealed cookie is missing (e.g.
+            // the session was started before sealing was enabled), code and
+            // state can only come from the asset.
+            reqState = asset.getMPServerRequestState();
+            reqCode = asset.getMPServerRequestCode();
+            if (reqCode == null || reqState == null) {
+                if (sealer != null)
+                    error("2.a No sealed code&state cookie found and no code&state in the asset");
+                else
+                    error("2.a No code&state found in the asset");
+                throw new OA2RedirectableError(OA2Errors.SERVER_ERROR,
+                        "no pending MP-Server request found for this session.", state);
+            }
+        }
 
         info("2.a Returning to MP-Server with code : " + reqCode + " state : " + reqState + " and username: " + userSubject);
         debug("2.a setting claims: " + claims);
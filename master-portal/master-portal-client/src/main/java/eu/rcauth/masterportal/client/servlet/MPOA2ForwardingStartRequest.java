@@ -19,6 +19,8 @@ import org.apache.http.HttpStatus;
 import eu.rcauth.masterportal.MPClientContext;
 import eu.rcauth.masterportal.MPServerContext;
 import eu.rcauth.masterportal.client.MPOA2Asset;
+import eu.rcauth.masterportal.client.MPOA2ClientEnvironment;
+import eu.rcauth.masterportal.servlet.util.SealedValue;
 
 /**
  * Simple /startRequest implementation that supports session keeping between the
@@ -81,13 +83,27 @@ public class MPOA2ForwardingStartRequest extends ClientServlet {
         String code = (String) request.getAttribute(MPServerContext.MP_SERVER_AUTHORIZE_CODE);
         String state = (String) request.getAttribute(MPServerContext.MP_SERVER_AUTHORIZE_STATE);
 
+        SealedValue sealer = ((MPOA2ClientEnvironment) getCE()).getSessionSealer();
         if (code != null && !code.isEmpty() && state != null && !state.isEmpty()) {
-            info("1.a. Saving code&state into asset store for later forwarding !");
-            MPOA2Asset asset = (MPOA2Asset) getCE().getAssetStore().get(id);
-            asset.setMPServerRequestCode(code);
-            asset.setMPServerRequestState(state);
-
-            getCE().getAssetStore().save(asset);
+            if (sealer != null) {
+                // No need to touch the asset store, the ready servlet gets
+                // them back from the cookie.
+                info("1.a. Sealing code&state into cookie for later forwarding !");
+                Cookie cookie = new Cookie(MPClientContext.MP_CLIENT_REQUEST_CORRELATION,
+                                           sealer.seal(id.getUri().toString(), code, state));
+                cookie.setMaxAge(15 * 60); // 15 minutes
+                cookie.setSecure(true);
+                cookie.setHttpOnly(true);
+                cookie.setPath("/");
+                response.addCookie(cookie);
+            } else {
+                info("1.a. Saving code&state into asset store for later forwarding !");
+                MPOA2Asset asset = (MPOA2Asset) getCE().getAssetStore().get(id);
+                asset.setMPServerRequestCode(code);
+                asset.setMPServerRequestState(state);
+
+                getCE().getAssetStore().save(asset);
+            }
         } else {
             error("No code&state pair received! MP-Server will be unable to continue its pending auth request!");
 
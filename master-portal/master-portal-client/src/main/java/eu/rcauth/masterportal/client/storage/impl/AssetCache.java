@@ -0,0 +1,160 @@
+package eu.rcauth.masterportal.client.storage.impl;
+
+import eu.rcauth.masterportal.util.StatisticsLogger;
+
+import edu.uiuc.ncsa.security.core.Identifier;
+import edu.uiuc.ncsa.security.core.util.MyLoggingFacade;
+import edu.uiuc.ncsa.security.storage.sql.internals.ColumnMap;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-memory, size and time bounded cache of serialized assets, used by
+ * the {@link eu.rcauth.masterportal.client.storage.sql.CachingSQLAssetStore}.
+ * <p>
+ * Entries are kept in least-recently-used order and expire a fixed time
+ * after they were last written. Note that the cached assets are stored in
+ * their serialized form, such that every lookup returns a new asset object
+ * and changes are only visible after they have been saved.
+ * <p>
+ * Statistics (hits, misses, evictions) are available via the getters and are
+ * logged periodically.
+ */
+public class AssetCache {
+    private final long ttl;
+    private final int maxSize;
+    private final StatisticsLogger statisticsLogger;
+
+    private final LinkedHashMap<Identifier, Entry> entries;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /** serialized asset with its expiry time */
+    private static class Entry {
+        final ColumnMap map;
+        final long expires;
+
+        Entry(ColumnMap map, long expires) {
+            this.map = map;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * @param ttl time in milliseconds after which an entry expires
+     * @param maxSize maximum number of entries
+     * @param logger for the periodic statistics, may be null
+     */
+    public AssetCache(long ttl, int maxSize, MyLoggingFacade logger) {
+        this.ttl = ttl;
+        this.maxSize = maxSize;
+        this.statisticsLogger = new StatisticsLogger(logger);
+        this.entries = new LinkedHashMap<Identifier, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Identifier, Entry> eldest) {
+                if (size() > AssetCache.this.maxSize) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /** @return time in milliseconds after which an entry expires */
+    public long getTTL() {
+        return ttl;
+    }
+
+    /** @return maximum number of entries */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @param id asset identifier
+     * @return serialized asset, or null when not cached or expired
+     */
+    public synchronized ColumnMap get(Identifier id) {
+        long now = System.currentTimeMillis();
+        if (statisticsLogger.isDue(now)) {
+            removeExpired(now);
+            statisticsLogger.log(this);
+        }
+        Entry entry = entries.get(id);
+        if (entry != null && entry.expires <= now) {
+            entries.remove(id);
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.map;
+    }
+
+    /**
+     * Adds or replaces the serialized asset.
+     */
+    public synchronized void put(Identifier id, ColumnMap map) {
+        entries.put(id, new Entry(map, System.currentTimeMillis() + ttl));
+    }
+
+    /**
+     * Removes the asset with given identifier.
+     */
+    public synchronized void remove(Identifier id) {
+        entries.remove(id);
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /** @return number of entries, including expired ones not yet removed */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** @return number of lookups served from memory */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /** @return number of lookups not served from memory */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /** @return number of entries removed because of the size limit */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long lookups = hits + misses;
+        return "asset cache: " + entries.size() + "/" + maxSize + " entries, " + hits + " hits, " + misses +
+               " misses" + (lookups > 0 ? " (" + (100 * hits / lookups) + "% hit rate)" : "") + ", " +
+               evictions + " evictions";
+    }
+
+    /**
+     * Removes all expired entries.
+     */
+    private void removeExpired(long now) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().expires <= now)
+                iterator.remove();
+        }
+    }
+}
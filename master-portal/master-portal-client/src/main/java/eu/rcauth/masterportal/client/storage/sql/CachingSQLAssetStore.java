@@ -0,0 +1,142 @@
+package eu.rcauth.masterportal.client.storage.sql;
+
+import eu.rcauth.masterportal.client.storage.impl.AssetCache;
+
+import edu.uiuc.ncsa.myproxy.oa4mp.client.Asset;
+import edu.uiuc.ncsa.myproxy.oa4mp.client.storage.SQLAssetStore;
+import edu.uiuc.ncsa.security.core.IdentifiableProvider;
+import edu.uiuc.ncsa.security.core.Identifier;
+import edu.uiuc.ncsa.security.core.util.BasicIdentifier;
+import edu.uiuc.ncsa.security.storage.data.MapConverter;
+import edu.uiuc.ncsa.security.storage.sql.ConnectionPool;
+import edu.uiuc.ncsa.security.storage.sql.internals.ColumnMap;
+import edu.uiuc.ncsa.security.storage.sql.internals.Table;
+
+/**
+ * SQL asset store with an in-memory {@link AssetCache} in front of it. All
+ * writes go to the database first and are then written into the cache,
+ * lookups are served from the cache when possible. Since an asset is only
+ * used during a single login flow of about 15 minutes, this saves most of
+ * the database reads.
+ * <p>
+ * Note that the cache is local to this server, hence it should only be used
+ * with a single MP-Client or with sticky sessions: otherwise a node might
+ * serve an outdated asset that was changed by another node.
+ */
+@SuppressWarnings({"unchecked", "rawtypes"})
+public class CachingSQLAssetStore extends SQLAssetStore {
+
+    protected final AssetCache cache;
+
+    public CachingSQLAssetStore(ConnectionPool connectionPool,
+                                Table table,
+                                IdentifiableProvider identifiableProvider,
+                                MapConverter converter,
+                                AssetCache cache) {
+        super(connectionPool, table, identifiableProvider, converter);
+        this.cache = cache;
+    }
+
+    /** @return the cache in front of this store */
+    public AssetCache getCache() {
+        return cache;
+    }
+
+    @Override
+    public Asset get(Object o) {
+        if (!(o instanceof Identifier))
+            return (Asset) super.get(o);
+
+        Identifier id = (Identifier) o;
+        ColumnMap map = cache.get(id);
+        if (map != null) {
+            // Always return a fresh object, such that unsaved changes by
+            // the caller never end up in the cache
+            Asset asset = (Asset) create();
+            populate(map, asset);
+            return asset;
+        }
+
+        Asset asset = (Asset) super.get(o);
+        if (asset != null)
+            cache.put(id, depopulate(asset));
+        return asset;
+    }
+
+    /**
+     * Lookup by the raw identifier, as used by the servlets that get the
+     * identifier from a cookie or request attribute. Goes through the cache
+     * like {@link #get(Object)}.
+     */
+    @Override
+    public Asset get(String identifier) {
+        if (identifier == null)
+            return null;
+        return get((Object) BasicIdentifier.newID(identifier));
+    }
+
+    @Override
+    public void save(Asset value) {
+        try {
+            super.save(value);
+        } catch (RuntimeException e) {
+            evict(value);
+            throw e;
+        }
+        cache(value);
+    }
+
+    @Override
+    public void register(Asset value) {
+        try {
+            super.register(value);
+        } catch (RuntimeException e) {
+            evict(value);
+            throw e;
+        }
+        cache(value);
+    }
+
+    @Override
+    public void update(Asset value) {
+        try {
+            super.update(value);
+        } catch (RuntimeException e) {
+            evict(value);
+            throw e;
+        }
+        cache(value);
+    }
+
+    @Override
+    public Asset remove(Object key) {
+        // Remove from the cache first, such that it is gone also when the
+        // database delete fails
+        if (key instanceof Identifier)
+            cache.remove((Identifier) key);
+        return (Asset) super.remove(key);
+    }
+
+    @Override
+    public void clear() {
+        cache.clear();
+        super.clear();
+    }
+
+    /**
+     * Puts the just written asset into the cache.
+     */
+    private void cache(Asset asset) {
+        if (asset.getIdentifier() != null)
+            cache.put(asset.getIdentifier(), depopulate(asset));
+    }
+
+    /**
+     * Removes the asset from the cache after a failed write, such that the
+     * next lookup reads whatever is in the database.
+     */
+    private void evict(Asset asset) {
+        if (asset.getIdentifier() != null)
+            cache.remove(asset.getIdentifier());
+    }
+}
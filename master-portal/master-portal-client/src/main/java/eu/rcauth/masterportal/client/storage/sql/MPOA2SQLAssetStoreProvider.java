@@ -2,6 +2,7 @@ package eu.rcauth.masterportal.client.storage.sql;
 
 import org.apache.commons.configuration.tree.ConfigurationNode;
 import eu.rcauth.masterportal.client.storage.MPOA2AssetSerializationKeys;
+import eu.rcauth.masterportal.client.storage.impl.AssetCache;
 import eu.rcauth.masterportal.client.storage.sql.table.MPOA2AssetStoreTable;
 
 import edu.uiuc.ncsa.myproxy.oa4mp.client.storage.AssetProvider;
@@ -14,17 +15,33 @@ import edu.uiuc.ncsa.security.storage.sql.ConnectionPoolProvider;
 
 public class MPOA2SQLAssetStoreProvider extends OA2SQLAssetStoreProvider {
 
+    protected final AssetProvider assetProvider;
+    protected final AssetCache cache;
+
     public MPOA2SQLAssetStoreProvider(ConfigurationNode config, String storeType, ConnectionPoolProvider<? extends ConnectionPool> cpp, AssetProvider assetProvider, MapConverter converter) {
+        this(config, storeType, cpp, assetProvider, converter, null);
+    }
+
+    /**
+     * @param cache when non-null, the store will be a {@link CachingSQLAssetStore}
+     * using this cache.
+     */
+    public MPOA2SQLAssetStoreProvider(ConfigurationNode config, String storeType, ConnectionPoolProvider<? extends ConnectionPool> cpp, AssetProvider assetProvider, MapConverter converter, AssetCache cache) {
         super(config, storeType, cpp, assetProvider, converter);
+        this.assetProvider = assetProvider;
+        this.cache = cache;
     }
 
 
     @Override
     public SQLAssetStore get() {
-        return newInstance(new MPOA2AssetStoreTable(
+        MPOA2AssetStoreTable table = new MPOA2AssetStoreTable(
                 (MPOA2AssetSerializationKeys)converter.keys, getSchema(),
                 getPrefix(),
-                getTablename() == null ? AssetStoreTable.DEFAULT_TABLENAME : getTablename()));
+                getTablename() == null ? AssetStoreTable.DEFAULT_TABLENAME : getTablename());
+        if (cache == null)
+            return newInstance(table);
+        return new CachingSQLAssetStore(getConnectionPool(), table, assetProvider, converter, cache);
     }
 
 }
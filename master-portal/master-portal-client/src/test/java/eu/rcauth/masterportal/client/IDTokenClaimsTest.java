@@ -0,0 +1,115 @@
+package eu.rcauth.masterportal.client;
+
+import edu.uiuc.ncsa.security.oauth_2_0.OA2Constants;
+
+import net.sf.json.JSONObject;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link IDTokenClaims}.
+ */
+public class IDTokenClaimsTest {
+
+    @Test
+    public void testUserClaims() {
+        Map<String, Object> idToken = idToken();
+        idToken.put("email", "alice@example.org");
+        idToken.put("email_verified", true);
+        idToken.put("groups", Arrays.asList("a", "b"));
+        idToken.put("updated_at", 1700000000L);
+
+        JSONObject claims = new IDTokenClaims(Collections.<String>emptyList()).getClaims(parameters(idToken));
+        assertEquals("alice", claims.get("sub"));
+        assertEquals("alice@example.org", claims.get("email"));
+        assertEquals(Boolean.TRUE, claims.get("email_verified"));
+        assertEquals(Arrays.asList("a", "b"), claims.getJSONArray("groups"));
+        assertEquals(1700000000L, claims.getLong("updated_at"));
+        assertEquals(5, claims.size());
+    }
+
+    /** Claims about the ID token itself are left out */
+    @Test
+    public void testTokenClaims() {
+        Map<String, Object> idToken = idToken();
+        for (String claim : IDTokenClaims.TOKEN_CLAIMS)
+            idToken.put(claim, "value");
+
+        JSONObject claims = new IDTokenClaims(Collections.<String>emptyList()).getClaims(parameters(idToken));
+        assertEquals(1, claims.size());
+        for (String claim : IDTokenClaims.TOKEN_CLAIMS)
+            assertFalse(claims.containsKey(claim));
+    }
+
+    @Test
+    public void testOtherValuesSkipped() {
+        Map<String, Object> idToken = idToken();
+        idToken.put("object", new Object());
+        idToken.put("null", null);
+
+        JSONObject claims = new IDTokenClaims(Collections.<String>emptyList()).getClaims(parameters(idToken));
+        assertEquals(1, claims.size());
+    }
+
+    @Test
+    public void testRequired() {
+        IDTokenClaims idTokenClaims = new IDTokenClaims(Arrays.asList("email", "cert_subject_dn"));
+        Map<String, Object> idToken = idToken();
+        idToken.put("email", "alice@example.org");
+        assertNull(idTokenClaims.getClaims(parameters(idToken)));
+
+        idToken.put("cert_subject_dn", "CN=Alice");
+        assertTrue(idTokenClaims.getClaims(parameters(idToken)).containsKey("cert_subject_dn"));
+    }
+
+    @Test
+    public void testMissingSubject() {
+        Map<String, Object> idToken = idToken();
+        idToken.remove("sub");
+        idToken.put("email", "alice@example.org");
+        assertNull(new IDTokenClaims(Collections.<String>emptyList()).getClaims(parameters(idToken)));
+    }
+
+    /** Only the parsed ID token is used, never the rest of the token response */
+    @Test
+    public void testNoParsedIDToken() {
+        IDTokenClaims idTokenClaims = new IDTokenClaims(Collections.<String>emptyList());
+        assertNull(idTokenClaims.getClaims(null));
+
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("sub", "alice");
+        parameters.put(OA2Constants.ACCESS_TOKEN, "token");
+        assertNull(idTokenClaims.getClaims(parameters));
+
+        parameters.put(OA2Constants.ID_TOKEN, "eyJhbGciOiJSUzI1NiJ9.e30.c2ln");
+        assertNull(idTokenClaims.getClaims(parameters));
+    }
+
+    private static Map<String, Object> idToken() {
+        Map<String, Object> idToken = new HashMap<>();
+        idToken.put("sub", "alice");
+        idToken.put("iss", "https://op.example.org");
+        idToken.put("aud", "client");
+        idToken.put("exp", 1700000900L);
+        idToken.put("iat", 1700000000L);
+        idToken.put("nonce", "nonce");
+        return idToken;
+    }
+
+    private static Map<String, Object> parameters(Map<String, Object> idToken) {
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put(OA2Constants.ACCESS_TOKEN, "token");
+        parameters.put(OA2Constants.ID_TOKEN, idToken);
+        return parameters;
+    }
+}
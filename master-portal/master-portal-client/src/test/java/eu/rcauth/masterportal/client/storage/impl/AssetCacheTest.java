@@ -0,0 +1,80 @@
+package eu.rcauth.masterportal.client.storage.impl;
+
+import edu.uiuc.ncsa.security.core.Identifier;
+import edu.uiuc.ncsa.security.core.util.BasicIdentifier;
+import edu.uiuc.ncsa.security.storage.sql.internals.ColumnMap;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests for {@link AssetCache}.
+ */
+public class AssetCacheTest {
+    private static final Identifier ID_1 = BasicIdentifier.newID("urn:test:asset/1");
+    private static final Identifier ID_2 = BasicIdentifier.newID("urn:test:asset/2");
+    private static final Identifier ID_3 = BasicIdentifier.newID("urn:test:asset/3");
+
+    @Test
+    public void testHitsAndMisses() {
+        AssetCache cache = new AssetCache(60000L, 10, null);
+        ColumnMap map = map("1");
+        assertNull(cache.get(ID_1));
+        cache.put(ID_1, map);
+        assertSame(map, cache.get(ID_1));
+        assertSame(map, cache.get(ID_1));
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testReplaceAndRemove() {
+        AssetCache cache = new AssetCache(60000L, 10, null);
+        ColumnMap map = map("2");
+        cache.put(ID_1, map("1"));
+        cache.put(ID_1, map);
+        assertEquals(1, cache.size());
+        assertSame(map, cache.get(ID_1));
+
+        cache.remove(ID_1);
+        assertNull(cache.get(ID_1));
+        cache.put(ID_1, map);
+        cache.put(ID_2, map);
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+    /** The least recently used entry is evicted first */
+    @Test
+    public void testEviction() {
+        AssetCache cache = new AssetCache(60000L, 2, null);
+        cache.put(ID_1, map("1"));
+        cache.put(ID_2, map("2"));
+        cache.get(ID_1);
+        cache.put(ID_3, map("3"));
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertNull(cache.get(ID_2));
+        assertEquals("1", cache.get(ID_1).get("state"));
+        assertEquals("3", cache.get(ID_3).get("state"));
+    }
+
+    @Test
+    public void testExpiry() {
+        AssetCache cache = new AssetCache(0L, 10, null);
+        cache.put(ID_1, map("1"));
+        assertNull(cache.get(ID_1));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    private static ColumnMap map(String state) {
+        ColumnMap map = new ColumnMap();
+        map.put("state", state);
+        return map;
+    }
+}
@@ -0,0 +1,112 @@
+package eu.rcauth.masterportal.client.storage.sql;
+
+import eu.rcauth.masterportal.client.MPOA2Asset;
+import eu.rcauth.masterportal.client.storage.MPOA2AssetConverter;
+import eu.rcauth.masterportal.client.storage.MPOA2AssetSerializationKeys;
+import eu.rcauth.masterportal.client.storage.impl.AssetCache;
+import eu.rcauth.masterportal.client.storage.impl.MPOA2AssetProvider;
+import eu.rcauth.masterportal.client.storage.sql.table.MPOA2AssetStoreTable;
+
+import edu.uiuc.ncsa.myproxy.oa4mp.client.Asset;
+import edu.uiuc.ncsa.security.core.util.BasicIdentifier;
+import edu.uiuc.ncsa.security.storage.sql.internals.ColumnMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link CachingSQLAssetStore}. The store has no connection pool,
+ * so every database access fails: lookups that succeed were served from the
+ * cache.
+ */
+@SuppressWarnings({"unchecked", "rawtypes"})
+public class CachingSQLAssetStoreTest {
+    private static final String ID = "urn:test:asset/1";
+
+    private AssetCache cache;
+    private MPOA2AssetConverter converter;
+    private CachingSQLAssetStore store;
+
+    @Before
+    public void setUp() {
+        MPOA2AssetSerializationKeys keys = new MPOA2AssetSerializationKeys();
+        MPOA2AssetProvider provider = new MPOA2AssetProvider();
+        cache = new AssetCache(60000L, 10, null);
+        converter = new MPOA2AssetConverter(keys, provider);
+        store = new CachingSQLAssetStore(null, new MPOA2AssetStoreTable(keys, null, null, "assets"),
+                                         provider, converter, cache);
+    }
+
+    /** The servlets look up assets by the identifier from the cookie */
+    @Test
+    public void testGetByString() {
+        cache(asset("state"));
+        MPOA2Asset asset = (MPOA2Asset) store.get(ID);
+        assertEquals(BasicIdentifier.newID(ID), asset.getIdentifier());
+        assertEquals("state", asset.getState());
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void testGetByIdentifier() {
+        cache(asset("state"));
+        Asset first = store.get((Object) BasicIdentifier.newID(ID));
+        Asset second = store.get((Object) BasicIdentifier.newID(ID));
+        // Every lookup returns a new object
+        assertNotSame(first, second);
+        assertEquals("state", ((MPOA2Asset) first).getState());
+        assertEquals(2, cache.getHits());
+    }
+
+    @Test
+    public void testMissGoesToDatabase() {
+        try {
+            store.get(ID);
+            fail("Expected a database error");
+        } catch (RuntimeException e) {
+            // expected
+        }
+        assertEquals(1, cache.getMisses());
+    }
+
+    /** A failed write must not leave the previous version in the cache */
+    @Test
+    public void testFailedSaveEvicts() {
+        cache(asset("old"));
+        try {
+            store.save(asset("new"));
+            fail("Expected a database error");
+        } catch (RuntimeException e) {
+            // expected
+        }
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testRemoveEvictsFirst() {
+        cache(asset("state"));
+        try {
+            store.remove(BasicIdentifier.newID(ID));
+            fail("Expected a database error");
+        } catch (RuntimeException e) {
+            // expected
+        }
+        assertEquals(0, cache.size());
+    }
+
+    private MPOA2Asset asset(String state) {
+        MPOA2Asset asset = new MPOA2Asset(BasicIdentifier.newID(ID));
+        asset.setState(state);
+        return asset;
+    }
+
+    private void cache(MPOA2Asset asset) {
+        ColumnMap map = new ColumnMap();
+        converter.toMap(asset, map);
+        cache.put(asset.getIdentifier(), map);
+    }
+}
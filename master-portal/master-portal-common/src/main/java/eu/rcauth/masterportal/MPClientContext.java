@@ -15,6 +15,10 @@ public final class MPClientContext {
     // bacause that would collide with co-located VO Portals.
     public static final String MP_CLIENT_REQUEST_ID = "master_portal_client_req_id";
 
+    // Variable containing the sealed MP-Server code and state, when these
+    // are not stored in the asset store.
+    public static final String MP_CLIENT_REQUEST_CORRELATION = "master_portal_client_req_corr";
+
     // /forwardgetcert endpoint
     public static final String MP_CLIENT_FWGETCERT_ENDPOINT = "/forwardgetcert";
 
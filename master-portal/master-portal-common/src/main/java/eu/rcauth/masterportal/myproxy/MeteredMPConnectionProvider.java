@@ -0,0 +1,97 @@
+package eu.rcauth.masterportal.myproxy;
+
+import eu.rcauth.masterportal.util.StatisticsLogger;
+
+import edu.uiuc.ncsa.myproxy.MPConnectionProvider;
+import edu.uiuc.ncsa.myproxy.MyProxyConnectable;
+import edu.uiuc.ncsa.myproxy.MyProxyServiceFacade;
+import edu.uiuc.ncsa.security.core.Identifier;
+import edu.uiuc.ncsa.security.core.util.MyLoggingFacade;
+
+import java.security.GeneralSecurityException;
+import java.util.List;
+
+/**
+ * Long-lived {@link MPConnectionProvider}, meant to be created once per
+ * environment and shared by all requests, instead of building a new provider
+ * for every MyProxy connection. It keeps track of the time needed to
+ * establish connections (including the TLS handshake) to the MyProxy server.
+ * <p>
+ * Statistics (connections, failures, average and maximum connect time) are
+ * available via the getters and are logged periodically.
+ */
+public class MeteredMPConnectionProvider<T extends MyProxyConnectable> extends MPConnectionProvider<T> {
+    private final StatisticsLogger statisticsLogger;
+
+    private long connections = 0;
+    private long failures = 0;
+    private long totalTime = 0;
+    private long maxTime = 0;
+
+    /**
+     * @param logger for the periodic statistics
+     * @param facades MyProxy services to connect to
+     */
+    public MeteredMPConnectionProvider(MyLoggingFacade logger, List<MyProxyServiceFacade> facades) {
+        super(logger, facades);
+        this.statisticsLogger = new StatisticsLogger(logger);
+    }
+
+    @Override
+    public T findConnection(Identifier identifier, String userName, String password, String loa, long lifetime)
+            throws GeneralSecurityException {
+        long start = System.currentTimeMillis();
+        boolean success = false;
+        try {
+            T connection = super.findConnection(identifier, userName, password, loa, lifetime);
+            success = true;
+            return connection;
+        } finally {
+            record(System.currentTimeMillis() - start, success);
+        }
+    }
+
+    /** @return number of successfully established connections */
+    public synchronized long getConnections() {
+        return connections;
+    }
+
+    /** @return number of failed connection attempts */
+    public synchronized long getFailures() {
+        return failures;
+    }
+
+    /** @return average time in milliseconds to establish a connection */
+    public synchronized long getAverageConnectTime() {
+        return connections > 0 ? totalTime / connections : 0;
+    }
+
+    /** @return maximum time in milliseconds to establish a connection */
+    public synchronized long getMaxConnectTime() {
+        return maxTime;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MyProxy connections: " + connections + " established, " + failures + " failed, " +
+               getAverageConnectTime() + " ms average, " + maxTime + " ms maximum connect time";
+    }
+
+    /**
+     * Updates the statistics and logs them periodically. Subclasses not
+     * calling {@link #findConnection} of this class should call this instead.
+     * @param time time in milliseconds spent establishing the connection
+     * @param success whether a connection was established
+     */
+    protected synchronized void record(long time, boolean success) {
+        if (success) {
+            connections++;
+            totalTime += time;
+            maxTime = Math.max(maxTime, time);
+        } else {
+            failures++;
+        }
+
+        statisticsLogger.logIfDue(this);
+    }
+}
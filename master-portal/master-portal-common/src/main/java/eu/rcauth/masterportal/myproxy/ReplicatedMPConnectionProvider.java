@@ -0,0 +1,413 @@
+package eu.rcauth.masterportal.myproxy;
+
+import edu.uiuc.ncsa.myproxy.MyProxyConnectable;
+import edu.uiuc.ncsa.myproxy.MyProxyServiceFacade;
+import edu.uiuc.ncsa.security.core.Identifier;
+import edu.uiuc.ncsa.security.core.exceptions.GeneralException;
+import edu.uiuc.ncsa.security.core.util.MyLoggingFacade;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link MeteredMPConnectionProvider} treating all configured MyProxy
+ * servers as replicas of each other, instead of as fail-over servers.
+ * <ul>
+ *     <li>{@link #findConnection} spreads connections round-robin over the
+ *     replicas, skipping replicas that recently failed.</li>
+ *     <li>{@link #replicate} runs a command (e.g. a PUT or STORE) on all
+ *     replicas in parallel, returning once a quorum succeeded, the remaining
+ *     replicas are filled in the background. A write that fails on a replica
+ *     is retried a few times with increasing delays, unless a newer write for
+ *     the same user superseded it. Until then, {@link #findConnection} avoids
+ *     that replica for the user.</li>
+ * </ul>
+ * Note that a command, and whatever it references (e.g. a private key), is
+ * kept until it ran on all replicas, or until its repair succeeded, was
+ * superseded or was given up. With the default of
+ * {@link #DEFAULT_REPAIR_ATTEMPTS} retries that is at most about 155
+ * seconds after the write, without retries it is dropped as soon as each
+ * replica has been tried once.
+ * <p>
+ * Note that directly after a replicated write, a replica outside the quorum
+ * might not yet have the new credential, and that other processes using the
+ * same replicas don't know about pending repairs. Readers should therefore
+ * try the other replicas, using {@link #getLastReplica()} and
+ * {@link #connectReplica}, before treating a credential as absent.
+ * <p>
+ * The inherited statistics cover {@link #findConnection} as a whole, the
+ * statistics per replica (including the replicated writes) are part of
+ * {@link #toString()}. The replication uses a bounded number of threads and
+ * a bounded queue, a write to a replica that does not fit counts as failed.
+ */
+public class ReplicatedMPConnectionProvider<T extends MyProxyConnectable> extends MeteredMPConnectionProvider<T> {
+    /** time in milliseconds a failed replica is skipped by {@link #findConnection} */
+    private static final long FAILURE_BACKOFF = 30L * 1000L;
+    /** maximum number of concurrent replicated writes per replica */
+    private static final int MAX_THREADS_PER_REPLICA = 4;
+    /** maximum number of waiting replicated writes per replica */
+    private static final int MAX_QUEUE_PER_REPLICA = 100;
+    /** time in milliseconds before the first retry of a failed replicated write, doubled for each next one */
+    private static final long REPAIR_DELAY = 5L * 1000L;
+    /** default maximum number of retries of a failed replicated write */
+    public static final int DEFAULT_REPAIR_ATTEMPTS = 5;
+
+    /** command to run on a single replica */
+    public interface Command {
+        void execute(MyProxyConnectable connection) throws Throwable;
+    }
+
+    private final List<Replica<T>> replicas = new ArrayList<>();
+    private final MyLoggingFacade logger;
+    /** maximum number of retries of a failed replicated write */
+    private final int maxRepairAttempts;
+    private final AtomicInteger next = new AtomicInteger();
+    /** sequence number of the replicated writes, for detecting superseded repairs */
+    private final AtomicLong writes = new AtomicLong();
+    /** index of the replica of the last connection established by this thread */
+    private final ThreadLocal<Integer> lastReplica = new ThreadLocal<>();
+
+    private final ExecutorService executor;
+    private final ScheduledExecutorService repairer;
+
+    /** single MyProxy server with the time it last failed */
+    private static class Replica<T extends MyProxyConnectable> {
+        final int number;
+        final MeteredMPConnectionProvider<T> provider;
+        volatile long failedAt = 0;
+        /** usernames with a failed write, with the write to retry */
+        final ConcurrentHashMap<String, Repair> pendingRepairs = new ConcurrentHashMap<>();
+
+        Replica(MyLoggingFacade logger, int number, MyProxyServiceFacade facade) {
+            this.number = number;
+            this.provider = new MeteredMPConnectionProvider<>(logger, Collections.singletonList(facade));
+        }
+
+        boolean isHealthy(long now, String userName) {
+            return now - failedAt > FAILURE_BACKOFF &&
+                   (userName == null || !pendingRepairs.containsKey(userName));
+        }
+    }
+
+    /**
+     * Failed write to retry. The command is cleared once the repair is no
+     * longer needed, such that e.g. a private key it references is not kept
+     * until the scheduled retry runs.
+     */
+    private static class Repair {
+        /** sequence number of the write */
+        final long sequence;
+        volatile Command command;
+
+        Repair(long sequence, Command command) {
+            this.sequence = sequence;
+            this.command = command;
+        }
+
+        /** @return null, after clearing the command */
+        Repair clear() {
+            command = null;
+            return null;
+        }
+    }
+
+    /**
+     * @param logger for errors and statistics
+     * @param facades MyProxy services to use as replicas
+     */
+    public ReplicatedMPConnectionProvider(MyLoggingFacade logger, List<MyProxyServiceFacade> facades) {
+        this(logger, facades, DEFAULT_REPAIR_ATTEMPTS);
+    }
+
+    /**
+     * @param logger for errors and statistics
+     * @param facades MyProxy services to use as replicas
+     * @param maxRepairAttempts maximum number of retries of a failed
+     *                          replicated write, 0 to not retry
+     */
+    public ReplicatedMPConnectionProvider(MyLoggingFacade logger, List<MyProxyServiceFacade> facades,
+                                          int maxRepairAttempts) {
+        super(logger, facades);
+        this.logger = logger;
+        this.maxRepairAttempts = maxRepairAttempts;
+        for (MyProxyServiceFacade facade : facades)
+            replicas.add(new Replica<>(logger, replicas.size() + 1, facade));
+
+        int threads = Math.max(replicas.size(), 1) * MAX_THREADS_PER_REPLICA;
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(Math.max(replicas.size(), 1) * MAX_QUEUE_PER_REPLICA), r -> {
+                    Thread thread = new Thread(r, "myproxy-replication");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        executor = pool;
+        repairer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "myproxy-replication-repair");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /** @return number of replicas */
+    public int getReplicaCount() {
+        return replicas.size();
+    }
+
+    /**
+     * Connects to the next healthy replica in round-robin order, trying the
+     * others when it fails. Only when all healthy replicas fail, also the
+     * ones that failed recently or still miss a write for the user are tried.
+     */
+    @Override
+    public T findConnection(Identifier identifier, String userName, String password, String loa, long lifetime)
+            throws GeneralSecurityException {
+        long start = System.currentTimeMillis();
+        boolean success = false;
+        try {
+            T connection = findReplicaConnection(identifier, userName, password, loa, lifetime);
+            success = true;
+            return connection;
+        } finally {
+            record(System.currentTimeMillis() - start, success);
+        }
+    }
+
+    /** @see #findConnection */
+    private T findReplicaConnection(Identifier identifier, String userName, String password, String loa, long lifetime)
+            throws GeneralSecurityException {
+        int first = Math.floorMod(next.getAndIncrement(), replicas.size());
+        long now = System.currentTimeMillis();
+        GeneralSecurityException last = null;
+        for (boolean healthy : new boolean[] {true, false}) {
+            for (int i = 0; i < replicas.size(); i++) {
+                Replica<T> replica = replicas.get((first + i) % replicas.size());
+                if (replica.isHealthy(now, userName) != healthy)
+                    continue;
+                try {
+                    T connection = replica.provider.findConnection(identifier, userName, password, loa, lifetime);
+                    replica.failedAt = 0;
+                    lastReplica.set((first + i) % replicas.size());
+                    return connection;
+                } catch (GeneralSecurityException | RuntimeException e) {
+                    replica.failedAt = System.currentTimeMillis();
+                    logger.warn("Cannot connect to MyProxy replica #" + replica.number + ": " + e.getMessage());
+                    last = e instanceof GeneralSecurityException ?
+                            (GeneralSecurityException) e : new GeneralSecurityException(e.getMessage(), e);
+                }
+            }
+        }
+        throw last != null ? last : new GeneralSecurityException("No MyProxy replicas configured");
+    }
+
+    /**
+     * @return index of the replica of the last connection established by
+     * {@link #findConnection} in the current thread, or -1 when unknown
+     */
+    public int getLastReplica() {
+        Integer index = lastReplica.get();
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * Connects to the given replica only, e.g. for looking up a credential
+     * that was not found on the replica returned by {@link #findConnection}.
+     * @param index index of the replica, from 0 to {@link #getReplicaCount()}
+     * @throws GeneralSecurityException when the replica cannot be connected
+     */
+    public T connectReplica(int index, Identifier identifier, String userName, String password, String loa,
+                            long lifetime) throws GeneralSecurityException {
+        Replica<T> replica = replicas.get(index);
+        try {
+            T connection = replica.provider.findConnection(identifier, userName, password, loa, lifetime);
+            replica.failedAt = 0;
+            return connection;
+        } catch (GeneralSecurityException | RuntimeException e) {
+            replica.failedAt = System.currentTimeMillis();
+            throw e;
+        }
+    }
+
+    /**
+     * Runs the command on all replicas in parallel and waits until quorum of
+     * them succeeded. The remaining replicas are completed in the background.
+     * Failed replicas are repaired by retrying the command in the background,
+     * see the class description.
+     * @param quorum number of replicas that need to succeed, at most the
+     *               number of replicas
+     * @throws GeneralException when the quorum cannot be reached anymore
+     */
+    public void replicate(final Identifier identifier, final String userName, final String password,
+                          final long lifetime, int quorum, final Command command) throws InterruptedException {
+        int needed = Math.min(Math.max(quorum, 1), replicas.size());
+        final long sequence = writes.incrementAndGet();
+        CompletionService<Replica<T>> completion = new ExecutorCompletionService<>(executor);
+        int failed = 0;
+        GeneralException last = null;
+        for (final Replica<T> replica : replicas) {
+            try {
+                completion.submit(() -> {
+                    try {
+                        write(replica, identifier, userName, password, lifetime, command);
+                        // A newer write replaces whatever an older repair would write
+                        replica.pendingRepairs.computeIfPresent(userName, (u, r) -> r.sequence <= sequence ? r.clear() : r);
+                        return replica;
+                    } catch (Throwable t) {
+                        logger.warn("Replication to MyProxy replica #" + replica.number + " failed: " + t.getMessage());
+                        scheduleRepair(replica, identifier, userName, password, lifetime, new Repair(sequence, command));
+                        throw new GeneralException(t.getMessage(), t);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                failed++;
+                last = new GeneralException("too many pending replications", e);
+                logger.warn("Replication to MyProxy replica #" + replica.number + " failed: " + last.getMessage());
+                scheduleRepair(replica, identifier, userName, password, lifetime, new Repair(sequence, command));
+            }
+        }
+        if (replicas.size() - failed < needed)
+            throw new GeneralException("Replication quorum of " + needed + " not reached, " + failed +
+                                       " of " + replicas.size() + " MyProxy replicas failed: " +
+                                       last.getMessage(), last);
+
+        int succeeded = 0;
+        while (succeeded < needed) {
+            try {
+                completion.take().get();
+                succeeded++;
+            } catch (ExecutionException e) {
+                failed++;
+                last = (GeneralException) e.getCause();
+                if (replicas.size() - failed < needed)
+                    throw new GeneralException("Replication quorum of " + needed + " not reached, " + failed +
+                                               " of " + replicas.size() + " MyProxy replicas failed: " +
+                                               last.getMessage(), last);
+            }
+        }
+    }
+
+    /**
+     * Stops the background replication, pending repairs are dropped.
+     */
+    public void stop() {
+        executor.shutdown();
+        repairer.shutdownNow();
+        for (Replica<T> replica : replicas) {
+            for (Repair repair : replica.pendingRepairs.values())
+                repair.clear();
+            replica.pendingRepairs.clear();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("MyProxy replicas:");
+        for (Replica<T> replica : replicas) {
+            sb.append(" [#").append(replica.number).append(": ").append(replica.provider.toString())
+              .append(", ").append(replica.pendingRepairs.size()).append(" pending repairs]");
+        }
+        return sb.toString();
+    }
+
+    //////////////////////////////////////////////////////////////////////////
+    // Internal methods
+    //////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Runs the command on a single replica, updating its failure time.
+     */
+    private void write(Replica<T> replica, Identifier identifier, String userName, String password, long lifetime,
+                       Command command) throws Throwable {
+        try {
+            MyProxyConnectable connection = replica.provider.findConnection(identifier, userName,
+                                                                            password, null, lifetime);
+            command.execute(connection);
+            replica.failedAt = 0;
+        } catch (Throwable t) {
+            replica.failedAt = System.currentTimeMillis();
+            throw t;
+        }
+    }
+
+    /**
+     * Marks the replica as missing the write of repair for the user and
+     * schedules the first retry, unless a newer write is already pending or
+     * repairs are disabled.
+     */
+    private void scheduleRepair(Replica<T> replica, Identifier identifier, String userName, String password,
+                                long lifetime, Repair repair) {
+        if (maxRepairAttempts <= 0) {
+            repair.clear();
+            return;
+        }
+        Repair pending = replica.pendingRepairs.merge(userName, repair, (old, r) -> {
+            if (old.sequence >= r.sequence)
+                return old;
+            old.clear();
+            return r;
+        });
+        if (pending != repair) {
+            repair.clear();
+            return;
+        }
+        scheduleRetry(replica, identifier, userName, password, lifetime, repair, 1);
+    }
+
+    /**
+     * Schedules a retry of the pending repair.
+     * @param attempt number of the retry, starting at 1
+     */
+    private void scheduleRetry(final Replica<T> replica, final Identifier identifier, final String userName,
+                               final String password, final long lifetime, final Repair repair, final int attempt) {
+        try {
+            repairer.schedule(() -> repair(replica, identifier, userName, password, lifetime, repair, attempt),
+                              REPAIR_DELAY << (attempt - 1), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Stopped
+            replica.pendingRepairs.remove(userName, repair);
+            repair.clear();
+        }
+    }
+
+    /**
+     * Retries a failed write, unless a newer write for the same user has been
+     * done (or is pending) in the meantime.
+     */
+    private void repair(Replica<T> replica, Identifier identifier, String userName, String password, long lifetime,
+                        Repair repair, int attempt) {
+        Command command = repair.command;
+        if (command == null || replica.pendingRepairs.get(userName) != repair)
+            return;
+        try {
+            write(replica, identifier, userName, password, lifetime, command);
+            replica.pendingRepairs.remove(userName, repair);
+            repair.clear();
+            logger.info("Repaired replication of " + userName + " to MyProxy replica #" + replica.number +
+                        " after " + attempt + " attempts");
+        } catch (Throwable t) {
+            if (attempt < maxRepairAttempts) {
+                scheduleRetry(replica, identifier, userName, password, lifetime, repair, attempt + 1);
+            } else {
+                replica.pendingRepairs.remove(userName, repair);
+                repair.clear();
+                logger.error("Giving up replication of " + userName + " to MyProxy replica #" + replica.number +
+                             " after " + attempt + " attempts: " + t.getMessage());
+            }
+        }
+    }
+}
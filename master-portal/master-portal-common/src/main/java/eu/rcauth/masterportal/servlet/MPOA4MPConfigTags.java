@@ -5,14 +5,128 @@ import edu.uiuc.ncsa.myproxy.oa4mp.server.OA4MPConfigTags;
 public interface MPOA4MPConfigTags extends OA4MPConfigTags {
     /** the name of the ssh keys store backend target */
     public static final String SSH_KEY_STORE = "sshKeys";
+    /** directory attribute of a file store containing the {@link #SSH_KEY_STORE} */
+    public static final String SSH_KEY_FILE_STORE_PATH = "path";
+    /** name of the node inside a SQL store node configuring a read-only replica for the {@link #SSH_KEY_STORE} */
+    public static final String SQL_READ_REPLICA = "readReplica";
 
     /** name of the ssh keys API config node in the config file */
     public static final String SSH_KEYS = "sshkeys";
     /** name of max ssh keys attribute in the {@link #SSH_KEYS} node */
     public static final String MAX_SSH_KEYS = "max";
+    /** name of max number of operations in a batch request attribute in the {@link #SSH_KEYS} node */
+    public static final String MAX_SSH_KEYS_BATCH = "maxBatch";
+    /** name of the refresh interval (in seconds) attribute of the ssh key index in the {@link #SSH_KEYS} node */
+    public static final String SSH_KEYS_INDEX_REFRESH = "indexRefresh";
+    /** name of the node inside the {@link #SSH_KEYS} node configuring the export of authorized keys files */
+    public static final String SSH_KEYS_AUTHORIZED_KEYS = "authorizedKeys";
+    /** file or directory attribute of the {@link #SSH_KEYS_AUTHORIZED_KEYS} node */
+    public static final String AUTHORIZED_KEYS_PATH = "path";
+    /** boolean attribute of the {@link #SSH_KEYS_AUTHORIZED_KEYS} node: whether to write a file per user */
+    public static final String AUTHORIZED_KEYS_PER_USER = "perUser";
+    /** export interval (in seconds) attribute of the {@link #SSH_KEYS_AUTHORIZED_KEYS} node */
+    public static final String AUTHORIZED_KEYS_INTERVAL = "interval";
+    /** boolean attribute of the {@link #SSH_KEYS} node: whether to create missing keys and indexes of a SQL store */
+    public static final String SSH_KEYS_MIGRATE_SCHEMA = "migrateSchema";
     /** name of required scope attribute in the {@link #SSH_KEYS} node */
     public static final String SSH_KEYS_SCOPE = "scope";
 
+    /** name of the node configuring the batched purge of expired transactions (server) or assets (client) */
+    public static final String PURGE = "purge";
+    /** interval (in seconds) attribute of the {@link #PURGE} node */
+    public static final String PURGE_INTERVAL = "interval";
+    /** attribute of the {@link #PURGE} node for the maximum number of rows deleted at once */
+    public static final String PURGE_BATCH_SIZE = "batchSize";
+    /** pause (in milliseconds) between batches attribute of the {@link #PURGE} node */
+    public static final String PURGE_PAUSE = "pause";
+    /** maximum duration (in seconds) of a single run attribute of the {@link #PURGE} node */
+    public static final String PURGE_MAX_DURATION = "maxDuration";
+    /** hours of the day attribute of the {@link #PURGE} node during which to purge, e.g. 1-6 */
+    public static final String PURGE_WINDOW = "window";
+    /** boolean attribute of the {@link #PURGE} node: whether to drop expired partitions */
+    public static final String PURGE_PARTITIONED = "partitioned";
+    /** boolean attribute of the {@link #PURGE} node: whether to create the missing column and index needed for purging */
+    public static final String PURGE_MIGRATE_SCHEMA = "migrateSchema";
+
+    /** name of the node in the client configuration enabling an in-memory cache in front of a SQL asset store */
+    public static final String ASSET_CACHE = "assetCache";
+    /** time to live (in seconds) attribute of the {@link #ASSET_CACHE} node */
+    public static final String ASSET_CACHE_TTL = "ttl";
+    /** maximum number of cached assets attribute of the {@link #ASSET_CACHE} node */
+    public static final String ASSET_CACHE_MAX_SIZE = "maxSize";
+
+    /** name of the node in the client configuration enabling a sealed cookie for the MP-Server code and state */
+    public static final String SEALED_SESSION = "sealedSession";
+    /** attribute of the {@link #SEALED_SESSION} node pointing to a file with a base64 encoded AES key */
+    public static final String SEALED_SESSION_KEY_FILE = "keyFile";
+
+    /** name of the node in the client configuration enabling pooled keep-alive connections to the DS */
+    public static final String DS_HTTP_CLIENT = "dsHttpClient";
+    /** maximum number of connections attribute of the {@link #DS_HTTP_CLIENT} node */
+    public static final String DS_HTTP_CLIENT_MAX_TOTAL = "maxTotal";
+    /** maximum number of connections per route attribute of the {@link #DS_HTTP_CLIENT} node */
+    public static final String DS_HTTP_CLIENT_MAX_PER_ROUTE = "maxPerRoute";
+    /** connect timeout (in seconds) attribute of the {@link #DS_HTTP_CLIENT} node */
+    public static final String DS_HTTP_CLIENT_CONNECT_TIMEOUT = "connectTimeout";
+    /** read timeout (in seconds) attribute of the {@link #DS_HTTP_CLIENT} node */
+    public static final String DS_HTTP_CLIENT_READ_TIMEOUT = "readTimeout";
+    /** maximum idle time (in seconds) of a connection attribute of the {@link #DS_HTTP_CLIENT} node */
+    public static final String DS_HTTP_CLIENT_KEEP_ALIVE = "keepAlive";
+
+    /** name of the node in the client configuration enabling caching of the DS discovery document and keys */
+    public static final String DS_METADATA_CACHE = "dsMetadataCache";
+    /** minimum refresh interval (in seconds) attribute of the {@link #DS_METADATA_CACHE} node */
+    public static final String DS_METADATA_CACHE_MIN_REFRESH = "minRefresh";
+    /** maximum refresh interval (in seconds) attribute of the {@link #DS_METADATA_CACHE} node */
+    public static final String DS_METADATA_CACHE_MAX_REFRESH = "maxRefresh";
+
+    /** name of the node in the client configuration enabling taking the claims from the ID token */
+    public static final String ID_TOKEN_CLAIMS = "idTokenClaims";
+    /** comma separated list of claims attribute of the {@link #ID_TOKEN_CLAIMS} node that need to be in the ID token */
+    public static final String ID_TOKEN_CLAIMS_REQUIRED = "required";
+
+    /** name of the node enabling a background-filled pool of keypairs */
+    public static final String KEYPAIR_POOL = "keypairPool";
+    /** number of keypairs to keep ready attribute of the {@link #KEYPAIR_POOL} node */
+    public static final String KEYPAIR_POOL_SIZE = "size";
+    /** maximum age (in seconds) of a pooled keypair attribute of the {@link #KEYPAIR_POOL} node */
+    public static final String KEYPAIR_POOL_MAX_AGE = "maxAge";
+
+    /** name of the node in the server configuration enabling rate limiting of the /getproxy endpoint */
+    public static final String RATE_LIMIT = "rateLimit";
+    /** requests per minute per username attribute of the {@link #RATE_LIMIT} node */
+    public static final String RATE_LIMIT_USER_RATE = "userRate";
+    /** maximum burst of requests per username attribute of the {@link #RATE_LIMIT} node */
+    public static final String RATE_LIMIT_USER_BURST = "userBurst";
+    /** requests per minute per client_id attribute of the {@link #RATE_LIMIT} node */
+    public static final String RATE_LIMIT_CLIENT_RATE = "clientRate";
+    /** maximum burst of requests per client_id attribute of the {@link #RATE_LIMIT} node */
+    public static final String RATE_LIMIT_CLIENT_BURST = "clientBurst";
+    /** maximum number of tracked usernames and client_ids attribute of the {@link #RATE_LIMIT} node */
+    public static final String RATE_LIMIT_MAX_KEYS = "maxKeys";
+
+    /** name of the node in the server configuration limiting the concurrent forwards to the DS */
+    public static final String DS_BULKHEAD = "dsBulkhead";
+    /** maximum number of concurrent forwards attribute of the {@link #DS_BULKHEAD} node */
+    public static final String DS_BULKHEAD_MAX_CONCURRENT = "maxConcurrent";
+    /** maximum number of waiting requests attribute of the {@link #DS_BULKHEAD} node */
+    public static final String DS_BULKHEAD_MAX_QUEUE = "maxQueue";
+    /** maximum time (in seconds) a request waits attribute of the {@link #DS_BULKHEAD} node */
+    public static final String DS_BULKHEAD_MAX_WAIT = "maxWait";
+
+    /** name of the node in the server configuration enabling reuse of recently issued proxies */
+    public static final String PROXY_CACHE = "proxyCache";
+    /** time to live (in seconds) attribute of the {@link #PROXY_CACHE} node */
+    public static final String PROXY_CACHE_TTL = "ttl";
+    /** maximum number of cached proxies attribute of the {@link #PROXY_CACHE} node */
+    public static final String PROXY_CACHE_MAX_SIZE = "maxSize";
+    /** minimum remaining fraction of the requested lifetime attribute of the {@link #PROXY_CACHE} node */
+    public static final String PROXY_CACHE_MIN_REMAINING = "minRemaining";
+    /** size (in seconds) of the requested lifetime buckets attribute of the {@link #PROXY_CACHE} node */
+    public static final String PROXY_CACHE_LIFETIME_BUCKET = "lifetimeBucket";
+    /** comma separated list of client_ids attribute of the {@link #PROXY_CACHE} node for which to cache */
+    public static final String PROXY_CACHE_CLIENTS = "clients";
+
     /** attribute to define a scope to be local, i.e. not to be forwarded to the DS */
     public static final String SCOPE_LOCAL = "local";
 
@@ -21,6 +135,15 @@ public interface MPOA4MPConfigTags extends OA4MPConfigTags {
 
     /** password attribute of the {@link #MYPROXY} tag */
     public static final String MYPROXY_PASSWORD = "password";
+    /** attribute of the {@link #MYPROXY} tag in the client configuration: number of MyProxy servers that need to
+     *  store a new credential before continuing, enables replicated uploads to all configured MyProxy servers */
+    public static final String MYPROXY_REPLICATION_QUORUM = "replicationQuorum";
+    /** attribute of the {@link #MYPROXY} tag in the client configuration: maximum number of retries of a failed
+     *  replicated upload, 0 to not retry */
+    public static final String MYPROXY_REPLICATION_REPAIRS = "replicationRepairs";
+    /** boolean attribute of the {@link #MYPROXY} tag in the server configuration: spread the connections over all
+     *  configured (replicated) MyProxy servers instead of using them for fail-over only */
+    public static final String MYPROXY_LOAD_BALANCE = "loadBalance";
 
     /** inner child elements of the {@link #MYPROXY} tag */
     public static final String MYPROXY_DEFAULT_LIFETIME = "defaultLifetime";
@@ -0,0 +1,152 @@
+package eu.rcauth.masterportal.servlet.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Parser for a single flat JSON object, as written by {@link JSONStreamWriter}
+ * for one row or record, e.g. <code>{"label":"work","version":3}</code>.
+ * <p>
+ * Unlike net.sf.json, values are returned exactly as written: a String
+ * <code>"null"</code> stays a String and a String that looks like a JSON array
+ * or object is not parsed. Numbers and booleans are returned as their literal
+ * text, a JSON null as null. Nested objects and arrays are not supported.
+ */
+public final class FlatJSONParser {
+
+    private final String text;
+    private int pos = 0;
+
+    private FlatJSONParser(String text) {
+        this.text = text;
+    }
+
+    /**
+     * Parses text into a map of member names and values, in the order of the
+     * input.
+     * @param text JSON object
+     * @return members of the object
+     * @throws IllegalArgumentException when text is not a valid flat JSON
+     * object
+     */
+    public static Map<String, String> parse(String text) {
+        return new FlatJSONParser(text).object();
+    }
+
+    //////////////////////////////////////////////////////////////////////////
+    // Internal methods
+    //////////////////////////////////////////////////////////////////////////
+
+    private Map<String, String> object() {
+        Map<String, String> members = new LinkedHashMap<>();
+        skipWhitespace();
+        expect('{');
+        skipWhitespace();
+        if (peek() == '}') {
+            pos++;
+        } else {
+            while (true) {
+                skipWhitespace();
+                String name = string();
+                skipWhitespace();
+                expect(':');
+                skipWhitespace();
+                members.put(name, value());
+                skipWhitespace();
+                char c = next();
+                if (c == '}')
+                    break;
+                if (c != ',')
+                    throw error("Expected ',' or '}'");
+            }
+        }
+        skipWhitespace();
+        if (pos != text.length())
+            throw error("Trailing characters");
+        return members;
+    }
+
+    private String value() {
+        char c = peek();
+        if (c == '"')
+            return string();
+        if (c == '{' || c == '[')
+            throw error("Nested values are not supported");
+        int start = pos;
+        while (pos < text.length() && "-+.eE0123456789truefalsn".indexOf(text.charAt(pos)) >= 0)
+            pos++;
+        String literal = text.substring(start, pos);
+        if (literal.equals("null"))
+            return null;
+        if (literal.equals("true") || literal.equals("false"))
+            return literal;
+        if (literal.isEmpty() || !literal.matches("-?(0|[1-9][0-9]*)(\\.[0-9]+)?([eE][-+]?[0-9]+)?"))
+            throw error("Invalid value");
+        return literal;
+    }
+
+    private String string() {
+        expect('"');
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            char c = next();
+            if (c == '"')
+                return sb.toString();
+            if (c < 0x20)
+                throw error("Control character in string");
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            c = next();
+            switch (c) {
+                case '"':  sb.append('"'); break;
+                case '\\': sb.append('\\'); break;
+                case '/':  sb.append('/'); break;
+                case 'b':  sb.append('\b'); break;
+                case 'f':  sb.append('\f'); break;
+                case 'n':  sb.append('\n'); break;
+                case 'r':  sb.append('\r'); break;
+                case 't':  sb.append('\t'); break;
+                case 'u':
+                    if (pos + 4 > text.length())
+                        throw error("Truncated unicode escape");
+                    try {
+                        sb.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                    } catch (NumberFormatException e) {
+                        throw error("Invalid unicode escape");
+                    }
+                    pos += 4;
+                    break;
+                default:
+                    throw error("Invalid escape");
+            }
+        }
+    }
+
+    private void skipWhitespace() {
+        while (pos < text.length() && Character.isWhitespace(text.charAt(pos)))
+            pos++;
+    }
+
+    private char peek() {
+        if (pos == text.length())
+            throw error("Unexpected end of input");
+        return text.charAt(pos);
+    }
+
+    private char next() {
+        char c = peek();
+        pos++;
+        return c;
+    }
+
+    private void expect(char c) {
+        if (next() != c)
+            throw error("Expected '" + c + "'");
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at position " + pos);
+    }
+}
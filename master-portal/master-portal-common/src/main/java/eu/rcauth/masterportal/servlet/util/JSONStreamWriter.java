@@ -0,0 +1,294 @@
+package eu.rcauth.masterportal.servlet.util;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Small streaming JSON emitter, writing UTF-8 encoded JSON directly to an
+ * {@link OutputStream}. Unlike building a net.sf.json tree and converting that
+ * into a String, no intermediate objects are created: characters are encoded
+ * into a fixed internal byte buffer which is written out when full.
+ * <p>
+ * By default the output is compact, pretty-printing (using an indent of one
+ * space per level) can be enabled in the constructor. A newline is written
+ * after the top-level value has been completed.
+ * <p>
+ * Example:
+ * <pre>
+ *     JSONStreamWriter json = new JSONStreamWriter(response.getOutputStream(), false);
+ *     json.beginObject().name("username").value(userName).endObject();
+ *     json.close();
+ * </pre>
+ * Note that this class is not thread-safe and does only minimal validation of
+ * the structure of the written JSON.
+ */
+public class JSONStreamWriter implements Closeable, Flushable {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+    private static final byte[] NULL = "null".getBytes();
+    private static final byte[] TRUE = "true".getBytes();
+    private static final byte[] FALSE = "false".getBytes();
+
+    private final OutputStream out;
+    private final boolean pretty;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int pos = 0;
+
+    /** for each nesting level whether the next value is the first one */
+    private boolean[] first = new boolean[16];
+    /** current nesting level */
+    private int depth = 0;
+    /** whether the last thing written was a name, i.e. a value should follow */
+    private boolean afterName = false;
+
+    /**
+     * @param out stream to write the JSON to
+     * @param pretty whether to pretty-print the output
+     */
+    public JSONStreamWriter(OutputStream out, boolean pretty) {
+        this.out = out;
+        this.pretty = pretty;
+    }
+
+    public JSONStreamWriter beginObject() throws IOException {
+        return open('{');
+    }
+
+    public JSONStreamWriter endObject() throws IOException {
+        return close('}');
+    }
+
+    public JSONStreamWriter beginArray() throws IOException {
+        return open('[');
+    }
+
+    public JSONStreamWriter endArray() throws IOException {
+        return close(']');
+    }
+
+    /**
+     * Writes the name of the next member of the current object.
+     */
+    public JSONStreamWriter name(String name) throws IOException {
+        separator();
+        string(name);
+        write(':');
+        if (pretty)
+            write(' ');
+        afterName = true;
+        return this;
+    }
+
+    /**
+     * Writes a String value, or null when value is null.
+     */
+    public JSONStreamWriter value(String value) throws IOException {
+        if (value == null)
+            return nullValue();
+        separator();
+        string(value);
+        return endValue();
+    }
+
+    public JSONStreamWriter value(long value) throws IOException {
+        separator();
+        if (value == Long.MIN_VALUE) {
+            ascii(Long.toString(value));
+        } else {
+            if (value < 0) {
+                write('-');
+                value = -value;
+            }
+            digits(value);
+        }
+        return endValue();
+    }
+
+    public JSONStreamWriter value(boolean value) throws IOException {
+        separator();
+        write(value ? TRUE : FALSE);
+        return endValue();
+    }
+
+    public JSONStreamWriter nullValue() throws IOException {
+        separator();
+        write(NULL);
+        return endValue();
+    }
+
+    /** Convenience method for writing a String member, skipped when value is null. */
+    public JSONStreamWriter field(String name, String value) throws IOException {
+        return (value == null) ? this : name(name).value(value);
+    }
+
+    /** Convenience method for writing a numeric member. */
+    public JSONStreamWriter field(String name, long value) throws IOException {
+        return name(name).value(value);
+    }
+
+    /**
+     * Writes out the buffered bytes and flushes the underlying stream.
+     */
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    /**
+     * Writes out the buffered bytes and closes the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        flushBuffer();
+        out.close();
+    }
+
+    //////////////////////////////////////////////////////////////////////////
+    // Internal methods
+    //////////////////////////////////////////////////////////////////////////
+
+    private JSONStreamWriter open(char bracket) throws IOException {
+        separator();
+        write(bracket);
+        if (++depth == first.length)
+            first = Arrays.copyOf(first, 2 * depth);
+        first[depth] = true;
+        return this;
+    }
+
+    private JSONStreamWriter close(char bracket) throws IOException {
+        if (depth == 0)
+            throw new IllegalStateException("No open object or array");
+        boolean empty = first[depth];
+        depth--;
+        if (pretty && !empty)
+            indent();
+        write(bracket);
+        return endValue();
+    }
+
+    /**
+     * Writes the separator and indentation needed before a new value or name.
+     */
+    private void separator() throws IOException {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        if (depth == 0)
+            return;
+        if (first[depth])
+            first[depth] = false;
+        else
+            write(',');
+        if (pretty)
+            indent();
+    }
+
+    private JSONStreamWriter endValue() throws IOException {
+        if (depth == 0)
+            write('\n');
+        return this;
+    }
+
+    private void indent() throws IOException {
+        write('\n');
+        for (int i = 0; i < depth; i++)
+            write(' ');
+    }
+
+    /**
+     * Writes a quoted and escaped JSON String, encoded as UTF-8.
+     */
+    private void string(String s) throws IOException {
+        write('"');
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                switch (c) {
+                    case '"':  write('\\'); write('"'); break;
+                    case '\\': write('\\'); write('\\'); break;
+                    case '\n': write('\\'); write('n'); break;
+                    case '\r': write('\\'); write('r'); break;
+                    case '\t': write('\\'); write('t'); break;
+                    case '\b': write('\\'); write('b'); break;
+                    case '\f': write('\\'); write('f'); break;
+                    default:
+                        if (c < 0x20)
+                            unicodeEscape(c);
+                        else
+                            write(c);
+                }
+            } else if (c < 0x800) {
+                write(0xc0 | (c >> 6));
+                write(0x80 | (c & 0x3f));
+            } else if (c == 0x2028 || c == 0x2029) {
+                // Valid JSON, but not valid JavaScript
+                unicodeEscape(c);
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                write(0xf0 | (cp >> 18));
+                write(0x80 | ((cp >> 12) & 0x3f));
+                write(0x80 | ((cp >> 6) & 0x3f));
+                write(0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogate, cannot be encoded as UTF-8
+                unicodeEscape(c);
+            } else {
+                write(0xe0 | (c >> 12));
+                write(0x80 | ((c >> 6) & 0x3f));
+                write(0x80 | (c & 0x3f));
+            }
+        }
+        write('"');
+    }
+
+    private void unicodeEscape(char c) throws IOException {
+        write('\\');
+        write('u');
+        write(HEX[(c >> 12) & 0xf]);
+        write(HEX[(c >> 8) & 0xf]);
+        write(HEX[(c >> 4) & 0xf]);
+        write(HEX[c & 0xf]);
+    }
+
+    /**
+     * Writes the decimal digits of a non-negative value without creating a
+     * String.
+     */
+    private void digits(long value) throws IOException {
+        if (value >= 10)
+            digits(value / 10);
+        write('0' + (int)(value % 10));
+    }
+
+    private void ascii(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++)
+            write(s.charAt(i));
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        for (byte b : bytes)
+            write(b);
+    }
+
+    private void write(int b) throws IOException {
+        if (pos == BUFFER_SIZE)
+            flushBuffer();
+        buffer[pos++] = (byte) b;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (pos > 0) {
+            out.write(buffer, 0, pos);
+            pos = 0;
+        }
+    }
+}
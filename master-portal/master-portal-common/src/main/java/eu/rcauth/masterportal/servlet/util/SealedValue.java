@@ -0,0 +1,140 @@
+package eu.rcauth.masterportal.servlet.util;
+
+import edu.uiuc.ncsa.security.core.exceptions.GeneralException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Seals a small list of strings into an authenticated and encrypted
+ * (AES-GCM) value that can safely be handed to the browser, e.g. in a
+ * cookie, and be opened again by any node sharing the same key. A sealed
+ * value contains an expiry time and is bound to a context string (e.g. a
+ * session identifier), which is authenticated but not included.
+ * <p>
+ * The format is the URL-safe base64 encoding of
+ * <pre>
+ *     version (1 byte) | IV (12 bytes) | ciphertext | tag (16 bytes)
+ * </pre>
+ * where the plaintext consists of the expiry time in milliseconds followed by
+ * the values, separated by newlines.
+ */
+public class SealedValue {
+    private static final byte VERSION = 1;
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_BITS = 128;
+    private static final String SEPARATOR = "\n";
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final SecretKeySpec key;
+    private final long maxAge;
+
+    /**
+     * @param key AES key of 16, 24 or 32 bytes
+     * @param maxAge lifetime in milliseconds of sealed values
+     */
+    public SealedValue(byte[] key, long maxAge) {
+        if (key.length != 16 && key.length != 24 && key.length != 32)
+            throw new GeneralException("Invalid AES key length " + key.length + ", should be 16, 24 or 32 bytes");
+        this.key = new SecretKeySpec(key, "AES");
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Creates a new instance using the base64 encoded key in given file.
+     * @param keyFile file containing the base64 encoded AES key
+     * @param maxAge lifetime in milliseconds of sealed values
+     * @return new instance
+     */
+    public static SealedValue fromKeyFile(File keyFile, long maxAge) {
+        try {
+            String encoded = new String(Files.readAllBytes(keyFile.toPath()), StandardCharsets.US_ASCII).trim();
+            return new SealedValue(Base64.getDecoder().decode(encoded), maxAge);
+        } catch (IOException | IllegalArgumentException e) {
+            throw new GeneralException("Cannot read base64 encoded AES key from " + keyFile + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @param context value the sealed value is bound to
+     * @param values values to seal, may not contain newlines
+     * @return sealed value, safe to use as cookie value
+     */
+    public String seal(String context, String... values) {
+        StringBuilder plain = new StringBuilder(Long.toString(System.currentTimeMillis() + maxAge));
+        for (String value : values) {
+            if (value.contains(SEPARATOR))
+                throw new GeneralException("Cannot seal value containing a newline");
+            plain.append(SEPARATOR).append(value);
+        }
+
+        byte[] iv = new byte[IV_LENGTH];
+        random.nextBytes(iv);
+        try {
+            Cipher cipher = getCipher(Cipher.ENCRYPT_MODE, iv, context);
+            byte[] sealed = cipher.doFinal(plain.toString().getBytes(StandardCharsets.UTF_8));
+            ByteBuffer out = ByteBuffer.allocate(1 + IV_LENGTH + sealed.length);
+            out.put(VERSION).put(iv).put(sealed);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(out.array());
+        } catch (GeneralSecurityException e) {
+            throw new GeneralException("Cannot seal value: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @param sealed sealed value as returned by {@link #seal(String, String...)}
+     * @param context value the sealed value should be bound to
+     * @return the values
+     * @throws GeneralException when the value is invalid, was modified, is
+     * bound to a different context or has expired.
+     */
+    public String[] open(String sealed, String context) {
+        byte[] raw;
+        try {
+            raw = Base64.getUrlDecoder().decode(sealed);
+        } catch (IllegalArgumentException e) {
+            throw new GeneralException("Invalid sealed value encoding");
+        }
+        if (raw.length < 1 + IV_LENGTH + TAG_BITS / 8 || raw[0] != VERSION)
+            throw new GeneralException("Invalid sealed value");
+
+        String[] fields;
+        try {
+            Cipher cipher = getCipher(Cipher.DECRYPT_MODE, Arrays.copyOfRange(raw, 1, 1 + IV_LENGTH), context);
+            byte[] plain = cipher.doFinal(raw, 1 + IV_LENGTH, raw.length - 1 - IV_LENGTH);
+            fields = new String(plain, StandardCharsets.UTF_8).split(SEPARATOR, -1);
+        } catch (GeneralSecurityException e) {
+            throw new GeneralException("Sealed value cannot be authenticated");
+        }
+
+        long expires;
+        try {
+            expires = Long.parseLong(fields[0]);
+        } catch (NumberFormatException e) {
+            throw new GeneralException("Invalid sealed value");
+        }
+        if (expires < System.currentTimeMillis())
+            throw new GeneralException("Sealed value has expired");
+        return Arrays.copyOfRange(fields, 1, fields.length);
+    }
+
+    private Cipher getCipher(int mode, byte[] iv, String context) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(mode, key, new GCMParameterSpec(TAG_BITS, iv));
+        cipher.updateAAD(new byte[] {VERSION});
+        cipher.updateAAD(context.getBytes(StandardCharsets.UTF_8));
+        return cipher;
+    }
+}
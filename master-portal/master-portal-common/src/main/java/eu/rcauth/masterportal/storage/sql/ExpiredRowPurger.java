@@ -0,0 +1,334 @@
+package eu.rcauth.masterportal.storage.sql;
+
+import edu.uiuc.ncsa.security.core.exceptions.GeneralException;
+import edu.uiuc.ncsa.security.core.util.MyLoggingFacade;
+import edu.uiuc.ncsa.security.storage.sql.ConnectionPool;
+import edu.uiuc.ncsa.security.storage.sql.internals.Table;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Periodically deletes the expired rows of a table, i.e. those for which
+ * the timestamp column lies more than the retention time in the past. Instead
+ * of deleting row by row (or all at once), the keys of at most
+ * {@link PurgeConfiguration#getBatchSize()} expired rows are selected, in
+ * order of the timestamp, and deleted in a single statement, with a pause
+ * between batches. Each batch is a separate transaction, such that locks are
+ * only held briefly. The timestamp column should be indexed.
+ * <p>
+ * Optionally, for time-partitioned tables, whole partitions can be dropped.
+ * Partitions must be named <code>pYYYYMMDD</code> for MySQL and MariaDB, or
+ * <code>&lt;table&gt;_pYYYYMMDD</code> for PostgreSQL, and contain only rows
+ * with a timestamp before the start of that day (UTC). Partitions are only
+ * created by the database administrator, remaining expired rows are still
+ * deleted in batches.
+ * <p>
+ * The number of purged rows and the time spent are logged after each run and
+ * are available via the getters.
+ */
+public class ExpiredRowPurger {
+    /** name pattern of a MySQL partition, or suffix of a PostgreSQL one */
+    private static final Pattern PARTITION_NAME = Pattern.compile("(?:.*_)?p(\\d{8})");
+
+    private final String name;
+    private final ConnectionPool pool;
+    private final Table table;
+    private final String keyColumn;
+    private final String timestampColumn;
+    private final long retention;
+    private final PurgeConfiguration config;
+
+    /** guards the scheduler, separate from the purge lock such that stop() never waits for a running purge */
+    private final Object schedulerLock = new Object();
+    private ScheduledExecutorService scheduler = null;
+    /** set by stop(), makes a running purge end after its current batch */
+    private volatile boolean stopped = false;
+
+    /** serializes the purges */
+    private final Object purgeLock = new Object();
+
+    private volatile long runs = 0;
+    private volatile long totalRows = 0;
+    private volatile long totalPartitions = 0;
+    private volatile long totalTime = 0;
+    private volatile long lastRows = 0;
+    private volatile long lastTime = 0;
+
+    /**
+     * @param name description of the rows, for logging, e.g. transactions
+     * @param pool connection pool for the database of table
+     * @param table table to purge
+     * @param keyColumn primary key column
+     * @param timestampColumn column with the (indexed) timestamp
+     * @param retention time in milliseconds after the timestamp at which
+     * rows expire
+     * @param config batch size, rate and schedule
+     */
+    public ExpiredRowPurger(String name, ConnectionPool pool, Table table, String keyColumn,
+                            String timestampColumn, long retention, PurgeConfiguration config) {
+        this.name = name;
+        this.pool = pool;
+        this.table = table;
+        this.keyColumn = keyColumn;
+        this.timestampColumn = timestampColumn;
+        this.retention = retention;
+        this.config = config;
+    }
+
+    /**
+     * Starts purging in a background thread at the configured interval.
+     * @param logger for the statistics and errors of each run
+     */
+    public void start(MyLoggingFacade logger) {
+        synchronized (schedulerLock) {
+            if (scheduler != null)
+                return;
+            stopped = false;
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "purge-" + name);
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(() -> run(logger),
+                                             config.getInterval(), config.getInterval(), TimeUnit.SECONDS);
+        }
+        logger.info("Purging expired " + name + " from " + table.getFQTablename() + ": " + config);
+    }
+
+    /**
+     * Stops the background thread without waiting for it. A running purge is
+     * interrupted and ends after its current batch.
+     */
+    public void stop() {
+        synchronized (schedulerLock) {
+            stopped = true;
+            if (scheduler != null) {
+                scheduler.shutdownNow();
+                scheduler = null;
+            }
+        }
+    }
+
+    /**
+     * Deletes all rows that have expired at this moment, in batches, stopping
+     * early when the maximum duration has passed or when stopped. Concurrent
+     * calls are run one after the other.
+     * @return number of deleted rows, not counting those in dropped partitions
+     */
+    public long purge() {
+        synchronized (purgeLock) {
+            return doPurge();
+        }
+    }
+
+    /** @see #purge() */
+    private long doPurge() {
+        long start = System.currentTimeMillis();
+        Timestamp cutoff = new Timestamp(start - retention);
+        long deadline = start + 1000L * config.getMaxDuration();
+        long rows = 0;
+
+        if (config.isPartitioned())
+            totalPartitions += dropPartitions(cutoff);
+
+        String select = "SELECT " + keyColumn + " FROM " + table.getFQTablename() +
+                        " WHERE " + timestampColumn + " < ? ORDER BY " + timestampColumn;
+        try {
+            while (true) {
+                List<String> keys = new ArrayList<>();
+                Connection c = pool.pop();
+                try {
+                    try (PreparedStatement stmt = c.prepareStatement(select)) {
+                        stmt.setMaxRows(config.getBatchSize());
+                        stmt.setTimestamp(1, cutoff);
+                        try (ResultSet rs = stmt.executeQuery()) {
+                            while (rs.next())
+                                keys.add(rs.getString(1));
+                        }
+                    }
+                    if (!keys.isEmpty()) {
+                        // Also check the timestamp: the row might have been updated meanwhile
+                        try (PreparedStatement stmt = c.prepareStatement(createDeleteStatement(keys.size()))) {
+                            int i = 1;
+                            for (String key : keys)
+                                stmt.setString(i++, key);
+                            stmt.setTimestamp(i, cutoff);
+                            rows += stmt.executeUpdate();
+                        }
+                    }
+                } catch (SQLException e) {
+                    pool.destroy(c);
+                    throw new GeneralException("Error purging expired " + name + " from " + table.getFQTablename() +
+                                               " (after " + rows + " rows)", e);
+                } finally {
+                    pool.push(c);
+                }
+
+                if (keys.size() < config.getBatchSize() || System.currentTimeMillis() > deadline || stopped)
+                    break;
+                if (config.getPause() > 0)
+                    Thread.sleep(config.getPause());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            long time = System.currentTimeMillis() - start;
+            runs++;
+            totalRows += rows;
+            totalTime += time;
+            lastRows = rows;
+            lastTime = time;
+        }
+        return rows;
+    }
+
+    /** @return number of completed runs */
+    public long getRuns() {
+        return runs;
+    }
+
+    /** @return total number of deleted rows */
+    public long getTotalRows() {
+        return totalRows;
+    }
+
+    /** @return total number of dropped partitions */
+    public long getTotalPartitions() {
+        return totalPartitions;
+    }
+
+    /** @return total time spent purging in milliseconds */
+    public long getTotalTime() {
+        return totalTime;
+    }
+
+    /** @return number of rows deleted in the last run */
+    public long getLastRows() {
+        return lastRows;
+    }
+
+    /** @return duration of the last run in milliseconds */
+    public long getLastTime() {
+        return lastTime;
+    }
+
+    //////////////////////////////////////////////////////////////////////////
+    // Internal methods
+    //////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Runs a single purge, any errors are logged since otherwise the
+     * scheduler would stop.
+     */
+    private void run(MyLoggingFacade logger) {
+        if (!config.isInWindow(Calendar.getInstance()))
+            return;
+        try {
+            long partitions = totalPartitions;
+            long rows = purge();
+            partitions = totalPartitions - partitions;
+            if (rows > 0 || partitions > 0)
+                logger.info("Purged " + rows + " expired " + name + (partitions > 0 ? " and " + partitions + " partitions" : "") +
+                            " in " + lastTime + " ms (total " + totalRows + " rows in " + totalTime + " ms over " + runs + " runs)");
+        } catch (Throwable t) {
+            logger.error("Error purging expired " + name + ": " + t.getMessage(), t);
+        }
+    }
+
+    private String createDeleteStatement(int count) {
+        StringBuilder delete = new StringBuilder("DELETE FROM " + table.getFQTablename() + " WHERE " + keyColumn + " IN (");
+        for (int i = 0; i < count; i++)
+            delete.append(i == 0 ? "?" : ", ?");
+        delete.append(") AND ").append(timestampColumn).append(" < ?");
+        return delete.toString();
+    }
+
+    /**
+     * Drops the partitions containing only rows before cutoff.
+     * @return number of dropped partitions
+     */
+    private int dropPartitions(Date cutoff) {
+        int dropped = 0;
+        Connection c = pool.pop();
+        try {
+            String product = c.getMetaData().getDatabaseProductName().toLowerCase();
+            boolean postgres = product.contains("postgres");
+            String query;
+            if (postgres) {
+                query = "SELECT c.relname FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid " +
+                        "JOIN pg_class p ON p.oid = i.inhparent WHERE p.relname = ?";
+            } else if (product.contains("mysql") || product.contains("mariadb")) {
+                query = "SELECT PARTITION_NAME FROM information_schema.PARTITIONS " +
+                        "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ? AND PARTITION_NAME IS NOT NULL";
+            } else {
+                throw new GeneralException("Dropping partitions is not supported for " + product);
+            }
+
+            List<String> expired = new ArrayList<>();
+            try (PreparedStatement stmt = c.prepareStatement(query)) {
+                stmt.setString(1, table.getTablename());
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        String partition = rs.getString(1);
+                        if (isExpired(partition, cutoff))
+                            expired.add(partition);
+                    }
+                }
+            }
+
+            String fqName = table.getFQTablename();
+            String schema = fqName.lastIndexOf('.') < 0 ? "" : fqName.substring(0, fqName.lastIndexOf('.') + 1);
+            for (String partition : expired) {
+                try (Statement stmt = c.createStatement()) {
+                    if (postgres)
+                        stmt.execute("DROP TABLE " + schema + partition);
+                    else
+                        stmt.execute("ALTER TABLE " + fqName + " DROP PARTITION " + partition);
+                }
+                dropped++;
+            }
+        } catch (SQLException e) {
+            pool.destroy(c);
+            throw new GeneralException("Error dropping partitions of " + table.getFQTablename() +
+                                       " (after " + dropped + " partitions)", e);
+        } finally {
+            pool.push(c);
+        }
+        return dropped;
+    }
+
+    /**
+     * @return whether the partition with given name only contains rows
+     * before cutoff, false when the name does not follow the convention.
+     */
+    private static boolean isExpired(String partition, Date cutoff) {
+        Matcher matcher = PARTITION_NAME.matcher(partition);
+        if (!matcher.matches())
+            return false;
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        format.setLenient(false);
+        try {
+            return !format.parse(matcher.group(1)).after(cutoff);
+        } catch (ParseException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package eu.rcauth.masterportal.storage.sql;
+
+import eu.rcauth.masterportal.servlet.MPOA4MPConfigTags;
+import eu.rcauth.masterportal.util.ConfigAttributes;
+
+import edu.uiuc.ncsa.security.core.configuration.Configurations;
+import edu.uiuc.ncsa.security.core.exceptions.GeneralException;
+import edu.uiuc.ncsa.security.core.util.MyLoggingFacade;
+
+import org.apache.commons.configuration.tree.ConfigurationNode;
+
+import java.util.Calendar;
+
+/**
+ * Configuration of an {@link ExpiredRowPurger}, read from the
+ * {@link MPOA4MPConfigTags#PURGE} node:
+ * <pre>
+ *     &lt;purge interval="3600" batchSize="1000" pause="100" maxDuration="600"
+ *            window="1-6" partitioned="false" migrateSchema="false"/&gt;
+ * </pre>
+ * All attributes are optional. The interval and maxDuration are in seconds,
+ * the pause between two batches in milliseconds. The window consists of the
+ * start (inclusive) and end (exclusive) hour of the day, in local time,
+ * during which the purge may run, by default it always may. With
+ * migrateSchema the missing column and index needed for purging are created
+ * on startup, otherwise their absence is only logged.
+ */
+public class PurgeConfiguration {
+    /** default interval between two purge runs in seconds */
+    public static final long DEFAULT_INTERVAL = 3600L;
+    /** default maximum number of rows deleted in a single statement */
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+    /** default pause between two batches in milliseconds */
+    public static final long DEFAULT_PAUSE = 100L;
+    /** default maximum duration of a single run in seconds */
+    public static final long DEFAULT_MAX_DURATION = 600L;
+
+    private final long interval;
+    private final int batchSize;
+    private final long pause;
+    private final long maxDuration;
+    private final int windowStart;
+    private final int windowEnd;
+    private final boolean partitioned;
+    private final boolean migrateSchema;
+
+    /**
+     * @param interval interval between two runs in seconds
+     * @param batchSize maximum number of rows per delete statement
+     * @param pause pause between two batches in milliseconds
+     * @param maxDuration maximum duration of a single run in seconds
+     * @param windowStart first hour of the day during which to run
+     * @param windowEnd hour of the day after which not to start a run, equal
+     * to windowStart to always run
+     * @param partitioned whether to drop expired partitions
+     * @param migrateSchema whether to create the missing column and index
+     */
+    public PurgeConfiguration(long interval, int batchSize, long pause, long maxDuration,
+                              int windowStart, int windowEnd, boolean partitioned, boolean migrateSchema) {
+        this.interval = interval;
+        this.batchSize = batchSize;
+        this.pause = pause;
+        this.maxDuration = maxDuration;
+        this.windowStart = windowStart;
+        this.windowEnd = windowEnd;
+        this.partitioned = partitioned;
+        this.migrateSchema = migrateSchema;
+    }
+
+    /**
+     * Parses the {@link MPOA4MPConfigTags#PURGE} child of given node.
+     * @param parent node containing the purge node
+     * @param logger for warnings about invalid values
+     * @return configuration or null when there is no purge node
+     */
+    public static PurgeConfiguration fromNode(ConfigurationNode parent, MyLoggingFacade logger) {
+        ConfigurationNode node = (parent == null) ? null : Configurations.getFirstNode(parent, MPOA4MPConfigTags.PURGE);
+        if (node == null)
+            return null;
+
+        long interval = ConfigAttributes.getLong(node, MPOA4MPConfigTags.PURGE_INTERVAL, DEFAULT_INTERVAL, 1, logger);
+        int batchSize = ConfigAttributes.getInt(node, MPOA4MPConfigTags.PURGE_BATCH_SIZE, DEFAULT_BATCH_SIZE, 1, logger);
+        long pause = ConfigAttributes.getLong(node, MPOA4MPConfigTags.PURGE_PAUSE, DEFAULT_PAUSE, 0, logger);
+        long maxDuration = ConfigAttributes.getLong(node, MPOA4MPConfigTags.PURGE_MAX_DURATION, DEFAULT_MAX_DURATION, 1, logger);
+        boolean partitioned = Boolean.parseBoolean(Configurations.getFirstAttribute(node, MPOA4MPConfigTags.PURGE_PARTITIONED));
+        boolean migrateSchema = Boolean.parseBoolean(Configurations.getFirstAttribute(node, MPOA4MPConfigTags.PURGE_MIGRATE_SCHEMA));
+
+        int windowStart = 0, windowEnd = 0;
+        String window = Configurations.getFirstAttribute(node, MPOA4MPConfigTags.PURGE_WINDOW);
+        if (window != null && !window.isEmpty()) {
+            String[] hours = window.split("-");
+            try {
+                if (hours.length != 2)
+                    throw new NumberFormatException();
+                windowStart = Integer.parseInt(hours[0].trim());
+                windowEnd = Integer.parseInt(hours[1].trim());
+                if (windowStart < 0 || windowStart > 23 || windowEnd < 0 || windowEnd > 24)
+                    throw new NumberFormatException();
+            } catch (NumberFormatException e) {
+                throw new GeneralException("Invalid value " + window + " for " + MPOA4MPConfigTags.PURGE_WINDOW +
+                                           " in node " + MPOA4MPConfigTags.PURGE + ", should be e.g. 1-6");
+            }
+        }
+
+        return new PurgeConfiguration(interval, batchSize, pause, maxDuration, windowStart, windowEnd, partitioned,
+                                      migrateSchema);
+    }
+
+    /** @return interval between two runs in seconds */
+    public long getInterval() {
+        return interval;
+    }
+
+    /** @return maximum number of rows per delete statement */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /** @return pause between two batches in milliseconds */
+    public long getPause() {
+        return pause;
+    }
+
+    /** @return maximum duration of a single run in seconds */
+    public long getMaxDuration() {
+        return maxDuration;
+    }
+
+    /** @return whether expired partitions are dropped */
+    public boolean isPartitioned() {
+        return partitioned;
+    }
+
+    /** @return whether the missing column and index needed for purging are created on startup */
+    public boolean isMigrateSchema() {
+        return migrateSchema;
+    }
+
+    /**
+     * @param calendar current time
+     * @return whether a run may start at given time
+     */
+    public boolean isInWindow(Calendar calendar) {
+        if (windowStart == windowEnd)
+            return true;
+        int hour = calendar.get(Calendar.HOUR_OF_DAY);
+        if (windowStart < windowEnd)
+            return hour >= windowStart && hour < windowEnd;
+        // Window spans midnight, e.g. 22-4
+        return hour >= windowStart || hour < windowEnd;
+    }
+
+    @Override
+    public String toString() {
+        return "interval=" + interval + "s, batchSize=" + batchSize + ", pause=" + pause + "ms, maxDuration=" +
+               maxDuration + "s" + (windowStart == windowEnd ? "" : ", window=" + windowStart + "-" + windowEnd) +
+               (partitioned ? ", partitioned" : "");
+    }
+}
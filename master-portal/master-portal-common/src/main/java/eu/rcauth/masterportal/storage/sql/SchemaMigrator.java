@@ -0,0 +1,408 @@
+package eu.rcauth.masterportal.storage.sql;
+
+import edu.uiuc.ncsa.security.core.exceptions.GeneralException;
+import edu.uiuc.ncsa.security.core.util.MyLoggingFacade;
+import edu.uiuc.ncsa.security.storage.sql.ConnectionPool;
+import edu.uiuc.ncsa.security.storage.sql.internals.Table;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Versioned schema migrations for a Master Portal specific table or column.
+ * Each migration adds a column, a primary key or a secondary index, its
+ * version is its position in the list. The version reached per table is
+ * recorded in the {@link #VERSION_TABLE} table, such that only new
+ * migrations are applied. Since the columns, keys and indexes may also have
+ * been created manually, a migration is skipped when the column or an
+ * equivalent key or index (i.e. one starting with the same columns) already
+ * exists.
+ * <p>
+ * For MySQL and MariaDB, indexes on TEXT columns use a prefix of
+ * {@link #MYSQL_PREFIX_LENGTH} characters.
+ * <p>
+ * Example:
+ * <pre>
+ *     SchemaMigrator migrator = new SchemaMigrator(pool, table)
+ *             .column("fingerprint", "VARCHAR(64)")
+ *             .primaryKey("username", "label")
+ *             .index("fingerprint");
+ *     for (String missing : migrator.getMissing())
+ *         logger.warn(missing);
+ * </pre>
+ */
+public class SchemaMigrator {
+    /** name of the table recording the version per table */
+    public static final String VERSION_TABLE = "mp_schema_version";
+
+    /** length of the prefix used for indexes on TEXT columns in MySQL */
+    public static final int MYSQL_PREFIX_LENGTH = 255;
+
+    /** kind of schema change */
+    private enum Type { COLUMN, PRIMARY_KEY, INDEX }
+
+    /** a new column, primary key or secondary index */
+    private static class Migration {
+        final Type type;
+        final String[] columns;
+        /** SQL type and constraints of a new column */
+        final String definition;
+
+        Migration(Type type, String[] columns, String definition) {
+            this.type = type;
+            this.columns = columns;
+            this.definition = definition;
+        }
+
+        @Override
+        public String toString() {
+            switch (type) {
+                case COLUMN:
+                    return "column " + columns[0] + " " + definition;
+                case PRIMARY_KEY:
+                    return "primary key on (" + String.join(", ", columns) + ")";
+                default:
+                    return "index on (" + String.join(", ", columns) + ")";
+            }
+        }
+    }
+
+    private final ConnectionPool pool;
+    private final Table table;
+    private final List<Migration> migrations = new ArrayList<>();
+
+    /**
+     * @param pool connection pool for the database of table
+     * @param table table to migrate
+     */
+    public SchemaMigrator(ConnectionPool pool, Table table) {
+        this.pool = pool;
+        this.table = table;
+    }
+
+    /**
+     * Adds a migration adding a column to the table.
+     * @param column name of the column
+     * @param definition SQL type and constraints, e.g. BIGINT NOT NULL DEFAULT 0
+     * @return this migrator
+     */
+    public SchemaMigrator column(String column, String definition) {
+        migrations.add(new Migration(Type.COLUMN, new String[] {column}, definition));
+        return this;
+    }
+
+    /**
+     * Adds a migration creating the primary key on given columns.
+     * @return this migrator
+     */
+    public SchemaMigrator primaryKey(String... columns) {
+        migrations.add(new Migration(Type.PRIMARY_KEY, columns, null));
+        return this;
+    }
+
+    /**
+     * Adds a migration creating a (non-unique) index on given columns.
+     * @return this migrator
+     */
+    public SchemaMigrator index(String... columns) {
+        migrations.add(new Migration(Type.INDEX, columns, null));
+        return this;
+    }
+
+    /** @return fully qualified name of the migrated table */
+    public String getTableName() {
+        return table.getFQTablename();
+    }
+
+    /** @return latest version, i.e. the number of migrations */
+    public int getLatestVersion() {
+        return migrations.size();
+    }
+
+    /**
+     * @return version recorded in the {@link #VERSION_TABLE}, 0 when absent
+     */
+    public int getVersion() {
+        Connection c = pool.pop();
+        try {
+            return getVersion(c);
+        } catch (SQLException e) {
+            pool.destroy(c);
+            throw new GeneralException("Error getting schema version of " + table.getFQTablename(), e);
+        } finally {
+            pool.push(c);
+        }
+    }
+
+    /**
+     * @return descriptions of the columns, primary key and indexes that are
+     * missing
+     */
+    public List<String> getMissing() {
+        List<String> missing = new ArrayList<>();
+        Connection c = pool.pop();
+        try {
+            for (Migration migration : migrations) {
+                if (!exists(c, migration))
+                    missing.add("Missing " + migration + " for table " + table.getFQTablename());
+            }
+        } catch (SQLException e) {
+            pool.destroy(c);
+            throw new GeneralException("Error checking indexes of " + table.getFQTablename(), e);
+        } finally {
+            pool.push(c);
+        }
+        return missing;
+    }
+
+    /**
+     * @return names of the columns that are missing. Unlike a missing key or
+     * index, a missing column makes the statements using it fail.
+     */
+    public List<String> getMissingColumns() {
+        List<String> missing = new ArrayList<>();
+        Connection c = pool.pop();
+        try {
+            for (Migration migration : migrations) {
+                if (migration.type == Type.COLUMN && !exists(c, migration))
+                    missing.add(migration.columns[0]);
+            }
+        } catch (SQLException e) {
+            pool.destroy(c);
+            throw new GeneralException("Error checking columns of " + table.getFQTablename(), e);
+        } finally {
+            pool.push(c);
+        }
+        return missing;
+    }
+
+    /**
+     * Applies all migrations newer than the recorded version, skipping those
+     * for which an equivalent key or index exists.
+     * @return descriptions of the applied migrations
+     */
+    public List<String> migrate() {
+        List<String> applied = new ArrayList<>();
+        Connection c = pool.pop();
+        try {
+            createVersionTable(c);
+            int version = getVersion(c);
+            for (int i = version; i < migrations.size(); i++) {
+                Migration migration = migrations.get(i);
+                if (!exists(c, migration)) {
+                    try {
+                        create(c, migration);
+                        applied.add("Created " + migration + " for table " + table.getFQTablename());
+                    } catch (SQLException e) {
+                        // Another node might have been faster
+                        if (!exists(c, migration))
+                            throw e;
+                    }
+                }
+                setVersion(c, i + 1);
+            }
+        } catch (SQLException e) {
+            pool.destroy(c);
+            throw new GeneralException("Error migrating schema of " + table.getFQTablename() +
+                                       " (after " + applied.size() + " migrations)", e);
+        } finally {
+            pool.push(c);
+        }
+        return applied;
+    }
+
+    /**
+     * Applies the migrations when migrate is set, otherwise only warns about
+     * the missing ones. Errors are logged, not thrown, such that a failing
+     * check does not prevent startup.
+     * @param migrate whether to apply the migrations
+     * @param hint how to apply the migrations, appended to each warning
+     * @param logger for reporting the applied or missing migrations
+     */
+    public void checkOrMigrate(boolean migrate, String hint, MyLoggingFacade logger) {
+        try {
+            if (migrate) {
+                for (String applied : migrate())
+                    logger.info(applied);
+            } else {
+                for (String missing : getMissing())
+                    logger.warn(missing + ", " + hint);
+            }
+        } catch (GeneralException e) {
+            logger.error("Cannot check schema of " + table.getFQTablename() + ": " + e.getMessage(), e);
+        }
+    }
+
+    //////////////////////////////////////////////////////////////////////////
+    // Internal methods
+    //////////////////////////////////////////////////////////////////////////
+
+    /** @return name of the version table, in the same schema as the table */
+    private String getVersionTable() {
+        String fqName = table.getFQTablename();
+        int dot = fqName.lastIndexOf('.');
+        return dot < 0 ? VERSION_TABLE : fqName.substring(0, dot + 1) + VERSION_TABLE;
+    }
+
+    private void createVersionTable(Connection c) throws SQLException {
+        if (findTable(c, VERSION_TABLE) != null)
+            return;
+        try (Statement stmt = c.createStatement()) {
+            stmt.execute("CREATE TABLE " + getVersionTable() +
+                         " (table_name VARCHAR(128) NOT NULL PRIMARY KEY, version INT NOT NULL)");
+        } catch (SQLException e) {
+            // Another node might have been faster
+            if (findTable(c, VERSION_TABLE) == null)
+                throw e;
+        }
+    }
+
+    private int getVersion(Connection c) throws SQLException {
+        if (findTable(c, VERSION_TABLE) == null)
+            return 0;
+        try (PreparedStatement stmt = c.prepareStatement(
+                "SELECT version FROM " + getVersionTable() + " WHERE table_name =?")) {
+            stmt.setString(1, table.getTablename());
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? rs.getInt(1) : 0;
+            }
+        }
+    }
+
+    private void setVersion(Connection c, int version) throws SQLException {
+        try (PreparedStatement stmt = c.prepareStatement(
+                "UPDATE " + getVersionTable() + " SET version =? WHERE table_name =?")) {
+            stmt.setInt(1, version);
+            stmt.setString(2, table.getTablename());
+            if (stmt.executeUpdate() > 0)
+                return;
+        }
+        try (PreparedStatement stmt = c.prepareStatement(
+                "INSERT INTO " + getVersionTable() + " (table_name, version) VALUES (?, ?)")) {
+            stmt.setString(1, table.getTablename());
+            stmt.setInt(2, version);
+            stmt.executeUpdate();
+        }
+    }
+
+    private void create(Connection c, Migration migration) throws SQLException {
+        if (migration.type == Type.COLUMN) {
+            try (Statement stmt = c.createStatement()) {
+                stmt.execute("ALTER TABLE " + table.getFQTablename() + " ADD COLUMN " +
+                             migration.columns[0] + " " + migration.definition);
+            }
+            return;
+        }
+
+        boolean mysql = isMySQL(c);
+        Map<String, String> types = mysql ? getColumnTypes(c) : null;
+        StringBuilder columns = new StringBuilder();
+        for (String column : migration.columns) {
+            if (columns.length() > 0)
+                columns.append(", ");
+            columns.append(column);
+            String type = (types == null) ? null : types.get(column.toLowerCase());
+            if (type != null && (type.contains("TEXT") || type.contains("BLOB")))
+                columns.append("(").append(MYSQL_PREFIX_LENGTH).append(")");
+        }
+
+        String sql;
+        if (migration.type == Type.PRIMARY_KEY) {
+            sql = "ALTER TABLE " + table.getFQTablename() + " ADD PRIMARY KEY (" + columns + ")";
+        } else {
+            String name = table.getTablename() + "_" + String.join("_", migration.columns);
+            sql = "CREATE INDEX " + name + " ON " + table.getFQTablename() + " (" + columns + ")";
+        }
+        try (Statement stmt = c.createStatement()) {
+            stmt.execute(sql);
+        }
+    }
+
+    /**
+     * @return whether the column of migration exists, or a primary key or
+     * index which starts with the columns of migration.
+     */
+    private boolean exists(Connection c, Migration migration) throws SQLException {
+        if (migration.type == Type.COLUMN)
+            return getColumnTypes(c).containsKey(migration.columns[0].toLowerCase());
+
+        String[] name = findTable(c, table.getTablename());
+        if (name == null)
+            return false;
+        DatabaseMetaData md = c.getMetaData();
+
+        // index name to ordered column list
+        Map<String, Map<Integer, String>> indexes = new TreeMap<>();
+        if (migration.type == Type.PRIMARY_KEY) {
+            try (ResultSet rs = md.getPrimaryKeys(name[0], name[1], name[2])) {
+                while (rs.next())
+                    indexes.computeIfAbsent("PRIMARY", k -> new TreeMap<>())
+                           .put(rs.getInt("KEY_SEQ"), rs.getString("COLUMN_NAME"));
+            }
+        } else {
+            try (ResultSet rs = md.getIndexInfo(name[0], name[1], name[2], false, true)) {
+                while (rs.next()) {
+                    String index = rs.getString("INDEX_NAME");
+                    String column = rs.getString("COLUMN_NAME");
+                    if (index != null && column != null)
+                        indexes.computeIfAbsent(index, k -> new TreeMap<>())
+                               .put((int) rs.getShort("ORDINAL_POSITION"), column);
+                }
+            }
+        }
+
+        for (Map<Integer, String> index : indexes.values()) {
+            List<String> columns = new ArrayList<>(index.values());
+            if (columns.size() < migration.columns.length)
+                continue;
+            boolean match = true;
+            for (int i = 0; i < migration.columns.length && match; i++)
+                match = migration.columns[i].equalsIgnoreCase(columns.get(i));
+            if (match)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return catalog, schema and name of the given table as stored by the
+     * database, or null when it does not exist.
+     */
+    private String[] findTable(Connection c, String tableName) throws SQLException {
+        DatabaseMetaData md = c.getMetaData();
+        for (String candidate : Arrays.asList(tableName, tableName.toLowerCase(), tableName.toUpperCase())) {
+            try (ResultSet rs = md.getTables(c.getCatalog(), null, candidate, new String[] {"TABLE"})) {
+                if (rs.next())
+                    return new String[] {rs.getString("TABLE_CAT"), rs.getString("TABLE_SCHEM"), rs.getString("TABLE_NAME")};
+            }
+        }
+        return null;
+    }
+
+    /** @return column types by lowercase column name */
+    private Map<String, String> getColumnTypes(Connection c) throws SQLException {
+        Map<String, String> types = new TreeMap<>();
+        String[] name = findTable(c, table.getTablename());
+        if (name == null)
+            return types;
+        try (ResultSet rs = c.getMetaData().getColumns(name[0], name[1], name[2], null)) {
+            while (rs.next())
+                types.put(rs.getString("COLUMN_NAME").toLowerCase(), rs.getString("TYPE_NAME").toUpperCase());
+        }
+        return types;
+    }
+
+    private static boolean isMySQL(Connection c) throws SQLException {
+        String product = c.getMetaData().getDatabaseProductName().toLowerCase();
+        return product.contains("mysql") || product.contains("mariadb");
+    }
+}
@@ -0,0 +1,50 @@
+package eu.rcauth.masterportal.util;
+
+import edu.uiuc.ncsa.security.core.configuration.Configurations;
+import edu.uiuc.ncsa.security.core.util.MyLoggingFacade;
+
+import org.apache.commons.configuration.tree.ConfigurationNode;
+
+/**
+ * Parsing of the numeric attributes of the configuration nodes. An absent or
+ * empty attribute gives the default, an invalid value is logged and also
+ * gives the default.
+ */
+public class ConfigAttributes {
+    private ConfigAttributes() {
+    }
+
+    /**
+     * @param node configuration node containing the attribute
+     * @param name name of the attribute
+     * @param defaultValue value when absent or invalid
+     * @param minimum minimum valid value
+     * @param logger for a warning about an invalid value, may be null
+     * @return value of the integer attribute, at most {@link Integer#MAX_VALUE}
+     */
+    public static long getLong(ConfigurationNode node, String name, long defaultValue, long minimum,
+                               MyLoggingFacade logger) {
+        String value = Configurations.getFirstAttribute(node, name);
+        if (value == null || value.isEmpty())
+            return defaultValue;
+        try {
+            long parsed = Long.parseLong(value.trim());
+            if (parsed >= minimum && parsed <= Integer.MAX_VALUE)
+                return parsed;
+        } catch (NumberFormatException e) {
+            // handled below
+        }
+        if (logger != null)
+            logger.warn("Value of " + name + " in node " + node.getName() +
+                        " is not a valid integer of at least " + minimum + ", using default " + defaultValue);
+        return defaultValue;
+    }
+
+    /**
+     * @see #getLong(ConfigurationNode, String, long, long, MyLoggingFacade)
+     */
+    public static int getInt(ConfigurationNode node, String name, int defaultValue, int minimum,
+                             MyLoggingFacade logger) {
+        return (int) getLong(node, name, defaultValue, minimum, logger);
+    }
+}
@@ -0,0 +1,194 @@
+package eu.rcauth.masterportal.util;
+
+import edu.uiuc.ncsa.security.core.exceptions.GeneralException;
+import edu.uiuc.ncsa.security.core.util.MyLoggingFacade;
+import edu.uiuc.ncsa.security.util.pkcs.KeyUtil;
+
+import java.security.KeyPair;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Pool of fresh keypairs, filled by a background thread, such that key
+ * generation is taken out of the request path. Every keypair is handed out
+ * only once and is discarded when it has been in the pool for longer than
+ * the maximum age. When the pool is empty, a keypair is generated directly.
+ * <p>
+ * Statistics (hits, misses, discarded keypairs and pool depth) are available
+ * via the getters and are logged periodically.
+ */
+public class KeyPairPool {
+    private final String name;
+    private final int size;
+    private final long maxAge;
+    private final MyLoggingFacade logger;
+    private final StatisticsLogger statisticsLogger;
+
+    private final Deque<Entry> entries = new ArrayDeque<>();
+
+    private long hits = 0;
+    private long misses = 0;
+    private long discarded = 0;
+
+    private Thread filler = null;
+
+    /** keypair with its creation time */
+    private static class Entry {
+        final KeyPair keyPair;
+        final long created;
+
+        Entry(KeyPair keyPair) {
+            this.keyPair = keyPair;
+            this.created = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @param name name of the pool, used for logging
+     * @param size number of keypairs to keep ready
+     * @param maxAge maximum time in milliseconds a keypair is kept in the pool
+     * @param logger for the periodic statistics and errors, may be null
+     */
+    public KeyPairPool(String name, int size, long maxAge, MyLoggingFacade logger) {
+        this.name = name;
+        this.size = size;
+        this.maxAge = maxAge;
+        this.logger = logger;
+        this.statisticsLogger = new StatisticsLogger(logger);
+    }
+
+    /** @return number of keypairs to keep ready */
+    public int getSize() {
+        return size;
+    }
+
+    /** @return maximum time in milliseconds a keypair is kept in the pool */
+    public long getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * Starts the background thread filling the pool.
+     */
+    public synchronized void start() {
+        if (filler != null)
+            return;
+        filler = new Thread(this::fill, name + "-keypair-pool");
+        filler.setDaemon(true);
+        filler.start();
+    }
+
+    /**
+     * Stops the background thread, the pool can still be used but will then
+     * generate every keypair directly.
+     */
+    public synchronized void stop() {
+        if (filler != null) {
+            filler.interrupt();
+            filler = null;
+        }
+        entries.clear();
+    }
+
+    /**
+     * @return a fresh keypair, either from the pool or newly generated
+     */
+    public KeyPair take() {
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (statisticsLogger.isDue(now))
+                statisticsLogger.log(this);
+            removeExpired(now);
+            Entry entry = entries.pollFirst();
+            if (entry != null) {
+                hits++;
+                // wake up the filler
+                notifyAll();
+                return entry.keyPair;
+            }
+            misses++;
+        }
+        // Generate outside the lock, such that other threads can continue
+        return generate();
+    }
+
+    /** @return number of keypairs taken from the pool */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /** @return number of keypairs generated directly since the pool was empty */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /** @return number of keypairs discarded because they exceeded the maximum age */
+    public synchronized long getDiscarded() {
+        return discarded;
+    }
+
+    /** @return current number of keypairs in the pool */
+    public synchronized int getDepth() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return name + " keypair pool: " + entries.size() + "/" + size + " ready, " + hits + " hits, " +
+               misses + " misses, " + discarded + " discarded";
+    }
+
+    /**
+     * Loop of the background thread: keeps the pool full and refreshes
+     * keypairs that would otherwise expire.
+     */
+    private void fill() {
+        // Wake up regularly to replace expired keypairs
+        long wait = Math.max(100L, Math.min(maxAge / 4, 60L * 1000L));
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                synchronized (this) {
+                    removeExpired(System.currentTimeMillis());
+                    while (entries.size() >= size) {
+                        wait(wait);
+                        removeExpired(System.currentTimeMillis());
+                    }
+                }
+                Entry entry = new Entry(generate());
+                synchronized (this) {
+                    // stop() might have been called during the generation
+                    if (!Thread.currentThread().isInterrupted())
+                        entries.addLast(entry);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (GeneralException e) {
+                if (logger != null)
+                    logger.error("Cannot fill " + name + " keypair pool: " + e.getMessage(), e);
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the keypairs older than the maximum age, the oldest are first.
+     */
+    private void removeExpired(long now) {
+        while (!entries.isEmpty() && now - entries.peekFirst().created > maxAge) {
+            entries.pollFirst();
+            discarded++;
+        }
+    }
+
+    private KeyPair generate() {
+        try {
+            return KeyUtil.generateKeyPair();
+        } catch (Exception e) {
+            throw new GeneralException("Cannot generate keypair: " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package eu.rcauth.masterportal.util;
+
+import edu.uiuc.ncsa.security.core.util.MyLoggingFacade;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Periodic logging of the statistics of a cache, pool or limiter. The owner
+ * calls {@link #logIfDue(Object)} on its regular code path, which logs the
+ * string form of the statistics at most once per interval, without a
+ * separate thread.
+ */
+public class StatisticsLogger {
+    /** default interval in milliseconds between logging the statistics */
+    public static final long DEFAULT_INTERVAL = 10L * 60L * 1000L;
+
+    private final MyLoggingFacade logger;
+    private final long interval;
+
+    private final AtomicLong last = new AtomicLong(System.currentTimeMillis());
+
+    /**
+     * @param logger for the statistics, may be null
+     */
+    public StatisticsLogger(MyLoggingFacade logger) {
+        this(logger, DEFAULT_INTERVAL);
+    }
+
+    /**
+     * @param logger for the statistics, may be null
+     * @param interval interval in milliseconds between logging the statistics
+     */
+    public StatisticsLogger(MyLoggingFacade logger, long interval) {
+        this.logger = logger;
+        this.interval = interval;
+    }
+
+    /**
+     * @param now current time in milliseconds
+     * @return true when the interval has passed since the previous time this
+     * returned true, in which case the caller should log the statistics. Only
+     * one of concurrent callers gets true.
+     */
+    public boolean isDue(long now) {
+        long previous = last.get();
+        return now - previous >= interval && last.compareAndSet(previous, now);
+    }
+
+    /**
+     * Logs the string form of statistics.
+     */
+    public void log(Object statistics) {
+        if (logger != null)
+            logger.info(statistics.toString());
+    }
+
+    /**
+     * Logs the string form of statistics, when the interval has passed.
+     * @see #isDue(long)
+     */
+    public void logIfDue(Object statistics) {
+        if (isDue(System.currentTimeMillis()))
+            log(statistics);
+    }
+}
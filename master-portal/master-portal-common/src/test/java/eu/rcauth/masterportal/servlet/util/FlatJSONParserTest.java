@@ -0,0 +1,120 @@
+package eu.rcauth.masterportal.servlet.util;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link FlatJSONParser}.
+ */
+public class FlatJSONParserTest {
+
+    @Test
+    public void testValues() {
+        Map<String, String> members = FlatJSONParser.parse(
+                " { \"s\" : \"text\", \"n\":-12.5e3, \"i\":0, \"t\":true, \"f\":false, \"z\":null } ");
+        assertEquals(Arrays.asList("s", "n", "i", "t", "f", "z"), Arrays.asList(members.keySet().toArray()));
+        assertEquals("text", members.get("s"));
+        assertEquals("-12.5e3", members.get("n"));
+        assertEquals("0", members.get("i"));
+        assertEquals("true", members.get("t"));
+        assertEquals("false", members.get("f"));
+        assertTrue(members.containsKey("z"));
+        assertNull(members.get("z"));
+    }
+
+    /** Strings that net.sf.json would have turned into a null, array or object */
+    @Test
+    public void testStringsAreNotCoerced() {
+        Map<String, String> members = FlatJSONParser.parse(
+                "{\"a\":\"null\",\"b\":\"[1,2]\",\"c\":\"{\\\"x\\\":1}\",\"d\":\"true\"}");
+        assertEquals("null", members.get("a"));
+        assertEquals("[1,2]", members.get("b"));
+        assertEquals("{\"x\":1}", members.get("c"));
+        assertEquals("true", members.get("d"));
+    }
+
+    @Test
+    public void testEscapes() {
+        Map<String, String> members = FlatJSONParser.parse(
+                "{\"e\":\"\\\"\\\\\\/\\b\\f\\n\\r\\t\\u00e9\\u20AC\"}");
+        assertEquals("\"\\/\b\f\n\r\t\u00e9\u20ac", members.get("e"));
+    }
+
+    @Test
+    public void testEmptyObject() {
+        assertTrue(FlatJSONParser.parse("{}").isEmpty());
+        assertTrue(FlatJSONParser.parse(" { } ").isEmpty());
+    }
+
+    @Test
+    public void testInvalid() {
+        assertInvalid("");
+        assertInvalid("[]");
+        assertInvalid("{");
+        assertInvalid("{\"a\":\"b\"");
+        assertInvalid("{\"a\":\"b");
+        assertInvalid("{\"a\"}");
+        assertInvalid("{\"a\":}");
+        assertInvalid("{\"a\":1,}");
+        assertInvalid("{\"a\":1} x");
+        assertInvalid("{\"a\":1}{}");
+        assertInvalid("{a:1}");
+        assertInvalid("{\"a\":{\"b\":1}}");
+        assertInvalid("{\"a\":[1]}");
+        assertInvalid("{\"a\":01}");
+        assertInvalid("{\"a\":1.}");
+        assertInvalid("{\"a\":nul}");
+        assertInvalid("{\"a\":\"\\x\"}");
+        assertInvalid("{\"a\":\"\\u12\"}");
+        assertInvalid("{\"a\":\"\\u12G4\"}");
+        assertInvalid("{\"a\":\"tab\there\"}");
+    }
+
+    @Test
+    public void testRoundTripWithJSONStreamWriter() throws IOException {
+        Map<String, String> values = new LinkedHashMap<>();
+        values.put("plain", "value");
+        values.put("null", "null");
+        values.put("array", "[1,2]");
+        values.put("quotes", "\"quoted\" \\ back\\slash");
+        values.put("control", "line1\nline2\r\t\u0001");
+        values.put("unicode", "ünïcode \u20ac \ud83d\ude00");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JSONStreamWriter json = new JSONStreamWriter(out, false);
+        json.beginObject();
+        for (Map.Entry<String, String> entry : values.entrySet())
+            json.field(entry.getKey(), entry.getValue());
+        json.name("missing").nullValue();
+        json.field("number", 42L);
+        json.endObject();
+        json.flush();
+
+        Map<String, String> parsed = FlatJSONParser.parse(new String(out.toByteArray(), StandardCharsets.UTF_8));
+        for (Map.Entry<String, String> entry : values.entrySet())
+            assertEquals(entry.getValue(), parsed.get(entry.getKey()));
+        assertTrue(parsed.containsKey("missing"));
+        assertNull(parsed.get("missing"));
+        assertEquals("42", parsed.get("number"));
+    }
+
+    private static void assertInvalid(String text) {
+        try {
+            FlatJSONParser.parse(text);
+            fail("Expected IllegalArgumentException for " + text);
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package eu.rcauth.masterportal.servlet.util;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for {@link JSONStreamWriter}.
+ */
+public class JSONStreamWriterTest {
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    @Test
+    public void testEscapes() throws IOException {
+        assertEquals("\"say \\\"hi\\\" \\\\ /\"\n", string("say \"hi\" \\ /"));
+        assertEquals("\"\\n\\r\\t\\b\\f\"\n", string("\n\r\t\b\f"));
+    }
+
+    @Test
+    public void testControlCharacters() throws IOException {
+        assertEquals("\"\\u0000\\u0001\\u001f \"\n", string("\u0000\u0001\u001f\u0020"));
+        // Valid JSON, but escaped such that the output is also valid JavaScript
+        assertEquals("\"\\u2028\\u2029\"\n", string("\u2028\u2029"));
+    }
+
+    @Test
+    public void testUTF8() throws IOException {
+        String text = "\u00e9\u07ff\u0800\u20ac\uffff";
+        assertArrayEquals(("\"" + text + "\"\n").getBytes(StandardCharsets.UTF_8), bytes(text));
+    }
+
+    @Test
+    public void testSurrogatePairs() throws IOException {
+        String text = "\ud83d\ude00 \udbff\udfff";
+        assertArrayEquals(("\"" + text + "\"\n").getBytes(StandardCharsets.UTF_8), bytes(text));
+    }
+
+    /** Unpaired surrogates cannot be encoded as UTF-8 and are escaped instead */
+    @Test
+    public void testLoneSurrogates() throws IOException {
+        assertEquals("\"\\ud83d\"\n", string("\ud83d"));
+        assertEquals("\"\\ude00x\"\n", string("\ude00x"));
+        assertEquals("\"\\ud83dx\"\n", string("\ud83dx"));
+        // reversed pair
+        assertEquals("\"\\ude00\\ud83d\"\n", string("\ude00\ud83d"));
+    }
+
+    @Test
+    public void testValues() throws IOException {
+        JSONStreamWriter json = new JSONStreamWriter(out, false);
+        json.beginArray().value(0).value(-42).value(Long.MAX_VALUE).value(Long.MIN_VALUE)
+            .value(true).value(false).nullValue().value((String) null).endArray();
+        json.flush();
+        assertEquals("[0,-42,9223372036854775807,-9223372036854775808,true,false,null,null]\n", text());
+    }
+
+    @Test
+    public void testNesting() throws IOException {
+        JSONStreamWriter json = new JSONStreamWriter(out, false);
+        json.beginObject()
+            .field("a", "b")
+            .field("skipped", (String) null)
+            .name("list").beginArray()
+                .beginObject().field("n", 1).endObject()
+                .beginArray().endArray()
+                .beginObject().endObject()
+            .endArray()
+            .field("c", 2)
+            .endObject();
+        json.flush();
+        assertEquals("{\"a\":\"b\",\"list\":[{\"n\":1},[],{}],\"c\":2}\n", text());
+    }
+
+    /** Nesting beyond the initial size of the internal state */
+    @Test
+    public void testDeepNesting() throws IOException {
+        int depth = 100;
+        JSONStreamWriter json = new JSONStreamWriter(out, false);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            json.beginArray().value(i);
+            expected.append('[').append(i).append(',');
+        }
+        expected.setLength(expected.length() - 1);
+        for (int i = 0; i < depth; i++) {
+            json.endArray();
+            expected.append(']');
+        }
+        json.flush();
+        assertEquals(expected + "\n", text());
+    }
+
+    @Test
+    public void testPretty() throws IOException {
+        JSONStreamWriter json = new JSONStreamWriter(out, true);
+        json.beginObject()
+            .field("a", "b")
+            .name("list").beginArray().value(1).value(2).endArray()
+            .name("empty").beginObject().endObject()
+            .endObject();
+        json.flush();
+        assertEquals("{\n" +
+                     " \"a\": \"b\",\n" +
+                     " \"list\": [\n" +
+                     "  1,\n" +
+                     "  2\n" +
+                     " ],\n" +
+                     " \"empty\": {}\n" +
+                     "}\n", text());
+    }
+
+    /** Output larger than the internal buffer */
+    @Test
+    public void testLargeOutput() throws IOException {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 10000; i++)
+            value.append("\u20ac\ud83d\ude00x");
+        assertArrayEquals(("\"" + value + "\"\n").getBytes(StandardCharsets.UTF_8), bytes(value.toString()));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testUnbalancedClose() throws IOException {
+        new JSONStreamWriter(out, false).beginObject().endObject().endObject();
+    }
+
+    private byte[] bytes(String value) throws IOException {
+        out.reset();
+        JSONStreamWriter json = new JSONStreamWriter(out, false);
+        json.value(value);
+        json.flush();
+        return out.toByteArray();
+    }
+
+    private String string(String value) throws IOException {
+        return new String(bytes(value), StandardCharsets.UTF_8);
+    }
+
+    private String text() {
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
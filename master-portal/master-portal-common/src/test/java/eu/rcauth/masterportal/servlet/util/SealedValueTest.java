@@ -0,0 +1,105 @@
+package eu.rcauth.masterportal.servlet.util;
+
+import edu.uiuc.ncsa.security.core.exceptions.GeneralException;
+
+import org.junit.Test;
+
+import java.util.Base64;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link SealedValue}.
+ */
+public class SealedValueTest {
+    private static final long MAX_AGE = 60000L;
+
+    private final SealedValue sealer = new SealedValue(key((byte) 1), MAX_AGE);
+
+    @Test
+    public void testRoundTrip() {
+        String sealed = sealer.seal("session-1", "code", "state with spaces", "", "ünïcode");
+        assertArrayEquals(new String[] {"code", "state with spaces", "", "ünïcode"},
+                          sealer.open(sealed, "session-1"));
+    }
+
+    @Test
+    public void testNoValues() {
+        assertArrayEquals(new String[0], sealer.open(sealer.seal("session-1"), "session-1"));
+    }
+
+    @Test
+    public void testOtherNodeWithSameKey() {
+        SealedValue other = new SealedValue(key((byte) 1), MAX_AGE);
+        assertArrayEquals(new String[] {"code"}, other.open(sealer.seal("session-1", "code"), "session-1"));
+    }
+
+    @Test
+    public void testRandomIV() {
+        assertNotEquals(sealer.seal("session-1", "code"), sealer.seal("session-1", "code"));
+    }
+
+    @Test
+    public void testWrongContext() {
+        assertRejected(sealer, sealer.seal("session-1", "code"), "session-2");
+    }
+
+    @Test
+    public void testWrongKey() {
+        SealedValue other = new SealedValue(key((byte) 2), MAX_AGE);
+        assertRejected(other, sealer.seal("session-1", "code"), "session-1");
+    }
+
+    @Test
+    public void testTampered() {
+        byte[] raw = Base64.getUrlDecoder().decode(sealer.seal("session-1", "code", "state"));
+        for (int i = 0; i < raw.length; i++) {
+            byte[] tampered = raw.clone();
+            tampered[i] ^= 0x01;
+            assertRejected(sealer, Base64.getUrlEncoder().withoutPadding().encodeToString(tampered), "session-1");
+        }
+    }
+
+    @Test
+    public void testTruncated() {
+        String sealed = sealer.seal("session-1", "code");
+        assertRejected(sealer, sealed.substring(0, sealed.length() - 4), "session-1");
+        assertRejected(sealer, sealed.substring(0, 10), "session-1");
+        assertRejected(sealer, "", "session-1");
+        assertRejected(sealer, "not base64!", "session-1");
+    }
+
+    @Test
+    public void testExpired() {
+        SealedValue expired = new SealedValue(key((byte) 1), -1000L);
+        assertRejected(sealer, expired.seal("session-1", "code"), "session-1");
+    }
+
+    @Test(expected = GeneralException.class)
+    public void testNewlineInValue() {
+        sealer.seal("session-1", "code\nstate");
+    }
+
+    @Test(expected = GeneralException.class)
+    public void testInvalidKeyLength() {
+        new SealedValue(new byte[20], MAX_AGE);
+    }
+
+    private static byte[] key(byte value) {
+        byte[] key = new byte[32];
+        for (int i = 0; i < key.length; i++)
+            key[i] = (byte) (value + i);
+        return key;
+    }
+
+    private static void assertRejected(SealedValue sealer, String sealed, String context) {
+        try {
+            sealer.open(sealed, context);
+            fail("Expected GeneralException for sealed value " + sealed);
+        } catch (GeneralException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package eu.rcauth.masterportal.storage.sql;
+
+import edu.uiuc.ncsa.security.storage.sql.internals.Table;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Timestamp;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for {@link ExpiredRowPurger}, using an in-memory H2 database.
+ */
+public class ExpiredRowPurgerTest {
+    private static final long HOUR = 3600L * 1000L;
+
+    private H2ConnectionPool pool;
+    private Table table;
+
+    @Before
+    public void setUp() {
+        pool = new H2ConnectionPool();
+        table = H2ConnectionPool.table("transactions");
+        pool.execute("CREATE TABLE " + table.getFQTablename() +
+                     " (id VARCHAR(128) NOT NULL PRIMARY KEY, ts TIMESTAMP)");
+    }
+
+    @After
+    public void tearDown() {
+        pool.close();
+    }
+
+    /** All expired rows are deleted in batches, the others are kept */
+    @Test
+    public void testPurge() {
+        for (int i = 0; i < 5; i++)
+            insert("expired" + i, 2 * HOUR + i);
+        for (int i = 0; i < 3; i++)
+            insert("valid" + i, HOUR / 2);
+        insert("null", -1L);
+
+        ExpiredRowPurger purger = purger(2);
+        int pops = pool.getPops();
+        assertEquals(5L, purger.purge());
+        // Batches of 2, 2 and 1 rows
+        assertEquals(3, pool.getPops() - pops);
+        assertEquals(4L, count());
+        assertEquals(0L, pool.queryLong("SELECT COUNT(*) FROM " + table.getFQTablename() + " WHERE id LIKE 'expired%'"));
+
+        assertEquals(1L, purger.getRuns());
+        assertEquals(5L, purger.getLastRows());
+        assertEquals(5L, purger.getTotalRows());
+
+        assertEquals(0L, purger.purge());
+        assertEquals(2L, purger.getRuns());
+        assertEquals(0L, purger.getLastRows());
+        assertEquals(5L, purger.getTotalRows());
+    }
+
+    /** When the last batch is full, one more (empty) batch is needed */
+    @Test
+    public void testFullBatches() {
+        for (int i = 0; i < 4; i++)
+            insert("expired" + i, 2 * HOUR);
+
+        ExpiredRowPurger purger = purger(2);
+        int pops = pool.getPops();
+        assertEquals(4L, purger.purge());
+        assertEquals(3, pool.getPops() - pops);
+        assertEquals(0L, count());
+    }
+
+    /** A stopped purger ends after the first batch, which has the oldest rows */
+    @Test
+    public void testStopped() {
+        for (int i = 0; i < 5; i++)
+            insert("expired" + i, 2 * HOUR + i * HOUR);
+
+        ExpiredRowPurger purger = purger(2);
+        purger.stop();
+        assertEquals(2L, purger.purge());
+        assertEquals(3L, count());
+        assertEquals(0L, pool.queryLong("SELECT COUNT(*) FROM " + table.getFQTablename() +
+                                        " WHERE id IN ('expired3', 'expired4')"));
+    }
+
+    private ExpiredRowPurger purger(int batchSize) {
+        PurgeConfiguration config = new PurgeConfiguration(3600L, batchSize, 0L, 600L, 0, 0, false, false);
+        return new ExpiredRowPurger("rows", pool, table, "id", "ts", HOUR, config);
+    }
+
+    /**
+     * Inserts a row with given age in milliseconds, or with a null timestamp
+     * for a negative age.
+     */
+    private void insert(String id, long age) {
+        String ts = age < 0 ? "NULL" : "TIMESTAMP '" + new Timestamp(System.currentTimeMillis() - age) + "'";
+        pool.execute("INSERT INTO " + table.getFQTablename() + " (id, ts) VALUES ('" + id + "', " + ts + ")");
+    }
+
+    private long count() {
+        return pool.queryLong("SELECT COUNT(*) FROM " + table.getFQTablename());
+    }
+}
@@ -0,0 +1,109 @@
+package eu.rcauth.masterportal.storage.sql;
+
+import edu.uiuc.ncsa.security.core.exceptions.GeneralException;
+import edu.uiuc.ncsa.security.storage.data.SerializationKeys;
+import edu.uiuc.ncsa.security.storage.sql.ConnectionPool;
+import edu.uiuc.ncsa.security.storage.sql.internals.Table;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connection pool for an in-memory H2 database, used by the tests of the SQL
+ * helpers. Each instance uses its own database, containing the schema
+ * {@link #SCHEMA}, which is dropped by {@link #close()}.
+ */
+class H2ConnectionPool extends ConnectionPool {
+    /** schema in which the test tables are created */
+    static final String SCHEMA = "mp";
+
+    private static int databases = 0;
+
+    private final String url;
+    private final AtomicInteger pops = new AtomicInteger();
+
+    H2ConnectionPool() {
+        super(null);
+        synchronized (H2ConnectionPool.class) {
+            url = "jdbc:h2:mem:test" + (databases++) + ";DB_CLOSE_DELAY=-1";
+        }
+        execute("CREATE SCHEMA " + SCHEMA);
+    }
+
+    @Override
+    public Connection pop() {
+        pops.incrementAndGet();
+        try {
+            return DriverManager.getConnection(url);
+        } catch (SQLException e) {
+            throw new GeneralException("Cannot connect to " + url, e);
+        }
+    }
+
+    @Override
+    public void push(Connection c) {
+        destroy(c);
+    }
+
+    @Override
+    public void destroy(Connection c) {
+        try {
+            if (!c.isClosed())
+                c.close();
+        } catch (SQLException e) {
+            // ignore
+        }
+    }
+
+    /** Executes the statement in a new connection */
+    void execute(String sql) {
+        Connection c = pop();
+        try (Statement stmt = c.createStatement()) {
+            stmt.execute(sql);
+        } catch (SQLException e) {
+            throw new GeneralException("Error executing " + sql, e);
+        } finally {
+            push(c);
+        }
+    }
+
+    /** @return the single long value returned by the query */
+    long queryLong(String sql) {
+        Connection c = pop();
+        try (Statement stmt = c.createStatement();
+             ResultSet rs = stmt.executeQuery(sql)) {
+            rs.next();
+            return rs.getLong(1);
+        } catch (SQLException e) {
+            throw new GeneralException("Error executing " + sql, e);
+        } finally {
+            push(c);
+        }
+    }
+
+    /** @return number of connections taken from this pool */
+    int getPops() {
+        return pops.get();
+    }
+
+    /** Drops the database */
+    void close() {
+        execute("SHUTDOWN");
+    }
+
+    /**
+     * @return table in the test schema, only providing the (fully qualified)
+     * name
+     */
+    static Table table(String name) {
+        return new Table(new SerializationKeys() {}, SCHEMA, null, name) {
+            @Override
+            public void createColumnDescriptors() {
+            }
+        };
+    }
+}
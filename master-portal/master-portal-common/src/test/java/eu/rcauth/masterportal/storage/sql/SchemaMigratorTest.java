@@ -0,0 +1,122 @@
+package eu.rcauth.masterportal.storage.sql;
+
+import edu.uiuc.ncsa.security.storage.sql.internals.Table;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link SchemaMigrator}, using an in-memory H2 database.
+ */
+public class SchemaMigratorTest {
+    private H2ConnectionPool pool;
+    private Table table;
+
+    @Before
+    public void setUp() {
+        pool = new H2ConnectionPool();
+        table = H2ConnectionPool.table("ssh_keys");
+        pool.execute("CREATE TABLE " + table.getFQTablename() +
+                     " (username VARCHAR(128) NOT NULL, label VARCHAR(128) NOT NULL, pub_key TEXT)");
+    }
+
+    @After
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Test
+    public void testMissing() {
+        SchemaMigrator migrator = migrator();
+        assertEquals(4, migrator.getLatestVersion());
+        assertEquals(0, migrator.getVersion());
+        assertEquals(4, migrator.getMissing().size());
+        assertEquals(Arrays.asList("fingerprint", "version"), migrator.getMissingColumns());
+    }
+
+    @Test
+    public void testMigrate() {
+        SchemaMigrator migrator = migrator();
+        assertEquals(4, migrator.migrate().size());
+        assertEquals(4, migrator.getVersion());
+        assertTrue(migrator.getMissing().isEmpty());
+        assertTrue(migrator.getMissingColumns().isEmpty());
+
+        // The new columns are usable
+        pool.execute("INSERT INTO " + table.getFQTablename() + " (username, label, fingerprint) VALUES ('alice', 'a', 'f')");
+        assertEquals(0L, pool.queryLong("SELECT version FROM " + table.getFQTablename()));
+    }
+
+    /** Running again, also by a new instance, applies nothing */
+    @Test
+    public void testIdempotent() {
+        migrator().migrate();
+        assertEquals(Collections.emptyList(), migrator().migrate());
+        assertEquals(Collections.emptyList(), migrator().migrate());
+        assertEquals(4, migrator().getVersion());
+    }
+
+    /** Columns and equivalent indexes that were created manually are skipped */
+    @Test
+    public void testExistingSkipped() {
+        pool.execute("ALTER TABLE " + table.getFQTablename() + " ADD COLUMN fingerprint VARCHAR(64)");
+        pool.execute("CREATE INDEX manual_idx ON " + table.getFQTablename() + " (fingerprint, username)");
+        SchemaMigrator migrator = migrator();
+        assertEquals(Collections.singletonList("version"), migrator.getMissingColumns());
+        assertEquals(2, migrator.getMissing().size());
+
+        List<String> applied = migrator.migrate();
+        assertEquals(2, applied.size());
+        assertTrue(applied.get(0).contains("column version"));
+        assertTrue(applied.get(1).contains("primary key"));
+        assertEquals(4, migrator.getVersion());
+    }
+
+    /** Only the appended migrations are applied on a later run */
+    @Test
+    public void testAppendedMigrations() {
+        SchemaMigrator first = new SchemaMigrator(pool, table)
+                .column("fingerprint", "VARCHAR(64)")
+                .column("version", "BIGINT NOT NULL DEFAULT 0");
+        assertEquals(2, first.migrate().size());
+        assertEquals(2, first.getVersion());
+
+        SchemaMigrator second = migrator();
+        assertEquals(2, second.getVersion());
+        List<String> applied = second.migrate();
+        assertEquals(2, applied.size());
+        assertTrue(applied.get(0).contains("primary key"));
+        assertTrue(applied.get(1).contains("index on (fingerprint)"));
+        assertEquals(4, second.getVersion());
+    }
+
+    /** The version is recorded per table */
+    @Test
+    public void testVersionPerTable() {
+        Table other = H2ConnectionPool.table("other");
+        pool.execute("CREATE TABLE " + other.getFQTablename() + " (id VARCHAR(128) NOT NULL)");
+        SchemaMigrator otherMigrator = new SchemaMigrator(pool, other).primaryKey("id");
+
+        migrator().migrate();
+        assertEquals(0, otherMigrator.getVersion());
+        assertEquals(1, otherMigrator.migrate().size());
+        assertEquals(1, otherMigrator.getVersion());
+        assertEquals(4, migrator().getVersion());
+    }
+
+    private SchemaMigrator migrator() {
+        return new SchemaMigrator(pool, table)
+                .column("fingerprint", "VARCHAR(64)")
+                .column("version", "BIGINT NOT NULL DEFAULT 0")
+                .primaryKey("username", "label")
+                .index("fingerprint");
+    }
+}
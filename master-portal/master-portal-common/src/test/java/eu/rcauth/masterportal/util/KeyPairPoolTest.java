@@ -0,0 +1,95 @@
+package eu.rcauth.masterportal.util;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.security.KeyPair;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link KeyPairPool}.
+ */
+public class KeyPairPoolTest {
+    /** maximum time in milliseconds to wait for the background thread */
+    private static final long TIMEOUT = 30000L;
+
+    private KeyPairPool pool;
+
+    @After
+    public void tearDown() {
+        if (pool != null)
+            pool.stop();
+    }
+
+    /** Without the background thread every keypair is generated directly */
+    @Test
+    public void testNotStarted() {
+        pool = new KeyPairPool("test", 2, 60000L, null);
+        assertNotNull(pool.take());
+        assertEquals(0, pool.getDepth());
+        assertEquals(0L, pool.getHits());
+        assertEquals(1L, pool.getMisses());
+    }
+
+    @Test
+    public void testRefill() throws InterruptedException {
+        pool = new KeyPairPool("test", 2, 60000L, null);
+        pool.start();
+        waitFor(() -> pool.getDepth() == 2);
+
+        Set<String> publicKeys = new HashSet<>();
+        for (int i = 0; i < 2; i++)
+            publicKeys.add(encoded(pool.take()));
+        assertEquals(2L, pool.getHits());
+        waitFor(() -> pool.getDepth() == 2);
+
+        // Every keypair is handed out only once
+        for (int i = 0; i < 2; i++)
+            publicKeys.add(encoded(pool.take()));
+        assertEquals(4, publicKeys.size());
+        assertEquals(4L, pool.getHits());
+    }
+
+    @Test
+    public void testMaxAge() throws InterruptedException {
+        pool = new KeyPairPool("test", 2, 100L, null);
+        pool.start();
+        // The background thread replaces the expired keypairs
+        waitFor(() -> pool.getDiscarded() > 0);
+        waitFor(() -> pool.getDepth() > 0);
+    }
+
+    @Test
+    public void testStop() throws InterruptedException {
+        pool = new KeyPairPool("test", 2, 60000L, null);
+        pool.start();
+        waitFor(() -> pool.getDepth() == 2);
+
+        pool.stop();
+        assertEquals(0, pool.getDepth());
+        assertNotNull(pool.take());
+        assertEquals(1L, pool.getMisses());
+        // The background thread does not fill the pool anymore
+        Thread.sleep(500L);
+        assertEquals(0, pool.getDepth());
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!condition.getAsBoolean()) {
+            assertTrue("Timeout waiting for the keypair pool", System.currentTimeMillis() < deadline);
+            Thread.sleep(10L);
+        }
+    }
+
+    private static String encoded(KeyPair keyPair) {
+        return Arrays.toString(keyPair.getPublic().getEncoded());
+    }
+}
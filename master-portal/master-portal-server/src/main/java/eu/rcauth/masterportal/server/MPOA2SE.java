@@ -3,20 +3,39 @@ package eu.rcauth.masterportal.server;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.inject.Provider;
 
 import edu.uiuc.ncsa.security.util.json.JSONStore;
+import eu.rcauth.masterportal.server.storage.impl.SSHKeyIndex;
 import eu.rcauth.masterportal.server.storage.impl.SSHKeyStoreProvider;
 import eu.rcauth.masterportal.server.validators.GetProxyRequestValidator;
+import eu.rcauth.masterportal.server.cache.ProxyCache;
+import eu.rcauth.masterportal.server.ratelimit.ForwardBulkhead;
+import eu.rcauth.masterportal.server.ratelimit.GetProxyRateLimiter;
+import eu.rcauth.masterportal.server.storage.AuthorizedKeysExporter;
 import eu.rcauth.masterportal.server.storage.SSHKeyStore;
 import eu.rcauth.masterportal.server.storage.SSHKey;
-
+import eu.rcauth.masterportal.server.storage.sql.SQLSSHKeyStore;
+import eu.rcauth.masterportal.server.storage.MPOA2TransactionKeys;
+import eu.rcauth.masterportal.myproxy.MeteredMPConnectionProvider;
+import eu.rcauth.masterportal.myproxy.ReplicatedMPConnectionProvider;
+import eu.rcauth.masterportal.servlet.MPOA4MPConfigTags;
+import eu.rcauth.masterportal.storage.sql.PurgeConfiguration;
+import eu.rcauth.masterportal.storage.sql.SchemaMigrator;
+
+import edu.uiuc.ncsa.myproxy.MyProxyConnectable;
 import edu.uiuc.ncsa.myproxy.oa4mp.oauth2.OA2SE;
 import edu.uiuc.ncsa.myproxy.oa4mp.server.MyProxyFacadeProvider;
 import edu.uiuc.ncsa.myproxy.oa4mp.server.admin.adminClient.AdminClientStore;
 import edu.uiuc.ncsa.myproxy.oa4mp.server.admin.permissions.PermissionsStore;
 import edu.uiuc.ncsa.myproxy.oa4mp.server.servlet.AuthorizationServletConfig;
+import edu.uiuc.ncsa.security.core.exceptions.GeneralException;
 import edu.uiuc.ncsa.security.core.util.MyLoggingFacade;
 import edu.uiuc.ncsa.security.delegation.server.issuers.AGIssuer;
 import edu.uiuc.ncsa.security.delegation.server.issuers.ATIssuer;
@@ -27,6 +46,7 @@ import edu.uiuc.ncsa.security.delegation.storage.TransactionStore;
 import edu.uiuc.ncsa.security.delegation.token.TokenForge;
 import edu.uiuc.ncsa.security.oauth_2_0.server.config.LDAPConfiguration;
 import edu.uiuc.ncsa.security.oauth_2_0.server.claims.ClaimSource;
+import edu.uiuc.ncsa.security.storage.sql.SQLStore;
 import edu.uiuc.ncsa.security.servlet.UsernameTransformer;
 import edu.uiuc.ncsa.security.util.mail.MailUtilProvider;
 import edu.uiuc.ncsa.security.util.jwk.JSONWebKeys;
@@ -69,10 +89,19 @@ public class MPOA2SE extends OA2SE {
                    JSONWebKeys jsonWebKeys,
                    String myproxyPassword,
                    long myproxyDefaultLifetime,
+                   boolean myproxyLoadBalance,
                    int maxSSHKeys,
+                   int maxSSHKeysBatch,
+                   long sshKeysIndexRefresh,
+                   AuthorizedKeysExporter authorizedKeysExporter,
+                   boolean sshKeysMigrateSchema,
+                   PurgeConfiguration transactionPurgeConfiguration,
                    String sshKeyScope,
                    boolean autoRegisterEndpoint,
                    GetProxyRequestValidator[] validators,
+                   GetProxyRateLimiter rateLimiter,
+                   ForwardBulkhead dsBulkhead,
+                   ProxyCache proxyCache,
                    String issuer,
                    boolean utilServletEnabled,
                    boolean oidcEnabled,
@@ -112,13 +141,30 @@ public class MPOA2SE extends OA2SE {
 
         this.myproxyPassword = myproxyPassword;
         this.myproxyDefaultLifetime = myproxyDefaultLifetime;
+        this.myproxyLoadBalance = myproxyLoadBalance;
 
         this.validators = validators;
 
+        this.rateLimiter = rateLimiter;
+
+        this.dsBulkhead = dsBulkhead;
+
+        this.proxyCache = proxyCache;
+
         this.ssp = (SSHKeyStoreProvider<SSHKeyStore<SSHKey>>)ssp;
 
         this.maxSSHKeys = maxSSHKeys;
 
+        this.maxSSHKeysBatch = maxSSHKeysBatch;
+
+        this.sshKeysIndexRefresh = sshKeysIndexRefresh;
+
+        this.authorizedKeysExporter = authorizedKeysExporter;
+
+        this.sshKeysMigrateSchema = sshKeysMigrateSchema;
+
+        this.transactionPurgeConfiguration = transactionPurgeConfiguration;
+
         this.sshKeyScope = sshKeyScope;
 
         this.localScopes = localScopes;
@@ -132,6 +178,27 @@ public class MPOA2SE extends OA2SE {
         return validators;
     }
 
+    protected GetProxyRateLimiter rateLimiter;
+
+    /** @return admission control for the /getproxy endpoint, null when not configured */
+    public GetProxyRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    protected ForwardBulkhead dsBulkhead;
+
+    /** @return bulkhead limiting the concurrent forwards to the DS, null when not configured */
+    public ForwardBulkhead getDSBulkhead() {
+        return dsBulkhead;
+    }
+
+    protected ProxyCache proxyCache;
+
+    /** @return cache of recently issued proxies, null when not configured */
+    public ProxyCache getProxyCache() {
+        return proxyCache;
+    }
+
     protected String myproxyPassword;
 
     public void setMyproxyPassword(String myproxyPassword) {
@@ -142,6 +209,24 @@ public class MPOA2SE extends OA2SE {
         return myproxyPassword;
     }
 
+    protected MeteredMPConnectionProvider<MyProxyConnectable> mpConnectionProvider;
+
+    protected boolean myproxyLoadBalance;
+
+    /**
+     * @return shared provider for all connections to the MyProxy Server(s),
+     * spreading them over all servers when load balancing is configured.
+     */
+    public synchronized MeteredMPConnectionProvider<MyProxyConnectable> getMPConnectionProvider() {
+        if (mpConnectionProvider == null) {
+            if (myproxyLoadBalance)
+                mpConnectionProvider = new ReplicatedMPConnectionProvider<>(getMyLogger(), getMyProxyServices());
+            else
+                mpConnectionProvider = new MeteredMPConnectionProvider<>(getMyLogger(), getMyProxyServices());
+        }
+        return mpConnectionProvider;
+    }
+
     protected long myproxyDefaultLifetime;
 
     public long getMyproxyDefaultLifetime() {
@@ -150,13 +235,91 @@ public class MPOA2SE extends OA2SE {
 
     protected SSHKeyStoreProvider<SSHKeyStore<SSHKey>> ssp;
 
-    protected SSHKeyStore<SSHKey> sshKeyStore;
+    protected volatile SSHKeyStore<SSHKey> sshKeyStore;
 
+    /** store created by the provider, not yet checked, guarded by sshKeyStoreLock */
+    private SSHKeyStore<SSHKey> createdSSHKeyStore;
+
+    private final Object sshKeyStoreLock = new Object();
+
+    /**
+     * Returns the ssh key store. The first call creates it, checks (or
+     * migrates) the schema of a SQL store and normalizes the keys stored by a
+     * previous version, other threads wait for that to finish. Note that the ssh key servlet does this on startup.
+     * @throws GeneralException when columns of a SQL store are missing, since
+     * every insert and update writes them
+     */
     public SSHKeyStore<SSHKey> getSSHKeyStore() {
-        if (sshKeyStore == null)
-            sshKeyStore = ssp.get();
+        SSHKeyStore<SSHKey> store = sshKeyStore;
+        if (store == null) {
+            synchronized (sshKeyStoreLock) {
+                if (sshKeyStore == null) {
+                    if (createdSSHKeyStore == null)
+                        createdSSHKeyStore = ssp.get();
+                    store = createdSSHKeyStore;
+                    if (store instanceof SQLSSHKeyStore) {
+                        SQLSSHKeyStore sqlStore = (SQLSSHKeyStore)store;
+                        String hint = "use migrate_schema in the CLI or set " + MPOA4MPConfigTags.SSH_KEYS_MIGRATE_SCHEMA +
+                                      " to create it";
+                        SchemaMigrator migrator = sqlStore.getSchemaMigrator();
+                        migrator.checkOrMigrate(sshKeysMigrateSchema, hint, getMyLogger());
+                        List<String> missing = migrator.getMissingColumns();
+                        if (!missing.isEmpty())
+                            throw new GeneralException("Missing column(s) " + String.join(", ", missing) +
+                                                       " in table " + migrator.getTableName() + ", " + hint);
+                        normalizeSSHKeys(sqlStore);
+                    }
+                    sshKeyStore = store;
+                }
+                store = sshKeyStore;
+            }
+        }
+
+        return store;
+    }
+
+    /**
+     * @return migrator for the ssh keys table, or null when the ssh key store
+     * is not a SQL store. Unlike {@link #getSSHKeyStore()} this does not
+     * check the schema, such that the CLI can create missing columns.
+     */
+    public SchemaMigrator getSSHKeySchemaMigrator() {
+        SSHKeyStore<SSHKey> store;
+        synchronized (sshKeyStoreLock) {
+            if (createdSSHKeyStore == null)
+                createdSSHKeyStore = ssp.get();
+            store = createdSSHKeyStore;
+        }
+        return (store instanceof SQLSSHKeyStore) ? ((SQLSSHKeyStore)store).getSchemaMigrator() : null;
+    }
+
+    protected boolean sshKeysMigrateSchema;
+
+    /**
+     * Fills the fingerprints of keys stored by a previous version, since the
+     * uniqueness checks only compare fingerprints. When there are none, this
+     * is a single query on the indexed fingerprint column.
+     */
+    private void normalizeSSHKeys(SQLSSHKeyStore store) {
+        int[] counts = store.normalizeKeys();
+        if (counts[0] > 0 || counts[1] > 0)
+            getMyLogger().info("Normalized " + counts[0] + " ssh keys, skipped " + counts[1] + " invalid keys");
+    }
 
-        return sshKeyStore;
+    /**
+     * @return migrator for the <code>mp_expires_at</code> column of the
+     * transactions table and its index, used for purging expired
+     * transactions, or null when the transaction store is not a SQL store.
+     * Note that new migrations should only be appended.
+     */
+    public SchemaMigrator getTransactionSchemaMigrator() {
+        if (!(getTransactionStore() instanceof SQLStore))
+            return null;
+        SQLStore store = (SQLStore)getTransactionStore();
+        MPOA2TransactionKeys keys = new MPOA2TransactionKeys();
+        return new SchemaMigrator(store.getConnectionPool(), store.getTable())
+                .column(keys.mp_expires_at(), "TIMESTAMP NULL")
+                .index(keys.mp_expires_at());
     }
 
     protected int maxSSHKeys;
@@ -165,6 +328,154 @@ public class MPOA2SE extends OA2SE {
         return maxSSHKeys;
     }
 
+    protected int maxSSHKeysBatch;
+
+    public int getMaxSSHKeysBatch()  {
+        return maxSSHKeysBatch;
+    }
+
+    protected long sshKeysIndexRefresh;
+
+    protected volatile SSHKeyIndex sshKeyIndex;
+
+    private final Object sshKeyIndexLock = new Object();
+
+    private final AtomicBoolean sshKeyIndexRefreshing = new AtomicBoolean(false);
+
+    private final ExecutorService sshKeyIndexExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "ssh-key-index-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * time in milliseconds a revoked key is still hidden from an index built
+     * after its revocation, allowing for replication lag of a read replica
+     */
+    private static final long SSH_KEY_REVOCATION_MARGIN = 60000L;
+
+    /** keys (fingerprint and username) removed or replaced via this server with the time of revocation */
+    private final ConcurrentHashMap<String, Long> revokedSSHKeys = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the compact index of all ssh keys, which is rebuilt from the
+     * store once it is older than the configured refresh interval. Only the
+     * very first build blocks, later rebuilds run on a background thread while
+     * the old index remains in use.
+     * <p>
+     * Note that keys added in the meantime only show up after the next
+     * rebuild. Keys removed or replaced via this server are hidden directly,
+     * see {@link #isSSHKeyRevoked(String, String)}, but on other servers sharing the
+     * store they remain in the index for up to the refresh interval.
+     * @return index or null when disabled.
+     */
+    public SSHKeyIndex getSSHKeyIndex() {
+        if (sshKeysIndexRefresh <= 0)
+            return null;
+
+        SSHKeyIndex index = sshKeyIndex;
+        if (index == null) {
+            // First time: everyone needs to wait for it
+            synchronized (sshKeyIndexLock) {
+                if (sshKeyIndex == null)
+                    sshKeyIndex = buildSSHKeyIndex();
+                return sshKeyIndex;
+            }
+        }
+
+        if (index.getAge() > sshKeysIndexRefresh && sshKeyIndexRefreshing.compareAndSet(false, true)) {
+            try {
+                sshKeyIndexExecutor.execute(() -> {
+                    try {
+                        sshKeyIndex = buildSSHKeyIndex();
+                    } catch (RuntimeException e) {
+                        getMyLogger().error("Cannot rebuild ssh key index, keeping the old one: " + e.getMessage(), e);
+                    } finally {
+                        sshKeyIndexRefreshing.set(false);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                sshKeyIndexRefreshing.set(false);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Records that the key with given fingerprint has been removed from or
+     * replaced for given user, such that it is no longer served for that user
+     * from the current {@link #getSSHKeyIndex() index}.
+     * @param userName owner of the removed public key
+     * @param fingerprint fingerprint of the removed public key
+     */
+    public void revokeSSHKey(String userName, String fingerprint) {
+        if (sshKeysIndexRefresh > 0 && userName != null && fingerprint != null)
+            revokedSSHKeys.put(revocationKey(userName, fingerprint), System.currentTimeMillis());
+    }
+
+    /**
+     * Clears an earlier revocation after the key with given fingerprint has
+     * been (re-)added for given user, such that an index still containing it
+     * serves it again.
+     * @param userName owner of the added public key
+     * @param fingerprint fingerprint of the added public key
+     */
+    public void restoreSSHKey(String userName, String fingerprint) {
+        if (userName != null && fingerprint != null && !revokedSSHKeys.isEmpty())
+            revokedSSHKeys.remove(revocationKey(userName, fingerprint));
+    }
+
+    /**
+     * @param userName owner of the key in the index
+     * @param fingerprint fingerprint of a key in the index
+     * @return whether the key has been removed from or replaced for this user
+     * since the index was built
+     */
+    public boolean isSSHKeyRevoked(String userName, String fingerprint) {
+        return userName != null && fingerprint != null &&
+               revokedSSHKeys.containsKey(revocationKey(userName, fingerprint));
+    }
+
+    /** fingerprints don't contain spaces, so this is unique */
+    private static String revocationKey(String userName, String fingerprint) {
+        return fingerprint + ' ' + userName;
+    }
+
+    /** @return whether any key in the index has been removed or replaced since it was built */
+    public boolean hasRevokedSSHKeys() {
+        return !revokedSSHKeys.isEmpty();
+    }
+
+    /**
+     * Builds a new index by streaming the keys from the store. Revocations
+     * that happened well before the start are dropped, since the new index
+     * no longer contains those keys.
+     */
+    private SSHKeyIndex buildSSHKeyIndex() {
+        long start = System.currentTimeMillis();
+        SSHKeyIndex.Builder builder = new SSHKeyIndex.Builder();
+        getSSHKeyStore().forEachPubKey(builder::add);
+        SSHKeyIndex index = builder.build();
+        revokedSSHKeys.values().removeIf(revoked -> revoked < start - SSH_KEY_REVOCATION_MARGIN);
+        getMyLogger().info("Built ssh key index containing " + index.size() + " keys (" +
+                           index.getDataSize() + " bytes), skipped " + index.getSkipped() + " invalid keys");
+        return index;
+    }
+
+    protected AuthorizedKeysExporter authorizedKeysExporter;
+
+    /** @return exporter of the ssh keys to disk, null when not configured */
+    public AuthorizedKeysExporter getAuthorizedKeysExporter() {
+        return authorizedKeysExporter;
+    }
+
+    protected PurgeConfiguration transactionPurgeConfiguration;
+
+    /** @return configuration of the batched purge of expired transactions, null when not configured */
+    public PurgeConfiguration getTransactionPurgeConfiguration() {
+        return transactionPurgeConfiguration;
+    }
+
     protected String sshKeyScope;
 
     public String getSSHKeyScope()  {
@@ -183,4 +494,19 @@ public class MPOA2SE extends OA2SE {
         return autoRegisterEndpoint;
     }
 
+    /**
+     * Stops the background threads of the ssh key index, rate limiter and
+     * replicated MyProxy connections, called when the web application is
+     * stopped.
+     */
+    public void shutdown() {
+        sshKeyIndexExecutor.shutdownNow();
+        if (rateLimiter != null)
+            rateLimiter.stop();
+        synchronized (this) {
+            if (mpConnectionProvider instanceof ReplicatedMPConnectionProvider)
+                ((ReplicatedMPConnectionProvider<MyProxyConnectable>) mpConnectionProvider).stop();
+        }
+    }
+
 }
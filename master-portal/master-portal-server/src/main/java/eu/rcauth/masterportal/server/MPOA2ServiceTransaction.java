@@ -4,9 +4,16 @@ import edu.uiuc.ncsa.myproxy.MyProxyCredentialInfo;
 import edu.uiuc.ncsa.myproxy.oa4mp.oauth2.OA2ServiceTransaction;
 import edu.uiuc.ncsa.security.core.Identifier;
 import edu.uiuc.ncsa.security.delegation.token.AuthorizationGrant;
+import eu.rcauth.masterportal.server.cache.CachedProxy;
 
 public class MPOA2ServiceTransaction extends OA2ServiceTransaction {
 
+    /**
+     * Minimum lifetime in milliseconds of a transaction after it was last
+     * saved, covering the authorization grant and access token lifetimes.
+     */
+    public static final long MIN_LIFETIME = 24L * 3600L * 1000L;
+
     public MPOA2ServiceTransaction(AuthorizationGrant ag) {
         super(ag);
     }
@@ -55,6 +62,36 @@ public class MPOA2ServiceTransaction extends OA2ServiceTransaction {
         this.MpcInfo = mpc_info;
     }
 
+    String ProxyCacheKey = null;
+
+    /**
+     * @return key of this request in the proxy cache, null when not using the cache
+     */
+    public String getProxyCacheKey() { return ProxyCacheKey; }
+
+    /**
+     * Sets the key of this request in the proxy cache
+     * @param proxy_cache_key cache key
+     */
+    public void setProxyCacheKey(String proxy_cache_key) {
+        this.ProxyCacheKey = proxy_cache_key;
+    }
+
+    CachedProxy ProxyFromCache = null;
+
+    /**
+     * @return proxy from the proxy cache to return for this request, null when none
+     */
+    public CachedProxy getCachedProxy() { return ProxyFromCache; }
+
+    /**
+     * Sets the proxy from the proxy cache to return for this request
+     * @param cached_proxy cached proxy
+     */
+    public void setCachedProxy(CachedProxy cached_proxy) {
+        this.ProxyFromCache = cached_proxy;
+    }
+
     long ProxyLifetimeTolerance = -1;
 
     /**
@@ -100,4 +137,13 @@ public class MPOA2ServiceTransaction extends OA2ServiceTransaction {
         this.DefProxyLifetime = def_proxy_lifetime;
     }
 
+    /**
+     * @return time in milliseconds after the last save during which this
+     * transaction might still be used: the lifetime of the refresh token, but
+     * at least {@link #MIN_LIFETIME}.
+     */
+    public long getMaxLifetime() {
+        return Math.max(getRefreshTokenLifetime(), MIN_LIFETIME);
+    }
+
 }
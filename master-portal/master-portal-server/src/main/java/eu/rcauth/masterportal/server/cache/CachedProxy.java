@@ -0,0 +1,62 @@
+package eu.rcauth.masterportal.server.cache;
+
+import edu.uiuc.ncsa.security.util.pkcs.MyPKCS10CertRequest;
+
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * Proxy certificate chain with its keypair and CSR, as handed out by the
+ * {@link ProxyCache}.
+ */
+public class CachedProxy {
+    private final KeyPair keyPair;
+    private final MyPKCS10CertRequest certReq;
+    private final List<X509Certificate> certificates;
+
+    /**
+     * @param keyPair keypair of the proxy
+     * @param certReq CSR that was used for the proxy
+     * @param certificates certificate chain, starting with the proxy
+     */
+    public CachedProxy(KeyPair keyPair, MyPKCS10CertRequest certReq, List<X509Certificate> certificates) {
+        this.keyPair = keyPair;
+        this.certReq = certReq;
+        this.certificates = certificates;
+    }
+
+    /** @return keypair of the proxy */
+    public KeyPair getKeyPair() {
+        return keyPair;
+    }
+
+    /** @return CSR that was used for the proxy */
+    public MyPKCS10CertRequest getCertReq() {
+        return certReq;
+    }
+
+    /** @return copy of the certificate chain, starting with the proxy */
+    public LinkedList<X509Certificate> getCertificates() {
+        return new LinkedList<>(certificates);
+    }
+
+    /**
+     * @return DN of the credential the proxy was issued from, i.e. the
+     * issuer of the proxy
+     */
+    public X500Principal getCredentialDN() {
+        return certificates.get(0).getIssuerX500Principal();
+    }
+
+    /** @return time in milliseconds at which the first certificate in the chain expires */
+    public long getNotAfter() {
+        long notAfter = Long.MAX_VALUE;
+        for (X509Certificate certificate : certificates)
+            notAfter = Math.min(notAfter, certificate.getNotAfter().getTime());
+        return notAfter;
+    }
+}
@@ -0,0 +1,354 @@
+package eu.rcauth.masterportal.server.cache;
+
+import eu.rcauth.masterportal.servlet.MPOA4MPConfigTags;
+import eu.rcauth.masterportal.servlet.util.SealedValue;
+import eu.rcauth.masterportal.util.ConfigAttributes;
+import eu.rcauth.masterportal.util.StatisticsLogger;
+
+import edu.uiuc.ncsa.security.core.configuration.Configurations;
+import edu.uiuc.ncsa.security.core.exceptions.GeneralException;
+import edu.uiuc.ncsa.security.core.util.MyLoggingFacade;
+import edu.uiuc.ncsa.security.util.pkcs.MyPKCS10CertRequest;
+
+import org.apache.commons.configuration.tree.ConfigurationNode;
+
+import java.io.ByteArrayInputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory, size and time bounded cache of recently issued proxies, such
+ * that repeated /getproxy requests for the same user, client and (roughly)
+ * the same lifetime can be answered without a new keypair and MyProxy GET.
+ * Configured via the {@link MPOA4MPConfigTags#PROXY_CACHE} node:
+ * <pre>
+ *     &lt;proxyCache ttl="300" maxSize="1000" minRemaining="0.8" lifetimeBucket="3600"
+ *                 clients="client-id-1,client-id-2"/&gt;
+ * </pre>
+ * All attributes are optional. Proxies are cached per client_id, username
+ * and requested lifetime rounded up to a multiple of lifetimeBucket seconds,
+ * for at most ttl seconds. A cached proxy is only handed out when its
+ * remaining lifetime is at least minRemaining times the requested lifetime.
+ * When clients is given, only requests of those clients use the cache.
+ * The proxies of a user are removed when the MyProxy credential of that user
+ * turns out to be missing or invalid, or is replaced, see {@link #evict(String)}.
+ * <p>
+ * The cached keypairs and certificates are kept encrypted (AES-GCM, see
+ * {@link SealedValue}), bound to their cache key, using a random key that
+ * only exists in memory. The CSR of a proxy only contains public data and
+ * is kept as is, such that a hit does not need a new CSR.
+ * <p>
+ * Statistics (hits, misses, evictions) are logged periodically.
+ */
+public class ProxyCache {
+    /** default time to live in seconds */
+    public static final long DEFAULT_TTL = 300L;
+    /** default maximum number of cached proxies */
+    public static final int DEFAULT_MAX_SIZE = 1000;
+    /** default minimum remaining fraction of the requested lifetime */
+    public static final double DEFAULT_MIN_REMAINING = 0.8;
+    /** default size of the requested lifetime buckets in seconds */
+    public static final long DEFAULT_LIFETIME_BUCKET = 3600L;
+
+    /** length in bytes of the in-memory AES key */
+    private static final int KEY_LENGTH = 32;
+
+    private final long ttl;
+    private final int maxSize;
+    private final double minRemaining;
+    private final long lifetimeBucket;
+    private final Set<String> clients;
+    private final MyLoggingFacade logger;
+    private final StatisticsLogger statisticsLogger;
+
+    private final SealedValue sealer;
+    private final LinkedHashMap<String, Entry> entries;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    /** time in milliseconds at or after which expired entries are removed */
+    private long nextSweep = 0;
+    /** lower bound for the expiry time of the cached proxies */
+    private long earliestExpiry = Long.MAX_VALUE;
+
+    /** sealed proxy with its CSR and expiry time */
+    private static class Entry {
+        final String sealed;
+        final MyPKCS10CertRequest certReq;
+        final long expires;
+
+        Entry(String sealed, MyPKCS10CertRequest certReq, long expires) {
+            this.sealed = sealed;
+            this.certReq = certReq;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * @param ttl time in milliseconds after which a proxy is removed
+     * @param maxSize maximum number of cached proxies
+     * @param minRemaining minimum remaining fraction of the requested lifetime
+     * @param lifetimeBucket size in milliseconds of the requested lifetime buckets
+     * @param clients client_ids for which to cache, null for all clients
+     * @param logger for the periodic statistics, may be null
+     */
+    public ProxyCache(long ttl, int maxSize, double minRemaining, long lifetimeBucket, Set<String> clients,
+                      MyLoggingFacade logger) {
+        this.ttl = ttl;
+        this.maxSize = maxSize;
+        this.minRemaining = minRemaining;
+        this.lifetimeBucket = lifetimeBucket;
+        this.clients = clients;
+        this.logger = logger;
+        this.statisticsLogger = new StatisticsLogger(logger);
+
+        byte[] key = new byte[KEY_LENGTH];
+        new SecureRandom().nextBytes(key);
+        this.sealer = new SealedValue(key, ttl);
+
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > ProxyCache.this.maxSize) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Parses the {@link MPOA4MPConfigTags#PROXY_CACHE} child of given node.
+     * @param parent node containing the proxyCache node
+     * @param logger for warnings about invalid values and the statistics
+     * @return cache or null when there is no proxyCache node
+     */
+    public static ProxyCache fromNode(ConfigurationNode parent, MyLoggingFacade logger) {
+        ConfigurationNode node = (parent == null) ? null : Configurations.getFirstNode(parent, MPOA4MPConfigTags.PROXY_CACHE);
+        if (node == null)
+            return null;
+
+        long ttl = ConfigAttributes.getLong(node, MPOA4MPConfigTags.PROXY_CACHE_TTL, DEFAULT_TTL, 1, logger);
+        int maxSize = ConfigAttributes.getInt(node, MPOA4MPConfigTags.PROXY_CACHE_MAX_SIZE, DEFAULT_MAX_SIZE, 1, logger);
+        long lifetimeBucket = ConfigAttributes.getLong(node, MPOA4MPConfigTags.PROXY_CACHE_LIFETIME_BUCKET, DEFAULT_LIFETIME_BUCKET, 1, logger);
+
+        double minRemaining = DEFAULT_MIN_REMAINING;
+        String value = Configurations.getFirstAttribute(node, MPOA4MPConfigTags.PROXY_CACHE_MIN_REMAINING);
+        if (value != null && !value.isEmpty()) {
+            try {
+                minRemaining = Double.parseDouble(value);
+                if (minRemaining <= 0.0 || minRemaining > 1.0)
+                    throw new NumberFormatException();
+            } catch (NumberFormatException e) {
+                logger.warn("Value of " + MPOA4MPConfigTags.PROXY_CACHE_MIN_REMAINING + " in node " +
+                            MPOA4MPConfigTags.PROXY_CACHE + " is not a number between 0 and 1, using default " +
+                            DEFAULT_MIN_REMAINING);
+                minRemaining = DEFAULT_MIN_REMAINING;
+            }
+        }
+
+        Set<String> clients = null;
+        String clientList = Configurations.getFirstAttribute(node, MPOA4MPConfigTags.PROXY_CACHE_CLIENTS);
+        if (clientList != null && !clientList.trim().isEmpty()) {
+            clients = new HashSet<>();
+            for (String client : clientList.split(","))
+                if (!client.trim().isEmpty())
+                    clients.add(client.trim());
+        }
+
+        return new ProxyCache(1000L * ttl, maxSize, minRemaining, 1000L * lifetimeBucket, clients, logger);
+    }
+
+    /**
+     * @param clientID client_id of the request
+     * @return whether requests of this client use the cache
+     */
+    public boolean isEnabled(String clientID) {
+        return clients == null || clients.contains(clientID);
+    }
+
+    /**
+     * @param clientID client_id of the request
+     * @param username username of the request
+     * @param lifetime requested lifetime in milliseconds
+     * @return cache key for the request
+     */
+    public String getKey(String clientID, String username, long lifetime) {
+        long bucket = (Math.max(lifetime, 1L) + lifetimeBucket - 1) / lifetimeBucket;
+        return clientID + "\n" + username + "\n" + bucket;
+    }
+
+    /**
+     * @param key cache key, see {@link #getKey(String, String, long)}
+     * @param lifetime requested lifetime in milliseconds
+     * @return cached proxy with sufficient remaining lifetime, or null
+     */
+    public CachedProxy get(String key, long lifetime) {
+        long now = System.currentTimeMillis();
+        Entry entry;
+        synchronized (this) {
+            boolean logDue = statisticsLogger.isDue(now);
+            if (logDue || now >= nextSweep)
+                removeExpired(now);
+            if (logDue)
+                statisticsLogger.log(this);
+            entry = entries.get(key);
+            if (entry != null && entry.expires <= now) {
+                entries.remove(key);
+                entry = null;
+            }
+            if (entry == null) {
+                misses++;
+                return null;
+            }
+        }
+
+        // Decrypt outside the lock
+        CachedProxy proxy;
+        try {
+            proxy = open(entry.sealed, entry.certReq, key);
+        } catch (GeneralException e) {
+            if (logger != null)
+                logger.warn("Cannot open cached proxy: " + e.getMessage());
+            proxy = null;
+        }
+
+        synchronized (this) {
+            if (proxy == null || proxy.getNotAfter() - now < minRemaining * lifetime) {
+                misses++;
+                return null;
+            }
+            hits++;
+        }
+        return proxy;
+    }
+
+    /**
+     * Adds or replaces the proxy for the given key. Expired entries are
+     * removed first when the cache is full, such that they do not push out
+     * the least recently used valid proxy.
+     * @param key cache key, see {@link #getKey(String, String, long)}
+     * @param keyPair keypair of the proxy
+     * @param certReq CSR that was used for the proxy
+     * @param certificates certificate chain, starting with the proxy
+     */
+    public void put(String key, KeyPair keyPair, MyPKCS10CertRequest certReq, List<X509Certificate> certificates) {
+        CachedProxy proxy = new CachedProxy(keyPair, certReq, certificates);
+        long now = System.currentTimeMillis();
+        long expires = Math.min(now + ttl, proxy.getNotAfter());
+        String sealed = seal(proxy, key);
+        synchronized (this) {
+            if (now >= nextSweep || (entries.size() >= maxSize && now >= earliestExpiry))
+                removeExpired(now);
+            entries.put(key, new Entry(sealed, certReq, expires));
+            earliestExpiry = Math.min(earliestExpiry, expires);
+        }
+    }
+
+    /**
+     * Removes all cached proxies of the given user, e.g. when the credential
+     * in MyProxy is missing or is being replaced.
+     * @param username username of the request
+     */
+    public synchronized void evict(String username) {
+        if (username == null)
+            return;
+        Iterator<String> iterator = entries.keySet().iterator();
+        while (iterator.hasNext()) {
+            String key = iterator.next();
+            // key is client_id, username and lifetime bucket, see getKey()
+            int first = key.indexOf('\n'), last = key.lastIndexOf('\n');
+            if (first < last && key.substring(first + 1, last).equals(username)) {
+                iterator.remove();
+                evictions++;
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        long lookups = hits + misses;
+        return "proxy cache: " + entries.size() + "/" + maxSize + " entries, " + hits + " hits, " + misses +
+               " misses" + (lookups > 0 ? " (" + (100 * hits / lookups) + "% hit rate)" : "") + ", " +
+               evictions + " evictions";
+    }
+
+    /**
+     * Encrypts the keypair and certificates of the proxy, bound to the cache
+     * key.
+     */
+    private String seal(CachedProxy proxy, String key) {
+        Base64.Encoder encoder = Base64.getEncoder();
+        KeyPair keyPair = proxy.getKeyPair();
+        List<String> values = new ArrayList<>();
+        values.add(keyPair.getPrivate().getAlgorithm());
+        values.add(encoder.encodeToString(keyPair.getPublic().getEncoded()));
+        values.add(encoder.encodeToString(keyPair.getPrivate().getEncoded()));
+        try {
+            for (X509Certificate certificate : proxy.getCertificates())
+                values.add(encoder.encodeToString(certificate.getEncoded()));
+        } catch (GeneralSecurityException e) {
+            throw new GeneralException("Cannot encode proxy certificate: " + e.getMessage(), e);
+        }
+        return sealer.seal(key, values.toArray(new String[0]));
+    }
+
+    /**
+     * Decrypts the proxy sealed by {@link #seal(CachedProxy, String)}.
+     */
+    private CachedProxy open(String sealed, MyPKCS10CertRequest certReq, String key) {
+        String[] values = sealer.open(sealed, key);
+        if (values.length < 4)
+            throw new GeneralException("Invalid cached proxy");
+        Base64.Decoder decoder = Base64.getDecoder();
+        try {
+            KeyFactory keyFactory = KeyFactory.getInstance(values[0]);
+            KeyPair keyPair = new KeyPair(
+                    keyFactory.generatePublic(new X509EncodedKeySpec(decoder.decode(values[1]))),
+                    keyFactory.generatePrivate(new PKCS8EncodedKeySpec(decoder.decode(values[2]))));
+            CertificateFactory certFactory = CertificateFactory.getInstance("X.509");
+            List<X509Certificate> certificates = new ArrayList<>();
+            for (int i = 3; i < values.length; i++)
+                certificates.add((X509Certificate)certFactory.generateCertificate(
+                        new ByteArrayInputStream(decoder.decode(values[i]))));
+            return new CachedProxy(keyPair, certReq, certificates);
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            throw new GeneralException("Invalid cached proxy: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Removes all expired entries. Called from {@link #get(String, long)} and
+     * {@link #put(String, KeyPair, MyPKCS10CertRequest, List)} at most once
+     * per ttl, and on a put into a full cache containing expired entries.
+     */
+    private void removeExpired(long now) {
+        long earliest = Long.MAX_VALUE;
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            long expires = iterator.next().expires;
+            if (expires <= now)
+                iterator.remove();
+            else
+                earliest = Math.min(earliest, expires);
+        }
+        earliestExpiry = earliest;
+        nextSweep = now + ttl;
+    }
+}
@@ -1,14 +1,40 @@
 package eu.rcauth.masterportal.server.cli;
 
+import eu.rcauth.masterportal.server.MPOA2SE;
+import eu.rcauth.masterportal.server.loader.MPOA2ServerLoader;
+import eu.rcauth.masterportal.server.storage.sql.SQLSSHKeyStore;
+import eu.rcauth.masterportal.server.storage.sql.SQLTableTransfer;
+import eu.rcauth.masterportal.storage.sql.SchemaMigrator;
+
 import edu.uiuc.ncsa.myproxy.oauth2.tools.OA2Commands;
+import edu.uiuc.ncsa.security.core.Store;
+import edu.uiuc.ncsa.security.core.util.AbstractEnvironment;
+import edu.uiuc.ncsa.security.core.util.ConfigurationLoader;
 import edu.uiuc.ncsa.security.core.util.LoggingConfigLoader;
 import edu.uiuc.ncsa.security.core.util.MyLoggingFacade;
+import edu.uiuc.ncsa.security.storage.sql.SQLStore;
 import edu.uiuc.ncsa.security.util.cli.CLIDriver;
+import edu.uiuc.ncsa.security.util.cli.InputLine;
 import org.apache.commons.lang.StringUtils;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
 /**
- * Master Portal version of the oa2-cli. Note that we don't add any functionality,
- * but just want to override the about()
+ * Master Portal version of the oa2-cli. Next to overriding the about(), this
+ * uses the Master Portal configuration loader and adds commands for bulk
+ * export and import of the ssh keys and transactions tables.
  * @see OA2Commands
  */
 public class MPOA2Commands extends OA2Commands {
@@ -28,6 +54,226 @@ public class MPOA2Commands extends OA2Commands {
         }
     }
 
+    /** size of the buffers used for reading and writing the export files */
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Use the Master Portal loader, such that e.g. the ssh key store and the
+     * additional transaction columns are available.
+     */
+    @Override
+    public ConfigurationLoader<? extends AbstractEnvironment> getLoader() {
+        return new MPOA2ServerLoader<MPOA2SE>(getConfigurationNode());
+    }
+
+    public void export_sshkeys(InputLine inputLine) throws Exception {
+        if (showHelp(inputLine)) {
+            showExportHelp("export_sshkeys", "ssh keys");
+            return;
+        }
+        doExport(inputLine, ((MPOA2SE) getEnvironment()).getSSHKeyStore());
+    }
+
+    public void import_sshkeys(InputLine inputLine) throws Exception {
+        if (showHelp(inputLine)) {
+            showImportHelp("import_sshkeys", "ssh keys");
+            return;
+        }
+        doImport(inputLine, ((MPOA2SE) getEnvironment()).getSSHKeyStore());
+    }
+
+    public void export_transactions(InputLine inputLine) throws Exception {
+        if (showHelp(inputLine)) {
+            showExportHelp("export_transactions", "transactions");
+            return;
+        }
+        doExport(inputLine, ((MPOA2SE) getEnvironment()).getTransactionStore());
+    }
+
+    public void import_transactions(InputLine inputLine) throws Exception {
+        if (showHelp(inputLine)) {
+            showImportHelp("import_transactions", "transactions");
+            return;
+        }
+        doImport(inputLine, ((MPOA2SE) getEnvironment()).getTransactionStore());
+    }
+
+    public void normalize_sshkeys(InputLine inputLine) throws Exception {
+        if (showHelp(inputLine)) {
+            say("normalize_sshkeys");
+            sayi("Stores the public keys that were added by a previous version in");
+            sayi("normalized form and fills in their comment and fingerprint.");
+            sayi("Requires a SQL store.");
+            return;
+        }
+        Store store = ((MPOA2SE) getEnvironment()).getSSHKeyStore();
+        if (!(store instanceof SQLSSHKeyStore)) {
+            say("Sorry, normalizing is only supported for SQL stores");
+            return;
+        }
+        int[] counts = ((SQLSSHKeyStore) store).normalizeKeys();
+        say("normalized " + counts[0] + " keys, skipped " + counts[1] + " invalid keys");
+    }
+
+    public void migrate_schema(InputLine inputLine) throws Exception {
+        if (showHelp(inputLine)) {
+            say("migrate_schema [-check]");
+            sayi("Creates the missing columns, primary key and indexes of the ssh keys");
+            sayi("table and the column and index of the transactions table needed for");
+            sayi("purging. With -check only the missing ones are listed. Requires SQL");
+            sayi("stores.");
+            return;
+        }
+        MPOA2SE se = (MPOA2SE) getEnvironment();
+        List<SchemaMigrator> migrators = new ArrayList<>();
+        // Not via getSSHKeyStore(), which fails when columns are missing
+        if (se.getSSHKeySchemaMigrator() != null)
+            migrators.add(se.getSSHKeySchemaMigrator());
+        else
+            say("Skipping the ssh keys: schema migrations are only supported for SQL stores");
+        if (se.getTransactionSchemaMigrator() != null)
+            migrators.add(se.getTransactionSchemaMigrator());
+        else
+            say("Skipping the transactions: schema migrations are only supported for SQL stores");
+
+        boolean check = inputLine.size() > 1 && "-check".equals(inputLine.getArg(1));
+        for (SchemaMigrator migrator : migrators) {
+            if (check) {
+                say("schema version " + migrator.getVersion() + " of " + migrator.getLatestVersion() +
+                    " for " + migrator.getTableName());
+                for (String missing : migrator.getMissing())
+                    sayi(missing);
+            } else {
+                for (String applied : migrator.migrate())
+                    sayi(applied);
+                say("schema of " + migrator.getTableName() + " is at version " + migrator.getVersion());
+            }
+        }
+    }
+
+    protected void showExportHelp(String command, String what) {
+        say(command + " [-format ndjson|csv] file");
+        sayi("Streams all " + what + " to the given file, one row per line.");
+        sayi("The format defaults to csv for .csv files and to ndjson otherwise,");
+        sayi("files ending in .gz are gzip compressed. Requires a SQL store.");
+    }
+
+    protected void showImportHelp(String command, String what) {
+        say(command + " [-format ndjson|csv] [-batch size] file");
+        sayi("Inserts all " + what + " from the given file, as written by the");
+        sayi("corresponding export command. Rows are inserted in JDBC batches of");
+        sayi("given size (default " + SQLTableTransfer.DEFAULT_BATCH_SIZE + "), for csv files PostgreSQL COPY is used");
+        sayi("when available. Requires a SQL store.");
+    }
+
+    /**
+     * Exports the table of the given store to the file given as last argument.
+     */
+    protected void doExport(InputLine inputLine, Store store) throws Exception {
+        SQLTableTransfer transfer = getTableTransfer(store);
+        if (transfer == null)
+            return;
+        String file = getFileArg(inputLine);
+        if (file == null)
+            return;
+        SQLTableTransfer.Format format = getFormat(inputLine, file);
+
+        long start = System.currentTimeMillis();
+        OutputStream os = new FileOutputStream(file);
+        if (file.endsWith(".gz"))
+            os = new GZIPOutputStream(os, IO_BUFFER_SIZE);
+        try (OutputStream out = new BufferedOutputStream(os, IO_BUFFER_SIZE)) {
+            long rows = transfer.exportRows(out, format, this::sayProgress);
+            say("exported " + rows + " rows to " + file + " in " + (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
+    /**
+     * Imports the file given as last argument into the table of the given
+     * store.
+     */
+    protected void doImport(InputLine inputLine, Store store) throws Exception {
+        SQLTableTransfer transfer = getTableTransfer(store);
+        if (transfer == null)
+            return;
+        String file = getFileArg(inputLine);
+        if (file == null)
+            return;
+        SQLTableTransfer.Format format = getFormat(inputLine, file);
+        int batchSize = SQLTableTransfer.DEFAULT_BATCH_SIZE;
+        String batch = getOption(inputLine, "-batch");
+        if (batch != null) {
+            try {
+                batchSize = Integer.parseInt(batch);
+            } catch (NumberFormatException e) {
+                say("Invalid batch size: " + batch);
+                return;
+            }
+        }
+
+        long start = System.currentTimeMillis();
+        InputStream is = new FileInputStream(file);
+        if (file.endsWith(".gz"))
+            is = new GZIPInputStream(is, IO_BUFFER_SIZE);
+        try (Reader in = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8), IO_BUFFER_SIZE)) {
+            long rows = transfer.importRows(in, format, batchSize, this::sayProgress);
+            say("imported " + rows + " rows from " + file + " in " + (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
+    /**
+     * @return transfer object for the table of given store, or null when the
+     * store is not a SQL store.
+     */
+    private SQLTableTransfer getTableTransfer(Store store) {
+        if (!(store instanceof SQLStore)) {
+            say("Sorry, export and import are only supported for SQL stores, not for " +
+                    (store == null ? "null" : store.getClass().getSimpleName()));
+            return null;
+        }
+        SQLStore sqlStore = (SQLStore) store;
+        return new SQLTableTransfer(sqlStore.getConnectionPool(), sqlStore.getTable());
+    }
+
+    private void sayProgress(long rows) {
+        say("  ... " + rows + " rows");
+    }
+
+    /**
+     * @return the last argument, being the file name, or null when missing
+     */
+    private String getFileArg(InputLine inputLine) {
+        int size = inputLine.size();
+        String file = (size > 1) ? inputLine.getArg(size - 1) : null;
+        if (file == null || file.startsWith("-") || (size > 2 && inputLine.getArg(size - 2).startsWith("-"))) {
+            say("Missing file argument, type --help for usage");
+            return null;
+        }
+        return file;
+    }
+
+    /**
+     * @return the value following given option, or null when not present
+     */
+    private String getOption(InputLine inputLine, String option) {
+        for (int i = 1; i < inputLine.size() - 1; i++) {
+            if (option.equals(inputLine.getArg(i)))
+                return inputLine.getArg(i + 1);
+        }
+        return null;
+    }
+
+    /**
+     * @return format from the -format option or otherwise based on file name
+     */
+    private SQLTableTransfer.Format getFormat(InputLine inputLine, String file) {
+        String format = getOption(inputLine, "-format");
+        if (format != null)
+            return SQLTableTransfer.Format.valueOf(format.toUpperCase());
+        String name = file.endsWith(".gz") ? file.substring(0, file.length() - 3) : file;
+        return name.endsWith(".csv") ? SQLTableTransfer.Format.CSV : SQLTableTransfer.Format.NDJSON;
+    }
+
     @Override
     public void about() {
         int width = 60;
@@ -0,0 +1,13 @@
+package eu.rcauth.masterportal.server.exception;
+
+public class InvalidSSHKeyException extends Exception {
+
+    public InvalidSSHKeyException(String msg) {
+        super(msg);
+    }
+
+    public InvalidSSHKeyException(String msg, Throwable ex) {
+        super(msg, ex);
+    }
+
+}
@@ -0,0 +1,15 @@
+package eu.rcauth.masterportal.server.exception;
+
+import edu.uiuc.ncsa.security.core.exceptions.GeneralException;
+
+/**
+ * Thrown by a SSHKeyStore when a key could not be updated because it has been
+ * modified concurrently, i.e. its version no longer matches.
+ */
+public class SSHKeyVersionConflictException extends GeneralException {
+
+    public SSHKeyVersionConflictException(String msg) {
+        super(msg);
+    }
+
+}
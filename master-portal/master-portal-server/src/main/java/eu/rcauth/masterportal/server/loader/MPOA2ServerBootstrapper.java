@@ -1,6 +1,7 @@
 package eu.rcauth.masterportal.server.loader;
 
 import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
 
 import org.apache.commons.configuration.tree.ConfigurationNode;
 
@@ -13,6 +14,8 @@ public class MPOA2ServerBootstrapper extends OA2Bootstrapper {
     public static final String MP_OA2_CONFIG_FILE_KEY = "oa4mp:mp-oa2.server.config.file";
     public static final String MP_OA2_CONFIG_NAME_KEY = "oa4mp:mp-oa2.server.config.name";
 
+    private MPOA2ServerLoader<?> loader = null;
+
     @Override
     public String getOa4mpConfigFileKey() {
         return MP_OA2_CONFIG_FILE_KEY;
@@ -25,7 +28,8 @@ public class MPOA2ServerBootstrapper extends OA2Bootstrapper {
 
     @Override
     public ConfigurationLoader getConfigurationLoader(ConfigurationNode node) throws MyConfigurationException {
-        return new MPOA2ServerLoader(node);
+        loader = new MPOA2ServerLoader<>(node);
+        return loader;
     }
 
     @Override
@@ -33,4 +37,15 @@ public class MPOA2ServerBootstrapper extends OA2Bootstrapper {
         return super.getConfigurationLoader(servletContext);
     }
 
+    /**
+     * Stops the background threads of the service environment, see
+     * {@link eu.rcauth.masterportal.server.MPOA2SE#shutdown()}.
+     */
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+        if (loader != null)
+            loader.shutdown();
+        super.contextDestroyed(event);
+    }
+
 }
@@ -6,6 +6,7 @@ import org.apache.commons.configuration.tree.ConfigurationNode;
 
 import eu.rcauth.masterportal.server.storage.MPOA2TConverter;
 import eu.rcauth.masterportal.server.storage.MPOA2TransactionKeys;
+import eu.rcauth.masterportal.server.storage.AuthorizedKeysExporter;
 import eu.rcauth.masterportal.server.storage.SSHKey;
 import eu.rcauth.masterportal.server.storage.SSHKeyConverter;
 import eu.rcauth.masterportal.server.storage.SSHKeyIdentifierProvider;
@@ -18,9 +19,16 @@ import eu.rcauth.masterportal.server.storage.sql.MPOA2SQLTransactionStoreProvide
 
 import eu.rcauth.masterportal.server.storage.impl.SSHKeyProvider;
 import eu.rcauth.masterportal.server.storage.impl.MultiSSHKeyStoreProvider;
+import eu.rcauth.masterportal.server.storage.impl.MemorySSHKeyStore;
+import eu.rcauth.masterportal.server.storage.impl.FileSSHKeyStore;
 import eu.rcauth.masterportal.server.storage.sql.SQLSSHKeyStoreProvider;
 
 import eu.rcauth.masterportal.server.validators.GetProxyRequestValidator;
+import eu.rcauth.masterportal.server.cache.ProxyCache;
+import eu.rcauth.masterportal.server.ratelimit.ForwardBulkhead;
+import eu.rcauth.masterportal.server.ratelimit.GetProxyRateLimiter;
+import eu.rcauth.masterportal.storage.sql.PurgeConfiguration;
+import eu.rcauth.masterportal.util.ConfigAttributes;
 
 import edu.uiuc.ncsa.myproxy.oa4mp.oauth2.OA2ServiceTransaction;
 import edu.uiuc.ncsa.myproxy.oa4mp.oauth2.loader.OA2ConfigurationLoader;
@@ -33,6 +41,8 @@ import edu.uiuc.ncsa.myproxy.oa4mp.server.admin.transactions.OA4MPIdentifierProv
 import edu.uiuc.ncsa.security.core.IdentifiableProvider;
 import edu.uiuc.ncsa.security.core.Identifier;
 import edu.uiuc.ncsa.security.core.configuration.Configurations;
+import edu.uiuc.ncsa.security.core.configuration.provider.CfgEvent;
+import edu.uiuc.ncsa.security.core.configuration.provider.TypedProvider;
 import edu.uiuc.ncsa.security.core.exceptions.GeneralException;
 import edu.uiuc.ncsa.security.core.util.IdentifierProvider;
 import edu.uiuc.ncsa.security.core.util.MyLoggingFacade;
@@ -42,6 +52,7 @@ import edu.uiuc.ncsa.security.storage.data.MapConverter;
 import edu.uiuc.ncsa.security.storage.sql.ConnectionPool;
 import edu.uiuc.ncsa.security.storage.sql.ConnectionPoolProvider;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
@@ -58,6 +69,9 @@ import static eu.rcauth.masterportal.servlet.MPOA4MPConfigTags.*;
 
 public class MPOA2ServerLoader<T extends ServiceEnvironmentImpl>  extends OA2ConfigurationLoader<T> {
 
+    /** environments created by this loader, see {@link #shutdown()} */
+    private final List<MPOA2SE> environments = new ArrayList<>();
+
     public MPOA2ServerLoader(ConfigurationNode node) {
         super(node);
     }
@@ -71,8 +85,7 @@ public class MPOA2ServerLoader<T extends ServiceEnvironmentImpl>  extends OA2Con
     @SuppressWarnings("unchecked")
     public T createInstance() {
         try {
-            // Note we suppress an unchecked cast to T
-            return (T) new MPOA2SE(loggerProvider.get(),
+            MPOA2SE se = new MPOA2SE(loggerProvider.get(),
                     getTransactionStoreProvider(),
                     getClientStoreProvider(),
                     getSSHKeyStoreProvider(),
@@ -103,20 +116,46 @@ public class MPOA2ServerLoader<T extends ServiceEnvironmentImpl>  extends OA2Con
                     getJSONWebKeys(),   // see OA2ConfigurationLoader
                     getMyProxyPassword(),
                     getMyProxyDefaultLifetime(),
+                    getMyProxyLoadBalance(),
                     getMaxSSHKeys(),
+                    getMaxSSHKeysBatch(),
+                    getSSHKeysIndexRefresh(),
+                    getAuthorizedKeysExporter(),
+                    getSSHKeysMigrateSchema(),
+                    getTransactionPurgeConfiguration(),
                     getSSHKeyScope(),
                     getAutoRegisterEndpoint(),
                     getValidators(),
+                    getRateLimiter(),
+                    getDSBulkhead(),
+                    getProxyCache(),
                     getIssuer(),    // see OA2ConfigurationLoader
                     isUtilServerEnabled(),
                     isOIDCEnabled(),
                     getMultiJSONStoreProvider());
+            synchronized (environments) {
+                environments.add(se);
+            }
+            // Note we suppress an unchecked cast to T
+            return (T) se;
         } catch (ClassNotFoundException | IllegalAccessException | InstantiationException | IllegalStateException e) {
             // Note that we typically don't have a server yet, so error might go in odd places.
             throw new GeneralException("Error: MasterPortal failed to start: Could not create the runtime environment", e);
         }
     }
 
+    /**
+     * Shuts down the environments created by this loader, called when the web
+     * application is stopped, see {@link MPOA2SE#shutdown()}.
+     */
+    public void shutdown() {
+        synchronized (environments) {
+            for (MPOA2SE se : environments)
+                se.shutdown();
+            environments.clear();
+        }
+    }
+
     protected MultiSSHKeyStoreProvider<SSHKey> sshKeySP;
 
     public Provider<SSHKeyStore<SSHKey>> getSSHKeyStoreProvider() {
@@ -133,24 +172,63 @@ public class MPOA2ServerLoader<T extends ServiceEnvironmentImpl>  extends OA2Con
             SSHKeyKeys keys = new SSHKeyKeys();
             SSHKeyConverter converter = new SSHKeyConverter<>( keys, provider);
 
+            // Note: each getter call returns a new pool provider, the second
+            // one is configured separately for an optional read replica
+
             sshKeySP.addListener( new SQLSSHKeyStoreProvider<>(cn,
+                                                               getMySQLConnectionPoolProvider(),
                                                                getMySQLConnectionPoolProvider(),
                                                                OA4MPConfigTags.MYSQL_STORE,
                                                                converter,
                                                                provider) );
 
             sshKeySP.addListener( new SQLSSHKeyStoreProvider<>(cn,
+                                                               getMariaDBConnectionPoolProvider(),
                                                                getMariaDBConnectionPoolProvider(),
                                                                OA4MPConfigTags.MARIADB_STORE,
                                                                converter,
                                                                provider) );
 
             sshKeySP.addListener( new SQLSSHKeyStoreProvider<>(cn,
+                                                               getPgConnectionPoolProvider(),
                                                                getPgConnectionPoolProvider(),
                                                                OA4MPConfigTags.POSTGRESQL_STORE,
                                                                converter,
                                                                provider) );
 
+            // memory store, e.g. for testing
+            sshKeySP.addListener(new TypedProvider<SSHKeyStore<SSHKey>>(cn, OA4MPConfigTags.MEMORY_STORE, SSH_KEY_STORE) {
+                @Override
+                public Object componentFound(CfgEvent configurationEvent) {
+                    if (checkEvent(configurationEvent))
+                        return get();
+                    return null;
+                }
+
+                @Override
+                public SSHKeyStore<SSHKey> get() {
+                    return new MemorySSHKeyStore(provider);
+                }
+            });
+
+            // file store, using an append-only log in the directory given by the path attribute
+            sshKeySP.addListener(new TypedProvider<SSHKeyStore<SSHKey>>(cn, OA4MPConfigTags.FILE_STORE, SSH_KEY_STORE) {
+                @Override
+                public Object componentFound(CfgEvent configurationEvent) {
+                    if (checkEvent(configurationEvent))
+                        return get();
+                    return null;
+                }
+
+                @Override
+                public SSHKeyStore<SSHKey> get() {
+                    ConfigurationNode node = Configurations.getFirstNode(cn, OA4MPConfigTags.FILE_STORE);
+                    String path = Configurations.getFirstAttribute(node, SSH_KEY_FILE_STORE_PATH);
+                    if (path == null || path.isEmpty())
+                        throw new GeneralException("Missing "+SSH_KEY_FILE_STORE_PATH+" attribute for the "+OA4MPConfigTags.FILE_STORE+" of the "+SSH_KEY_STORE);
+                    return new FileSSHKeyStore(new File(path), provider, loggerProvider.get());
+                }
+            });
         }
 
         return sshKeySP;
@@ -173,6 +251,18 @@ public class MPOA2ServerLoader<T extends ServiceEnvironmentImpl>  extends OA2Con
         return Long.parseLong( lifetimeNode.getValue().toString() );
     }
 
+    /**
+     * @return whether to spread the connections over all configured MyProxy
+     * servers, i.e. the <code>loadBalance</code> attribute of the myproxy node
+     */
+    protected boolean getMyProxyLoadBalance() {
+        ConfigurationNode node =  Configurations.getFirstNode(cn, MYPROXY);
+        if (node == null)
+            return false;
+        String value = Configurations.getFirstAttribute(node, MYPROXY_LOAD_BALANCE);
+        return Boolean.parseBoolean(value);
+    }
+
     /* GETCERT REQUEST VALIDATORS */
 
     protected GetProxyRequestValidator[] getValidators() {
@@ -228,6 +318,48 @@ public class MPOA2ServerLoader<T extends ServiceEnvironmentImpl>  extends OA2Con
         return new GetProxyRequestValidator[0];
     }
 
+    /* GETPROXY RATE LIMITING */
+
+    /**
+     * @return admission control for the /getproxy endpoint, or null when not
+     * configured.
+     */
+    protected GetProxyRateLimiter getRateLimiter() {
+        GetProxyRateLimiter rateLimiter = GetProxyRateLimiter.fromNode(cn, loggerProvider.get());
+        if (rateLimiter == null)
+            loggerProvider.get().info("No " + RATE_LIMIT + " node configured, not rate limiting /getproxy requests");
+        else
+            loggerProvider.get().info("Using " + rateLimiter);
+        return rateLimiter;
+    }
+
+    /**
+     * @return bulkhead limiting the concurrent forwards to the DS, or null
+     * when not configured.
+     */
+    protected ForwardBulkhead getDSBulkhead() {
+        ForwardBulkhead bulkhead = ForwardBulkhead.fromNode(cn, loggerProvider.get());
+        if (bulkhead == null)
+            loggerProvider.get().info("No " + DS_BULKHEAD + " node configured, not limiting concurrent forwards to the DS");
+        else
+            loggerProvider.get().info("Using " + bulkhead);
+        return bulkhead;
+    }
+
+    /* PROXY CACHE */
+
+    /**
+     * @return cache of recently issued proxies, or null when not configured.
+     */
+    protected ProxyCache getProxyCache() {
+        ProxyCache proxyCache = ProxyCache.fromNode(cn, loggerProvider.get());
+        if (proxyCache == null)
+            loggerProvider.get().info("No " + PROXY_CACHE + " node configured, not reusing issued proxies");
+        else
+            loggerProvider.get().info("Using " + proxyCache);
+        return proxyCache;
+    }
+
     /* CUSTOM TRANSACTION */
 
     public static class MPST2Provider extends DSTransactionProvider<OA2ServiceTransaction> {
@@ -251,6 +383,8 @@ public class MPOA2ServerLoader<T extends ServiceEnvironmentImpl>  extends OA2Con
         @SuppressWarnings("unchecked")
         IdentifiableProvider tp = new MPST2Provider(idp);
         MPOA2TransactionKeys keys = new MPOA2TransactionKeys();
+        // The mp_expires_at column is only needed (and checked) when purging
+        keys.setExpiresAtEnabled(Configurations.getFirstNode(cn, PURGE) != null);
         // Note we suppress an uncheck assignment in the 2nd and 4th parameters
         @SuppressWarnings("unchecked")
         MPOA2TConverter<MPOA2ServiceTransaction> tc = new MPOA2TConverter<MPOA2ServiceTransaction>(keys, tp, getTokenForgeProvider().get(), getClientStoreProvider().get());
@@ -290,6 +424,77 @@ public class MPOA2ServerLoader<T extends ServiceEnvironmentImpl>  extends OA2Con
         return max;
     }
 
+    /** default maximum number of operations in a single ssh key batch request */
+    protected static final int DEFAULT_MAX_SSH_KEYS_BATCH = 100;
+
+    protected int getMaxSSHKeysBatch() {
+        MyLoggingFacade logger = loggerProvider.get();
+        ConfigurationNode node =  Configurations.getFirstNode(cn, SSH_KEYS);
+        int max = ConfigAttributes.getInt(node, MAX_SSH_KEYS_BATCH, DEFAULT_MAX_SSH_KEYS_BATCH, 1, logger);
+        logger.info("Using maximum "+max+" operations per ssh key batch request");
+        return max;
+    }
+
+    /**
+     * @return refresh interval in milliseconds of the in-memory ssh key index,
+     * 0 when the index is disabled (default).
+     */
+    protected long getSSHKeysIndexRefresh() {
+        MyLoggingFacade logger = loggerProvider.get();
+        ConfigurationNode node =  Configurations.getFirstNode(cn, SSH_KEYS);
+        long refresh = ConfigAttributes.getLong(node, SSH_KEYS_INDEX_REFRESH, 0, 0, logger);
+        if (refresh > 0)
+            logger.info("Refreshing ssh key index every "+refresh+" seconds");
+        return refresh > 0 ? 1000L*refresh : 0;
+    }
+
+    /** default interval in seconds for exporting the authorized keys */
+    protected static final long DEFAULT_AUTHORIZED_KEYS_INTERVAL = 60;
+
+    /**
+     * @return exporter for writing the ssh keys to disk, or null when not
+     * configured.
+     */
+    protected AuthorizedKeysExporter getAuthorizedKeysExporter() {
+        MyLoggingFacade logger = loggerProvider.get();
+        ConfigurationNode node =  Configurations.getFirstNode(cn, SSH_KEYS);
+        ConfigurationNode exportNode = (node == null) ? null : Configurations.getFirstNode(node, SSH_KEYS_AUTHORIZED_KEYS);
+        if (exportNode == null)
+            return null;
+
+        String path = Configurations.getFirstAttribute(exportNode, AUTHORIZED_KEYS_PATH);
+        if (path == null || path.isEmpty())
+            throw new GeneralException("Missing "+AUTHORIZED_KEYS_PATH+" attribute in node "+SSH_KEYS_AUTHORIZED_KEYS);
+        boolean perUser = Boolean.parseBoolean(Configurations.getFirstAttribute(exportNode, AUTHORIZED_KEYS_PER_USER));
+        long interval = ConfigAttributes.getLong(exportNode, AUTHORIZED_KEYS_INTERVAL,
+                                                 DEFAULT_AUTHORIZED_KEYS_INTERVAL, 1, logger);
+        return new AuthorizedKeysExporter(new File(path), perUser, interval);
+    }
+
+    /**
+     * @return whether missing primary keys and indexes of a SQL ssh key store
+     * should be created on startup, default false.
+     */
+    protected boolean getSSHKeysMigrateSchema() {
+        MyLoggingFacade logger = loggerProvider.get();
+        ConfigurationNode node =  Configurations.getFirstNode(cn, SSH_KEYS);
+        boolean migrate = Boolean.parseBoolean(Configurations.getFirstAttribute(node, SSH_KEYS_MIGRATE_SCHEMA));
+        if (migrate)
+            logger.info("Migrating schema of SQL ssh key store on startup");
+        return migrate;
+    }
+
+    /**
+     * @return configuration of the batched purge of expired transactions, or
+     * null when not configured.
+     */
+    protected PurgeConfiguration getTransactionPurgeConfiguration() {
+        PurgeConfiguration config = PurgeConfiguration.fromNode(cn, loggerProvider.get());
+        if (config == null)
+            loggerProvider.get().info("No " + PURGE + " node configured, not purging expired transactions in batches");
+        return config;
+    }
+
     protected String getSSHKeyScope() {
         MyLoggingFacade logger = loggerProvider.get();
         ConfigurationNode node =  Configurations.getFirstNode(cn, SSH_KEYS);
@@ -0,0 +1,188 @@
+package eu.rcauth.masterportal.server.ratelimit;
+
+import eu.rcauth.masterportal.servlet.MPOA4MPConfigTags;
+import eu.rcauth.masterportal.util.ConfigAttributes;
+import eu.rcauth.masterportal.util.StatisticsLogger;
+
+import edu.uiuc.ncsa.security.core.configuration.Configurations;
+import edu.uiuc.ncsa.security.core.util.MyLoggingFacade;
+
+import org.apache.commons.configuration.tree.ConfigurationNode;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bulkhead isolating the forwarding of /getproxy requests to the Delegation
+ * Server (via the MP-Client) from the rest of the MP-Server, configured via
+ * the {@link MPOA4MPConfigTags#DS_BULKHEAD} node:
+ * <pre>
+ *     &lt;dsBulkhead maxConcurrent="20" maxQueue="50" maxWait="5"/&gt;
+ * </pre>
+ * All attributes are optional. At most maxConcurrent requests are forwarded
+ * at the same time, at most maxQueue further requests wait for their turn,
+ * each at most maxWait seconds. Any other request is rejected directly, such
+ * that a slow DS cannot occupy all container threads.
+ * <p>
+ * Statistics (active, queued, rejected and timed out requests and the wait
+ * times) are available via the getters and are logged periodically.
+ */
+public class ForwardBulkhead {
+    /** default maximum number of concurrent forwards */
+    public static final int DEFAULT_MAX_CONCURRENT = 20;
+    /** default maximum number of waiting requests */
+    public static final int DEFAULT_MAX_QUEUE = 50;
+    /** default maximum time in seconds a request waits */
+    public static final long DEFAULT_MAX_WAIT = 5L;
+
+    private final int maxConcurrent;
+    private final int maxQueue;
+    private final long maxWait;
+    private final StatisticsLogger statisticsLogger;
+
+    private final Semaphore permits;
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicInteger maxQueued = new AtomicInteger();
+    private final AtomicLong totalWaitTime = new AtomicLong();
+    private final AtomicLong maxWaitTime = new AtomicLong();
+
+    /**
+     * @param maxConcurrent maximum number of concurrent forwards
+     * @param maxQueue maximum number of requests waiting for a forward
+     * @param maxWait maximum time in seconds a request waits
+     * @param logger for the periodic statistics, may be null
+     */
+    public ForwardBulkhead(int maxConcurrent, int maxQueue, long maxWait, MyLoggingFacade logger) {
+        this.maxConcurrent = maxConcurrent;
+        this.maxQueue = maxQueue;
+        this.maxWait = maxWait;
+        this.statisticsLogger = new StatisticsLogger(logger);
+        // fair, such that waiting requests are served in order
+        this.permits = new Semaphore(maxConcurrent, true);
+    }
+
+    /**
+     * Parses the {@link MPOA4MPConfigTags#DS_BULKHEAD} child of given node.
+     * @param parent node containing the dsBulkhead node
+     * @param logger for warnings about invalid values and the statistics
+     * @return bulkhead or null when there is no dsBulkhead node
+     */
+    public static ForwardBulkhead fromNode(ConfigurationNode parent, MyLoggingFacade logger) {
+        ConfigurationNode node = (parent == null) ? null : Configurations.getFirstNode(parent, MPOA4MPConfigTags.DS_BULKHEAD);
+        if (node == null)
+            return null;
+
+        int maxConcurrent = ConfigAttributes.getInt(node, MPOA4MPConfigTags.DS_BULKHEAD_MAX_CONCURRENT, DEFAULT_MAX_CONCURRENT, 1, logger);
+        int maxQueue = ConfigAttributes.getInt(node, MPOA4MPConfigTags.DS_BULKHEAD_MAX_QUEUE, DEFAULT_MAX_QUEUE, 0, logger);
+        long maxWait = ConfigAttributes.getLong(node, MPOA4MPConfigTags.DS_BULKHEAD_MAX_WAIT, DEFAULT_MAX_WAIT, 0, logger);
+
+        return new ForwardBulkhead(maxConcurrent, maxQueue, maxWait, logger);
+    }
+
+    /**
+     * Obtains a slot for forwarding a request, waiting at most maxWait when
+     * all slots are in use and the queue is not full. When successful,
+     * {@link #release()} must be called afterwards.
+     * @return whether a slot was obtained
+     */
+    public boolean acquire() throws InterruptedException {
+        statisticsLogger.logIfDue(this);
+        // Fast path without queueing, respecting the fairness
+        if (permits.tryAcquire(0L, TimeUnit.MILLISECONDS)) {
+            accepted.incrementAndGet();
+            return true;
+        }
+
+        int depth = queued.incrementAndGet();
+        if (depth > maxQueue) {
+            queued.decrementAndGet();
+            rejected.incrementAndGet();
+            return false;
+        }
+        maxQueued.accumulateAndGet(depth, Math::max);
+
+        long start = System.currentTimeMillis();
+        boolean acquired = false;
+        try {
+            acquired = permits.tryAcquire(maxWait, TimeUnit.SECONDS);
+        } finally {
+            queued.decrementAndGet();
+            long waited = System.currentTimeMillis() - start;
+            totalWaitTime.addAndGet(waited);
+            maxWaitTime.accumulateAndGet(waited, Math::max);
+            if (acquired)
+                accepted.incrementAndGet();
+            else
+                timedOut.incrementAndGet();
+        }
+        return acquired;
+    }
+
+    /**
+     * Releases the slot obtained by {@link #acquire()}.
+     */
+    public void release() {
+        permits.release();
+    }
+
+    /**
+     * @return number of seconds after which a rejected request may be retried
+     */
+    public long getRetryAfter() {
+        return Math.max(1L, maxWait);
+    }
+
+    /** @return number of requests currently being forwarded */
+    public int getActive() {
+        return maxConcurrent - permits.availablePermits();
+    }
+
+    /** @return number of requests currently waiting */
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    /** @return maximum number of requests that have been waiting at the same time */
+    public int getMaxQueueDepth() {
+        return maxQueued.get();
+    }
+
+    /** @return number of forwarded requests */
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    /** @return number of requests rejected since the queue was full */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /** @return number of requests rejected after waiting maxWait */
+    public long getTimedOut() {
+        return timedOut.get();
+    }
+
+    /** @return total time in milliseconds requests have been waiting */
+    public long getTotalWaitTime() {
+        return totalWaitTime.get();
+    }
+
+    /** @return longest time in milliseconds a request has been waiting */
+    public long getMaxWaitTime() {
+        return maxWaitTime.get();
+    }
+
+    @Override
+    public String toString() {
+        return "DS forward bulkhead: " + getActive() + "/" + maxConcurrent + " active, " + queued.get() + "/" +
+               maxQueue + " queued (max " + maxQueued.get() + "), " + accepted.get() + " accepted, " +
+               rejected.get() + " rejected, " + timedOut.get() + " timed out, wait time total " +
+               totalWaitTime.get() + " ms, max " + maxWaitTime.get() + " ms";
+    }
+}
@@ -0,0 +1,123 @@
+package eu.rcauth.masterportal.server.ratelimit;
+
+import eu.rcauth.masterportal.servlet.MPOA4MPConfigTags;
+import eu.rcauth.masterportal.util.ConfigAttributes;
+import eu.rcauth.masterportal.util.StatisticsLogger;
+
+import edu.uiuc.ncsa.security.core.configuration.Configurations;
+import edu.uiuc.ncsa.security.core.util.MyLoggingFacade;
+
+import org.apache.commons.configuration.tree.ConfigurationNode;
+
+/**
+ * Admission control for the /getproxy endpoint, configured via the
+ * {@link MPOA4MPConfigTags#RATE_LIMIT} node:
+ * <pre>
+ *     &lt;rateLimit userRate="10" userBurst="5" clientRate="600" clientBurst="100"
+ *                maxKeys="10000"/&gt;
+ * </pre>
+ * All attributes are optional. The rates are in requests per minute and
+ * limit each username and each client_id separately, see
+ * {@link TokenBucketLimiter}, a missing rate disables that limit. The burst
+ * defaults to the rate. The number of concurrent requests to the Delegation
+ * Server is limited separately by the {@link ForwardBulkhead}.
+ */
+public class GetProxyRateLimiter {
+    /** OAuth2 error for a rejected request, see RFC 6749 */
+    public static final String TEMPORARILY_UNAVAILABLE = "temporarily_unavailable";
+
+    /** default maximum number of tracked usernames and client_ids */
+    public static final int DEFAULT_MAX_KEYS = 10000;
+
+    private final TokenBucketLimiter userLimiter;
+    private final TokenBucketLimiter clientLimiter;
+    private final StatisticsLogger statisticsLogger;
+
+
+    /**
+     * @param userLimiter limiter per username, null for no limit
+     * @param clientLimiter limiter per client_id, null for no limit
+     * @param logger for the periodic statistics, may be null
+     */
+    public GetProxyRateLimiter(TokenBucketLimiter userLimiter, TokenBucketLimiter clientLimiter,
+                               MyLoggingFacade logger) {
+        this.userLimiter = userLimiter;
+        this.clientLimiter = clientLimiter;
+        this.statisticsLogger = new StatisticsLogger(logger);
+    }
+
+    /**
+     * Parses the {@link MPOA4MPConfigTags#RATE_LIMIT} child of given node.
+     * @param parent node containing the rateLimit node
+     * @param logger for warnings about invalid values and the statistics
+     * @return rate limiter or null when there is no rateLimit node
+     */
+    public static GetProxyRateLimiter fromNode(ConfigurationNode parent, MyLoggingFacade logger) {
+        ConfigurationNode node = (parent == null) ? null : Configurations.getFirstNode(parent, MPOA4MPConfigTags.RATE_LIMIT);
+        if (node == null)
+            return null;
+
+        int maxKeys = ConfigAttributes.getInt(node, MPOA4MPConfigTags.RATE_LIMIT_MAX_KEYS, DEFAULT_MAX_KEYS, 1, logger);
+        TokenBucketLimiter userLimiter = getLimiter(node, "user", MPOA4MPConfigTags.RATE_LIMIT_USER_RATE,
+                                                    MPOA4MPConfigTags.RATE_LIMIT_USER_BURST, maxKeys, logger);
+        TokenBucketLimiter clientLimiter = getLimiter(node, "client", MPOA4MPConfigTags.RATE_LIMIT_CLIENT_RATE,
+                                                      MPOA4MPConfigTags.RATE_LIMIT_CLIENT_BURST, maxKeys, logger);
+
+        return new GetProxyRateLimiter(userLimiter, clientLimiter, logger);
+    }
+
+    /**
+     * Checks the rate limits for a new /getproxy request, taking a token
+     * for the username and for the client_id. Both limits are checked before
+     * taking any token, such that a request rejected for the client_id does
+     * not use up a token of the user or vice versa.
+     * @param username username of the request
+     * @param clientID client_id of the request
+     * @return 0 when the request is allowed, otherwise the number of seconds
+     * after which the request may be retried
+     */
+    public long checkRequest(String username, String clientID) {
+        statisticsLogger.logIfDue(this);
+        long wait = 0L;
+        if (userLimiter != null)
+            wait = userLimiter.check(username);
+        if (wait == 0L && clientLimiter != null)
+            wait = clientLimiter.check(clientID);
+
+        // Take the tokens, another request might have taken them meanwhile
+        if (wait == 0L && userLimiter != null)
+            wait = userLimiter.tryAcquire(username);
+        if (wait == 0L && clientLimiter != null) {
+            wait = clientLimiter.tryAcquire(clientID);
+            if (wait > 0L && userLimiter != null)
+                userLimiter.release(username);
+        }
+        // Round up to whole seconds for the Retry-After header
+        return (wait + 999L) / 1000L;
+    }
+
+    /**
+     * Stops the background threads of the limiters.
+     */
+    public void stop() {
+        if (userLimiter != null)
+            userLimiter.stop();
+        if (clientLimiter != null)
+            clientLimiter.stop();
+    }
+
+    @Override
+    public String toString() {
+        return "/getproxy rate limits: " + (userLimiter == null ? "no user rate limiter" : userLimiter.toString()) +
+               ", " + (clientLimiter == null ? "no client rate limiter" : clientLimiter.toString());
+    }
+
+    private static TokenBucketLimiter getLimiter(ConfigurationNode node, String name, String rateName,
+                                                 String burstName, int maxKeys, MyLoggingFacade logger) {
+        long rate = ConfigAttributes.getLong(node, rateName, 0, 0, logger);
+        if (rate == 0)
+            return null;
+        int burst = ConfigAttributes.getInt(node, burstName, (int)rate, 1, logger);
+        return new TokenBucketLimiter(name, rate, burst, maxKeys);
+    }
+}
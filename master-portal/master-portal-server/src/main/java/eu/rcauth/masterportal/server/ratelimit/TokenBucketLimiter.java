@@ -0,0 +1,230 @@
+package eu.rcauth.masterportal.server.ratelimit;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Token bucket rate limiter keeping a separate bucket per key (e.g. username
+ * or client_id). Each bucket holds at most <code>burst</code> tokens and is
+ * refilled at a fixed rate, each request takes one token. Buckets are updated
+ * lock-free using compare-and-set.
+ * <p>
+ * The number of buckets is bounded: a background thread periodically removes
+ * the buckets that are full again (i.e. idle keys). When the maximum is
+ * reached nevertheless, a new key replaces the fullest of a small sample of
+ * buckets. That key then starts again with a full bucket, such that many
+ * keys can only make the limiter more lenient, never lock out new keys.
+ */
+public class TokenBucketLimiter {
+    /** key of the bucket used for requests without a key */
+    private static final String NO_KEY = "";
+    /** interval in milliseconds between removals of idle buckets */
+    private static final long SWEEP_INTERVAL = 60L * 1000L;
+    /** number of buckets considered for eviction when the maximum is reached */
+    private static final int EVICTION_SAMPLE = 8;
+
+    private final String name;
+    private final double ratePerMs;
+    private final int burst;
+    private final int maxKeys;
+
+    private final Map<String, AtomicReference<State>> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong allowed = new AtomicLong();
+    private final AtomicLong limited = new AtomicLong();
+
+    private final ScheduledExecutorService sweeper;
+
+    /** immutable state of a bucket */
+    private static final class State {
+        final double tokens;
+        final long time;
+
+        State(double tokens, long time) {
+            this.tokens = tokens;
+            this.time = time;
+        }
+    }
+
+    /**
+     * @param name name of the limiter, e.g. "user"
+     * @param ratePerMinute number of requests per minute a key is allowed on average
+     * @param burst maximum number of requests a key may do at once
+     * @param maxKeys maximum number of buckets
+     */
+    public TokenBucketLimiter(String name, double ratePerMinute, int burst, int maxKeys) {
+        this.name = name;
+        this.ratePerMs = ratePerMinute / 60000.0;
+        this.burst = burst;
+        this.maxKeys = maxKeys;
+        sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, name + "-rate-limiter-sweep");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(() -> removeIdle(System.currentTimeMillis()),
+                                       SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /** @return name of the limiter */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Checks whether the bucket for the given key has a token available,
+     * without taking it.
+     * @param key e.g. the username
+     * @return 0 when a request would be allowed, otherwise the number of
+     * milliseconds after which a token will be available.
+     */
+    public long check(String key) {
+        long now = System.currentTimeMillis();
+        AtomicReference<State> bucket = buckets.get(key == null ? NO_KEY : key);
+        // A new key will get a full bucket
+        long wait = (bucket == null) ? 0L : getWait(refill(bucket.get(), now));
+        if (wait > 0L)
+            limited.incrementAndGet();
+        return wait;
+    }
+
+    /**
+     * Takes a token from the bucket for the given key when available.
+     * @param key e.g. the username
+     * @return 0 when the request is allowed, otherwise the number of
+     * milliseconds after which a token will be available.
+     */
+    public long tryAcquire(String key) {
+        long now = System.currentTimeMillis();
+        AtomicReference<State> bucket = getBucket(key == null ? NO_KEY : key, now);
+        while (true) {
+            State current = bucket.get();
+            double tokens = refill(current, now);
+            if (tokens < 1.0) {
+                limited.incrementAndGet();
+                return getWait(tokens);
+            }
+            if (bucket.compareAndSet(current, new State(tokens - 1.0, now))) {
+                allowed.incrementAndGet();
+                return 0L;
+            }
+        }
+    }
+
+    /**
+     * Returns a token taken by {@link #tryAcquire(String)}, e.g. when the
+     * request is rejected by another limiter after all.
+     * @param key e.g. the username
+     */
+    public void release(String key) {
+        AtomicReference<State> bucket = buckets.get(key == null ? NO_KEY : key);
+        if (bucket == null)
+            return;
+        long now = System.currentTimeMillis();
+        while (true) {
+            State current = bucket.get();
+            double tokens = Math.min(burst, refill(current, now) + 1.0);
+            if (bucket.compareAndSet(current, new State(tokens, now))) {
+                allowed.decrementAndGet();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stops the background removal of idle buckets.
+     */
+    public void stop() {
+        sweeper.shutdownNow();
+    }
+
+    /** @return number of allowed requests */
+    public long getAllowed() {
+        return allowed.get();
+    }
+
+    /** @return number of rejected requests */
+    public long getLimited() {
+        return limited.get();
+    }
+
+    /** @return current number of buckets */
+    public int size() {
+        return buckets.size();
+    }
+
+    @Override
+    public String toString() {
+        return name + " rate limiter: " + buckets.size() + " keys, " + allowed.get() + " allowed, " +
+               limited.get() + " limited";
+    }
+
+    /**
+     * @return the number of tokens in the bucket at the given time
+     */
+    private double refill(State state, long now) {
+        return Math.min(burst, state.tokens + Math.max(0L, now - state.time) * ratePerMs);
+    }
+
+    /**
+     * @return the number of milliseconds after which a bucket with the given
+     * number of tokens has a token available, 0 when it has one now
+     */
+    private long getWait(double tokens) {
+        if (tokens >= 1.0)
+            return 0L;
+        return Math.max(1L, (long)Math.ceil((1.0 - tokens) / ratePerMs));
+    }
+
+    /**
+     * @return the bucket for the key, a new one when needed, evicting another
+     * bucket when the maximum number of buckets is reached
+     */
+    private AtomicReference<State> getBucket(String key, long now) {
+        AtomicReference<State> bucket = buckets.get(key);
+        if (bucket != null)
+            return bucket;
+        if (buckets.size() >= maxKeys)
+            evictOne(now);
+        return buckets.computeIfAbsent(key, k -> new AtomicReference<>(new State(burst, now)));
+    }
+
+    /**
+     * Removes the bucket with the most tokens among the first
+     * {@link #EVICTION_SAMPLE} buckets, i.e. the one whose key was least
+     * active, in constant time.
+     */
+    private void evictOne(long now) {
+        String fullest = null;
+        double maxTokens = -1.0;
+        int sampled = 0;
+        for (Map.Entry<String, AtomicReference<State>> entry : buckets.entrySet()) {
+            double tokens = refill(entry.getValue().get(), now);
+            if (tokens > maxTokens) {
+                maxTokens = tokens;
+                fullest = entry.getKey();
+            }
+            if (++sampled >= EVICTION_SAMPLE)
+                break;
+        }
+        if (fullest != null)
+            buckets.remove(fullest);
+    }
+
+    /**
+     * Removes the buckets that are full again, since these behave the same
+     * as a new bucket. Runs in the background thread.
+     */
+    private void removeIdle(long now) {
+        Iterator<Map.Entry<String, AtomicReference<State>>> iterator = buckets.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (refill(iterator.next().getValue().get(), now) >= burst)
+                iterator.remove();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package eu.rcauth.masterportal.server.servlet;
+
+import eu.rcauth.masterportal.server.MPOA2SE;
+import eu.rcauth.masterportal.server.storage.AuthorizedKeysExporter;
+import eu.rcauth.masterportal.server.storage.SSHKey;
+import eu.rcauth.masterportal.server.storage.SSHKeyStore;
+
+import edu.uiuc.ncsa.myproxy.oa4mp.server.servlet.MyProxyDelegationServlet;
+import edu.uiuc.ncsa.security.delegation.server.ServiceTransaction;
+import edu.uiuc.ncsa.security.delegation.server.request.IssuerResponse;
+import edu.uiuc.ncsa.security.core.util.MyLoggingFacade;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Servlet without endpoint, loaded on startup, which periodically exports
+ * the ssh keys to disk using the configured {@link AuthorizedKeysExporter}.
+ * When no exporter is configured, it does nothing.
+ */
+public class MPOA2AuthorizedKeysExportServlet extends MyProxyDelegationServlet {
+    private MPOA2SE se;
+    private MyLoggingFacade logger;
+
+    private ScheduledExecutorService scheduler = null;
+
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        se = (MPOA2SE)getServiceEnvironment();
+        setEnvironment(se);
+        logger = getMyLogger();
+
+        AuthorizedKeysExporter exporter = se.getAuthorizedKeysExporter();
+        if (exporter == null) {
+            logger.info("No authorized keys export configured");
+            return;
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "authorized-keys-export");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> export(exporter),
+                                         0, exporter.getInterval(), TimeUnit.SECONDS);
+        logger.info("Exporting authorized keys to " + exporter.getPath() +
+                    " every " + exporter.getInterval() + " seconds");
+    }
+
+    @Override
+    public void destroy() {
+        if (scheduler != null)
+            scheduler.shutdownNow();
+        super.destroy();
+    }
+
+    /**
+     * Not implemented
+     * @return null
+     */
+    @Override
+    public ServiceTransaction verifyAndGet(IssuerResponse iResponse) {
+        return null;
+    }
+
+    /**
+     * This servlet has no endpoint.
+     */
+    @Override
+    protected void doIt(HttpServletRequest request, HttpServletResponse response) throws Throwable {
+        response.sendError(HttpServletResponse.SC_NOT_FOUND);
+    }
+
+    /**
+     * Runs a single export, any errors are logged since otherwise the
+     * scheduler would stop.
+     */
+    private void export(AuthorizedKeysExporter exporter) {
+        try {
+            SSHKeyStore<SSHKey> store = se.getSSHKeyStore();
+            if (store == null) {
+                logger.warn("export(): SSHKeyStore is null");
+                return;
+            }
+            int changed = exporter.export(store::forEachPubKey);
+            if (changed > 0)
+                logger.info("Exported authorized keys to " + exporter.getPath() + ": " + changed + " files changed");
+        } catch (Throwable t) {
+            logger.error("Error exporting authorized keys to " + exporter.getPath() + ": " + t.getMessage(), t);
+        }
+    }
+}
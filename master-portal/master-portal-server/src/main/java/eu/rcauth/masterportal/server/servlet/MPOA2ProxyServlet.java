@@ -21,9 +21,14 @@ import edu.uiuc.ncsa.security.oauth_2_0.OA2Errors;
 import edu.uiuc.ncsa.security.oauth_2_0.OA2ATException;
 
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.LinkedList;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import java.security.KeyPair;
 
@@ -32,19 +37,24 @@ import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import net.sf.json.JSONObject;
-import net.sf.json.util.JSONUtils;
 import org.apache.http.HttpStatus;
 
 import eu.rcauth.masterportal.servlet.MPOA4MPConfigTags;
+import eu.rcauth.masterportal.servlet.util.JSONStreamWriter;
 
 import eu.rcauth.masterportal.MPClientContext;
+import eu.rcauth.masterportal.myproxy.MeteredMPConnectionProvider;
+import eu.rcauth.masterportal.myproxy.ReplicatedMPConnectionProvider;
 import eu.rcauth.masterportal.server.MPOA2RequestForwarder;
 import eu.rcauth.masterportal.server.MPOA2SE;
 import eu.rcauth.masterportal.server.MPOA2ServiceTransaction;
 import eu.rcauth.masterportal.server.exception.InvalidDNException;
 import eu.rcauth.masterportal.server.exception.InvalidRequestLifetimeException;
 import eu.rcauth.masterportal.server.exception.ShortProxyLifetimeException;
+import eu.rcauth.masterportal.server.cache.CachedProxy;
+import eu.rcauth.masterportal.server.cache.ProxyCache;
+import eu.rcauth.masterportal.server.ratelimit.ForwardBulkhead;
+import eu.rcauth.masterportal.server.ratelimit.GetProxyRateLimiter;
 import eu.rcauth.masterportal.server.validators.GetProxyRequestValidator;
 import eu.rcauth.masterportal.server.validators.LifetimeValidator; // import for javadoc
 
@@ -58,6 +68,8 @@ public class MPOA2ProxyServlet extends OA2ProxyServlet {
 
     /** parameter name indicating this is a myproxy INFO request */
     public static final String INFOREQUEST = "info";
+    /** parameter name requesting pretty-printed JSON for the INFO response */
+    public static final String PRETTY = "pretty";
     /** claim name for the username in the INFO response */
     public static final String USERNAME = "username";
     /** claim name for the timeleft in the INFO response */
@@ -125,17 +137,25 @@ public class MPOA2ProxyServlet extends OA2ProxyServlet {
 
     /**
      *  Creates a MyProxy connection with the MyProxy password configured in the
-     *  Master Portal Server cfg.xml.
+     *  Master Portal Server cfg.xml, using the shared connection provider
+     *  {@link MPOA2SE#getMPConnectionProvider()} instead of a new provider for
+     *  each transaction.
      *
      *  @param st The current service transaction
      *  @throws GeneralSecurityException In case of unsuccessful connection
      */
     @Override
     protected void checkMPConnection(OA2ServiceTransaction st) throws GeneralSecurityException {
+        // a proxy from the proxy cache does not need myproxy
+        if (st instanceof MPOA2ServiceTransaction && ((MPOA2ServiceTransaction)st).getCachedProxy() != null)
+            return;
         if (!hasMPConnection(st)) {
-            String myproxyPassword  = ((MPOA2SE)getServiceEnvironment()).getMyproxyPassword();
+            MPOA2SE se = (MPOA2SE)getServiceEnvironment();
             debug("Creating new MP connection with username: " + st.getUsername() + " and lifetime: " + st.getLifetime());
-            createMPConnection(st.getIdentifier(), st.getUsername(), myproxyPassword, st.getLifetime());
+            // use null for the LOA since we are not supporting any at the moment
+            MyProxyConnectable mpc = se.getMPConnectionProvider().findConnection(
+                    st.getIdentifier(), st.getUsername(), se.getMyproxyPassword(), null, st.getLifetime());
+            getMyproxyConnectionCache().add(mpc);
         }
     }
 
@@ -163,55 +183,305 @@ public class MPOA2ProxyServlet extends OA2ProxyServlet {
         MPOA2ServiceTransaction trans = (MPOA2ServiceTransaction)transaction;
         GetProxyRequestValidator[] validators = se.getValidators();
 
+        // Admission control: reject before doing any myproxy or DS work
+        GetProxyRateLimiter rateLimiter = se.getRateLimiter();
+        if (rateLimiter != null) {
+            long retryAfter = rateLimiter.checkRequest(trans.getUsername(), trans.getClient().getIdentifierString());
+            if (retryAfter > 0) {
+                info("Rate limit exceeded for user " + trans.getUsername() + " and client " +
+                     trans.getClient().getIdentifierString());
+                throw rejectRequest(response, HttpStatus.SC_TOO_MANY_REQUESTS, retryAfter,
+                                    "Too many /getproxy requests, retry later");
+            }
+        }
+
+        // A recently issued proxy for the same user, client and lifetime can
+        // be returned directly, skipping the myproxy INFO and GET
+        if (!trans.getIsInforequest() && useCachedProxy(se, trans, validators, request, response))
+            return;
+
+        // The keypair and CSR for the proxy do not depend on the outcome of
+        // the myproxy INFO or the renewal, hence start generating them now,
+        // such that it overlaps with the network waits below.
+        Future<ProxyCertRequest> certRequest = null;
+        if (!trans.getIsInforequest()) {
+            debug("6.a. Generating keypair for proxy creation");
+            final String username = trans.getUsername();
+            certRequest = getKeyGenerator().submit(() -> new ProxyCertRequest(username));
+        }
+        try {
+            prepareProxy(trans, validators, request, response);
+            if (certRequest == null)
+                return;
+
+            // insert a CSR and generated keypair into the transaction
+            ProxyCertRequest proxyCertRequest = joinCertRequest(certRequest);
+            trans.setCertReq(proxyCertRequest.certReq);
+            trans.setKeypair(proxyCertRequest.keyPair);
+        } finally {
+            // no-op when already done, otherwise stop the generation
+            if (certRequest != null)
+                certRequest.cancel(true);
+        }
+    }
+
+    /**
+     * Returns the proxy from the proxy cache when there is one for this
+     * request, otherwise gets new proxy certificates from MyProxy and stores
+     * them together with the keypair in the proxy cache.
+     *
+     * @param transaction The current service transaction
+     * @param localCertRequest CSR for the proxy
+     * @param statusString Status information for logging
+     * @return proxy certificate chain
+     * @throws GeneralSecurityException In case of unsuccessful MyProxy GET
+     */
+    @Override
+    protected LinkedList<X509Certificate> getX509Certificates(ServiceTransaction transaction,
+                                                             MyPKCS10CertRequest localCertRequest,
+                                                             String statusString) throws GeneralSecurityException {
+        MPOA2ServiceTransaction trans = (MPOA2ServiceTransaction)transaction;
+        if (trans.getCachedProxy() != null) {
+            info(statusString + "Returning proxy from proxy cache");
+            return trans.getCachedProxy().getCertificates();
+        }
+
+        ProxyCache proxyCache = ((MPOA2SE) getServiceEnvironment()).getProxyCache();
+        LinkedList<X509Certificate> certs;
+        try {
+            certs = super.getX509Certificates(transaction, localCertRequest, statusString);
+        } catch (GeneralSecurityException | RuntimeException e) {
+            evictCachedProxies(trans);
+            throw e;
+        }
+
+        if (proxyCache != null && trans.getProxyCacheKey() != null && !certs.isEmpty())
+            proxyCache.put(trans.getProxyCacheKey(), trans.getKeypair(), localCertRequest, certs);
+        return certs;
+    }
+
+    /* HELPER METHODS */
+
+    /**
+     * Looks up the request in the proxy cache, when configured for this
+     * client. On a hit, the validators are run for the cached proxy (without
+     * myproxy INFO, see {@link GetProxyRequestValidator#validateCached}), such
+     * that e.g. a requested lifetime above the server maximum is still
+     * rejected and the DN of the proxy is checked. When they pass, the cached keypair and CSR are put in the
+     * transaction and the cached proxy will be returned by
+     * {@link #getX509Certificates(ServiceTransaction, MyPKCS10CertRequest, String)},
+     * otherwise the cache key is stored, such that the new proxy is cached.
+     *
+     * @param se The service environment
+     * @param trans The current service transaction
+     * @param validators validators to run on a hit
+     * @param request The original /getproxy request object
+     * @param response The response object for the /getproxy call
+     * @return whether a cached proxy will be used
+     */
+    private boolean useCachedProxy(MPOA2SE se, MPOA2ServiceTransaction trans, GetProxyRequestValidator[] validators,
+                                   HttpServletRequest request, HttpServletResponse response) {
+        ProxyCache proxyCache = se.getProxyCache();
+        String clientID = trans.getClient().getIdentifierString();
+        if (proxyCache == null || !proxyCache.isEnabled(clientID))
+            return false;
+
+        String key = proxyCache.getKey(clientID, trans.getUsername(), trans.getLifetime());
+        trans.setProxyCacheKey(key);
+        CachedProxy cachedProxy = proxyCache.get(key, trans.getLifetime());
+        if (cachedProxy == null || !runValidators(validators, trans, request, response, null, cachedProxy))
+            return false;
+
+        debug("6.a. Using proxy from proxy cache");
+        trans.setCachedProxy(cachedProxy);
+        trans.setKeypair(cachedProxy.getKeyPair());
+        trans.setCertReq(cachedProxy.getCertReq());
+        return true;
+    }
+
+    /**
+     * Makes sure that the MyProxy Credential Store has a valid proxy for the
+     * user by executing a MyProxy INFO command and if necessary forwarding a
+     * /getcert request to the Delegation Server. For a {@link #INFOREQUEST}
+     * the myproxy INFO is in the transaction afterwards.
+     *
+     * @param trans The current service transaction
+     * @param validators validators to run after each myproxy INFO
+     * @param request The original /getproxy request object
+     * @param response The response object for the /getproxy call
+     * @throws Throwable If general errors occur
+     */
+    protected void prepareProxy(MPOA2ServiceTransaction trans, GetProxyRequestValidator[] validators,
+                                HttpServletRequest request, HttpServletResponse response) throws Throwable {
         // establish a myproxy connection so that we can execute an INFO command
         checkMPConnection(trans);
         MyProxyConnectable mpc = getMPConnection(trans);
 
         // track if we need to forward the request and obtain a new long-lived
         // proxy
-        boolean validProxy = getMyproxyInfo(mpc, validators, trans, request, response);
+        boolean validProxy = getReplicatedMyproxyInfo(mpc, validators, trans, request, response);
 
         if (! validProxy) {
             info("2.a. Proxy retrieval failed! Asking for a new user certificate ...");
-            // call /forwardgetcert on the Master Portal Client component
-            forwardRealCertRequest(trans, request, response);
+            // the credential will be replaced, hence drop the proxies issued from it
+            evictCachedProxies(trans);
+            // call /forwardgetcert on the Master Portal Client component,
+            // within the bulkhead such that a slow DS cannot hold all threads
+            ForwardBulkhead bulkhead = ((MPOA2SE) getServiceEnvironment()).getDSBulkhead();
+            if (bulkhead != null && !bulkhead.acquire()) {
+                info("Too many concurrent requests to the Delegation Server, rejecting request");
+                throw rejectRequest(response, HttpStatus.SC_SERVICE_UNAVAILABLE, bulkhead.getRetryAfter(),
+                                    "Too many concurrent certificate requests, retry later");
+            }
+            try {
+                forwardRealCertRequest(trans, request, response);
+            } finally {
+                if (bulkhead != null)
+                    bulkhead.release();
+            }
             if (trans.getIsInforequest()) {
                 // For a myproxy info call we redo the myproxy INFO request
-                if (! getMyproxyInfo(mpc, validators, trans, request, response)){
+                if (! getReplicatedMyproxyInfo(getMPConnection(trans), validators, trans, request, response)){
                     // Something is not right: we should have had a proxy by now
                     throw new OA2ATException(OA2Errors.SERVER_ERROR, "Could not get myproxy information", HttpStatus.SC_INTERNAL_SERVER_ERROR);
                 }
                 // all done, myproxy INFO is now in the transaction.
                 return;
             }
-        } else if (trans.getIsInforequest()) {
-            // all done, myproxy INFO is now in the transaction.
-            return;
-
         }
 
         // When we get here, we have either successfully forwarded or there is
         // a valid proxy in the myproxy store.
-        debug("6.a. Generating keypair for proxy creation");
-        // create keypair
-        KeyPair keyPair = null;
-        MyPKCS10CertRequest certReq = null;
-        try {
+    }
+
+    /**
+     * Creates the error for a request rejected by the {@link GetProxyRateLimiter}
+     * or the {@link ForwardBulkhead}, setting the Retry-After header on the
+     * response.
+     * @param response The response object for the /getproxy call
+     * @param status HTTP status code, 429 (Too Many Requests) or 503 (Service Unavailable)
+     * @param retryAfter number of seconds after which the client may retry
+     * @param description description of the error
+     * @return error with the given status
+     */
+    private OA2ATException rejectRequest(HttpServletResponse response, int status, long retryAfter,
+                                         String description) {
+        response.setHeader("Retry-After", Long.toString(retryAfter));
+        return new OA2ATException(GetProxyRateLimiter.TEMPORARILY_UNAVAILABLE, description, status);
+    }
+
+    /** keypair and matching CSR for the proxy */
+    private static class ProxyCertRequest {
+        final KeyPair keyPair;
+        final MyPKCS10CertRequest certReq;
+
+        ProxyCertRequest(String username) throws Exception {
             keyPair = KeyUtil.generateKeyPair();
-            certReq = CertUtil.createCertRequest(keyPair, trans.getUsername());
-        } catch (Throwable e) {
-            if (e instanceof RuntimeException)
-                throw e;
-            warn("Could not create cert request: "+e.getMessage());
+            certReq = CertUtil.createCertRequest(keyPair, username);
+        }
+    }
+
+    /** executor generating keypairs and CSRs in the background, shared by all requests */
+    private static ExecutorService keyGenerator = null;
+
+    private static synchronized ExecutorService getKeyGenerator() {
+        if (keyGenerator == null) {
+            keyGenerator = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+                Thread thread = new Thread(r, "proxy-keypair-generator");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return keyGenerator;
+    }
+
+    private static synchronized void stopKeyGenerator() {
+        if (keyGenerator != null) {
+            keyGenerator.shutdownNow();
+            keyGenerator = null;
+        }
+    }
+
+    @Override
+    public void destroy() {
+        stopKeyGenerator();
+        super.destroy();
+    }
+
+    /**
+     * Waits for the background generation of the keypair and CSR.
+     * @param certRequest result of the background generation
+     * @return keypair and CSR
+     */
+    private ProxyCertRequest joinCertRequest(Future<ProxyCertRequest> certRequest) throws InterruptedException {
+        try {
+            return certRequest.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            warn("Could not create cert request: "+cause.getMessage());
             throw new OA2ATException(OA2Errors.SERVER_ERROR, "Could not create cert request", HttpStatus.SC_INTERNAL_SERVER_ERROR);
         }
+    }
 
-        // insert a CSR and generated keypair into the transaction
-        trans.setCertReq(certReq);
-        trans.setKeypair(keyPair);
+    /**
+     * Like {@link #getMyproxyInfo}, but with replicated MyProxy servers a
+     * credential that is not found on the replica of mpc is looked up on the
+     * other replicas: after a replicated write, the replicas outside the
+     * quorum may not have it yet. When found, the connection to that replica
+     * replaces mpc in the connection cache, such that the GET uses it too.
+     * @return boolean indicating whether we have myproxy info for a validated proxy certificate
+     */
+    protected boolean getReplicatedMyproxyInfo(MyProxyConnectable mpc, GetProxyRequestValidator[] validators,
+                                               MPOA2ServiceTransaction trans, HttpServletRequest request,
+                                               HttpServletResponse response) {
+        boolean validProxy = getMyproxyInfo(mpc, validators, trans, request, response);
+        MPOA2SE se = (MPOA2SE)getServiceEnvironment();
+        MeteredMPConnectionProvider<MyProxyConnectable> provider = se.getMPConnectionProvider();
+        if (trans.getMpcInfo() != null || !(provider instanceof ReplicatedMPConnectionProvider))
+            return validProxy;
+
+        ReplicatedMPConnectionProvider<MyProxyConnectable> replicated =
+                (ReplicatedMPConnectionProvider<MyProxyConnectable>) provider;
+        int tried = replicated.getLastReplica();
+        for (int i = 0; i < replicated.getReplicaCount(); i++) {
+            if (i == tried)
+                continue;
+            MyProxyConnectable other;
+            try {
+                other = replicated.connectReplica(i, trans.getIdentifier(), trans.getUsername(),
+                                                  se.getMyproxyPassword(), null, trans.getLifetime());
+            } catch (GeneralSecurityException | RuntimeException e) {
+                warn("Cannot connect to MyProxy replica #" + (i + 1) + ": " + e.getMessage());
+                continue;
+            }
+            try {
+                validProxy = getMyproxyInfo(other, validators, trans, request, response);
+            } catch (OA2ATException e) {
+                // myproxy info failed on this replica, try the next one
+                closeQuietly(other);
+                continue;
+            }
+            if (trans.getMpcInfo() != null) {
+                info("Found credential on MyProxy replica #" + (i + 1));
+                closeQuietly(mpc);
+                getMyproxyConnectionCache().add(other);
+                return validProxy;
+            }
+            closeQuietly(other);
+        }
+        return false;
     }
 
-    /* HELPER METHODS */
+    /** Closes a MyProxy connection that is no longer used, ignoring errors. */
+    private void closeQuietly(MyProxyConnectable mpc) {
+        try {
+            mpc.close();
+        } catch (RuntimeException e) {
+            debug("Cannot close MyProxy connection: " + e.getMessage());
+        }
+    }
 
     /**
      * Helper method doing a myproxy INFO call using the given mpc connector storing the result in the transaction.
@@ -257,25 +527,52 @@ public class MPOA2ProxyServlet extends OA2ProxyServlet {
         } catch (Throwable e) {
             // myproxy info failed for some unknown reason: don't try to fix
             warn("myproxy info failed: " + e.getMessage());
+            evictCachedProxies(trans);
             throw new OA2ATException(OA2Errors.SERVER_ERROR, "MyProxy info failed", HttpStatus.SC_INTERNAL_SERVER_ERROR);
         }
 
+        // Note that some validators will not do anything in case of empty
+        // mpc_info, but we should still run the validators now, e.g. to test
+        // whether the requested lifetime is more than the server maximum.
+        if (!runValidators(validators, trans, request, response, mpc_info, null))
+            validProxy = false;
+
+        // Store the now valid myproxy info in the MPOA2ServiceTransaction
+        trans.setMpcInfo(mpc_info);
+
+        return validProxy;
+    }
+
+    /**
+     * Helper method running the list of GetProxyRequestValidator in order.
+     * @param validators list of validators that are run for the incoming request
+     * @param trans MPOA2ServiceTransaction for the request
+     * @param request incoming /getproxy request
+     * @param response outgoing response
+     * @param mpc_info result of the myproxy INFO, null when there is none
+     * @param cachedProxy proxy from the proxy cache, when non-null the validators
+     *                    are run for it instead of for mpc_info
+     * @return false when the stored proxy is not valid for the request
+     * @throws OA2ATException when the request itself is invalid or the validation fails
+     */
+    protected boolean runValidators(GetProxyRequestValidator[] validators, MPOA2ServiceTransaction trans,
+                                    HttpServletRequest request, HttpServletResponse response,
+                                    MyProxyCredentialInfo mpc_info, CachedProxy cachedProxy) {
         try {
-            // execute request validator in order. Note that some validators
-            // will not do anything in case of empty mpc_info, but we should
-            // still run the validators now, e.g. to test whether the requested
-            // lifetime is more than the server maximum.
             for (GetProxyRequestValidator validator : validators) {
-                validator.validate(trans, request, response, mpc_info);
+                if (cachedProxy != null)
+                    validator.validateCached(trans, request, response, cachedProxy);
+                else
+                    validator.validate(trans, request, response, mpc_info);
             }
         } catch (ShortProxyLifetimeException e) {
             debug("The requested lifetime exceeds remaining proxy lifetime!");
             debug(e.getMessage());
-            validProxy = false;
+            return false;
         } catch (InvalidDNException e) {
             debug("Invalid Proxy! The cached proxy DN does not match the DN returned by the Delegation Server!");
             debug(e.getMessage());
-            validProxy = false;
+            return false;
         } catch (InvalidRequestLifetimeException e) {   // Fail on this one
             debug("The requested lifetime exceeds server maximum!");
             String mesg = e.getMessage();
@@ -285,11 +582,18 @@ public class MPOA2ProxyServlet extends OA2ProxyServlet {
             warn("Validation of /getproxy request failed: " + e.getMessage());
             throw new OA2ATException(OA2Errors.SERVER_ERROR, "Validating of /getproxy request failed", HttpStatus.SC_BAD_REQUEST);
         }
+        return true;
+    }
 
-        // Store the now valid myproxy info in the MPOA2ServiceTransaction
-        trans.setMpcInfo(mpc_info);
-
-        return validProxy;
+    /**
+     * Removes the cached proxies of the user of the transaction, when there
+     * is a proxy cache.
+     * @param trans The current service transaction
+     */
+    private void evictCachedProxies(MPOA2ServiceTransaction trans) {
+        ProxyCache proxyCache = ((MPOA2SE) getServiceEnvironment()).getProxyCache();
+        if (proxyCache != null)
+            proxyCache.evict(trans.getUsername());
     }
 
     /**
@@ -356,36 +660,30 @@ public class MPOA2ProxyServlet extends OA2ProxyServlet {
         // otherwise cannot find the transaction after a while.
         getTransactionStore().save(t);
 
-        // Build-up the output JSON
-        JSONObject json = new JSONObject();
-        json.put(USERNAME, t.getUsername());
+        info("6.b. Writing out MyProxy INFO for request " + statusString);
+        // Stream the JSON directly to the response, compact unless the client
+        // asked for pretty-printed output.
+        httpServletResponse.setContentType("application/json");
+        httpServletResponse.setCharacterEncoding("UTF-8");
+        boolean pretty = Boolean.parseBoolean(httpServletRequest.getParameter(PRETTY));
+        JSONStreamWriter json = new JSONStreamWriter(httpServletResponse.getOutputStream(), pretty);
+        json.beginObject();
+        json.field(USERNAME, t.getUsername());
         // Note: getEndTime() returns milliseconds
-        json.put(TIMELEFT, (mpcInfo.getEndTime()-System.currentTimeMillis())/1000);
+        json.field(TIMELEFT, (mpcInfo.getEndTime()-System.currentTimeMillis())/1000);
         // Only add valid tolerance, max_proxy_lifetime and def_proxy_lifetime.
         // Note: not really necessary to check here since the validator already checks them.
         long tolerance = t.getProxyLifetimeTolerance();
         if (tolerance >= 0)
-            json.put(TOLERANCE, tolerance);
+            json.field(TOLERANCE, tolerance);
         long max_proxy_lifetime = t.getMaxProxyLifetime();
         if (max_proxy_lifetime >= 0)
-            json.put(MAXPROXYLIFETIME, max_proxy_lifetime);
+            json.field(MAXPROXYLIFETIME, max_proxy_lifetime);
         long def_proxy_lifetime = t.getDefProxyLifetime();
         if (def_proxy_lifetime >= 0)
-            json.put(DEFPROXYLIFETIME, def_proxy_lifetime);
-
-        info("6.b. Writing out MyProxy INFO for request " + statusString);
-        // Convert to a pretty-printed String
-        String content = JSONUtils.valueToString(json, 1, 0);
-
-        // Now print the JSON
-        httpServletResponse.setContentType("application/json");
-        httpServletResponse.setCharacterEncoding("UTF-8");
-        httpServletResponse.setContentLength(content.length());
-        PrintWriter printWriter = httpServletResponse.getWriter();
-
-        printWriter.write(content);
-        printWriter.flush();
-        printWriter.close();
+            json.field(DEFPROXYLIFETIME, def_proxy_lifetime);
+        json.endObject();
+        json.close();
 
         info("6.b. Completed transaction " + t.getIdentifierString() + ", " + statusString);
     }
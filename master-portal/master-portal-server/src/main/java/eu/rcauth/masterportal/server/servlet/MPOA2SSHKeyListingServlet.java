@@ -2,7 +2,8 @@ package eu.rcauth.masterportal.server.servlet;
 
 import edu.uiuc.ncsa.security.servlet.AbstractServlet;
 import eu.rcauth.masterportal.server.storage.SSHKey;
-import eu.rcauth.masterportal.server.storage.sql.SQLSSHKeyStore;
+import eu.rcauth.masterportal.server.storage.SSHKeyStore;
+import eu.rcauth.masterportal.server.storage.impl.SSHKeyIndex;
 import eu.rcauth.masterportal.server.MPOA2SE;
 
 import edu.uiuc.ncsa.myproxy.oa4mp.oauth2.servlet.OA2ExceptionHandler;
@@ -16,14 +17,42 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.ServletException;
 
-import java.io.Writer;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.zip.GZIPOutputStream;
 
 
 /**
  * <p>Created by Mischa Sall&eacute;<br>
  * Simple servlet for returning the full list of public keys of all the users,
  * to be used (e.g.) in an sshd AuthorizedKeysCommand.
+ * <p>
+ * By default the output is plain text, one line per key containing the
+ * username and public key. With {@link #FORMAT_PARAMETER}={@link #FORMAT_BINARY}
+ * a compact binary framing is used instead: after the 4 byte {@link #MAGIC},
+ * each key is written as a 2 byte length plus the UTF-8 username, a 2 byte
+ * length plus the key type and a 4 byte length plus the raw (base64-decoded)
+ * key blob, all lengths in network byte order. Keys whose username or type
+ * does not fit in a 2 byte length are left out.
+ * In both cases the output is gzip compressed when the client accepts it.
+ * <p>
+ * With {@link #FINGERPRINT_PARAMETER} only the key with the given SHA256
+ * fingerprint is returned, e.g. for use with the %f token of the sshd
+ * AuthorizedKeysCommand.
+ * <p>
+ * When the ssh key index is enabled, the output is produced from the compact
+ * {@link SSHKeyIndex} instead of from the store. Keys removed via this server
+ * are left out directly, but in the full listing new keys and keys removed
+ * via other servers only show up (or disappear) after the next rebuild of
+ * the index, see {@link MPOA2SE#getSSHKeyIndex()}. A fingerprint that is not
+ * in the index is looked up in the store instead, such that new keys can be
+ * used directly.
  * @see MPOA2SSHKeyServlet
  */
 public class MPOA2SSHKeyListingServlet extends MyProxyDelegationServlet {
@@ -31,7 +60,23 @@ public class MPOA2SSHKeyListingServlet extends MyProxyDelegationServlet {
     private MyLoggingFacade logger;
 
     /** separator between username and public key fields */
-    private static final String SEP = " ";
+    private static final byte[] SEP = " ".getBytes(StandardCharsets.UTF_8);
+
+    /** request parameter for choosing the output format */
+    public static final String FORMAT_PARAMETER = "format";
+    /** value of {@link #FORMAT_PARAMETER} for the binary output format */
+    public static final String FORMAT_BINARY = "binary";
+    /** request parameter for returning only the key with given fingerprint */
+    public static final String FINGERPRINT_PARAMETER = "fingerprint";
+    /** start of the binary output format, includes a version number */
+    public static final byte[] MAGIC = {'M', 'P', 'K', '1'};
+
+    /** maximum length of a field with a 2 byte length in the binary format */
+    private static final int MAX_SHORT_LENGTH = 0xFFFF;
+
+    /** size of the output buffer, the response uses chunked transfer
+     * encoding once this is exceeded */
+    private static final int BUFFER_SIZE = 64 * 1024;
 
     @Override
     public void init() throws ServletException {
@@ -55,26 +100,194 @@ public class MPOA2SSHKeyListingServlet extends MyProxyDelegationServlet {
 
     /**
      * Main method called by TomCat upon receiving either a get or post (via {@link AbstractServlet}).
-     * Writes the list of stored keys and usernames, space-separated to the response.
+     * Writes the list of stored keys and usernames to the response, either
+     * space-separated or in the binary format.
      */
     @Override
     protected void doIt(HttpServletRequest request, HttpServletResponse response) throws Throwable {
-        SQLSSHKeyStore store = (SQLSSHKeyStore)se.getSSHKeyStore();
+        SSHKeyStore<SSHKey> store = se.getSSHKeyStore();
         if ( store == null) {
             logger.warn("doIt(): SSHKeyStore is null");
             throw new GeneralException("Cannot get SSH KeyStore");
         }
 
-        Collection<SSHKey> keys = store.values();
+        String fingerprint = request.getParameter(FINGERPRINT_PARAMETER);
+        SSHKeyIndex index = se.getSSHKeyIndex();
+        // A key added after the index was built, or revoked and possibly
+        // re-added by another user since, can only be found in the store
+        if (index != null && fingerprint != null) {
+            String owner = index.getUserName(fingerprint);
+            if (owner == null || se.isSSHKeyRevoked(owner, fingerprint))
+                index = null;
+        }
+        Collection<SSHKey> keys = null;
+        if (index == null) {
+            if (fingerprint == null) {
+                keys = store.values();
+            } else {
+                SSHKey key = store.getByFingerprint(fingerprint);
+                keys = (key == null) ? Collections.<SSHKey>emptyList() : Collections.singletonList(key);
+            }
+        }
+
+        boolean binary = FORMAT_BINARY.equals(request.getParameter(FORMAT_PARAMETER));
+        response.setContentType(binary ? "application/octet-stream" : "text/plain;charset=UTF-8");
+
+        // Note: we don't set a Content-Length, the container will use chunked
+        // transfer encoding for the (large) output.
+        response.setBufferSize(BUFFER_SIZE);
+        response.setHeader("Vary", "Accept-Encoding");
+        OutputStream os = response.getOutputStream();
+        if (acceptsGzip(request)) {
+            response.setHeader("Content-Encoding", "gzip");
+            os = new GZIPOutputStream(os, BUFFER_SIZE);
+        }
+        os = new BufferedOutputStream(os, BUFFER_SIZE);
+
+        if (index != null) {
+            SSHKeyIndex.Cursor cursor = (fingerprint == null) ? index.cursor() : index.cursor(fingerprint);
+            if (binary)
+                writeBinary(os, cursor);
+            else
+                writeText(os, cursor);
+        } else {
+            if (binary)
+                writeBinary(os, keys);
+            else
+                writeText(os, keys);
+        }
+        os.close();
+    }
+
+    /**
+     * Writes the keys as lines containing username and public key.
+     */
+    private void writeText(OutputStream os, Collection<SSHKey> keys) throws IOException {
+        for (SSHKey key : keys)    {
+            os.write(key.getUserName().getBytes(StandardCharsets.UTF_8));
+            os.write(SEP);
+            os.write(key.getPubKey().getBytes(StandardCharsets.UTF_8));
+            os.write('\n');
+        }
+    }
 
-        Writer writer = response.getWriter();
+    /**
+     * Writes the keys in the length-prefixed binary format, see the class
+     * description.
+     */
+    private void writeBinary(OutputStream os, Collection<SSHKey> keys) throws IOException {
+        DataOutputStream out = new DataOutputStream(os);
+        out.write(MAGIC);
         for (SSHKey key : keys)    {
-            writer.write(key.getUserName());
-            writer.write(SEP);
-            writer.write(key.getPubKey());
-            writer.write("\n");
+            String pubKey = key.getPubKey();
+            int firstSpace = pubKey.indexOf(' ');
+            if (firstSpace < 0) {
+                logger.warn("Skipping invalid public key "+key.getLabel()+" for "+key.getUserName());
+                continue;
+            }
+            int secondSpace = pubKey.indexOf(' ', firstSpace+1);
+            byte[] blob;
+            try {
+                blob = Base64.getDecoder().decode(
+                        pubKey.substring(firstSpace+1, secondSpace < 0 ? pubKey.length() : secondSpace).trim());
+            } catch (IllegalArgumentException e) {
+                logger.warn("Skipping invalid public key "+key.getLabel()+" for "+key.getUserName());
+                continue;
+            }
+            byte[] userName = key.getUserName().getBytes(StandardCharsets.UTF_8);
+            byte[] type = pubKey.substring(0, firstSpace).getBytes(StandardCharsets.UTF_8);
+            if (userName.length > MAX_SHORT_LENGTH || type.length > MAX_SHORT_LENGTH) {
+                logger.warn("Skipping public key "+key.getLabel()+": username or type too long");
+                continue;
+            }
+            out.writeShort(userName.length);
+            out.write(userName);
+            out.writeShort(type.length);
+            out.write(type);
+            out.writeInt(blob.length);
+            out.write(blob);
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes the keys from the index as lines containing username and
+     * normalized public key, leaving out keys revoked since the index was
+     * built.
+     */
+    private void writeText(OutputStream os, SSHKeyIndex.Cursor cursor) throws IOException {
+        Base64.Encoder encoder = Base64.getEncoder();
+        boolean checkRevoked = se.hasRevokedSSHKeys();
+        while (cursor.next()) {
+            if (checkRevoked && se.isSSHKeyRevoked(cursor.getUserName(), cursor.getFingerprint()))
+                continue;
+            os.write(cursor.getUserNameUTF8());
+            os.write(SEP);
+            os.write(cursor.getType().getBytes(StandardCharsets.US_ASCII));
+            os.write(SEP);
+            os.write(encoder.encode(cursor.getBlob()));
+            os.write('\n');
+        }
+    }
+
+    /**
+     * Writes the keys from the index in the binary format, leaving out keys
+     * revoked since the index was built.
+     */
+    private void writeBinary(OutputStream os, SSHKeyIndex.Cursor cursor) throws IOException {
+        DataOutputStream out = new DataOutputStream(os);
+        out.write(MAGIC);
+        boolean checkRevoked = se.hasRevokedSSHKeys();
+        while (cursor.next()) {
+            if (checkRevoked && se.isSSHKeyRevoked(cursor.getUserName(), cursor.getFingerprint()))
+                continue;
+            byte[] userName = cursor.getUserNameUTF8();
+            byte[] type = cursor.getType().getBytes(StandardCharsets.US_ASCII);
+            if (userName.length > MAX_SHORT_LENGTH || type.length > MAX_SHORT_LENGTH) {
+                logger.warn("Skipping public key "+cursor.getFingerprint()+": username or type too long");
+                continue;
+            }
+            out.writeShort(userName.length);
+            out.write(userName);
+            out.writeShort(type.length);
+            out.write(type);
+            out.writeInt(cursor.getBlobLength());
+            out.write(cursor.getBlob());
+        }
+        out.flush();
+    }
+
+    /**
+     * @return whether the client accepts a gzip content-encoding, i.e. it is
+     * listed in the Accept-Encoding header without q=0.
+     */
+    private boolean acceptsGzip(HttpServletRequest request) {
+        String accept = request.getHeader("Accept-Encoding");
+        if (accept == null)
+            return false;
+        for (String coding : accept.split(",")) {
+            String[] parts = coding.trim().split(";");
+            if (parts[0].trim().equalsIgnoreCase("gzip")) {
+                for (int i = 1; i < parts.length; i++) {
+                    String param = parts[i].replace(" ", "");
+                    if (param.startsWith("q=") && isZero(param.substring(2)))
+                        return false;
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether the quality value is zero, a malformed value is
+     * treated as non-zero.
+     */
+    private static boolean isZero(String qvalue) {
+        try {
+            return Double.parseDouble(qvalue) == 0;
+        } catch (NumberFormatException e) {
+            return false;
         }
-        writer.flush();
-        writer.close();
     }
 }
@@ -11,7 +11,12 @@ import edu.uiuc.ncsa.security.oauth_2_0.OA2ATException;
 import eu.rcauth.masterportal.server.MPOA2SE;
 
 import eu.rcauth.masterportal.server.storage.SSHKey;
-import eu.rcauth.masterportal.server.storage.sql.SQLSSHKeyStore;
+import eu.rcauth.masterportal.server.storage.SSHKeyOperation;
+import eu.rcauth.masterportal.server.storage.SSHKeyStore;
+import eu.rcauth.masterportal.server.storage.SSHPublicKey;
+import eu.rcauth.masterportal.server.exception.InvalidSSHKeyException;
+import eu.rcauth.masterportal.server.exception.SSHKeyVersionConflictException;
+import eu.rcauth.masterportal.servlet.util.JSONStreamWriter;
 
 import edu.uiuc.ncsa.myproxy.oa4mp.server.servlet.MyProxyDelegationServlet;
 import edu.uiuc.ncsa.myproxy.oa4mp.oauth2.servlet.OA2ExceptionHandler;
@@ -32,8 +37,10 @@ import static edu.uiuc.ncsa.myproxy.oa4mp.server.ServiceConstantKeys.CONSUMER_KE
 import static edu.uiuc.ncsa.security.core.util.DateUtils.checkTimestamp;
 import static edu.uiuc.ncsa.security.oauth_2_0.OA2Constants.CLIENT_SECRET;
 
+import net.sf.json.JSONArray;
+import net.sf.json.JSONException;
+import net.sf.json.JSONNull;
 import net.sf.json.JSONObject;
-import net.sf.json.util.JSONUtils;
 
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.http.HttpStatus;
@@ -44,12 +51,15 @@ import javax.servlet.http.HttpServletResponse;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
-import java.io.Writer;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Collections;
-import java.util.Base64;
 
 
 /**
@@ -65,6 +75,8 @@ public class MPOA2SSHKeyServlet extends MyProxyDelegationServlet {
     static final String LABEL_PARAMETER = "label";
     static final String PUBKEY_PARAMETER = "pubkey";
     static final String DESCRIPTION_PARAMETER = "description";
+    static final String OPERATIONS_PARAMETER = "operations";
+    static final String PRETTY_PARAMETER = "pretty";
 
     // Valid actions
     static final String ACTION_ADD    = "add";
@@ -72,12 +84,24 @@ public class MPOA2SSHKeyServlet extends MyProxyDelegationServlet {
     static final String ACTION_REMOVE = "remove";
     static final String ACTION_GET    = "get";
     static final String ACTION_LIST   = "list";
+    static final String ACTION_BATCH  = "batch";
+
+    // Fields in the per-operation results of a batch request
+    private static final String RESULT_INDEX = "index";
+    private static final String RESULT_STATUS = "status";
+    private static final String RESULT_STATUS_OK = "ok";
+    private static final String RESULT_STATUS_ERROR = "error";
+    private static final String RESULT_ERROR_DESCRIPTION = "error_description";
 
-    // SSH public key's first field should start with the following
-    private static final String SSH_KEY_START = "ssh-";
     // default labels start with prefix followed by a serial
     private static final String LABEL_PREFIX="ssh-key-";
 
+    // Headers for optimistic concurrency control of updates
+    private static final String IF_MATCH_HEADER = "If-Match";
+    private static final String ETAG_HEADER = "ETag";
+    // number of times we try an update without If-Match before giving up
+    private static final int MAX_UPDATE_ATTEMPTS = 3;
+
 
     private MPOA2SE se;
     private MyLoggingFacade logger;
@@ -91,6 +115,16 @@ public class MPOA2SSHKeyServlet extends MyProxyDelegationServlet {
         // Create custom logger for exceptions and the like
         logger = getMyLogger();
         setExceptionHandler(new OA2ExceptionHandler(logger));
+
+        // Create the store now, such that its schema is checked (or
+        // migrated) on startup instead of during the first request. Fail
+        // here, e.g. on missing columns, instead of on every write.
+        try {
+            se.getSSHKeyStore();
+        } catch (RuntimeException e) {
+            logger.error("Cannot create SSH KeyStore: " + e.getMessage());
+            throw new ServletException("Cannot create SSH KeyStore: " + e.getMessage(), e);
+        }
     }
 
     /**
@@ -200,11 +234,15 @@ public class MPOA2SSHKeyServlet extends MyProxyDelegationServlet {
         String label = null;
         String pubKey = null;
         String description = null;
+        String operations = null;
+        boolean pretty = false;
         try {
             action = OA2Utilities.getParam(request, ACTION_PARAMETER);
             label = OA2Utilities.getParam(request, LABEL_PARAMETER);
             pubKey = OA2Utilities.getParam(request, PUBKEY_PARAMETER);
             description = OA2Utilities.getParam(request, DESCRIPTION_PARAMETER);
+            operations = OA2Utilities.getParam(request, OPERATIONS_PARAMETER);
+            pretty = Boolean.parseBoolean(OA2Utilities.getParam(request, PRETTY_PARAMETER));
         } catch (OA2RedirectableError e)    {
             throw new OA2ATException(OA2Errors.INVALID_REQUEST, e.getDescription(), HttpStatus.SC_BAD_REQUEST);
         }
@@ -231,17 +269,27 @@ public class MPOA2SSHKeyServlet extends MyProxyDelegationServlet {
                     throw new OA2ATException(OA2Errors.INVALID_REQUEST,
                                               "Missing client for action "+action,
                                               HttpStatus.SC_BAD_REQUEST);
-                updateKey(userName, label, pubKey, description);
+                SSHKey updated = updateKey(userName, label, pubKey, description, request.getHeader(IF_MATCH_HEADER));
+                response.setHeader(ETAG_HEADER, createETag(updated));
                 break;
             case ACTION_REMOVE :
                 removeKey(userName, label);
                 break;
             case ACTION_GET :
                 SSHKey key = getKey(userName, label);
-                writeKeys(response, Collections.singletonList(key));
+                response.setHeader(ETAG_HEADER, createETag(key));
+                writeKeys(response, Collections.singletonList(key), pretty);
                 break;
             case ACTION_LIST :
-                writeKeys(response, getKeys(userName));
+                writeKeys(response, getKeys(userName), pretty);
+                break;
+            case ACTION_BATCH :
+                // A batch may contain adds and updates, so client is mandatory
+                if (client==null)
+                    throw new OA2ATException(OA2Errors.INVALID_REQUEST,
+                                              "Missing client for action "+action,
+                                              HttpStatus.SC_BAD_REQUEST);
+                writeResults(response, doBatch(userName, operations), pretty);
                 break;
             default:
                 throw new OA2ATException(OA2Errors.INVALID_REQUEST,
@@ -268,37 +316,35 @@ public class MPOA2SSHKeyServlet extends MyProxyDelegationServlet {
         if (pubKey==null || pubKey.isEmpty())
             throw new OA2ATException(OA2Errors.INVALID_REQUEST, "Missing mandatory parameter " + PUBKEY_PARAMETER, HttpStatus.SC_BAD_REQUEST);
 
-        // do (basic) sanity check on pubKey
-        if (!isSSHPubKey(pubKey))
-            throw new OA2ATException(OA2Errors.INVALID_REQUEST, PUBKEY_PARAMETER + " value does not look like a SSH public key", HttpStatus.SC_BAD_REQUEST);
+        // parse the pubKey, this also verifies its contents
+        SSHPublicKey sshPublicKey = parsePubKey(pubKey);
 
         // try to get store
-        SQLSSHKeyStore store = (SQLSSHKeyStore)se.getSSHKeyStore();
+        SSHKeyStore<SSHKey> store = se.getSSHKeyStore();
         if ( store == null) {
             logger.warn("addKey(): SSHKeyStore is null");
             throw new GeneralException("Cannot get SSH KeyStore");
         }
 
-        // Create new SSHKey object
-        SSHKey key = new SSHKey(userName, label, pubKey, description);
+        // Create new SSHKey object, using the normalized public key
+        SSHKey key = new SSHKey(userName, label);
+        key.setPublicKey(sshPublicKey);
+        key.setDescription(description);
 
         // Check whether the ssh pubKey already occurs: must be globally unique
-        // Note: SQLSSHKeyStore.containsKey() expects Object since we want it to override the one in e.g. SQLStore, but it checks there on correct type
+        // Note: SSHKeyStore.containsKey() expects Object since we want it to override the one in e.g. SQLStore, but it checks there on correct type
         if ( store.containsKey(key) )
             throw new OA2ATException(OA2Errors.INVALID_REQUEST, "SSH public key is already registered", HttpStatus.SC_BAD_REQUEST);
 
-        // Get existing keys: we need them either for counting or for creating
-        // the next label
-        List<SSHKey> currKeys = store.getAll(userName);
-
-        // Check we don't have too many
+        // Check we don't have too many, using an (uncached) count instead of
+        // fetching all the existing keys
         int maxSSHKeys = se.getMaxSSHKeys();
-        if (maxSSHKeys > 0 && currKeys.size() >= maxSSHKeys)
+        if (maxSSHKeys > 0 && store.getCount(userName) >= maxSSHKeys)
             throw new OA2ATException(OA2Errors.INVALID_REQUEST, "Reached maximum number of keys (="+maxSSHKeys+"), cannot add more", HttpStatus.SC_BAD_REQUEST);
 
         // when label isn't set, create one
         if (label==null || label.isEmpty())
-            key.setLabel(createLabel(userName, currKeys));
+            key.setLabel(store.getNextLabel(userName, LABEL_PREFIX));
 
         // Now save the new key
         try {
@@ -311,12 +357,18 @@ public class MPOA2SSHKeyServlet extends MyProxyDelegationServlet {
                 logger.warn("Cannot register key: "+e.getMessage() + " (" + cause.getMessage() + ")");
             throw new OA2ATException(OA2Errors.SERVER_ERROR, "Cannot add key", HttpStatus.SC_INTERNAL_SERVER_ERROR);
         }
+        se.restoreSSHKey(userName, key.getFingerprint());
     }
 
     /**
      * Update entry (pubKey and/or description) for given user, label.
+     * The update is only applied when the entry has not been modified since it
+     * was read. When ifMatch is given, it must match the current version (its
+     * ETag) or we return a 412. Otherwise we retry a few times in case of
+     * concurrent modifications, before returning a 409.
+     * @return the updated key
      */
-    private void updateKey(String userName, String label, String pubKey, String description) throws GeneralException {
+    private SSHKey updateKey(String userName, String label, String pubKey, String description, String ifMatch) throws GeneralException {
         // userName and label may not be empty
         if (userName==null || userName.isEmpty())   {
             logger.warn("updateKey(): userName is null or empty");
@@ -326,52 +378,78 @@ public class MPOA2SSHKeyServlet extends MyProxyDelegationServlet {
             throw new OA2ATException(OA2Errors.INVALID_REQUEST, "Missing mandatory \"label\" parameter", HttpStatus.SC_BAD_REQUEST);
 
         // if we specified a public key, it must be non-empty and valid
-        if (pubKey!=null)   {
-            if (pubKey.isEmpty())
-                throw new OA2ATException(OA2Errors.INVALID_REQUEST, "SSH public key may not be empty", HttpStatus.SC_BAD_REQUEST);
+        if (pubKey!=null && pubKey.isEmpty())
+            throw new OA2ATException(OA2Errors.INVALID_REQUEST, "SSH public key may not be empty", HttpStatus.SC_BAD_REQUEST);
+        SSHPublicKey sshPublicKey = (pubKey == null) ? null : parsePubKey(pubKey);
 
-            if (!isSSHPubKey(pubKey))
-                throw new OA2ATException(OA2Errors.INVALID_REQUEST, "key does not look like a SSH public key", HttpStatus.SC_BAD_REQUEST);
-        }
+        // Get the expected version, if any
+        Long expectedVersion = parseIfMatch(ifMatch);
 
         // try to get store
-        SQLSSHKeyStore store = (SQLSSHKeyStore)se.getSSHKeyStore();
+        SSHKeyStore<SSHKey> store = se.getSSHKeyStore();
         if ( store == null) {
             logger.warn("updateKey(): SSHKeyStore is null");
             throw new GeneralException("Cannot get SSH KeyStore");
         }
 
-        // Get existing public key
-        // Note: SQLSSHKeyStore.get() expects Object since we want it to override the one in e.g. SQLStore, but it checks there on correct type
-        SSHKey value = store.get(new SSHKey(userName, label));
-        if (value==null)
-            throw new OA2ATException("not_found", "key to update NOT found", HttpStatus.SC_NOT_FOUND);
+        // The update is based on the current value, so it should be up-to-date
+        store.requirePrimary(userName);
+
+        for (int attempt = 1; ; attempt++) {
+            // Get existing public key
+            // Note: SSHKeyStore.get() expects Object since we want it to override the one in e.g. SQLStore, but it checks there on correct type
+            SSHKey value = store.get(new SSHKey(userName, label));
+            if (value==null)
+                throw new OA2ATException("not_found", "key to update NOT found", HttpStatus.SC_NOT_FOUND);
+
+            if (expectedVersion != null && value.getVersion() != expectedVersion)
+                throw new OA2ATException("precondition_failed", "key has been modified", HttpStatus.SC_PRECONDITION_FAILED);
+
+            // Update values
+            String oldFingerprint = fingerprintOf(value);
+            if (sshPublicKey != null)    {
+                logger.info("Updating public key for key");
+                boolean sameKey = sshPublicKey.getFingerprint().equals(value.getFingerprint());
+                value.setPublicKey(sshPublicKey);
+                // Check whether the ssh pubKey already occurs: must be globally unique
+                // Note: SSHKeyStore.containsKey() expects Object since we want it to override the one in e.g. SQLStore, but it checks there on correct type
+                if (!sameKey && store.containsKey(value))
+                    throw new OA2ATException(OA2Errors.INVALID_REQUEST, "SSH public key is already registered", HttpStatus.SC_BAD_REQUEST);
+            }
+            if (description != null)    {
+                logger.info("Updating description for key");
+                value.setDescription(description);
+            }
 
-        // Update values
-        if (pubKey != null)    {
-            logger.info("Updating public key for key");
-            value.setPubKey(pubKey);
-            // Check whether the ssh pubKey already occurs: must be globally unique
-            // Note: SQLSSHKeyStore.containsKey() expects Object since we want it to override the one in e.g. SQLStore, but it checks there on correct type
-            if (store.containsKey(value))
-                throw new OA2ATException(OA2Errors.INVALID_REQUEST, "SSH public key is already registered", HttpStatus.SC_BAD_REQUEST);
-        }
-        if (description != null)    {
-            logger.info("Updating description for key");
-            value.setDescription(description);
-        }
+            // Update the value in the store, provided it's unchanged
+            boolean updated;
+            try {
+                logger.info("Updating the entry for "+userName+", "+label);
+                updated = store.updateIfUnchanged(value);
+            } catch (Exception e)   {
+                Throwable cause = e.getCause();
+                if (cause == null)
+                    logger.warn("Cannot update key: "+e.getMessage());
+                else
+                    logger.warn("Cannot update key: "+e.getMessage() + " (" + cause.getMessage() + ")");
+                throw new OA2ATException(OA2Errors.SERVER_ERROR, "Cannot update entry", HttpStatus.SC_INTERNAL_SERVER_ERROR);
+            }
+            if (updated) {
+                String newFingerprint = fingerprintOf(value);
+                if (oldFingerprint != null && !oldFingerprint.equals(newFingerprint))
+                    se.revokeSSHKey(userName, oldFingerprint);
+                se.restoreSSHKey(userName, newFingerprint);
+                return value;
+            }
 
-        // Update the value in the store
-        try {
-            logger.info("Updating the entry for "+userName+", "+label);
-            store.update(value);
-        } catch (Exception e)   {
-            Throwable cause = e.getCause();
-            if (cause == null)
-                logger.warn("Cannot update key: "+e.getMessage());
-            else
-                logger.warn("Cannot update key: "+e.getMessage() + " (" + cause.getMessage() + ")");
-            throw new OA2ATException(OA2Errors.SERVER_ERROR, "Cannot update entry", HttpStatus.SC_INTERNAL_SERVER_ERROR);
+            // Modified concurrently
+            if (expectedVersion != null)
+                throw new OA2ATException("precondition_failed", "key has been modified", HttpStatus.SC_PRECONDITION_FAILED);
+            if (attempt >= MAX_UPDATE_ATTEMPTS) {
+                logger.warn("Giving up updating "+userName+", "+label+" after "+attempt+" concurrent modifications");
+                throw new OA2ATException("conflict", "key is being modified concurrently", HttpStatus.SC_CONFLICT);
+            }
+            logger.info("Entry for "+userName+", "+label+" was modified concurrently, retrying");
         }
     }
 
@@ -388,7 +466,7 @@ public class MPOA2SSHKeyServlet extends MyProxyDelegationServlet {
             throw new OA2ATException(OA2Errors.INVALID_REQUEST, "Missing mandatory \"label\" parameter", HttpStatus.SC_BAD_REQUEST);
 
         // try to get store
-        SQLSSHKeyStore store = (SQLSSHKeyStore)se.getSSHKeyStore();
+        SSHKeyStore<SSHKey> store = se.getSSHKeyStore();
         if ( store == null) {
             logger.warn("removeKey(): SSHKeyStore is null");
             throw new GeneralException("Cannot get SSH KeyStore");
@@ -396,7 +474,7 @@ public class MPOA2SSHKeyServlet extends MyProxyDelegationServlet {
 
         SSHKey key = null;
         try {
-            // Note: SQLSSHKeyStore.remove() expects Object since we want it to override the one in e.g. SQLStore, but it checks there on correct type
+            // Note: SSHKeyStore.remove() expects Object since we want it to override the one in e.g. SQLStore, but it checks there on correct type
             key = store.remove(new SSHKey(userName, label));
         } catch (Exception e)   {
             Throwable cause = e.getCause();
@@ -408,6 +486,7 @@ public class MPOA2SSHKeyServlet extends MyProxyDelegationServlet {
         }
         if (key==null)
             throw new OA2ATException("not_found", "key to remove NOT found", HttpStatus.SC_NOT_FOUND);
+        se.revokeSSHKey(userName, fingerprintOf(key));
     }
 
     /**
@@ -423,7 +502,7 @@ public class MPOA2SSHKeyServlet extends MyProxyDelegationServlet {
             throw new OA2ATException(OA2Errors.INVALID_REQUEST, "Missing mandatory \"label\" parameter", HttpStatus.SC_BAD_REQUEST);
 
         // try to get store
-        SQLSSHKeyStore store = (SQLSSHKeyStore)se.getSSHKeyStore();
+        SSHKeyStore<SSHKey> store = se.getSSHKeyStore();
         if ( store == null) {
             logger.warn("getKey(): SSHKeyStore is null");
             throw new GeneralException("Cannot get SSH KeyStore");
@@ -431,7 +510,7 @@ public class MPOA2SSHKeyServlet extends MyProxyDelegationServlet {
 
         SSHKey key = null;
         try {
-            // Note: SQLSSHKeyStore.get() expects Object since we want it to override the one in e.g. SQLStore, but it checks there on correct type
+            // Note: SSHKeyStore.get() expects Object since we want it to override the one in e.g. SQLStore, but it checks there on correct type
             key = store.get(new SSHKey(userName, label));
         } catch (Exception e)   {
             Throwable cause = e.getCause();
@@ -458,7 +537,7 @@ public class MPOA2SSHKeyServlet extends MyProxyDelegationServlet {
         }
 
         // try to get store
-        SQLSSHKeyStore store = (SQLSSHKeyStore)se.getSSHKeyStore();
+        SSHKeyStore<SSHKey> store = se.getSSHKeyStore();
         if ( store == null) {
             logger.warn("getKeys(): SSHKeyStore is null");
             throw new GeneralException("Cannot get SSH KeyStore");
@@ -467,6 +546,196 @@ public class MPOA2SSHKeyServlet extends MyProxyDelegationServlet {
         return store.getAll(userName);
     }
 
+    /**
+     * Runs a list of add, update and remove operations for given userName.
+     * Each operation is first validated against the current keys of the user
+     * and against the other operations in the list, after which all the valid
+     * operations are written to the store in one single transaction.
+     * @param userName user for which to run the operations
+     * @param operations JSON array of objects, each containing an action and
+     * the parameters for that action.
+     * @return JSON array containing the result for each operation.
+     */
+    private JSONArray doBatch(String userName, String operations) throws GeneralException {
+        // userName may not be empty
+        if (userName==null || userName.isEmpty()) {
+            logger.warn("doBatch(): userName is null or empty");
+            throw new GeneralException("Cannot get username for keys to update");
+        }
+
+        if (operations==null || operations.isEmpty())
+            throw new OA2ATException(OA2Errors.INVALID_REQUEST, "Missing mandatory parameter " + OPERATIONS_PARAMETER, HttpStatus.SC_BAD_REQUEST);
+
+        JSONArray ops;
+        try {
+            ops = JSONArray.fromObject(operations);
+        } catch (JSONException e) {
+            throw new OA2ATException(OA2Errors.INVALID_REQUEST, OPERATIONS_PARAMETER + " value is not a valid JSON array", HttpStatus.SC_BAD_REQUEST);
+        }
+
+        int maxBatch = se.getMaxSSHKeysBatch();
+        if (maxBatch > 0 && ops.size() > maxBatch)
+            throw new OA2ATException(OA2Errors.INVALID_REQUEST, "Too many operations (max="+maxBatch+") in batch request", HttpStatus.SC_BAD_REQUEST);
+
+        // try to get store
+        SSHKeyStore<SSHKey> store = se.getSSHKeyStore();
+        if ( store == null) {
+            logger.warn("doBatch(): SSHKeyStore is null");
+            throw new GeneralException("Cannot get SSH KeyStore");
+        }
+
+        // Get the current keys, indexed by label: we need them for checking
+        // existence, counting and for creating new labels. Hence they should
+        // be up-to-date.
+        store.requirePrimary(userName);
+        Map<String, SSHKey> currKeys = new LinkedHashMap<>();
+        Set<String> oldFingerprints = new HashSet<>();
+        for (SSHKey key : store.getAll(userName)) {
+            currKeys.put(key.getLabel(), key);
+            oldFingerprints.add(fingerprintOf(key));
+        }
+
+        // Find which of the new public keys are already registered, using a
+        // single query for the whole batch.
+        Set<String> newFingerprints = new HashSet<>();
+        for (int i = 0; i < ops.size(); i++) {
+            Object op = ops.get(i);
+            if (op instanceof JSONObject) {
+                String fingerprint = SSHPublicKey.fingerprintOf(getString((JSONObject)op, PUBKEY_PARAMETER));
+                if (fingerprint != null)
+                    newFingerprints.add(fingerprint);
+            }
+        }
+        Set<String> registered = store.getRegistered(newFingerprints);
+
+        int maxSSHKeys = se.getMaxSSHKeys();
+        List<SSHKeyOperation> writes = new ArrayList<>();
+        JSONArray results = new JSONArray();
+        for (int i = 0; i < ops.size(); i++) {
+            JSONObject result = new JSONObject();
+            result.put(RESULT_INDEX, i);
+            try {
+                if (!(ops.get(i) instanceof JSONObject))
+                    throw new OA2ATException(OA2Errors.INVALID_REQUEST, "operation is not a JSON object", HttpStatus.SC_BAD_REQUEST);
+                JSONObject op = (JSONObject)ops.get(i);
+                String action = getString(op, ACTION_PARAMETER);
+                String label = getString(op, LABEL_PARAMETER);
+                String pubKey = getString(op, PUBKEY_PARAMETER);
+                String description = getString(op, DESCRIPTION_PARAMETER);
+                if (action==null)
+                    throw new OA2ATException(OA2Errors.INVALID_REQUEST, "Missing mandatory " + ACTION_PARAMETER + " field", HttpStatus.SC_BAD_REQUEST);
+                result.put(ACTION_PARAMETER, action);
+
+                SSHKey key;
+                SSHPublicKey sshPublicKey;
+                switch (action) {
+                    case ACTION_ADD :
+                        if (pubKey==null || pubKey.isEmpty())
+                            throw new OA2ATException(OA2Errors.INVALID_REQUEST, "Missing mandatory field " + PUBKEY_PARAMETER, HttpStatus.SC_BAD_REQUEST);
+                        sshPublicKey = parsePubKey(pubKey);
+                        if (registered.contains(sshPublicKey.getFingerprint()))
+                            throw new OA2ATException(OA2Errors.INVALID_REQUEST, "SSH public key is already registered", HttpStatus.SC_BAD_REQUEST);
+                        if (maxSSHKeys > 0 && currKeys.size() >= maxSSHKeys)
+                            throw new OA2ATException(OA2Errors.INVALID_REQUEST, "Reached maximum number of keys (="+maxSSHKeys+"), cannot add more", HttpStatus.SC_BAD_REQUEST);
+                        if (label==null || label.isEmpty())
+                            label = createLabel(userName, currKeys.values());
+                        else if (currKeys.containsKey(label))
+                            throw new OA2ATException(OA2Errors.INVALID_REQUEST, "label is already in use", HttpStatus.SC_BAD_REQUEST);
+                        key = new SSHKey(userName, label);
+                        key.setPublicKey(sshPublicKey);
+                        key.setDescription(description);
+                        writes.add(new SSHKeyOperation(SSHKeyOperation.Type.ADD, key));
+                        currKeys.put(label, key);
+                        registered.add(sshPublicKey.getFingerprint());
+                        break;
+                    case ACTION_UPDATE :
+                        if (label==null || label.isEmpty())
+                            throw new OA2ATException(OA2Errors.INVALID_REQUEST, "Missing mandatory \"label\" field", HttpStatus.SC_BAD_REQUEST);
+                        sshPublicKey = null;
+                        if (pubKey!=null)   {
+                            if (pubKey.isEmpty())
+                                throw new OA2ATException(OA2Errors.INVALID_REQUEST, "SSH public key may not be empty", HttpStatus.SC_BAD_REQUEST);
+                            sshPublicKey = parsePubKey(pubKey);
+                        }
+                        SSHKey current = currKeys.get(label);
+                        if (current==null)
+                            throw new OA2ATException("not_found", "key to update NOT found", HttpStatus.SC_NOT_FOUND);
+                        key = new SSHKey(userName, label, current.getPubKey(), current.getDescription());
+                        key.setComment(current.getComment());
+                        key.setFingerprint(current.getFingerprint());
+                        key.setVersion(current.getVersion());
+                        if (sshPublicKey != null && !sshPublicKey.getFingerprint().equals(current.getFingerprint())) {
+                            if (registered.contains(sshPublicKey.getFingerprint()))
+                                throw new OA2ATException(OA2Errors.INVALID_REQUEST, "SSH public key is already registered", HttpStatus.SC_BAD_REQUEST);
+                            registered.remove(current.getFingerprint());
+                            registered.add(sshPublicKey.getFingerprint());
+                        }
+                        if (sshPublicKey != null)
+                            key.setPublicKey(sshPublicKey);
+                        if (description != null)
+                            key.setDescription(description);
+                        writes.add(new SSHKeyOperation(SSHKeyOperation.Type.UPDATE, key));
+                        // A subsequent update of the same key in this batch
+                        // should expect the increased version
+                        SSHKey next = new SSHKey(userName, label, key.getPubKey(), key.getDescription());
+                        next.setComment(key.getComment());
+                        next.setFingerprint(key.getFingerprint());
+                        next.setVersion(key.getVersion() + 1);
+                        currKeys.put(label, next);
+                        break;
+                    case ACTION_REMOVE :
+                        if (label==null || label.isEmpty())
+                            throw new OA2ATException(OA2Errors.INVALID_REQUEST, "Missing mandatory \"label\" field", HttpStatus.SC_BAD_REQUEST);
+                        key = currKeys.remove(label);
+                        if (key==null)
+                            throw new OA2ATException("not_found", "key to remove NOT found", HttpStatus.SC_NOT_FOUND);
+                        registered.remove(key.getFingerprint());
+                        writes.add(new SSHKeyOperation(SSHKeyOperation.Type.REMOVE, key));
+                        break;
+                    default:
+                        throw new OA2ATException(OA2Errors.INVALID_REQUEST, "Invalid action specified: "+action, HttpStatus.SC_BAD_REQUEST);
+                }
+                result.put(LABEL_PARAMETER, label);
+                result.put(RESULT_STATUS, RESULT_STATUS_OK);
+            } catch (OA2ATException e) {
+                result.put(RESULT_STATUS, RESULT_STATUS_ERROR);
+                result.put(RESULT_STATUS_ERROR, e.getError());
+                result.put(RESULT_ERROR_DESCRIPTION, e.getDescription());
+            }
+            results.add(result);
+        }
+
+        // Now write all the valid operations in one go
+        try {
+            logger.info("Running batch of "+writes.size()+" operations for "+userName);
+            store.batch(writes);
+        } catch (SSHKeyVersionConflictException e)  {
+            logger.warn("Cannot run batch: "+e.getMessage());
+            throw new OA2ATException("conflict", "keys are being modified concurrently", HttpStatus.SC_CONFLICT);
+        } catch (Exception e)   {
+            Throwable cause = e.getCause();
+            if (cause == null)
+                logger.warn("Cannot run batch: "+e.getMessage());
+            else
+                logger.warn("Cannot run batch: "+e.getMessage() + " (" + cause.getMessage() + ")");
+            throw new OA2ATException(OA2Errors.SERVER_ERROR, "Cannot run batch", HttpStatus.SC_INTERNAL_SERVER_ERROR);
+        }
+
+        // Revoke the keys the user no longer has and restore the ones the
+        // user (again) has
+        Set<String> currFingerprints = new HashSet<>();
+        for (SSHKey key : currKeys.values())
+            currFingerprints.add(fingerprintOf(key));
+        for (String fingerprint : oldFingerprints) {
+            if (!currFingerprints.contains(fingerprint))
+                se.revokeSSHKey(userName, fingerprint);
+        }
+        for (String fingerprint : currFingerprints)
+            se.restoreSSHKey(userName, fingerprint);
+
+        return results;
+    }
+
     //////////////////////////////////////////////////////////////////////////
     // Helper methods
     //////////////////////////////////////////////////////////////////////////
@@ -522,20 +791,17 @@ public class MPOA2SSHKeyServlet extends MyProxyDelegationServlet {
      * Returns new unique label based on existing set of keys.
      * Note that currently the userName isn't used
      * @param userName currently not used
-     * @param currKeys list of keys, containing the current labels
+     * @param currKeys collection of keys, containing the current labels
      */
-    private String createLabel(String userName, List<SSHKey> currKeys)  {
+    private String createLabel(String userName, Collection<SSHKey> currKeys)  {
         if (currKeys!=null) {
             int max=0;
             // Loop over all keys to find highest matching ssh-key-[0-9]\+
             // Note: for collection foreach loop is better performing
             for (SSHKey currKey : currKeys) {
-                String label = currKey.getLabel();
-                if (label.matches(LABEL_PREFIX + "[0-9]+")) {
-                    int val = Integer.parseInt(label.substring(LABEL_PREFIX.length()));
-                    if (val > max)
-                        max = val;
-                }
+                int val = SSHKey.getLabelSerial(currKey.getLabel(), LABEL_PREFIX);
+                if (val > max)
+                    max = val;
             }
             // Found the highest one (or 0): new one is one higher
             return LABEL_PREFIX+ (1 + max);
@@ -546,29 +812,77 @@ public class MPOA2SSHKeyServlet extends MyProxyDelegationServlet {
     }
 
 
+    /**
+     * @return String value of given field in the JSON object, or null when
+     * absent.
+     */
+    private String getString(JSONObject json, String field)  {
+        Object value = json.get(field);
+        if (value == null || value instanceof JSONNull)
+            return null;
+        return value.toString();
+    }
+
+    /**
+     * Writes JSON-formatted array of results of a batch request to the response.
+     * Output is streamed and compact unless pretty is set.
+     */
+    private void writeResults(HttpServletResponse response, JSONArray results, boolean pretty)    {
+        response.setHeader("Content-Type", "application/json;charset=UTF-8");
+        try {
+            JSONStreamWriter json = new JSONStreamWriter(response.getOutputStream(), pretty);
+            json.beginObject().name("results").beginArray();
+            for (Object result : results) {
+                json.beginObject();
+                for (Object entry : ((JSONObject)result).entrySet()) {
+                    Map.Entry<?, ?> field = (Map.Entry<?, ?>)entry;
+                    json.name(field.getKey().toString());
+                    if (field.getValue() instanceof Number)
+                        json.value(((Number)field.getValue()).longValue());
+                    else
+                        json.value(field.getValue().toString());
+                }
+                json.endObject();
+            }
+            json.endArray().endObject();
+            json.close();
+        } catch(IOException e)  {
+            logger.warn("writeResults(): Cannot write results: "+e.getMessage());
+            throw new GeneralException("Cannot write results");
+        }
+    }
+
     /**
      * Writes JSON-formatted array of given List of keys to the response.
+     * Output is streamed and compact unless pretty is set. Note that, as
+     * before, a single key is written as an object instead of an array, and
+     * the ssh_keys field is omitted when there are no keys.
      */
-    private void writeKeys(HttpServletResponse response, List<SSHKey> keys)    {
-        JSONObject json = new JSONObject();
-        for (SSHKey key : keys) {
-            JSONObject jsonKey = new JSONObject();
-            jsonKey.put("label", key.getLabel());
-            jsonKey.put("username", key.getUserName());
-            jsonKey.put("pub_key", key.getPubKey());
-            if (key.getDescription() != null)
-                jsonKey.put("description", key.getDescription());
-            json.accumulate("ssh_keys", jsonKey);
-        }
-
-        String out = JSONUtils.valueToString(json, 1, 0);
+    private void writeKeys(HttpServletResponse response, List<SSHKey> keys, boolean pretty)    {
         response.setHeader("Content-Type", "application/json;charset=UTF-8");
         try {
-            Writer writer = response.getWriter();
-            writer.write(out);
-            writer.append('\n');
-            writer.close();
-            writer.flush();
+            JSONStreamWriter json = new JSONStreamWriter(response.getOutputStream(), pretty);
+            json.beginObject();
+            if (!keys.isEmpty()) {
+                json.name("ssh_keys");
+                if (keys.size() > 1)
+                    json.beginArray();
+                for (SSHKey key : keys) {
+                    json.beginObject()
+                        .field("label", key.getLabel())
+                        .field("username", key.getUserName())
+                        .field("pub_key", key.getPubKey())
+                        .field("comment", key.getComment())
+                        .field("fingerprint", key.getFingerprint())
+                        .field("version", key.getVersion())
+                        .field("description", key.getDescription())
+                        .endObject();
+                }
+                if (keys.size() > 1)
+                    json.endArray();
+            }
+            json.endObject();
+            json.close();
         } catch(IOException e)  {
             logger.warn("writeKeys(): Cannot write keys: "+e.getMessage());
             throw new GeneralException("Cannot write keys");
@@ -576,38 +890,56 @@ public class MPOA2SSHKeyServlet extends MyProxyDelegationServlet {
     }
 
     /**
-     * Does a basic sanity check on String key, whether it looks like an SSH
-     * public key.
+     * @return (strong) ETag for the given key, based on its version
      */
-    private boolean isSSHPubKey(String key) {
-        int firstSpace=key.indexOf(' ');
-        if (firstSpace<0)   {
-            logger.warn("Uploaded key does not contain a space");
-            return false;
-        }
+    private String createETag(SSHKey key) {
+        return "\"" + key.getVersion() + "\"";
+    }
 
-        // Get type part: must start with ssh-
-        String type=key.substring(0, firstSpace);
-        if (! type.substring(0,4).equals(SSH_KEY_START))   {
-            logger.warn("Uploaded key does not start with \""+SSH_KEY_START+"\"");
-            return false;
+    /**
+     * Parses the value of an If-Match header, containing a single ETag as
+     * created by {@link #createETag(SSHKey)}.
+     * @return expected version, or null when there is no header or it is *
+     * @throws OA2ATException with a 412 when the value cannot be parsed, since
+     * it then cannot match.
+     */
+    private Long parseIfMatch(String ifMatch) throws OA2ATException {
+        if (ifMatch == null || ifMatch.trim().equals("*"))
+            return null;
+        String etag = ifMatch.trim();
+        if (etag.startsWith("W/"))
+            etag = etag.substring(2);
+        if (etag.length() > 1 && etag.startsWith("\"") && etag.endsWith("\""))
+            etag = etag.substring(1, etag.length() - 1);
+        try {
+            return Long.parseLong(etag);
+        } catch (NumberFormatException e) {
+            throw new OA2ATException("precondition_failed", IF_MATCH_HEADER + " does not match", HttpStatus.SC_PRECONDITION_FAILED);
         }
+    }
 
-        // Get encoded part, also use trim to remove potential trailing newlines
-        int secondSpace=key.indexOf(' ', firstSpace+1);
-        String encoded;
-        if (secondSpace<0)
-            encoded=key.substring(firstSpace+1).trim();
-        else
-            encoded=key.substring(firstSpace+1,secondSpace).trim();
+    /**
+     * @return fingerprint of the public key of key, calculated when not yet
+     * stored, or null when invalid
+     */
+    private static String fingerprintOf(SSHKey key) {
+        String fingerprint = key.getFingerprint();
+        return (fingerprint != null) ? fingerprint : SSHPublicKey.fingerprintOf(key.getPubKey());
+    }
 
+    /**
+     * Parses String key as an SSH public key, verifying its type and contents.
+     * @throws OA2ATException in case key is not a valid SSH public key.
+     */
+    private SSHPublicKey parsePubKey(String key) throws OA2ATException {
         try {
-            byte[] decoded=Base64.getDecoder().decode(encoded);
-        } catch(IllegalArgumentException e) {
-            logger.warn("Uploaded key does not contain base64-encoded part");
-            return false;
+            return SSHPublicKey.parse(key);
+        } catch (InvalidSSHKeyException e) {
+            logger.warn("Uploaded key is invalid: "+e.getMessage());
+            throw new OA2ATException(OA2Errors.INVALID_REQUEST,
+                    PUBKEY_PARAMETER + " value is not a valid SSH public key: " + e.getMessage(),
+                    HttpStatus.SC_BAD_REQUEST);
         }
-        return true;
     }
 
 
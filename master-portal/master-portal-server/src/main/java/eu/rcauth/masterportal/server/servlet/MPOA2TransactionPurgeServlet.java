@@ -0,0 +1,81 @@
+package eu.rcauth.masterportal.server.servlet;
+
+import eu.rcauth.masterportal.server.MPOA2SE;
+import eu.rcauth.masterportal.server.MPOA2ServiceTransaction;
+import eu.rcauth.masterportal.server.storage.MPOA2TransactionKeys;
+import eu.rcauth.masterportal.storage.sql.ExpiredRowPurger;
+import eu.rcauth.masterportal.storage.sql.PurgeConfiguration;
+import eu.rcauth.masterportal.servlet.MPOA4MPConfigTags;
+
+import edu.uiuc.ncsa.myproxy.oa4mp.server.servlet.MyProxyDelegationServlet;
+import edu.uiuc.ncsa.security.delegation.server.ServiceTransaction;
+import edu.uiuc.ncsa.security.delegation.server.request.IssuerResponse;
+import edu.uiuc.ncsa.security.core.util.MyLoggingFacade;
+import edu.uiuc.ncsa.security.storage.sql.SQLStore;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet without endpoint, loaded on startup, which periodically deletes
+ * the expired transactions in batches using an {@link ExpiredRowPurger},
+ * based on their <code>mp_expires_at</code> column, see
+ * {@link MPOA2ServiceTransaction#getMaxLifetime()}. On startup it checks (or
+ * creates) that column and its index. When no purge is configured or the
+ * transaction store is not a SQL store, it does nothing.
+ */
+public class MPOA2TransactionPurgeServlet extends MyProxyDelegationServlet {
+    private ExpiredRowPurger purger = null;
+
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        MPOA2SE se = (MPOA2SE)getServiceEnvironment();
+        setEnvironment(se);
+        MyLoggingFacade logger = getMyLogger();
+
+        PurgeConfiguration config = se.getTransactionPurgeConfiguration();
+        if (config == null)
+            return;
+
+        if (!(se.getTransactionStore() instanceof SQLStore)) {
+            logger.warn("Purging expired transactions is only supported for SQL stores");
+            return;
+        }
+        se.getTransactionSchemaMigrator().checkOrMigrate(config.isMigrateSchema(),
+                "use migrate_schema in the CLI or set " + MPOA4MPConfigTags.PURGE_MIGRATE_SCHEMA +
+                " in the " + MPOA4MPConfigTags.PURGE + " node to create it", logger);
+
+        SQLStore store = (SQLStore)se.getTransactionStore();
+        MPOA2TransactionKeys keys = new MPOA2TransactionKeys();
+        purger = new ExpiredRowPurger("transactions", store.getConnectionPool(), store.getTable(),
+                                      store.getTable().getPrimaryKeyColumnName(), keys.mp_expires_at(),
+                                      0L, config);
+        purger.start(logger);
+    }
+
+    @Override
+    public void destroy() {
+        if (purger != null)
+            purger.stop();
+        super.destroy();
+    }
+
+    /**
+     * Not implemented
+     * @return null
+     */
+    @Override
+    public ServiceTransaction verifyAndGet(IssuerResponse iResponse) {
+        return null;
+    }
+
+    /**
+     * This servlet has no endpoint.
+     */
+    @Override
+    protected void doIt(HttpServletRequest request, HttpServletResponse response) throws Throwable {
+        response.sendError(HttpServletResponse.SC_NOT_FOUND);
+    }
+}
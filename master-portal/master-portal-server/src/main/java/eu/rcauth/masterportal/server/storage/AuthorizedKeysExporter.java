@@ -0,0 +1,275 @@
+package eu.rcauth.masterportal.server.storage;
+
+import eu.rcauth.masterportal.server.exception.InvalidSSHKeyException;
+
+import edu.uiuc.ncsa.security.core.exceptions.GeneralException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * Writes the keys of a {@link SSHKeyStore} to disk, such that sshd can use
+ * them without any network traffic. There are two modes:
+ * <ul>
+ *     <li>single file: the given path is a file containing a line with
+ *     username and public key per key, i.e. the same as the text output of
+ *     the <code>/sshkeylisting</code> endpoint. Note that this is a listing
+ *     for e.g. an <code>AuthorizedKeysCommand</code> script, not an
+ *     authorized_keys file: sshd would take the username for options.</li>
+ *     <li>per user: the given path is a (dedicated) directory containing an
+ *     authorized_keys file per username, for use with e.g.
+ *     <code>AuthorizedKeysFile /etc/ssh/mp_keys/%u</code>. The directory
+ *     contains a manifest {@link #MANIFEST} listing the files written by the
+ *     exporter, and only those files are ever removed. The exporter refuses
+ *     to use a non-empty directory without a manifest, such that a
+ *     misconfigured path like <code>/etc/ssh</code> is left alone.</li>
+ * </ul>
+ * Files are only rewritten when their contents change, which is detected
+ * using a SHA-256 digest of the new contents. Each file is first written to a
+ * temporary file in the same directory and then renamed atomically. Only
+ * keys that can be parsed are written, in normalized form, which also
+ * prevents injecting authorized_keys options.
+ * <p>
+ * This class is not thread-safe, {@link #export(Consumer)} should be
+ * called from a single thread.
+ */
+public class AuthorizedKeysExporter {
+    /** name of the manifest in per-user mode, listing the exported files */
+    public static final String MANIFEST = ".mp_authorized_keys";
+    /** prefix of temporary files */
+    private static final String TMP_PREFIX = ".";
+    /** suffix of temporary files */
+    private static final String TMP_SUFFIX = ".tmp";
+    /** usernames that can safely be used as filename */
+    private static final Pattern SAFE_USERNAME = Pattern.compile("[A-Za-z0-9_@][A-Za-z0-9._@+-]*");
+
+    private final File path;
+    private final boolean perUser;
+    private final long interval;
+
+    /** digest of the current contents per file name */
+    private Map<String, byte[]> digests = null;
+    /** in per-user mode the names in the manifest, i.e. the files we own */
+    private Set<String> exported = null;
+
+    /**
+     * @param path file or directory to write to
+     * @param perUser whether to write a file per user into directory path
+     * @param interval export interval in seconds
+     */
+    public AuthorizedKeysExporter(File path, boolean perUser, long interval) {
+        this.path = path;
+        this.perUser = perUser;
+        this.interval = interval;
+    }
+
+    /** @return file or directory to write to */
+    public File getPath() {
+        return path;
+    }
+
+    /** @return whether a file per user is written */
+    public boolean isPerUser() {
+        return perUser;
+    }
+
+    /** @return export interval in seconds */
+    public long getInterval() {
+        return interval;
+    }
+
+    /**
+     * Writes the given keys to disk, rewriting only the files that changed.
+     * Only the username and normalized public key of each key are kept in
+     * memory.
+     * @param keys streams the username and public key of all keys into the
+     * given consumer, typically {@link SSHKeyStore#forEachPubKey}
+     * @return number of files written or removed
+     * @throws IOException in case of errors writing a file
+     */
+    public int export(Consumer<BiConsumer<String, String>> keys) throws IOException {
+        // Sort on username and public key, such that the output is stable
+        Map<String, Set<String>> users = new TreeMap<>();
+        keys.accept((userName, pubKey) -> {
+            String normalized;
+            try {
+                normalized = SSHPublicKey.parse(pubKey).getNormalized();
+            } catch (InvalidSSHKeyException e) {
+                return;
+            }
+            if (userName != null)
+                users.computeIfAbsent(userName, u -> new TreeSet<>()).add(normalized);
+        });
+
+        if (perUser)
+            return exportPerUser(users);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Map.Entry<String, Set<String>> user : users.entrySet()) {
+            if (user.getKey().indexOf('\n') >= 0 || user.getKey().indexOf(' ') >= 0)
+                continue;
+            for (String pubKey : user.getValue())
+                out.write((user.getKey() + " " + pubKey + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        if (digests == null)
+            digests = readDigests(path.getAbsoluteFile().getParentFile(), Arrays.asList(path.getName()));
+        return write(path.getAbsoluteFile().getParentFile(), path.getName(), out.toByteArray()) ? 1 : 0;
+    }
+
+    //////////////////////////////////////////////////////////////////////////
+    // Internal methods
+    //////////////////////////////////////////////////////////////////////////
+
+    private int exportPerUser(Map<String, Set<String>> users) throws IOException {
+        if (!path.isDirectory() && !path.mkdirs())
+            throw new IOException("Cannot create directory " + path);
+        if (exported == null) {
+            exported = readManifest();
+            digests = readDigests(path, exported);
+        }
+
+        Set<String> current = new HashSet<>();
+        for (String userName : users.keySet()) {
+            if (SAFE_USERNAME.matcher(userName).matches())
+                current.add(userName);
+        }
+
+        // Record new files in the manifest before creating them, such that
+        // they are always cleaned up later on
+        if (!exported.containsAll(current)) {
+            Set<String> names = new HashSet<>(exported);
+            names.addAll(current);
+            writeManifest(names);
+        }
+
+        int changed = 0;
+        for (String userName : current) {
+            StringBuilder contents = new StringBuilder();
+            for (String pubKey : users.get(userName))
+                contents.append(pubKey).append('\n');
+            if (write(path, userName, contents.toString().getBytes(StandardCharsets.UTF_8)))
+                changed++;
+        }
+
+        // Remove the files we wrote for users without keys
+        for (String name : new ArrayList<>(exported)) {
+            if (!current.contains(name)) {
+                if (Files.deleteIfExists(new File(path, name).toPath()))
+                    changed++;
+                digests.remove(name);
+            }
+        }
+        if (!exported.equals(current))
+            writeManifest(current);
+        return changed;
+    }
+
+    /**
+     * Reads the manifest of the per-user directory. When there is none, the
+     * directory must be empty and an empty manifest is created.
+     * @return names of the files written by the exporter
+     * @throws IOException when the directory is not empty but has no manifest
+     */
+    private Set<String> readManifest() throws IOException {
+        File manifest = new File(path, MANIFEST);
+        if (manifest.isFile()) {
+            Set<String> names = new HashSet<>();
+            for (String name : Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8)) {
+                // Never trust a name that is not a file we could have written
+                if (SAFE_USERNAME.matcher(name).matches())
+                    names.add(name);
+            }
+            return names;
+        }
+
+        String[] existing = path.list();
+        if (existing != null) {
+            for (String name : existing) {
+                if (!(name.startsWith(TMP_PREFIX) && name.endsWith(TMP_SUFFIX)))
+                    throw new IOException("Refusing to export ssh keys into non-empty directory " + path +
+                                          " without " + MANIFEST + " file");
+            }
+        }
+        writeManifest(new HashSet<>());
+        return new HashSet<>();
+    }
+
+    /**
+     * Atomically replaces the manifest with the given sorted names.
+     */
+    private void writeManifest(Set<String> names) throws IOException {
+        StringBuilder contents = new StringBuilder();
+        for (String name : new TreeSet<>(names))
+            contents.append(name).append('\n');
+        File tmpFile = new File(path, TMP_PREFIX + MANIFEST + TMP_SUFFIX);
+        try (FileOutputStream out = new FileOutputStream(tmpFile)) {
+            out.write(contents.toString().getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+        Files.move(tmpFile.toPath(), new File(path, MANIFEST).toPath(),
+                   StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        exported = new HashSet<>(names);
+    }
+
+    /**
+     * Atomically replaces the file name in directory dir with given contents,
+     * unless it already has those contents.
+     * @return whether the file was written
+     */
+    private boolean write(File dir, String name, byte[] contents) throws IOException {
+        byte[] digest = digest(contents);
+        if (Arrays.equals(digest, digests.get(name)))
+            return false;
+
+        File tmpFile = new File(dir, TMP_PREFIX + name + TMP_SUFFIX);
+        try (FileOutputStream out = new FileOutputStream(tmpFile)) {
+            out.write(contents);
+            out.getFD().sync();
+        }
+        Files.move(tmpFile.toPath(), new File(dir, name).toPath(),
+                   StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        digests.put(name, digest);
+        return true;
+    }
+
+    /**
+     * @return digests of the given existing files in dir
+     */
+    private static Map<String, byte[]> readDigests(File dir, Collection<String> names) throws IOException {
+        Map<String, byte[]> digests = new HashMap<>();
+        for (String name : names) {
+            File file = new File(dir, name);
+            if (file.isFile())
+                digests.put(name, digest(Files.readAllBytes(file.toPath())));
+        }
+        return digests;
+    }
+
+    private static byte[] digest(byte[] contents) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(contents);
+        } catch (NoSuchAlgorithmException e) {
+            // Cannot happen: every Java platform supports SHA-256
+            throw new GeneralException("SHA-256 not available", e);
+        }
+    }
+}
@@ -11,6 +11,8 @@ import edu.uiuc.ncsa.security.storage.data.ConversionMap;
 
 import net.sf.json.JSONObject;
 
+import java.util.Date;
+
 public class MPOA2TConverter<V extends MPOA2ServiceTransaction> extends OA2TConverter<V> {
 
     public MPOA2TConverter(MPOA2TransactionKeys keys, IdentifiableProvider<V> identifiableProvider, TokenForge tokenForge, ClientStore<? extends Client> cs) {
@@ -49,6 +51,10 @@ public class MPOA2TConverter<V extends MPOA2ServiceTransaction> extends OA2TConv
             // String in the map, or fromMap() above cannot parse it.
             map.put( tck.claims , claims.toString() );
         }
+
+        // Only used for purging expired transactions, hence not read back
+        if (tck.isExpiresAtEnabled())
+            map.put(tck.mp_expires_at, new Date(System.currentTimeMillis() + t.getMaxLifetime()));
     }
 
 }
@@ -10,6 +10,7 @@ public class MPOA2TransactionKeys extends OA2TransactionKeys {
 
     protected String mp_client_session_identifier = "mp_client_session_identifier";
     protected String claims = "claims";
+    protected String mp_expires_at = "mp_expires_at";
 
     public String mp_client_session_identifier(String... x) {
         if (0 < x.length)
@@ -23,4 +24,21 @@ public class MPOA2TransactionKeys extends OA2TransactionKeys {
         return claims;
     }
 
+    public String mp_expires_at(String... x) {
+        if (0 < x.length)
+            mp_expires_at = x[0];
+        return mp_expires_at;
+    }
+
+    /** whether the {@link #mp_expires_at} column is used, only when purging is configured */
+    protected boolean expiresAtEnabled = false;
+
+    public void setExpiresAtEnabled(boolean expiresAtEnabled) {
+        this.expiresAtEnabled = expiresAtEnabled;
+    }
+
+    public boolean isExpiresAtEnabled() {
+        return expiresAtEnabled;
+    }
+
 }
@@ -11,7 +11,9 @@ import static edu.uiuc.ncsa.security.core.util.BeanUtils.checkEquals;
  * <p>Created by Mischa Sall&eacute;<br>
  * SSHKey objects describe individual SSH public keys: identified by the unique
  * combination label, username, they further contain a single public key and an
- * optional description.
+ * optional description. The public key is normally stored in its normalized
+ * form (see {@link SSHPublicKey}), with its comment and fingerprint stored
+ * separately.
  */
 public class SSHKey extends IdentifiableImpl {
 
@@ -26,6 +28,9 @@ public class SSHKey extends IdentifiableImpl {
     protected String userName;
     protected String pubKey;
     protected String description;
+    protected String comment;
+    protected String fingerprint;
+    protected long version = 0;
 
     /**
      * constructs an SSHKey from given identifier, note that this does not work
@@ -66,6 +71,17 @@ public class SSHKey extends IdentifiableImpl {
         this.description=description;
     }
 
+    /**
+     * constructs a copy of the given SSHKey.
+     * @param key key to copy
+     */
+    public SSHKey(SSHKey key) {
+        this(key.getUserName(), key.getLabel(), key.getPubKey(), key.getDescription());
+        this.comment=key.getComment();
+        this.fingerprint=key.getFingerprint();
+        this.version=key.getVersion();
+    }
+
     /* GETTERS AND SETTERS */
 
     /**
@@ -120,6 +136,79 @@ public class SSHKey extends IdentifiableImpl {
         return description;
     }
 
+    /**
+     * set comment of the public key
+     * @param comment new comment for this key
+     */
+    public void setComment(String comment) {
+        this.comment = comment;
+    }
+
+    /** @return comment of the public key */
+    public String getComment() {
+        return comment;
+    }
+
+    /**
+     * set fingerprint of the public key
+     * @param fingerprint new (SHA256) fingerprint for this key
+     */
+    public void setFingerprint(String fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
+    /** @return (SHA256) fingerprint of the public key */
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * set version, which is increased by the store on each update
+     * @param version new version for this key
+     */
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    /** @return version of this key, as obtained from the store */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * sets the public key, comment and fingerprint from a parsed public key
+     * @param sshPublicKey parsed public key
+     */
+    public void setPublicKey(SSHPublicKey sshPublicKey) {
+        this.pubKey = sshPublicKey.getNormalized();
+        this.comment = sshPublicKey.getComment();
+        this.fingerprint = sshPublicKey.getFingerprint();
+    }
+
+    /**
+     * Returns the serial number of a label of the form prefix followed by
+     * digits, e.g. ssh-key-12. This is used for creating new default labels.
+     * @param label label to parse
+     * @param prefix prefix of the label
+     * @return serial number or -1 when the label does not match
+     */
+    public static int getLabelSerial(String label, String prefix) {
+        // Note: much cheaper than compiling and matching a regular expression
+        int len = label.length();
+        int start = prefix.length();
+        // Don't allow more than 9 digits to prevent overflow
+        if (len <= start || len - start > 9 || !label.startsWith(prefix))
+            return -1;
+        int serial = 0;
+        for (int i = start; i < len; i++) {
+            char c = label.charAt(i);
+            if (c < '0' || c > '9')
+                return -1;
+            serial = 10 * serial + (c - '0');
+        }
+        return serial;
+    }
+
     /**
      * set identifier
      * @param identifier new identifier for this key
@@ -162,6 +251,9 @@ public class SSHKey extends IdentifiableImpl {
            "	label:      " + label + "\n" +
            "	username:   " + userName + "\n" +
            "	publickey:  " + pubKey + "\n"+
+           "	comment:    " + comment + "\n"+
+           "	fingerprint:" + fingerprint + "\n"+
+           "	version:    " + version + "\n"+
            "	description:" + description + "\n";
 
     }
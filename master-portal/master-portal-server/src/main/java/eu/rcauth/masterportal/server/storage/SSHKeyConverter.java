@@ -32,6 +32,15 @@ public class SSHKeyConverter<V extends SSHKey> extends MapConverter<V> {
         v.setUserName( map.getString( getSKKeys().userName()) );
         v.setPubKey( map.getString( getSKKeys().pubKey()) );
         v.setDescription( map.getString( getSKKeys().description()) );
+        v.setComment( map.getString( getSKKeys().comment()) );
+        // Keys stored before fingerprints were introduced don't have one yet
+        String fingerprint = map.getString( getSKKeys().fingerprint());
+        if (fingerprint == null && v.getPubKey() != null)
+            fingerprint = SSHPublicKey.fingerprintOf(v.getPubKey());
+        v.setFingerprint(fingerprint);
+        // Version might be missing or null for old entries
+        Object version = map.get( getSKKeys().version());
+        v.setVersion(version instanceof Number ? ((Number)version).longValue() : 0L);
         return v;
     }
 
@@ -42,5 +51,8 @@ public class SSHKeyConverter<V extends SSHKey> extends MapConverter<V> {
         map.put( getSKKeys().userName() , v.getUserName());
         map.put( getSKKeys().pubKey() , v.getPubKey());
         map.put( getSKKeys().description() , v.getDescription());
+        map.put( getSKKeys().comment() , v.getComment());
+        map.put( getSKKeys().fingerprint() , v.getFingerprint());
+        map.put( getSKKeys().version() , v.getVersion());
     }
 }
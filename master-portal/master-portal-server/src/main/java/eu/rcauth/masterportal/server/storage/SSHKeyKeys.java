@@ -23,6 +23,12 @@ public class SSHKeyKeys extends SerializationKeys {
     String description = "description";
     /** column key of importTime column */
     String importTime = "import_time";
+    /** column key of comment column */
+    String comment = "comment";
+    /** column key of fingerprint column */
+    String fingerprint = "fingerprint";
+    /** column key of version column */
+    String version = "version";
 
     /**
      * return column key for label column
@@ -78,4 +84,37 @@ public class SSHKeyKeys extends SerializationKeys {
             importTime = x[0];
         return importTime;
     }
+
+    /**
+     * return column key for comment column
+     * @param x column keys
+     * @return column key for comment
+     */
+    public String comment(String... x) {
+        if (0 < x.length)
+            comment = x[0];
+        return comment;
+    }
+
+    /**
+     * return column key for fingerprint column
+     * @param x column keys
+     * @return column key for fingerprint
+     */
+    public String fingerprint(String... x) {
+        if (0 < x.length)
+            fingerprint = x[0];
+        return fingerprint;
+    }
+
+    /**
+     * return column key for version column
+     * @param x column keys
+     * @return column key for version
+     */
+    public String version(String... x) {
+        if (0 < x.length)
+            version = x[0];
+        return version;
+    }
 }
@@ -0,0 +1,42 @@
+package eu.rcauth.masterportal.server.storage;
+
+/**
+ * A single write operation (add, update or remove) on a {@link SSHKeyStore},
+ * used for executing a list of operations in one go via
+ * {@link SSHKeyStore#batch(java.util.List)}.
+ */
+public class SSHKeyOperation {
+
+    /** Type of write operation */
+    public enum Type { ADD, UPDATE, REMOVE }
+
+    protected final Type type;
+    protected final SSHKey key;
+
+    /**
+     * constructs a new operation of given type for given key.
+     * @param type type of operation
+     * @param key key to add, update or remove. For a remove, only the
+     * username and label need to be set.
+     */
+    public SSHKeyOperation(Type type, SSHKey key) {
+        this.type = type;
+        this.key = key;
+    }
+
+    /** @return type of operation */
+    public Type getType() {
+        return type;
+    }
+
+    /** @return key for this operation */
+    public SSHKey getKey() {
+        return key;
+    }
+
+    /** @return printable representation of the operation */
+    @Override
+    public String toString() {
+        return "SSHKeyOperation: " + type + " " + key.getUserName() + ":" + key.getLabel();
+    }
+}
@@ -2,6 +2,8 @@ package eu.rcauth.masterportal.server.storage;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.Set;
+import java.util.function.BiConsumer;
 
 import edu.uiuc.ncsa.security.core.Store;
 import eu.rcauth.masterportal.server.storage.sql.SQLSSHKeyStore;
@@ -17,19 +19,60 @@ public interface SSHKeyStore<V extends SSHKey> extends Store<V> {
     @Override
     Collection<V> values();
 
+    /**
+     * Passes the username and public key of every SSHKey to consumer, one at
+     * a time, without first collecting all the keys in memory.
+     * @param consumer receives the username and public key of each key
+     */
+    void forEachPubKey(BiConsumer<String, String> consumer);
+
     /**
      * @param userName username for whom to return the list of SSHkey
      * @return current list of SSHKey for given username */
     List<SSHKey> getAll(String userName);
 
+    /**
+     * @param userName username for whom to count the keys
+     * @return current number of SSHKey for given username, as needed for
+     * enforcing the maximum number of keys
+     */
+    int getCount(String userName);
+
+    /**
+     * @param userName username for whom to create a new label
+     * @param prefix prefix of the new label
+     * @return new label of the form prefix followed by a serial number, one
+     * higher than the highest existing one for this username.
+     * @see SSHKey#getLabelSerial(String, String)
+     */
+    String getNextLabel(String userName, String prefix);
+
+    /**
+     * Makes sure that subsequent reads for the given username see all
+     * preceding writes, e.g. by not using a read replica for a while. Should
+     * be called before reads on which a write will be based.
+     * @param userName username for which to bypass any read replica
+     */
+    void requirePrimary(String userName);
+
     /** adds a new {@link SSHKey} into the store. */
     @Override
     void save(SSHKey value);
 
-    /** updates an existing {@link SSHKey} in the store. */
+    /** updates an existing {@link SSHKey} in the store, increasing its version. */
     @Override
     void update(SSHKey value);
 
+    /**
+     * updates an existing {@link SSHKey} in the store, but only when its
+     * version in the store still equals the version of value. On success, the
+     * version of value is increased.
+     * @param value new value for the key
+     * @return true when updated, false when the key was modified (or removed)
+     * concurrently.
+     */
+    boolean updateIfUnchanged(SSHKey value);
+
     /** @return {@link SSHKey} from the store. */
     @Override
     V get(Object key);
@@ -38,7 +81,33 @@ public interface SSHKeyStore<V extends SSHKey> extends Store<V> {
     @Override
     V remove(Object key);
 
-    /** @return whether key is present in store. */
+    /** @return whether the public key of key is present in store, based on
+     * its fingerprint. */
     @Override
     boolean containsKey(Object key);
+
+    /**
+     * @param fingerprint public key fingerprint to look for
+     * @return SSHKey with given fingerprint or null when absent
+     * @see SSHPublicKey#getFingerprint()
+     */
+    SSHKey getByFingerprint(String fingerprint);
+
+    /**
+     * @param fingerprints collection of public key fingerprints to look for
+     * @return subset of the given fingerprints that are already present in the
+     * store.
+     * @see SSHPublicKey#getFingerprint()
+     */
+    Set<String> getRegistered(Collection<String> fingerprints);
+
+    /**
+     * Executes the given list of operations, in order, as a single
+     * transaction: either all or none of them are applied. Updates are only
+     * applied when the version of the key is unchanged.
+     * @param operations list of operations to execute
+     * @throws eu.rcauth.masterportal.server.exception.SSHKeyVersionConflictException
+     * when one of the keys to update has been modified concurrently.
+     */
+    void batch(List<SSHKeyOperation> operations);
 }
@@ -0,0 +1,276 @@
+package eu.rcauth.masterportal.server.storage;
+
+import eu.rcauth.masterportal.server.exception.InvalidSSHKeyException;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * Parsed SSH public key as found in e.g. an authorized_keys or id_*.pub file:
+ * <pre>
+ *     type base64-blob [comment]
+ * </pre>
+ * The base64-decoded blob is parsed according to the SSH wire format (RFC
+ * 4253, RFC 5656, RFC 8709 and the OpenSSH PROTOCOL.u2f document) to verify
+ * that it is a valid key of the given type and to obtain its size.
+ * Supported types are ssh-rsa, ssh-dss, ecdsa-sha2-nistp{256,384,521},
+ * ssh-ed25519 and the FIDO types sk-ecdsa-sha2-nistp256@openssh.com and
+ * sk-ssh-ed25519@openssh.com.
+ * <p>
+ * Two keys that only differ in their comment or whitespace have the same
+ * {@link #getNormalized() normalized form} and
+ * {@link #getFingerprint() fingerprint}.
+ */
+public class SSHPublicKey {
+    public static final String RSA = "ssh-rsa";
+    public static final String DSS = "ssh-dss";
+    public static final String ECDSA_PREFIX = "ecdsa-sha2-";
+    public static final String ED25519 = "ssh-ed25519";
+    public static final String SK_ECDSA = "sk-ecdsa-sha2-nistp256@openssh.com";
+    public static final String SK_ED25519 = "sk-ssh-ed25519@openssh.com";
+
+    /** prefix of a SHA256 fingerprint, as used by OpenSSH */
+    public static final String FINGERPRINT_PREFIX = "SHA256:";
+
+    /** length of an ed25519 public key */
+    private static final int ED25519_LENGTH = 32;
+
+    private final String type;
+    private final byte[] blob;
+    private final String comment;
+    private final int keySize;
+
+    private String normalized = null;
+    private String fingerprint = null;
+
+    private SSHPublicKey(String type, byte[] blob, String comment, int keySize) {
+        this.type = type;
+        this.blob = blob;
+        this.comment = comment;
+        this.keySize = keySize;
+    }
+
+    /**
+     * Parses a public key line of the form "type base64-blob [comment]".
+     * @param key public key line
+     * @return parsed key
+     * @throws InvalidSSHKeyException in case key is not a valid or supported
+     * SSH public key.
+     */
+    public static SSHPublicKey parse(String key) throws InvalidSSHKeyException {
+        if (key == null)
+            throw new InvalidSSHKeyException("SSH public key is null");
+
+        String trimmed = key.trim();
+        int firstSpace = indexOfWhitespace(trimmed, 0);
+        if (firstSpace < 0)
+            throw new InvalidSSHKeyException("SSH public key does not contain a space");
+        String type = trimmed.substring(0, firstSpace);
+
+        // Skip any further whitespace before the blob
+        int blobStart = firstSpace;
+        while (blobStart < trimmed.length() && Character.isWhitespace(trimmed.charAt(blobStart)))
+            blobStart++;
+        int blobEnd = indexOfWhitespace(trimmed, blobStart);
+        if (blobEnd < 0)
+            blobEnd = trimmed.length();
+
+        byte[] blob;
+        try {
+            blob = Base64.getDecoder().decode(trimmed.substring(blobStart, blobEnd));
+        } catch (IllegalArgumentException e) {
+            throw new InvalidSSHKeyException("SSH public key does not contain a base64-encoded part", e);
+        }
+
+        String comment = trimmed.substring(blobEnd).trim();
+
+        return new SSHPublicKey(type, blob, comment.isEmpty() ? null : comment, parseBlob(type, blob));
+    }
+
+    /**
+     * Convenience method: computes the fingerprint of a public key line.
+     * @param key public key line
+     * @return fingerprint or null when key cannot be parsed.
+     */
+    public static String fingerprintOf(String key) {
+        try {
+            return parse(key).getFingerprint();
+        } catch (InvalidSSHKeyException e) {
+            return null;
+        }
+    }
+
+    /** @return key type, e.g. ssh-ed25519 */
+    public String getType() {
+        return type;
+    }
+
+    /** @return copy of the raw (decoded) key blob */
+    public byte[] getBlob() {
+        return blob.clone();
+    }
+
+    /** @return comment or null when absent */
+    public String getComment() {
+        return comment;
+    }
+
+    /** @return key size in bits, e.g. modulus length for RSA or curve size */
+    public int getKeySize() {
+        return keySize;
+    }
+
+    /** @return normalized "type base64-blob" form, without comment */
+    public String getNormalized() {
+        if (normalized == null)
+            normalized = type + " " + Base64.getEncoder().encodeToString(blob);
+        return normalized;
+    }
+
+    /** @return OpenSSH style SHA256 fingerprint, e.g. SHA256:abc... */
+    public String getFingerprint() {
+        if (fingerprint == null) {
+            try {
+                byte[] digest = MessageDigest.getInstance("SHA-256").digest(blob);
+                fingerprint = FINGERPRINT_PREFIX + Base64.getEncoder().withoutPadding().encodeToString(digest);
+            } catch (NoSuchAlgorithmException e) {
+                // Cannot happen: every Java platform supports SHA-256
+                throw new IllegalStateException("SHA-256 not available", e);
+            }
+        }
+        return fingerprint;
+    }
+
+    /** @return printable representation: normalized form plus comment */
+    @Override
+    public String toString() {
+        return comment == null ? getNormalized() : getNormalized() + " " + comment;
+    }
+
+    //////////////////////////////////////////////////////////////////////////
+    // Wire format parsing
+    //////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Parses the blob for given type.
+     * @return key size in bits
+     */
+    private static int parseBlob(String type, byte[] blob) throws InvalidSSHKeyException {
+        Reader reader = new Reader(blob);
+        String blobType = reader.readString();
+        if (!type.equals(blobType))
+            throw new InvalidSSHKeyException("SSH public key type " + type + " does not match encoded type " + blobType);
+
+        int keySize;
+        if (type.equals(RSA)) {
+            BigInteger e = reader.readMPInt();
+            BigInteger n = reader.readMPInt();
+            if (e.signum() <= 0 || n.signum() <= 0)
+                throw new InvalidSSHKeyException("Invalid RSA public key");
+            keySize = n.bitLength();
+        } else if (type.equals(DSS)) {
+            BigInteger p = reader.readMPInt();
+            reader.readMPInt(); // q
+            reader.readMPInt(); // g
+            reader.readMPInt(); // y
+            keySize = p.bitLength();
+        } else if (type.startsWith(ECDSA_PREFIX)) {
+            keySize = readECPoint(reader, type.substring(ECDSA_PREFIX.length()));
+        } else if (type.equals(ED25519)) {
+            readED25519(reader);
+            keySize = 256;
+        } else if (type.equals(SK_ECDSA)) {
+            keySize = readECPoint(reader, "nistp256");
+            reader.readString(); // application
+        } else if (type.equals(SK_ED25519)) {
+            readED25519(reader);
+            reader.readString(); // application
+            keySize = 256;
+        } else {
+            throw new InvalidSSHKeyException("Unsupported SSH public key type " + type);
+        }
+
+        if (reader.remaining() != 0)
+            throw new InvalidSSHKeyException("Trailing data in SSH public key");
+        return keySize;
+    }
+
+    /**
+     * Reads curve name and uncompressed EC point for given curve.
+     * @return curve size in bits
+     */
+    private static int readECPoint(Reader reader, String curve) throws InvalidSSHKeyException {
+        int bits;
+        switch (curve) {
+            case "nistp256": bits = 256; break;
+            case "nistp384": bits = 384; break;
+            case "nistp521": bits = 521; break;
+            default:
+                throw new InvalidSSHKeyException("Unsupported ECDSA curve " + curve);
+        }
+        String blobCurve = reader.readString();
+        if (!curve.equals(blobCurve))
+            throw new InvalidSSHKeyException("ECDSA curve " + curve + " does not match encoded curve " + blobCurve);
+        byte[] q = reader.readBytes();
+        // Only uncompressed points are allowed: 0x04 || X || Y
+        if (q.length != 1 + 2 * ((bits + 7) / 8) || q[0] != 0x04)
+            throw new InvalidSSHKeyException("Invalid ECDSA public point");
+        return bits;
+    }
+
+    private static void readED25519(Reader reader) throws InvalidSSHKeyException {
+        if (reader.readBytes().length != ED25519_LENGTH)
+            throw new InvalidSSHKeyException("Invalid ed25519 public key length");
+    }
+
+    private static int indexOfWhitespace(String s, int from) {
+        for (int i = from; i < s.length(); i++) {
+            if (Character.isWhitespace(s.charAt(i)))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Reader for the SSH wire format primitives: uint32 length-prefixed
+     * strings and mpints.
+     */
+    private static class Reader {
+        private final byte[] data;
+        private int pos = 0;
+
+        Reader(byte[] data) {
+            this.data = data;
+        }
+
+        int remaining() {
+            return data.length - pos;
+        }
+
+        byte[] readBytes() throws InvalidSSHKeyException {
+            if (remaining() < 4)
+                throw new InvalidSSHKeyException("Truncated SSH public key");
+            long len = ((data[pos] & 0xffL) << 24) | ((data[pos+1] & 0xff) << 16) |
+                       ((data[pos+2] & 0xff) << 8) | (data[pos+3] & 0xff);
+            pos += 4;
+            if (len > remaining())
+                throw new InvalidSSHKeyException("Truncated SSH public key");
+            byte[] out = new byte[(int)len];
+            System.arraycopy(data, pos, out, 0, out.length);
+            pos += out.length;
+            return out;
+        }
+
+        String readString() throws InvalidSSHKeyException {
+            return new String(readBytes(), StandardCharsets.US_ASCII);
+        }
+
+        BigInteger readMPInt() throws InvalidSSHKeyException {
+            byte[] bytes = readBytes();
+            return bytes.length == 0 ? BigInteger.ZERO : new BigInteger(bytes);
+        }
+    }
+}
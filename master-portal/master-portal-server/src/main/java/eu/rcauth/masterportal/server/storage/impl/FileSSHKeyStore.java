@@ -0,0 +1,322 @@
+package eu.rcauth.masterportal.server.storage.impl;
+
+import eu.rcauth.masterportal.server.storage.SSHKey;
+import eu.rcauth.masterportal.server.storage.SSHKeyKeys;
+import eu.rcauth.masterportal.server.storage.SSHKeyOperation;
+import eu.rcauth.masterportal.servlet.util.FlatJSONParser;
+import eu.rcauth.masterportal.servlet.util.JSONStreamWriter;
+
+import edu.uiuc.ncsa.security.core.exceptions.GeneralException;
+import edu.uiuc.ncsa.security.core.util.MyLoggingFacade;
+
+import javax.inject.Provider;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * File-backed variant of the {@link MemorySSHKeyStore}. All keys are kept in
+ * memory, while every change is first appended to a log file
+ * (<code>ssh_keys.log</code> in the configured directory), containing one JSON
+ * record per line. Each record is either a put, containing the full new state
+ * of a key, or a remove. On startup the log is replayed. Records are written
+ * with a {@link JSONStreamWriter} and read with a {@link FlatJSONParser}, such
+ * that values like <code>"null"</code> are stored exactly as given.
+ * <p>
+ * Since the log keeps growing with every update, it is compacted when it
+ * contains more than twice the number of live keys (plus
+ * {@link #COMPACT_SLACK}) records: the live keys are written to a temporary
+ * file which then atomically replaces the log. A failing compaction is only
+ * logged, since the changes themselves have already been written.
+ * <p>
+ * When appending a batch fails, the log is truncated back to its length
+ * before the batch, such that neither the rejected operations nor a partially
+ * written record remain. If even that fails, the store is marked as failed and
+ * the next write first compacts the log from the in-memory state.
+ * <p>
+ * Note that the store should be used by a single server instance only.
+ */
+public class FileSSHKeyStore extends MemorySSHKeyStore {
+
+    /** name of the log file inside the store directory */
+    public static final String LOG_FILE = "ssh_keys.log";
+
+    /** number of superfluous records always allowed before compacting */
+    public static final int COMPACT_SLACK = 1000;
+
+    /** record field for the type of operation */
+    protected static final String OPERATION = "op";
+    protected static final String PUT = "put";
+    protected static final String REMOVE = "remove";
+
+    protected final File logFile;
+    protected final SSHKeyKeys keys = new SSHKeyKeys();
+    protected final MyLoggingFacade logger;
+
+    protected FileOutputStream logStream = null;
+    /** number of records in the log file */
+    protected long records = 0;
+    /** whether the log may contain records that were not applied in memory */
+    protected boolean failed = false;
+
+    /**
+     * Creates a new store in given directory, replaying any existing log.
+     * @param directory directory for the log file, created when needed
+     * @param identifiableProvider provider for new {@link SSHKey} objects
+     * @param logger for failing compactions, may be null
+     */
+    public FileSSHKeyStore(File directory, Provider<SSHKey> identifiableProvider, MyLoggingFacade logger) {
+        super(identifiableProvider);
+        this.logger = logger;
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new GeneralException("Cannot create directory " + directory + " for the SSH key store");
+        logFile = new File(directory, LOG_FILE);
+
+        synchronized (this) {
+            boolean truncated = replay();
+            if (truncated || needsCompaction())
+                compact();
+            else
+                openLog();
+        }
+    }
+
+    /**
+     * Appends the operations to the log and forces them to disk, before they
+     * are applied in memory. On failure the log is truncated back to its
+     * previous length.
+     */
+    @Override
+    protected void persist(List<SSHKeyOperation> operations) {
+        if (operations.isEmpty())
+            return;
+        // Rewrite the log from memory when an earlier rollback failed
+        if (failed)
+            compact();
+
+        long position;
+        byte[] bytes;
+        try {
+            // Encode the complete batch first, so nothing is buffered on failure
+            ByteArrayOutputStream batch = new ByteArrayOutputStream();
+            JSONStreamWriter json = new JSONStreamWriter(batch, false);
+            for (SSHKeyOperation operation : operations)
+                writeRecord(json, operation);
+            json.flush();
+            bytes = batch.toByteArray();
+
+            // The log is closed when reopening it after a compaction failed
+            if (logStream == null)
+                openLog();
+            position = logStream.getChannel().size();
+        } catch (IOException e) {
+            throw new GeneralException("Error writing to SSH key log " + logFile, e);
+        }
+        try {
+            logStream.write(bytes);
+            logStream.getFD().sync();
+        } catch (IOException e) {
+            rollback(position);
+            throw new GeneralException("Error writing to SSH key log " + logFile, e);
+        }
+        records += operations.size();
+    }
+
+    @Override
+    protected void apply(List<SSHKeyOperation> operations) {
+        super.apply(operations);
+        if (needsCompaction()) {
+            // The operations are already persisted and applied, hence a
+            // failing compaction should not fail the write
+            try {
+                compact();
+            } catch (GeneralException e) {
+                if (logger != null)
+                    logger.warn("Compacting SSH key log failed, will retry later: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Rewrites the log file such that it only contains the live keys.
+     */
+    public synchronized void compact() {
+        File tmpFile = new File(logFile.getParentFile(), LOG_FILE + ".tmp");
+        long written = 0;
+        try (FileOutputStream out = new FileOutputStream(tmpFile)) {
+            JSONStreamWriter json = new JSONStreamWriter(new BufferedOutputStream(out), false);
+            for (SSHKey key : values()) {
+                writeRecord(json, new SSHKeyOperation(SSHKeyOperation.Type.UPDATE, key));
+                written++;
+            }
+            json.flush();
+            out.getFD().sync();
+        } catch (IOException e) {
+            if (!tmpFile.delete() && tmpFile.exists() && logger != null)
+                logger.warn("Cannot remove temporary SSH key log " + tmpFile);
+            throw new GeneralException("Error compacting SSH key log " + logFile, e);
+        }
+
+        closeLog();
+        try {
+            Files.move(tmpFile.toPath(), logFile.toPath(),
+                       StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new GeneralException("Error replacing SSH key log " + logFile, e);
+        } finally {
+            // Reopen either the new or the still existing old log. When this
+            // fails, the next write tries again.
+            try {
+                openLog();
+            } catch (GeneralException e) {
+                if (logger != null)
+                    logger.warn(e.getMessage());
+            }
+        }
+        records = written;
+        failed = false;
+    }
+
+    /**
+     * Closes the log file.
+     */
+    public synchronized void close() {
+        closeLog();
+    }
+
+    //////////////////////////////////////////////////////////////////////////
+    // Internal methods
+    //////////////////////////////////////////////////////////////////////////
+
+    private boolean needsCompaction() {
+        return records > 2 * count.get() + COMPACT_SLACK;
+    }
+
+    /**
+     * Replays the log file into memory.
+     * @return true when the last record was incomplete, e.g. due to a crash
+     * while writing it.
+     */
+    private boolean replay() {
+        if (!logFile.exists())
+            return false;
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(logFile), StandardCharsets.UTF_8))) {
+            String line, invalid = null;
+            long lineNr = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNr++;
+                if (invalid != null)
+                    throw new GeneralException("Invalid record " + invalid + " in SSH key log " + logFile);
+                if (line.trim().isEmpty())
+                    continue;
+                try {
+                    Map<String, String> record = FlatJSONParser.parse(line);
+                    SSHKey key = fromRecord(record);
+                    if (REMOVE.equals(record.get(OPERATION)))
+                        removeEntry(key);
+                    else
+                        putEntry(key);
+                    records++;
+                } catch (IllegalArgumentException e) {
+                    // Only allowed for the last line
+                    invalid = "at line " + lineNr;
+                }
+            }
+            return invalid != null;
+        } catch (IOException e) {
+            throw new GeneralException("Error reading SSH key log " + logFile, e);
+        }
+    }
+
+    /**
+     * Truncates the log back to given length after a failed write. When that
+     * fails too, the log is closed and marked as failed, such that the next
+     * write compacts it first.
+     */
+    private void rollback(long position) {
+        try {
+            FileChannel channel = logStream.getChannel();
+            channel.truncate(position);
+            channel.force(true);
+        } catch (IOException e) {
+            failed = true;
+            closeLog();
+            if (logger != null)
+                logger.warn("Cannot truncate SSH key log " + logFile + " after a failed write, will compact it: " + e.getMessage());
+        }
+    }
+
+    private void openLog() {
+        try {
+            logStream = new FileOutputStream(logFile, true);
+        } catch (IOException e) {
+            throw new GeneralException("Error opening SSH key log " + logFile, e);
+        }
+    }
+
+    private void closeLog() {
+        if (logStream != null) {
+            try {
+                logStream.close();
+            } catch (IOException e) {
+                // Everything has been synced already
+            }
+            logStream = null;
+        }
+    }
+
+    /**
+     * Writes the record for given operation as one line.
+     */
+    private void writeRecord(JSONStreamWriter json, SSHKeyOperation operation) throws IOException {
+        SSHKey key = operation.getKey();
+        json.beginObject();
+        if (operation.getType() == SSHKeyOperation.Type.REMOVE) {
+            json.field(OPERATION, REMOVE);
+            json.name(keys.userName()).value(key.getUserName());
+            json.name(keys.label()).value(key.getLabel());
+        } else {
+            json.field(OPERATION, PUT);
+            json.name(keys.userName()).value(key.getUserName());
+            json.name(keys.label()).value(key.getLabel());
+            json.name(keys.pubKey()).value(key.getPubKey());
+            json.field(keys.description(), key.getDescription());
+            json.field(keys.comment(), key.getComment());
+            json.field(keys.fingerprint(), key.getFingerprint());
+            json.field(keys.version(), key.getVersion());
+        }
+        json.endObject();
+    }
+
+    /**
+     * @throws IllegalArgumentException when the username or label is missing
+     * or the version is not a number
+     */
+    private SSHKey fromRecord(Map<String, String> record) {
+        String userName = record.get(keys.userName());
+        String label = record.get(keys.label());
+        if (userName == null || label == null)
+            throw new IllegalArgumentException("Missing username or label");
+        SSHKey key = new SSHKey(userName, label);
+        key.setPubKey(record.get(keys.pubKey()));
+        key.setDescription(record.get(keys.description()));
+        key.setComment(record.get(keys.comment()));
+        key.setFingerprint(record.get(keys.fingerprint()));
+        String version = record.get(keys.version());
+        key.setVersion(version == null ? 0 : Long.parseLong(version));
+        return key;
+    }
+}
@@ -0,0 +1,385 @@
+package eu.rcauth.masterportal.server.storage.impl;
+
+import eu.rcauth.masterportal.server.exception.SSHKeyVersionConflictException;
+import eu.rcauth.masterportal.server.storage.SSHKey;
+import eu.rcauth.masterportal.server.storage.SSHKeyOperation;
+import eu.rcauth.masterportal.server.storage.SSHKeyStore;
+import eu.rcauth.masterportal.server.storage.SSHPublicKey;
+
+import edu.uiuc.ncsa.security.core.Identifier;
+import edu.uiuc.ncsa.security.core.exceptions.GeneralException;
+
+import javax.inject.Provider;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * In-memory implementation of a {@link SSHKeyStore}, e.g. for testing or for
+ * small single-node deployments. Keys are kept per user in concurrent hash
+ * maps, together with an index on the public key fingerprint, such that
+ * lookups don't need any locking. Writes are serialized on the store, which
+ * also makes {@link #batch(List)} atomic.
+ * <p>
+ * The store only hands out and keeps copies of the {@link SSHKey} objects, so
+ * that modifying a key does not change the store until it is written back.
+ * @see FileSSHKeyStore
+ */
+public class MemorySSHKeyStore extends AbstractMap<Identifier, SSHKey> implements SSHKeyStore<SSHKey> {
+
+    /** stored key together with its insertion order, replacing the import_time */
+    protected static class Entry {
+        final SSHKey key;
+        final long sequence;
+
+        Entry(SSHKey key, long sequence) {
+            this.key = key;
+            this.sequence = sequence;
+        }
+    }
+
+    protected final Provider<SSHKey> identifiableProvider;
+
+    /** keys per username, indexed by label */
+    protected final ConcurrentHashMap<String, ConcurrentHashMap<String, Entry>> users = new ConcurrentHashMap<>();
+    /** fingerprint index, pointing to the matching key */
+    protected final ConcurrentHashMap<String, SSHKey> fingerprints = new ConcurrentHashMap<>();
+    /** total number of keys */
+    protected final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    public MemorySSHKeyStore(Provider<SSHKey> identifiableProvider) {
+        this.identifiableProvider = identifiableProvider;
+    }
+
+    /* READ METHODS */
+
+    /** @return new (empty) SSHKey */
+    public SSHKey create() {
+        return identifiableProvider.get();
+    }
+
+    /** @return list of all keys */
+    public List<SSHKey> getAll() {
+        return new ArrayList<>(values());
+    }
+
+    @Override
+    public Collection<SSHKey> values() {
+        List<SSHKey> keys = new ArrayList<>((int)Math.min(count.get(), Integer.MAX_VALUE));
+        for (Map<String, Entry> userKeys : users.values()) {
+            for (Entry entry : userKeys.values())
+                keys.add(new SSHKey(entry.key));
+        }
+        return keys;
+    }
+
+    @Override
+    public void forEachPubKey(BiConsumer<String, String> consumer) {
+        for (Map<String, Entry> userKeys : users.values()) {
+            for (Entry entry : userKeys.values())
+                consumer.accept(entry.key.getUserName(), entry.key.getPubKey());
+        }
+    }
+
+    /**
+     * @return keys for the given user, most recently imported or updated
+     * first, like in the SQL store.
+     */
+    @Override
+    public List<SSHKey> getAll(String userName) {
+        Map<String, Entry> userKeys = users.get(userName);
+        if (userKeys == null)
+            return new ArrayList<>();
+        List<Entry> entries = new ArrayList<>(userKeys.values());
+        entries.sort((a, b) -> Long.compare(b.sequence, a.sequence));
+        List<SSHKey> keys = new ArrayList<>(entries.size());
+        for (Entry entry : entries)
+            keys.add(new SSHKey(entry.key));
+        return keys;
+    }
+
+    @Override
+    public int getCount(String userName) {
+        Map<String, Entry> userKeys = users.get(userName);
+        return userKeys == null ? 0 : userKeys.size();
+    }
+
+    @Override
+    public String getNextLabel(String userName, String prefix) {
+        int max = 0;
+        Map<String, Entry> userKeys = users.get(userName);
+        if (userKeys != null) {
+            for (String label : userKeys.keySet()) {
+                int serial = SSHKey.getLabelSerial(label, prefix);
+                if (serial > max)
+                    max = serial;
+            }
+        }
+        return prefix + (max + 1);
+    }
+
+    /** Nothing to do: all reads see all writes */
+    @Override
+    public void requirePrimary(String userName) {
+    }
+
+    @Override
+    public SSHKey get(Object key) {
+        SSHKey value = checkKey(key);
+        Entry entry = getEntry(value.getUserName(), value.getLabel());
+        return entry == null ? null : new SSHKey(entry.key);
+    }
+
+    /**
+     * @return whether the public key of key is already present, based on its
+     * fingerprint.
+     */
+    @Override
+    public boolean containsKey(Object key) {
+        SSHKey value = checkKey(key);
+        String fingerprint = value.getFingerprint();
+        if (fingerprint == null)
+            fingerprint = SSHPublicKey.fingerprintOf(value.getPubKey());
+        return fingerprint != null && fingerprints.containsKey(fingerprint);
+    }
+
+    @Override
+    public SSHKey getByFingerprint(String fingerprint) {
+        SSHKey key = (fingerprint == null) ? null : fingerprints.get(fingerprint);
+        return key == null ? null : new SSHKey(key);
+    }
+
+    @Override
+    public Set<String> getRegistered(Collection<String> fingerprints) {
+        Set<String> registered = new HashSet<>();
+        if (fingerprints != null) {
+            for (String fingerprint : fingerprints) {
+                if (this.fingerprints.containsKey(fingerprint))
+                    registered.add(fingerprint);
+            }
+        }
+        return registered;
+    }
+
+    @Override
+    public int size() {
+        return (int)Math.min(count.get(), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return count.get() == 0;
+    }
+
+    /** @return snapshot of all entries, changes to it don't affect the store */
+    @Override
+    public Set<Map.Entry<Identifier, SSHKey>> entrySet() {
+        Set<Map.Entry<Identifier, SSHKey>> entries = new LinkedHashSet<>();
+        for (SSHKey key : values())
+            entries.add(new SimpleEntry<>(key.getIdentifier(), key));
+        return Collections.unmodifiableSet(entries);
+    }
+
+    /* WRITE METHODS */
+
+    /** Adds key, currently just a wrapper around {@link #register(SSHKey)}. */
+    @Override
+    public void save(SSHKey value) {
+        register(value);
+    }
+
+    /** Adds a new key, which may not yet exist for the given username and label. */
+    @Override
+    public void register(SSHKey value) {
+        batch(Collections.singletonList(new SSHKeyOperation(SSHKeyOperation.Type.ADD, value)));
+        value.setVersion(0);
+    }
+
+    /** Updates an existing key, regardless of its version. */
+    @Override
+    public void update(SSHKey value) {
+        synchronized (this) {
+            Entry entry = getEntry(value.getUserName(), value.getLabel());
+            if (entry == null)
+                throw new GeneralException("Error updating entry for username=" + value.getUserName() + " label=" + value.getLabel() + ": not found");
+            SSHKey copy = new SSHKey(value);
+            copy.setVersion(entry.key.getVersion());
+            apply(Collections.singletonList(new SSHKeyOperation(SSHKeyOperation.Type.UPDATE, copy)));
+        }
+    }
+
+    @Override
+    public boolean updateIfUnchanged(SSHKey value) {
+        try {
+            batch(Collections.singletonList(new SSHKeyOperation(SSHKeyOperation.Type.UPDATE, value)));
+        } catch (SSHKeyVersionConflictException e) {
+            return false;
+        }
+        value.setVersion(value.getVersion() + 1);
+        return true;
+    }
+
+    /** Adds the key, use {@link #save(SSHKey)} instead. */
+    @Override
+    public SSHKey put(Identifier identifier, SSHKey value) {
+        SSHKey old = get(value);
+        if (old == null)
+            register(value);
+        else
+            update(value);
+        return old;
+    }
+
+    @Override
+    public SSHKey remove(Object key) {
+        SSHKey value = checkKey(key);
+        synchronized (this) {
+            Entry entry = getEntry(value.getUserName(), value.getLabel());
+            if (entry == null)
+                return null;
+            apply(Collections.singletonList(new SSHKeyOperation(SSHKeyOperation.Type.REMOVE, entry.key)));
+            return new SSHKey(entry.key);
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        List<SSHKeyOperation> operations = new ArrayList<>();
+        for (SSHKey key : values())
+            operations.add(new SSHKeyOperation(SSHKeyOperation.Type.REMOVE, key));
+        apply(operations);
+    }
+
+    /**
+     * Validates all operations against the current state and applies them
+     * only when they are all valid.
+     */
+    @Override
+    public synchronized void batch(List<SSHKeyOperation> operations) {
+        if (operations == null || operations.isEmpty())
+            return;
+
+        // Keep track of the effect of the operations on the (labels and
+        // versions of the) keys, without changing the store yet.
+        Map<String, SSHKey> pending = new HashMap<>();
+        List<SSHKeyOperation> checked = new ArrayList<>(operations.size());
+        for (SSHKeyOperation operation : operations) {
+            SSHKey value = operation.getKey();
+            String id = value.getUserName() + ":" + value.getLabel();
+            SSHKey current;
+            if (pending.containsKey(id)) {
+                current = pending.get(id);
+            } else {
+                Entry entry = getEntry(value.getUserName(), value.getLabel());
+                current = (entry == null) ? null : entry.key;
+            }
+
+            SSHKey result = null;
+            switch (operation.getType()) {
+                case ADD:
+                    if (current != null)
+                        throw new GeneralException("Error registering entry for username=" + value.getUserName() + " label=" + value.getLabel() + ": already exists");
+                    result = new SSHKey(value);
+                    break;
+                case UPDATE:
+                    if (current == null || current.getVersion() != value.getVersion())
+                        throw new SSHKeyVersionConflictException("SSH key has been modified concurrently");
+                    result = new SSHKey(value);
+                    result.setVersion(value.getVersion() + 1);
+                    break;
+                default:
+                    if (current == null)
+                        continue;
+                    result = null;
+            }
+            pending.put(id, result);
+            checked.add(new SSHKeyOperation(operation.getType(), result == null ? current : result));
+        }
+        apply(checked);
+    }
+
+    /**
+     * Applies the validated operations to the maps. Must be called while
+     * holding the lock on this store.
+     * @param operations operations containing the final state of the keys.
+     */
+    protected void apply(List<SSHKeyOperation> operations) {
+        persist(operations);
+        for (SSHKeyOperation operation : operations) {
+            SSHKey key = operation.getKey();
+            if (operation.getType() == SSHKeyOperation.Type.REMOVE)
+                removeEntry(key);
+            else
+                putEntry(key);
+        }
+    }
+
+    /**
+     * Called with the validated operations before they are applied in memory,
+     * can be overridden to make the store persistent. When this throws, the
+     * in-memory state remains unchanged.
+     * @param operations operations containing the final state of the keys.
+     */
+    protected void persist(List<SSHKeyOperation> operations) {
+        // Nothing to do for a memory store
+    }
+
+    /**
+     * Puts the given key in the maps, replacing any existing entry with the
+     * same username and label.
+     */
+    protected void putEntry(SSHKey key) {
+        SSHKey copy = new SSHKey(key);
+        if (copy.getFingerprint() == null)
+            copy.setFingerprint(SSHPublicKey.fingerprintOf(copy.getPubKey()));
+        Entry old = users.computeIfAbsent(copy.getUserName(), u -> new ConcurrentHashMap<>())
+                         .put(copy.getLabel(), new Entry(copy, sequence.incrementAndGet()));
+        if (old == null)
+            count.incrementAndGet();
+        else if (old.key.getFingerprint() != null)
+            fingerprints.remove(old.key.getFingerprint(), old.key);
+        if (copy.getFingerprint() != null)
+            fingerprints.put(copy.getFingerprint(), copy);
+    }
+
+    /**
+     * Removes the key with the username and label of the given key.
+     */
+    protected void removeEntry(SSHKey key) {
+        Map<String, Entry> userKeys = users.get(key.getUserName());
+        if (userKeys == null)
+            return;
+        Entry old = userKeys.remove(key.getLabel());
+        if (old == null)
+            return;
+        count.decrementAndGet();
+        if (old.key.getFingerprint() != null)
+            fingerprints.remove(old.key.getFingerprint(), old.key);
+        if (userKeys.isEmpty())
+            users.remove(key.getUserName(), userKeys);
+    }
+
+    private Entry getEntry(String userName, String label) {
+        Map<String, Entry> userKeys = users.get(userName);
+        return (userKeys == null || label == null) ? null : userKeys.get(label);
+    }
+
+    private SSHKey checkKey(Object key) {
+        if ( !(key instanceof SSHKey) )
+            throw new GeneralException("input key must be a SSHKey");
+        return (SSHKey) key;
+    }
+}
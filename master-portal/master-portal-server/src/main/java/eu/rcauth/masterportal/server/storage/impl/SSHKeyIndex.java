@@ -0,0 +1,366 @@
+package eu.rcauth.masterportal.server.storage.impl;
+
+import eu.rcauth.masterportal.server.exception.InvalidSSHKeyException;
+import eu.rcauth.masterportal.server.storage.SSHKey;
+import eu.rcauth.masterportal.server.storage.SSHPublicKey;
+
+import edu.uiuc.ncsa.security.core.exceptions.GeneralException;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact, read-only snapshot of all the public keys in a
+ * {@link eu.rcauth.masterportal.server.storage.SSHKeyStore}, used for the
+ * listing and fingerprint lookups of very large numbers of keys.
+ * <p>
+ * Instead of one {@link SSHKey} object graph per key, the decoded key blobs
+ * are stored back-to-back in a direct (off-heap) {@link ByteBuffer}, each
+ * record containing:
+ * <pre>
+ *     SHA256 digest (32 bytes) | username id (int) | type id (byte) | blob length (int) | blob
+ * </pre>
+ * Usernames and key types are interned into small on-heap tables. Lookups by
+ * fingerprint use an open-addressing (linear probing) hash table, also
+ * off-heap, containing the record offsets. Hence the heap usage and the
+ * amount of work for the garbage collector hardly depend on the number of
+ * keys.
+ * <p>
+ * The index is immutable and can be used concurrently. Keys that cannot be
+ * parsed are left out, see {@link #getSkipped()}.
+ */
+public class SSHKeyIndex {
+    /** length of a SHA256 digest */
+    private static final int DIGEST_LENGTH = 32;
+    /** length of the record header: digest, username id, type id and blob length */
+    private static final int HEADER_LENGTH = DIGEST_LENGTH + 4 + 1 + 4;
+    /** initial size of the data buffer while building */
+    private static final int INITIAL_CAPACITY = 1024 * 1024;
+
+    private final String[] userNames;
+    private final byte[][] userNamesUTF8;
+    private final String[] types;
+    private final ByteBuffer data;
+    private final IntBuffer table;
+    private final int mask;
+    private final int size;
+    private final int skipped;
+    private final long created = System.currentTimeMillis();
+
+    private SSHKeyIndex(List<String> userNames, List<String> types, ByteBuffer data,
+                        int[] offsets, int size, int skipped) {
+        this.userNames = userNames.toArray(new String[0]);
+        this.userNamesUTF8 = new byte[this.userNames.length][];
+        for (int i = 0; i < this.userNames.length; i++)
+            userNamesUTF8[i] = this.userNames[i].getBytes(StandardCharsets.UTF_8);
+        this.types = types.toArray(new String[0]);
+        this.data = data.asReadOnlyBuffer();
+        this.size = size;
+        this.skipped = skipped;
+
+        // Table size is a power of two of at least twice the number of keys,
+        // keeping the load factor below 0.5
+        int capacity = 16;
+        while (capacity < 2 * size)
+            capacity <<= 1;
+        this.mask = capacity - 1;
+        this.table = ByteBuffer.allocateDirect(4 * capacity).asIntBuffer();
+        for (int i = 0; i < size; i++) {
+            int offset = offsets[i];
+            int slot = this.data.getInt(offset) & mask;
+            int entry;
+            while ((entry = table.get(slot)) != 0) {
+                // Keep the first record for a duplicate key
+                if (digestEquals(entry - 1, offset))
+                    break;
+                slot = (slot + 1) & mask;
+            }
+            if (entry == 0)
+                table.put(slot, offset + 1);
+        }
+    }
+
+    /**
+     * Builds a new index from the given keys.
+     * @param keys keys to index
+     * @return new index
+     * @see Builder
+     */
+    public static SSHKeyIndex build(Iterable<SSHKey> keys) {
+        Builder builder = new Builder();
+        for (SSHKey key : keys)
+            builder.add(key.getUserName(), key.getPubKey());
+        return builder.build();
+    }
+
+    /**
+     * Incrementally builds a new index, one key at a time, such that the keys
+     * can be streamed (e.g. from a SQL result set) straight into the off-heap
+     * buffer without first collecting them. Not thread-safe.
+     */
+    public static class Builder {
+        private final MessageDigest sha256;
+        private final Map<String, Integer> userIds = new HashMap<>();
+        private final List<String> userNames = new ArrayList<>();
+        private final Map<String, Integer> typeIds = new HashMap<>();
+        private final List<String> types = new ArrayList<>();
+        private ByteBuffer buffer = ByteBuffer.allocateDirect(INITIAL_CAPACITY);
+        private int[] offsets = new int[1024];
+        private int size = 0, skipped = 0;
+
+        public Builder() {
+            try {
+                sha256 = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                // Cannot happen: every Java platform supports SHA-256
+                throw new IllegalStateException("SHA-256 not available", e);
+            }
+        }
+
+        /**
+         * Adds a key to the index, a key that cannot be parsed is counted as
+         * skipped.
+         * @param userName username of the key
+         * @param key public key as stored, e.g. ssh-ed25519 AAAA... comment
+         */
+        public void add(String userName, String key) {
+            SSHPublicKey pubKey;
+            try {
+                pubKey = SSHPublicKey.parse(key);
+            } catch (InvalidSSHKeyException e) {
+                skipped++;
+                return;
+            }
+            Integer typeId = typeIds.get(pubKey.getType());
+            if (typeId == null) {
+                if (types.size() == 256)
+                    throw new GeneralException("Too many different SSH key types for the index");
+                typeId = types.size();
+                typeIds.put(pubKey.getType(), typeId);
+                types.add(pubKey.getType());
+            }
+            Integer userId = userIds.get(userName);
+            if (userId == null) {
+                userId = userNames.size();
+                userIds.put(userName, userId);
+                userNames.add(userName);
+            }
+
+            byte[] blob = pubKey.getBlob();
+            int length = HEADER_LENGTH + blob.length;
+            if (buffer.remaining() < length)
+                buffer = grow(buffer, length);
+            if (size == offsets.length)
+                offsets = Arrays.copyOf(offsets, 2 * size);
+            offsets[size++] = buffer.position();
+            buffer.put(sha256.digest(blob));
+            buffer.putInt(userId);
+            buffer.put(typeId.byteValue());
+            buffer.putInt(blob.length);
+            buffer.put(blob);
+        }
+
+        /**
+         * @return new index containing all the added keys, the builder should
+         * not be used afterwards.
+         */
+        public SSHKeyIndex build() {
+            buffer.flip();
+            return new SSHKeyIndex(userNames, types, buffer, offsets, size, skipped);
+        }
+    }
+
+    /** @return number of indexed keys */
+    public int size() {
+        return size;
+    }
+
+    /** @return number of keys left out since they could not be parsed */
+    public int getSkipped() {
+        return skipped;
+    }
+
+    /** @return size in bytes of the off-heap key data */
+    public int getDataSize() {
+        return data.limit();
+    }
+
+    /** @return age of the index in milliseconds */
+    public long getAge() {
+        return System.currentTimeMillis() - created;
+    }
+
+    /**
+     * @param fingerprint SHA256 fingerprint as returned by
+     * {@link SSHPublicKey#getFingerprint()}
+     * @return whether a key with given fingerprint is present
+     */
+    public boolean contains(String fingerprint) {
+        return find(fingerprint) >= 0;
+    }
+
+    /**
+     * @param fingerprint SHA256 fingerprint as returned by
+     * {@link SSHPublicKey#getFingerprint()}
+     * @return username of the key with given fingerprint or null when absent
+     */
+    public String getUserName(String fingerprint) {
+        int offset = find(fingerprint);
+        return offset < 0 ? null : userNames[data.getInt(offset + DIGEST_LENGTH)];
+    }
+
+    /** @return cursor over all the keys in the index */
+    public Cursor cursor() {
+        return new Cursor(0, data.limit());
+    }
+
+    /**
+     * @param fingerprint SHA256 fingerprint
+     * @return cursor over the key with given fingerprint, empty when absent
+     */
+    public Cursor cursor(String fingerprint) {
+        int offset = find(fingerprint);
+        if (offset < 0)
+            return new Cursor(0, 0);
+        return new Cursor(offset, offset + HEADER_LENGTH + data.getInt(offset + HEADER_LENGTH - 4));
+    }
+
+    /**
+     * Forward-only cursor over (part of) the records, not thread-safe. Call
+     * {@link #next()} before accessing the first record.
+     */
+    public class Cursor {
+        private final int end;
+        private int next;
+        private int offset = -1;
+
+        private Cursor(int start, int end) {
+            this.next = start;
+            this.end = end;
+        }
+
+        /** @return whether there is a next record, moving to it */
+        public boolean next() {
+            if (next >= end)
+                return false;
+            offset = next;
+            next = offset + HEADER_LENGTH + getBlobLength();
+            return true;
+        }
+
+        /** @return username of the current key */
+        public String getUserName() {
+            return userNames[data.getInt(offset + DIGEST_LENGTH)];
+        }
+
+        /** @return UTF-8 encoded username of the current key, must not be modified */
+        public byte[] getUserNameUTF8() {
+            return userNamesUTF8[data.getInt(offset + DIGEST_LENGTH)];
+        }
+
+        /** @return type of the current key, e.g. ssh-ed25519 */
+        public String getType() {
+            return types[data.get(offset + DIGEST_LENGTH + 4) & 0xff];
+        }
+
+        /** @return length of the raw key blob of the current key */
+        public int getBlobLength() {
+            return data.getInt(offset + HEADER_LENGTH - 4);
+        }
+
+        /** @return copy of the raw key blob of the current key */
+        public byte[] getBlob() {
+            byte[] blob = new byte[getBlobLength()];
+            ByteBuffer view = data.duplicate();
+            view.position(offset + HEADER_LENGTH);
+            view.get(blob);
+            return blob;
+        }
+
+        /** @return SHA256 fingerprint of the current key, as returned by {@link SSHPublicKey#getFingerprint()} */
+        public String getFingerprint() {
+            byte[] digest = new byte[DIGEST_LENGTH];
+            ByteBuffer view = data.duplicate();
+            view.position(offset);
+            view.get(digest);
+            return SSHPublicKey.FINGERPRINT_PREFIX + Base64.getEncoder().withoutPadding().encodeToString(digest);
+        }
+
+        /** @return normalized public key of the current key: type and base64 blob */
+        public String getPubKey() {
+            return getType() + " " + Base64.getEncoder().encodeToString(getBlob());
+        }
+    }
+
+    //////////////////////////////////////////////////////////////////////////
+    // Internal methods
+    //////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @return offset of the record with given fingerprint, or -1
+     */
+    private int find(String fingerprint) {
+        if (fingerprint == null || !fingerprint.startsWith(SSHPublicKey.FINGERPRINT_PREFIX))
+            return -1;
+        byte[] digest;
+        try {
+            digest = Base64.getDecoder().decode(fingerprint.substring(SSHPublicKey.FINGERPRINT_PREFIX.length()));
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+        if (digest.length != DIGEST_LENGTH)
+            return -1;
+
+        int slot = ByteBuffer.wrap(digest).getInt() & mask;
+        int entry;
+        while ((entry = table.get(slot)) != 0) {
+            int offset = entry - 1;
+            if (digestEquals(offset, digest))
+                return offset;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private boolean digestEquals(int offset, byte[] digest) {
+        for (int i = 0; i < DIGEST_LENGTH; i++) {
+            if (data.get(offset + i) != digest[i])
+                return false;
+        }
+        return true;
+    }
+
+    private boolean digestEquals(int offset1, int offset2) {
+        for (int i = 0; i < DIGEST_LENGTH; i++) {
+            if (data.get(offset1 + i) != data.get(offset2 + i))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return new direct buffer containing the data of buffer, with room for
+     * at least needed more bytes.
+     */
+    private static ByteBuffer grow(ByteBuffer buffer, int needed) {
+        long capacity = Math.max(2L * buffer.capacity(), (long)buffer.position() + needed);
+        if (capacity > Integer.MAX_VALUE) {
+            if ((long)buffer.position() + needed > Integer.MAX_VALUE)
+                throw new GeneralException("SSH key index exceeds 2GB");
+            capacity = Integer.MAX_VALUE;
+        }
+        ByteBuffer grown = ByteBuffer.allocateDirect((int)capacity);
+        buffer.flip();
+        grown.put(buffer);
+        return grown;
+    }
+}
@@ -1,6 +1,7 @@
 package eu.rcauth.masterportal.server.storage.impl;
 
 import eu.rcauth.masterportal.server.storage.SSHKey;
+import eu.rcauth.masterportal.server.storage.SSHKeyIdentifier;
 
 import edu.uiuc.ncsa.security.core.Identifier;
 import edu.uiuc.ncsa.security.core.util.IdentifiableProviderImpl;
@@ -24,6 +25,6 @@ public class SSHKeyProvider<V extends SSHKey> extends IdentifiableProviderImpl<S
      */
     @Override
     public SSHKey get(boolean createNewIdentifier) {
-        return new SSHKey(null);
+        return new SSHKey((SSHKeyIdentifier)null);
     }
 }
@@ -3,8 +3,13 @@ package eu.rcauth.masterportal.server.storage.sql;
 import edu.uiuc.ncsa.security.core.Identifiable;
 import eu.rcauth.masterportal.server.storage.SSHKey;
 import eu.rcauth.masterportal.server.storage.SSHKeyKeys;
+import eu.rcauth.masterportal.server.storage.SSHKeyOperation;
 import eu.rcauth.masterportal.server.storage.SSHKeyStore;
+import eu.rcauth.masterportal.server.storage.SSHPublicKey;
+import eu.rcauth.masterportal.server.exception.InvalidSSHKeyException;
+import eu.rcauth.masterportal.server.exception.SSHKeyVersionConflictException;
 import eu.rcauth.masterportal.server.storage.sql.table.SSHKeyTable;
+import eu.rcauth.masterportal.storage.sql.SchemaMigrator;
 
 import edu.uiuc.ncsa.security.core.exceptions.GeneralException;
 import edu.uiuc.ncsa.security.core.util.BasicIdentifier;
@@ -23,19 +28,53 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 
 import static java.sql.Types.LONGVARCHAR;
 
 /**
  * <p>Created by Mischa Sall&eacute;<br>
  * Main and SQL-based implementation of a {@link SSHKeyStore}.
+ * <p>
+ * Optionally a second connection pool can be set for a read-only replica,
+ * which is then used for {@link #values()}, {@link #getAll(String)} and
+ * {@link #get(Object)}. To make sure users see their own changes, reads for
+ * a username for which this store wrote recently still go to the primary.
+ * All reads that precede a write (e.g. the uniqueness and quota checks) always
+ * use the primary.
  */
 public class SQLSSHKeyStore extends SQLStore<SSHKey> implements SSHKeyStore<SSHKey> {
     /** SQL table name for the SSH Keys */
     public static final String DEFAULT_TABLENAME = "ssh_keys";
 
+    /** maximum number of values in a single SQL IN (...) list */
+    private static final int MAX_IN_LIST = 500;
+
+    /** time in milliseconds after a write during which reads for that user use the primary */
+    private static final long READ_YOUR_WRITES_WINDOW = 10000L;
+    /**
+     * number of users for which recent writes are tracked above which
+     * expired entries are removed. This is not a hard limit: entries that
+     * have not yet expired are always kept.
+     */
+    private static final int RECENT_WRITES_SIZE = 10000;
+    /** minimum time in milliseconds between two removals of expired recent writes */
+    private static final long RECENT_WRITES_SWEEP_INTERVAL = 1000L;
+
+    /** optional connection pool for a read-only replica */
+    protected ConnectionPool readConnectionPool = null;
+
+    /** per username the time until which reads should use the primary */
+    private final ConcurrentHashMap<String, Long> recentWrites = new ConcurrentHashMap<>();
+    /** time of the last removal of expired recent writes */
+    private final AtomicLong lastRecentWritesSweep = new AtomicLong(0L);
 
     public SQLSSHKeyStore(ConnectionPool connectionPool,
             Table table,
@@ -44,12 +83,42 @@ public class SQLSSHKeyStore extends SQLStore<SSHKey> implements SSHKeyStore<SSHK
         super(connectionPool, table, identifiableProvider, converter);
     }
 
+    /**
+     * @param readConnectionPool connection pool for a read-only replica, or
+     * null to use the primary for all reads.
+     */
+    public void setReadConnectionPool(ConnectionPool readConnectionPool) {
+        this.readConnectionPool = readConnectionPool;
+    }
+
+    /** @return connection pool for the read-only replica, or null */
+    public ConnectionPool getReadConnectionPool() {
+        return readConnectionPool;
+    }
+
+    /**
+     * @return migrator for the comment, fingerprint and version columns added
+     * since the first version, the primary key on username and label, used
+     * for all single key operations, and the index on fingerprint, used for
+     * the uniqueness checks. Note that new migrations should only be appended.
+     */
+    public SchemaMigrator getSchemaMigrator() {
+        SSHKeyKeys x = new SSHKeyKeys();
+        return new SchemaMigrator(getConnectionPool(), getTable())
+                .column(x.comment(), "TEXT")
+                .column(x.fingerprint(), "VARCHAR(64)")
+                .column(x.version(), "BIGINT NOT NULL DEFAULT 0")
+                .primaryKey(x.userName(), x.label())
+                .index(x.fingerprint());
+    }
+
     /**
      * @return List of all {@link SSHKey} entries in the DB for given username
      */
     @Override
     public List<SSHKey> getAll(String username)    {
-        Connection c = getConnection();
+        ConnectionPool pool = getReadPool(username);
+        Connection c = pool.pop();
         List<SSHKey> resultSet = new ArrayList<>();
         try {
             PreparedStatement stmt = c.prepareStatement( ((SSHKeyTable)getTable()).createUserSelectStatement());
@@ -68,16 +137,75 @@ public class SQLSSHKeyStore extends SQLStore<SSHKey> implements SSHKeyStore<SSHK
             rs.close();
             stmt.close();
         } catch (SQLException e) {
-            destroyConnection(c);
+            pool.destroy(c);
             throw new GeneralException("Error getting SSH keys for " + username, e);
         } finally {
-            releaseConnection(c);
+            pool.push(c);
         }
 
         // Even return resultSet if it is an empty set
         return resultSet;
     }
 
+    /**
+     * @return number of {@link SSHKey} entries in the DB for given username,
+     * using a COUNT(*) query on the primary. Since several servers may share
+     * the database, the result is not cached.
+     */
+    @Override
+    public int getCount(String username) {
+        int count = 0;
+        Connection c = getConnection();
+        try {
+            PreparedStatement stmt = c.prepareStatement( ((SSHKeyTable)getTable()).createUserCountStatement());
+            stmt.setString(1, username);
+            ResultSet rs = stmt.executeQuery();
+            if (rs.next())
+                count = rs.getInt(1);
+            rs.close();
+            stmt.close();
+        } catch (SQLException e) {
+            destroyConnection(c);
+            throw new GeneralException("Error counting SSH keys for " + username, e);
+        } finally {
+            releaseConnection(c);
+        }
+        return count;
+    }
+
+    /**
+     * @return new label for the given username, only fetching the labels
+     * starting with prefix. Note that the prefix should not contain SQL LIKE
+     * wildcards.
+     */
+    @Override
+    public String getNextLabel(String username, String prefix) {
+        int max = 0;
+        Connection c = getConnection();
+        try {
+            PreparedStatement stmt = c.prepareStatement( ((SSHKeyTable)getTable()).createUserLabelsSelectStatement());
+            stmt.setString(1, username);
+            stmt.setString(2, prefix + "%");
+            ResultSet rs = stmt.executeQuery();
+            // Take the maximum over all matching labels: user-chosen labels
+            // may have leading zeros, hence neither length nor lexical order
+            // gives the highest serial
+            while (rs.next()) {
+                int serial = SSHKey.getLabelSerial(rs.getString(1), prefix);
+                if (serial > max)
+                    max = serial;
+            }
+            rs.close();
+            stmt.close();
+        } catch (SQLException e) {
+            destroyConnection(c);
+            throw new GeneralException("Error getting SSH key labels for " + username, e);
+        } finally {
+            releaseConnection(c);
+        }
+        return prefix + (max + 1);
+    }
+
     /**
      * Adds key to the specified username, currently just a wrapper around
      * {@link #register(SSHKey)}.
@@ -103,21 +231,10 @@ public class SQLSSHKeyStore extends SQLStore<SSHKey> implements SSHKeyStore<SSHK
 
             SSHKeyTable table = (SSHKeyTable)getTable();
             PreparedStatement stmt = c.prepareStatement( table.createInsertStatement() );
-            ColumnMap map = depopulate(value);
-            int i = 1;
-            for (ColumnDescriptorEntry cde : table.getColumnDescriptor()) {
-                // now we loop through the table and set each and every one of these
-                // OAUTH-148 fix: MariaDB driver does not accept longvarchar as a type in setObject (known bug for
-                // them. Workaround is to explicitly test for this and carry out a setString call instead.
-                if (cde.getType() == LONGVARCHAR) {
-                    Object obj = map.get(cde.getName());
-                    stmt.setString(i++, obj == null ? null : obj.toString());
-                } else {
-                    stmt.setObject(i++, map.get(cde.getName()), cde.getType());
-                }
-            }
+            setInsertParameters(stmt, value);
             stmt.execute();// just execute() since executeQuery(x) would throw an exception regardless of content of x as per JDBC spec.
             stmt.close();
+            requirePrimary(value.getUserName());
         } catch (SQLException e) {
             destroyConnection(c);
             throw new GeneralException("Error registering entry for username=" + value.getUserName() + " label=" + value.getLabel(), e);
@@ -134,40 +251,41 @@ public class SQLSSHKeyStore extends SQLStore<SSHKey> implements SSHKeyStore<SSHK
     @Override
     public void update(SSHKey value) {
         Connection c = getConnection();
-        // Get the column headers
-        SSHKeyKeys sshKeyKeys = new SSHKeyKeys();
-        String userNameColumn = sshKeyKeys.userName();
-        String labelColumn = sshKeyKeys.label();
         try {
             SSHKeyTable table = (SSHKeyTable)getTable();
             PreparedStatement stmt = c.prepareStatement( table.createUpdateStatement() );
-            ColumnMap map = depopulate(value);
-            int i = 1;
-            for (ColumnDescriptorEntry cde : table.getColumnDescriptor()) {
-                // now we loop through the table and set each and every one of these
-                String name = cde.getName();
-                // Only can update the non-username, non-label entries
-                if (!name.equals(userNameColumn) && !name.equals(labelColumn)) {
-                    Object obj = map.get(name);
-                    // Dates confuse setObject, so turn it into an SQL Timestamp object.
-                    if (obj instanceof Date) {
-                        obj = new Timestamp(((Date) obj).getTime());
-                    }
-
-                    if (obj instanceof BasicIdentifier)
-                        stmt.setString(i++, obj.toString());
-                    else
-                        stmt.setObject(i++, obj);
-                }
-            }
-
-            // now set the matching keys: userName and label
-            stmt.setString(i++, value.getUserName());
-            stmt.setString(i, value.getLabel()); // Note: when we add more, change i -> i++ here
+            setUpdateParameters(stmt, value);
 
             stmt.executeUpdate();
             stmt.close();
+            requirePrimary(value.getUserName());
+        } catch (SQLException e) {
+            destroyConnection(c);
+            throw new GeneralException("Error updating entry for username=" + value.getUserName() + " label=" + value.getLabel(), e);
+        } finally {
+            releaseConnection(c);
+        }
+
+    }
+
+    /**
+     * Updates the key using a conditional UPDATE statement, which only
+     * matches when the version in the DB still equals that of value.
+     */
+    @Override
+    public boolean updateIfUnchanged(SSHKey value) {
+        Connection c = getConnection();
+        int updated;
+        try {
+            SSHKeyTable table = (SSHKeyTable)getTable();
+            PreparedStatement stmt = c.prepareStatement( table.createConditionalUpdateStatement() );
+            int i = setUpdateParameters(stmt, value);
+            stmt.setLong(i, value.getVersion());
 
+            updated = stmt.executeUpdate();
+            stmt.close();
+            // Also on a conflict: a retry should see the current version
+            requirePrimary(value.getUserName());
         } catch (SQLException e) {
             destroyConnection(c);
             throw new GeneralException("Error updating entry for username=" + value.getUserName() + " label=" + value.getLabel(), e);
@@ -175,6 +293,10 @@ public class SQLSSHKeyStore extends SQLStore<SSHKey> implements SSHKeyStore<SSHK
             releaseConnection(c);
         }
 
+        if (updated == 0)
+            return false;
+        value.setVersion(value.getVersion() + 1);
+        return true;
     }
 
     /**
@@ -188,9 +310,16 @@ public class SQLSSHKeyStore extends SQLStore<SSHKey> implements SSHKeyStore<SSHK
             throw new GeneralException("input key must be a SSHKey");
 
         SSHKey value = (SSHKey) key;
+        return get(value, getReadPool(value.getUserName()));
+    }
+
+    /**
+     * @return key with username and label of value, using given pool.
+     */
+    private SSHKey get(SSHKey value, ConnectionPool pool) {
         SSHKey out = null;
 
-        Connection c = getConnection();
+        Connection c = pool.pop();
         try {
             SSHKeyTable table = (SSHKeyTable)getTable();
             PreparedStatement stmt = c.prepareStatement( table.createSelectStatement() );
@@ -207,8 +336,112 @@ public class SQLSSHKeyStore extends SQLStore<SSHKey> implements SSHKeyStore<SSHK
             rs.close();
             stmt.close();
         } catch (SQLException e) {
-            destroyConnection(c);
+            pool.destroy(c);
             throw new GeneralException("Error getting key", e);
+        } finally {
+            pool.push(c);
+        }
+        return out;
+    }
+
+    /**
+     * Overrides {@link SQLStore#values()} to use the read replica when
+     * configured.
+     */
+    @Override
+    public Collection<SSHKey> values() {
+        if (readConnectionPool == null)
+            return super.values();
+
+        ConnectionPool pool = readConnectionPool;
+        Connection c = pool.pop();
+        List<SSHKey> resultSet = new ArrayList<>();
+        try {
+            PreparedStatement stmt = c.prepareStatement( ((SSHKeyTable)getTable()).createAllSelectStatement());
+            ResultSet rs = stmt.executeQuery();
+            while ( rs.next() ) {
+                ColumnMap map = rsToMap(rs);
+                SSHKey t = create();
+                populate(map, t);
+                resultSet.add(t);
+            }
+            rs.close();
+            stmt.close();
+        } catch (SQLException e) {
+            pool.destroy(c);
+            throw new GeneralException("Error getting all SSH keys", e);
+        } finally {
+            pool.push(c);
+        }
+        return resultSet;
+    }
+
+    /**
+     * Streams the username and public key columns of all rows into consumer,
+     * using the read replica when configured. Nothing but the current row is
+     * kept in memory.
+     */
+    @Override
+    public void forEachPubKey(BiConsumer<String, String> consumer) {
+        ConnectionPool pool = (readConnectionPool == null) ? getConnectionPool() : readConnectionPool;
+        Connection c = pool.pop();
+        boolean autoCommit = true;
+        boolean success = false;
+        try {
+            autoCommit = c.getAutoCommit();
+            try (PreparedStatement stmt = c.prepareStatement( ((SSHKeyTable)getTable()).createPubKeysSelectStatement(),
+                                                              ResultSet.TYPE_FORWARD_ONLY,
+                                                              ResultSet.CONCUR_READ_ONLY)) {
+                SQLTableTransfer.enableStreaming(c, stmt);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next())
+                        consumer.accept(rs.getString(1), rs.getString(2));
+                }
+            }
+            if (c.getAutoCommit() != autoCommit) {
+                c.commit();
+                c.setAutoCommit(autoCommit);
+            }
+            success = true;
+        } catch (SQLException e) {
+            throw new GeneralException("Error reading all SSH keys", e);
+        } finally {
+            if (success) {
+                pool.push(c);
+            } else {
+                // The connection may still have a partially read streaming
+                // result set, hence don't reuse it
+                pool.destroy(c);
+            }
+        }
+    }
+
+    /**
+     * Returns the key with given fingerprint, using the (indexed) fingerprint
+     * column. Always uses the primary, such that removed keys disappear
+     * immediately.
+     */
+    @Override
+    public SSHKey getByFingerprint(String fingerprint) {
+        if (fingerprint == null)
+            return null;
+
+        SSHKey out = null;
+        Connection c = getConnection();
+        try {
+            PreparedStatement stmt = c.prepareStatement( ((SSHKeyTable)getTable()).createKeySelectStatement() );
+            stmt.setString(1, fingerprint);
+            ResultSet rs = stmt.executeQuery();
+            if (rs.next()) {
+                ColumnMap map = rsToMap(rs);
+                out = create();
+                populate(map, out);
+            }
+            rs.close();
+            stmt.close();
+        } catch (SQLException e) {
+            destroyConnection(c);
+            throw new GeneralException("Error getting key by fingerprint", e);
         } finally {
             releaseConnection(c);
         }
@@ -228,7 +461,8 @@ public class SQLSSHKeyStore extends SQLStore<SSHKey> implements SSHKeyStore<SSHK
         SSHKey value = (SSHKey)key;
         SSHKey oldObject = null;
         try {
-            oldObject = get(value);
+            // Always use the primary, a replica might not yet have the key
+            oldObject = get(value, getConnectionPool());
         } catch (GeneralException x) {
             return null;
         }
@@ -240,6 +474,7 @@ public class SQLSSHKeyStore extends SQLStore<SSHKey> implements SSHKeyStore<SSHK
             stmt.setString(2, value.getLabel());
             stmt.execute();
             stmt.close();
+            requirePrimary(value.getUserName());
         } catch (SQLException e) {
             destroyConnection(c);
             throw new GeneralException("Error removing key", e);
@@ -250,7 +485,9 @@ public class SQLSSHKeyStore extends SQLStore<SSHKey> implements SSHKeyStore<SSHK
     }
 
     /**
-     * Returns whether the pubKey in key already exists.
+     * Returns whether the pubKey in key already exists, based on its
+     * fingerprint, which is calculated when not set. Entries without
+     * fingerprint are not found, see {@link #normalizeKeys()}.
      * Overrides {@link SQLStore#containsKey(Object)}.
      */
     @Override
@@ -259,12 +496,17 @@ public class SQLSSHKeyStore extends SQLStore<SSHKey> implements SSHKeyStore<SSHK
             throw new GeneralException("input key must be a SSHKey");
 
         SSHKey value = (SSHKey) key;
+        String fingerprint = value.getFingerprint();
+        if (fingerprint == null)
+            fingerprint = SSHPublicKey.fingerprintOf(value.getPubKey());
+        if (fingerprint == null)
+            return false;
 
         Connection c = getConnection();
         boolean rc = false;
         try {
             PreparedStatement stmt = c.prepareStatement( ((SSHKeyTable)getTable()).createKeySelectStatement() );
-            stmt.setString(1, value.getPubKey());
+            stmt.setString(1, fingerprint);
             stmt.execute();// just execute() since executeQuery(x) would throw an exception regardless of content of x as per JDBC spec.
             ResultSet rs = stmt.getResultSet();
             rc = rs.next();
@@ -272,10 +514,328 @@ public class SQLSSHKeyStore extends SQLStore<SSHKey> implements SSHKeyStore<SSHK
             stmt.close();
         } catch (SQLException e) {
             destroyConnection(c);
-            e.printStackTrace();
+            throw new GeneralException("Error checking for registered key", e);
         } finally {
             releaseConnection(c);
         }
         return rc;
     }
+
+    /**
+     * Returns which of the given fingerprints are already present, using a
+     * single query per (large) chunk of fingerprints. Entries without
+     * fingerprint are not found, see {@link #normalizeKeys()}.
+     */
+    @Override
+    public Set<String> getRegistered(Collection<String> fingerprints) {
+        Set<String> registered = new HashSet<>();
+        if (fingerprints == null || fingerprints.isEmpty())
+            return registered;
+
+        List<String> keys = new ArrayList<>(fingerprints);
+        SSHKeyTable table = (SSHKeyTable)getTable();
+        Connection c = getConnection();
+        try {
+            for (int start = 0; start < keys.size(); start += MAX_IN_LIST) {
+                List<String> chunk = keys.subList(start, Math.min(start + MAX_IN_LIST, keys.size()));
+                PreparedStatement stmt = c.prepareStatement( table.createKeysSelectStatement(chunk.size()) );
+                int i = 1;
+                for (String fingerprint : chunk)
+                    stmt.setString(i++, fingerprint);
+                ResultSet rs = stmt.executeQuery();
+                while (rs.next())
+                    registered.add(rs.getString(1));
+                rs.close();
+                stmt.close();
+            }
+        } catch (SQLException e) {
+            destroyConnection(c);
+            throw new GeneralException("Error checking for registered keys", e);
+        } finally {
+            releaseConnection(c);
+        }
+        return registered;
+    }
+
+    /**
+     * Normalizes the public keys of all entries that don't yet have a
+     * fingerprint, i.e. that were stored by a previous version: the pub_key is
+     * replaced by its normalized form and the comment and fingerprint columns
+     * are filled. Entries that cannot be parsed are left untouched. Since the
+     * uniqueness checks only use the (indexed) fingerprint column, this runs
+     * on startup, see MPOA2SE#getSSHKeyStore().
+     * @return array containing the number of normalized and of invalid entries
+     */
+    public int[] normalizeKeys() {
+        SSHKeyTable table = (SSHKeyTable)getTable();
+        // First collect the entries, to not keep a result set open while updating
+        List<SSHKey> keys = new ArrayList<>();
+        Connection c = getConnection();
+        try {
+            PreparedStatement stmt = c.prepareStatement( table.createUnnormalizedSelectStatement() );
+            ResultSet rs = stmt.executeQuery();
+            SSHKeyKeys x = new SSHKeyKeys();
+            while (rs.next()) {
+                SSHKey key = new SSHKey(rs.getString(x.userName()), rs.getString(x.label()));
+                key.setPubKey(rs.getString(x.pubKey()));
+                keys.add(key);
+            }
+            rs.close();
+            stmt.close();
+        } catch (SQLException e) {
+            destroyConnection(c);
+            throw new GeneralException("Error getting keys to normalize", e);
+        } finally {
+            releaseConnection(c);
+        }
+
+        int normalized = 0, invalid = 0;
+        if (keys.isEmpty())
+            return new int[] {normalized, invalid};
+
+        c = getConnection();
+        boolean autoCommit = true;
+        try {
+            autoCommit = c.getAutoCommit();
+            c.setAutoCommit(false);
+            PreparedStatement stmt = c.prepareStatement( table.createNormalizeStatement() );
+            for (SSHKey key : keys) {
+                SSHPublicKey sshPublicKey;
+                try {
+                    sshPublicKey = SSHPublicKey.parse(key.getPubKey());
+                } catch (InvalidSSHKeyException e) {
+                    invalid++;
+                    continue;
+                }
+                stmt.setString(1, sshPublicKey.getNormalized());
+                stmt.setString(2, sshPublicKey.getComment());
+                stmt.setString(3, sshPublicKey.getFingerprint());
+                stmt.setString(4, key.getUserName());
+                stmt.setString(5, key.getLabel());
+                stmt.addBatch();
+                // Execute in reasonable chunks
+                if (++normalized % MAX_IN_LIST == 0)
+                    stmt.executeBatch();
+            }
+            stmt.executeBatch();
+            stmt.close();
+            c.commit();
+            c.setAutoCommit(autoCommit);
+        } catch (SQLException e) {
+            rollbackAndDestroy(c);
+            throw new GeneralException("Error normalizing keys", e);
+        } catch (RuntimeException e) {
+            rollbackAndDestroy(c);
+            throw e;
+        } finally {
+            releaseConnection(c);
+        }
+        return new int[] {normalized, invalid};
+    }
+
+    /**
+     * Executes the list of operations in a single DB transaction. Consecutive
+     * operations of the same type are sent as one JDBC batch, so that the
+     * order of the operations is retained.
+     */
+    @Override
+    public void batch(List<SSHKeyOperation> operations) {
+        if (operations == null || operations.isEmpty())
+            return;
+
+        SSHKeyTable table = (SSHKeyTable)getTable();
+        Connection c = getConnection();
+        boolean autoCommit = true;
+        try {
+            autoCommit = c.getAutoCommit();
+            c.setAutoCommit(false);
+
+            PreparedStatement stmt = null;
+            SSHKeyOperation.Type currType = null;
+            for (SSHKeyOperation operation : operations) {
+                SSHKeyOperation.Type type = operation.getType();
+                SSHKey value = operation.getKey();
+                if (type != currType) {
+                    // Flush the statement for the previous type
+                    if (stmt != null) {
+                        checkBatchResult(currType, stmt.executeBatch());
+                        stmt.close();
+                    }
+                    switch (type) {
+                        case ADD:
+                            stmt = c.prepareStatement( table.createInsertStatement() );
+                            break;
+                        case UPDATE:
+                            stmt = c.prepareStatement( table.createConditionalUpdateStatement() );
+                            break;
+                        default:
+                            stmt = c.prepareStatement( table.createDeleteStatement() );
+                    }
+                    currType = type;
+                }
+                switch (type) {
+                    case ADD:
+                        setInsertParameters(stmt, value);
+                        break;
+                    case UPDATE:
+                        stmt.setLong(setUpdateParameters(stmt, value), value.getVersion());
+                        break;
+                    default:
+                        stmt.setString(1, value.getUserName());
+                        stmt.setString(2, value.getLabel());
+                }
+                stmt.addBatch();
+            }
+            if (stmt != null) {
+                checkBatchResult(currType, stmt.executeBatch());
+                stmt.close();
+            }
+
+            c.commit();
+            c.setAutoCommit(autoCommit);
+            for (SSHKeyOperation operation : operations)
+                requirePrimary(operation.getKey().getUserName());
+        } catch (SQLException e) {
+            rollbackAndDestroy(c);
+            throw new GeneralException("Error executing batch of " + operations.size() + " operations", e);
+        } catch (SSHKeyVersionConflictException e) {
+            try {
+                c.rollback();
+                c.setAutoCommit(autoCommit);
+            } catch (SQLException x) {
+                destroyConnection(c);
+            }
+            throw e;
+        } catch (RuntimeException e) {
+            // Any other failure: don't leave an open transaction holding locks
+            rollbackAndDestroy(c);
+            throw e;
+        } finally {
+            releaseConnection(c);
+        }
+    }
+
+    /**
+     * Rolls back the open transaction of c and destroys it, since it may
+     * still be in a failed state or hold locks.
+     */
+    private void rollbackAndDestroy(Connection c) {
+        try {
+            c.rollback();
+        } catch (SQLException x) {
+            // ignore, we destroy the connection anyway
+        }
+        destroyConnection(c);
+    }
+
+    /**
+     * Checks the update counts of a batch of conditional updates: a count of
+     * zero means the version did not match.
+     * @throws SSHKeyVersionConflictException in case of a version mismatch
+     */
+    private void checkBatchResult(SSHKeyOperation.Type type, int[] counts) {
+        if (type != SSHKeyOperation.Type.UPDATE)
+            return;
+        for (int count : counts) {
+            // Note: drivers may also return Statement.SUCCESS_NO_INFO (-2)
+            if (count == 0)
+                throw new SSHKeyVersionConflictException("SSH key has been modified concurrently");
+        }
+    }
+
+    /**
+     * Makes sure reads for username use the primary for a while.
+     */
+    @Override
+    public void requirePrimary(String username) {
+        if (readConnectionPool != null) {
+            long now = System.currentTimeMillis();
+            // Prevent unbounded growth by removing the expired entries. We
+            // cannot drop others, since those users would then read from a
+            // replica that might not yet have their writes.
+            long lastSweep = lastRecentWritesSweep.get();
+            if (recentWrites.size() >= RECENT_WRITES_SIZE &&
+                now - lastSweep >= RECENT_WRITES_SWEEP_INTERVAL &&
+                lastRecentWritesSweep.compareAndSet(lastSweep, now))
+                recentWrites.values().removeIf(until -> until <= now);
+            recentWrites.put(username, now + READ_YOUR_WRITES_WINDOW);
+        }
+    }
+
+    /**
+     * @return connection pool to use for reads for username: the read replica
+     * when configured, unless this store recently wrote for username.
+     */
+    private ConnectionPool getReadPool(String username) {
+        if (readConnectionPool == null)
+            return getConnectionPool();
+        Long until = recentWrites.get(username);
+        if (until != null) {
+            if (until > System.currentTimeMillis())
+                return getConnectionPool();
+            recentWrites.remove(username, until);
+        }
+        return readConnectionPool;
+    }
+
+    /**
+     * Sets the parameters for the insert statement as created by
+     * {@link SSHKeyTable#createInsertStatement()}.
+     */
+    private void setInsertParameters(PreparedStatement stmt, SSHKey value) throws SQLException {
+        SSHKeyTable table = (SSHKeyTable)getTable();
+        ColumnMap map = depopulate(value);
+        int i = 1;
+        for (ColumnDescriptorEntry cde : table.getColumnDescriptor()) {
+            // now we loop through the table and set each and every one of these
+            // OAUTH-148 fix: MariaDB driver does not accept longvarchar as a type in setObject (known bug for
+            // them. Workaround is to explicitly test for this and carry out a setString call instead.
+            if (cde.getType() == LONGVARCHAR) {
+                Object obj = map.get(cde.getName());
+                stmt.setString(i++, obj == null ? null : obj.toString());
+            } else {
+                stmt.setObject(i++, map.get(cde.getName()), cde.getType());
+            }
+        }
+    }
+
+    /**
+     * Sets the parameters for the update statement as created by
+     * {@link SSHKeyTable#createUpdateStatement()}.
+     * @return index of the next parameter, used for the conditional update
+     */
+    private int setUpdateParameters(PreparedStatement stmt, SSHKey value) throws SQLException {
+        SSHKeyTable table = (SSHKeyTable)getTable();
+        // Get the column headers
+        SSHKeyKeys sshKeyKeys = new SSHKeyKeys();
+        String userNameColumn = sshKeyKeys.userName();
+        String labelColumn = sshKeyKeys.label();
+        String versionColumn = sshKeyKeys.version();
+
+        ColumnMap map = depopulate(value);
+        int i = 1;
+        for (ColumnDescriptorEntry cde : table.getColumnDescriptor()) {
+            // now we loop through the table and set each and every one of these
+            String name = cde.getName();
+            // Only can update the non-username, non-label entries, the version
+            // is increased by the statement itself
+            if (!name.equals(userNameColumn) && !name.equals(labelColumn) && !name.equals(versionColumn)) {
+                Object obj = map.get(name);
+                // Dates confuse setObject, so turn it into an SQL Timestamp object.
+                if (obj instanceof Date) {
+                    obj = new Timestamp(((Date) obj).getTime());
+                }
+
+                if (obj instanceof BasicIdentifier)
+                    stmt.setString(i++, obj.toString());
+                else
+                    stmt.setObject(i++, obj);
+            }
+        }
+
+        // now set the matching keys: userName and label
+        stmt.setString(i++, value.getUserName());
+        stmt.setString(i++, value.getLabel());
+        return i;
+    }
 }
@@ -12,23 +12,43 @@ import edu.uiuc.ncsa.security.storage.sql.ConnectionPoolProvider;
 import edu.uiuc.ncsa.security.storage.sql.SQLStoreProvider;
 import edu.uiuc.ncsa.security.storage.sql.internals.Table;
 
+import edu.uiuc.ncsa.security.core.configuration.Configurations;
+
 import org.apache.commons.configuration.tree.ConfigurationNode;
+import org.apache.commons.configuration.tree.DefaultConfigurationNode;
 
 import javax.inject.Provider;
 
 /**
  * <p>Created by Mischa Sall&eacute;<br>
  * Provider class for (@link SQLSSHKeyStore} objects.
+ * <p>
+ * When the store node contains a {@link MPOA4MPConfigTags#SQL_READ_REPLICA}
+ * node, a second connection pool is created for reading from that replica,
+ * e.g.
+ * <pre>
+ *     &lt;mysql username="..." password="..." host="db-primary"&gt;
+ *         &lt;sshKeys/&gt;
+ *         &lt;readReplica host="db-replica"/&gt;
+ *     &lt;/mysql&gt;
+ * </pre>
+ * Any attribute not set for the replica is taken from the store node.
  */
 
 public class SQLSSHKeyStoreProvider<V extends SQLSSHKeyStore> extends SQLStoreProvider<V> {
 
     protected Provider<SSHKey> sshKeyProvider;
 
+    /** configuration and provider used for creating the read replica pool */
+    protected ConfigurationNode storeConfig;
+    protected String storeType;
+    protected ConnectionPoolProvider<? extends ConnectionPool> readPoolProvider;
+
     // Note: this one is currently not being used it seems
     public SQLSSHKeyStoreProvider(
             ConfigurationNode config,
             ConnectionPoolProvider<? extends ConnectionPool> cpp,
+            ConnectionPoolProvider<? extends ConnectionPool> readPoolProvider,
             String type,
             String target,
             String tablename,
@@ -36,23 +56,61 @@ public class SQLSSHKeyStoreProvider<V extends SQLSSHKeyStore> extends SQLStorePr
             Provider<SSHKey> provider) {
         super(config, cpp, type, target, tablename, converter);
         this.sshKeyProvider = provider;
+        this.storeConfig = config;
+        this.storeType = type;
+        this.readPoolProvider = readPoolProvider;
     }
 
+    /**
+     * @param readPoolProvider provider for the read replica pool, must be a
+     * separate instance from cpp since it gets its own configuration.
+     */
     public SQLSSHKeyStoreProvider(
             ConfigurationNode config,
             ConnectionPoolProvider<? extends ConnectionPool> cpp,
+            ConnectionPoolProvider<? extends ConnectionPool> readPoolProvider,
             String type,
             MapConverter converter,
             Provider<SSHKey> provider) {
         super(config, cpp, type, MPOA4MPConfigTags.SSH_KEY_STORE, SQLSSHKeyStore.DEFAULT_TABLENAME, converter);
         this.sshKeyProvider = provider;
+        this.storeConfig = config;
+        this.storeType = type;
+        this.readPoolProvider = readPoolProvider;
     }
 
     // Note we suppress an unchecked cast to T
     @Override
     @SuppressWarnings("unchecked")
     public V newInstance(Table table) {
-        return (V) new SQLSSHKeyStore(getConnectionPool(), table, sshKeyProvider, converter);
+        SQLSSHKeyStore store = new SQLSSHKeyStore(getConnectionPool(), table, sshKeyProvider, converter);
+        store.setReadConnectionPool(getReadConnectionPool());
+        return (V) store;
+    }
+
+    /**
+     * @return connection pool for the configured read replica, or null when
+     * there is none.
+     */
+    protected ConnectionPool getReadConnectionPool() {
+        ConfigurationNode typeNode = Configurations.getFirstNode(storeConfig, storeType);
+        ConfigurationNode replicaNode = (typeNode == null) ? null : Configurations.getFirstNode(typeNode, MPOA4MPConfigTags.SQL_READ_REPLICA);
+        if (replicaNode == null || readPoolProvider == null)
+            return null;
+
+        // Merge the attributes, those of the replica take precedence
+        DefaultConfigurationNode merged = new DefaultConfigurationNode(typeNode.getName());
+        for (ConfigurationNode attribute : typeNode.getAttributes()) {
+            if (replicaNode.getAttributeCount(attribute.getName()) == 0)
+                merged.addAttribute(new DefaultConfigurationNode(attribute.getName(), attribute.getValue()));
+        }
+        for (ConfigurationNode attribute : replicaNode.getAttributes())
+            merged.addAttribute(new DefaultConfigurationNode(attribute.getName(), attribute.getValue()));
+
+        // Note: the read pool provider is our own, hence configuring it does
+        // not affect the pool of the primary or of other stores
+        readPoolProvider.setConfig(merged);
+        return readPoolProvider.get();
     }
 
     @Override
@@ -0,0 +1,461 @@
+package eu.rcauth.masterportal.server.storage.sql;
+
+import eu.rcauth.masterportal.servlet.util.FlatJSONParser;
+import eu.rcauth.masterportal.servlet.util.JSONStreamWriter;
+
+import edu.uiuc.ncsa.security.core.exceptions.GeneralException;
+import edu.uiuc.ncsa.security.storage.sql.ConnectionPool;
+import edu.uiuc.ncsa.security.storage.sql.internals.Table;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streams the raw rows of a SQL table from and to a file, either as
+ * newline-delimited JSON (one object per row) or as CSV (with a header line).
+ * Both directions use constant memory: rows are read from a forward-only
+ * result set and written one at a time, and rows are imported using JDBC
+ * batches of a configurable size. For CSV imports into PostgreSQL, the COPY
+ * protocol is used when the driver supports it.
+ * <p>
+ * Values are exported as Strings, NULL values are written as JSON null or, for
+ * CSV, as an unquoted empty field (which is also what PostgreSQL COPY expects).
+ * JSON rows are written with a {@link JSONStreamWriter} and read back with a
+ * {@link FlatJSONParser}, since net.sf.json would turn Strings such as
+ * <code>"null"</code> or <code>"[work]"</code> into other values.
+ */
+public class SQLTableTransfer {
+
+    /** Supported file formats */
+    public enum Format { NDJSON, CSV }
+
+    /** Receives progress updates during an export or import. */
+    public interface ProgressListener {
+        /** @param rows number of rows transferred so far */
+        void progress(long rows);
+    }
+
+    /** number of rows between two progress updates */
+    public static final int PROGRESS_INTERVAL = 10000;
+
+    /** default number of rows per JDBC batch */
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    /** number of rows fetched per round trip for non-MySQL databases */
+    private static final int FETCH_SIZE = 1000;
+
+    private static final String MYSQL = "MySQL";
+    private static final String POSTGRESQL = "PostgreSQL";
+
+    protected final ConnectionPool connectionPool;
+    protected final Table table;
+
+    public SQLTableTransfer(ConnectionPool connectionPool, Table table) {
+        this.connectionPool = connectionPool;
+        this.table = table;
+    }
+
+    /**
+     * Writes all rows of the table to out, encoded as UTF-8.
+     * @param out stream to write the rows to
+     * @param format output format
+     * @param listener receives progress updates, may be null
+     * @return number of exported rows
+     */
+    public long exportRows(OutputStream out, Format format, ProgressListener listener) throws IOException {
+        Connection c = connectionPool.pop();
+        long rows = 0;
+        boolean autoCommit = true;
+        boolean success = false;
+        try {
+            autoCommit = c.getAutoCommit();
+            try (PreparedStatement stmt = c.prepareStatement("SELECT * FROM " + table.getFQTablename(),
+                                                             ResultSet.TYPE_FORWARD_ONLY,
+                                                             ResultSet.CONCUR_READ_ONLY)) {
+                enableStreaming(c, stmt);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    ResultSetMetaData md = rs.getMetaData();
+                    int columns = md.getColumnCount();
+                    String[] names = new String[columns];
+                    for (int i = 0; i < columns; i++)
+                        names[i] = md.getColumnLabel(i + 1);
+
+                    Writer csv = null;
+                    JSONStreamWriter json = null;
+                    if (format == Format.CSV) {
+                        csv = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+                        writeCSVLine(csv, names);
+                    } else {
+                        json = new JSONStreamWriter(out, false);
+                    }
+
+                    String[] values = new String[columns];
+                    while (rs.next()) {
+                        for (int i = 0; i < columns; i++)
+                            values[i] = rs.getString(i + 1);
+                        if (csv != null) {
+                            writeCSVLine(csv, values);
+                        } else {
+                            json.beginObject();
+                            for (int i = 0; i < columns; i++)
+                                json.name(names[i]).value(values[i]);
+                            json.endObject();
+                        }
+                        if (++rows % PROGRESS_INTERVAL == 0 && listener != null)
+                            listener.progress(rows);
+                    }
+                    if (csv != null)
+                        csv.flush();
+                    else
+                        json.flush();
+                }
+            }
+            if (c.getAutoCommit() != autoCommit) {
+                c.commit();
+                c.setAutoCommit(autoCommit);
+            }
+            success = true;
+        } catch (SQLException e) {
+            throw new GeneralException("Error exporting table " + table.getFQTablename(), e);
+        } finally {
+            releaseConnection(c, success, autoCommit);
+        }
+        if (listener != null)
+            listener.progress(rows);
+        return rows;
+    }
+
+    /**
+     * Inserts all rows read from in into the table. The columns are taken from
+     * the first JSON object or from the CSV header line.
+     * @param in reader to read the rows from
+     * @param format input format
+     * @param batchSize number of rows per JDBC batch (and per commit)
+     * @param listener receives progress updates, may be null
+     * @return number of imported rows
+     */
+    public long importRows(Reader in, Format format, int batchSize, ProgressListener listener) throws IOException {
+        BufferedReader reader = (in instanceof BufferedReader) ? (BufferedReader)in : new BufferedReader(in);
+        if (batchSize <= 0)
+            batchSize = DEFAULT_BATCH_SIZE;
+
+        Connection c = connectionPool.pop();
+        long rows = 0;
+        boolean autoCommit = true;
+        boolean success = false;
+        try {
+            autoCommit = c.getAutoCommit();
+            String product = c.getMetaData().getDatabaseProductName();
+
+            // Get the first line: either the CSV header or the first JSON row
+            String line = reader.readLine();
+            if (line == null) {
+                success = true;
+                return 0;
+            }
+            String[] names;
+            Map<String, String> first = null;
+            if (format == Format.CSV) {
+                names = parseCSVLine(line, reader);
+                // For PostgreSQL we can stream the remainder using COPY
+                if (POSTGRESQL.equalsIgnoreCase(product)) {
+                    Long copied = copyIn(c, names, reader);
+                    if (copied != null) {
+                        success = true;
+                        if (listener != null)
+                            listener.progress(copied);
+                        return copied;
+                    }
+                }
+                // The header line is only used for the column names
+                line = reader.readLine();
+            } else {
+                first = parseJSONLine(line, 1);
+                names = first.keySet().toArray(new String[0]);
+            }
+
+            int[] types = getColumnTypes(c, names);
+            c.setAutoCommit(false);
+            try (PreparedStatement stmt = c.prepareStatement(createInsertStatement(names))) {
+                int pending = 0;
+                String[] values = new String[names.length];
+                while (line != null) {
+                    if (!line.isEmpty()) {
+                        if (format == Format.CSV) {
+                            String[] fields = parseCSVLine(line, reader);
+                            if (fields.length != names.length)
+                                throw new GeneralException("Invalid number of fields in row " + (rows + 1));
+                            values = fields;
+                        } else {
+                            Map<String, String> json = (rows == 0) ? first : parseJSONLine(line, rows + 1);
+                            for (int i = 0; i < names.length; i++)
+                                values[i] = json.get(names[i]);
+                        }
+                        for (int i = 0; i < names.length; i++)
+                            setValue(stmt, i + 1, types[i], values[i]);
+                        stmt.addBatch();
+                        rows++;
+                        if (++pending == batchSize) {
+                            stmt.executeBatch();
+                            c.commit();
+                            pending = 0;
+                        }
+                        if (rows % PROGRESS_INTERVAL == 0 && listener != null)
+                            listener.progress(rows);
+                    }
+                    line = reader.readLine();
+                }
+                if (pending > 0) {
+                    stmt.executeBatch();
+                    c.commit();
+                }
+            }
+            c.setAutoCommit(autoCommit);
+            success = true;
+        } catch (SQLException e) {
+            throw new GeneralException("Error importing into table " + table.getFQTablename() + " after " + rows + " rows", e);
+        } finally {
+            releaseConnection(c, success, autoCommit);
+        }
+        if (listener != null)
+            listener.progress(rows);
+        return rows;
+    }
+
+    /**
+     * Makes sure the driver streams the rows of the forward-only, read-only
+     * stmt instead of reading the complete result into memory. For other
+     * databases than MySQL this switches off autocommit, the caller should
+     * commit and restore it afterwards.
+     */
+    static void enableStreaming(Connection c, Statement stmt) throws SQLException {
+        if (MYSQL.equalsIgnoreCase(c.getMetaData().getDatabaseProductName())) {
+            // MySQL Connector/J only streams with this magic value
+            stmt.setFetchSize(Integer.MIN_VALUE);
+        } else {
+            // PostgreSQL only uses a cursor outside autocommit mode
+            c.setAutoCommit(false);
+            stmt.setFetchSize(FETCH_SIZE);
+        }
+    }
+
+    /**
+     * Returns the connection to the pool after a successful transfer. After
+     * any failure (including invalid input or an I/O error), the pending
+     * transaction is rolled back, the autocommit mode is restored and the
+     * connection is destroyed, since it may still have an open statement or
+     * a partially read streaming result set.
+     */
+    private void releaseConnection(Connection c, boolean success, boolean autoCommit) {
+        if (success) {
+            connectionPool.push(c);
+            return;
+        }
+        try {
+            if (!c.getAutoCommit())
+                c.rollback();
+            c.setAutoCommit(autoCommit);
+        } catch (SQLException e) {
+            // ignore, we destroy the connection anyway
+        }
+        connectionPool.destroy(c);
+    }
+
+    /**
+     * Uses the PostgreSQL COPY protocol to stream the CSV rows from reader
+     * into the table. The driver is accessed via reflection since it is not a
+     * compile-time dependency.
+     * @return number of copied rows, or null when COPY is not available
+     */
+    private Long copyIn(Connection c, String[] names, Reader reader) throws SQLException {
+        Object copyManager;
+        Method copyIn;
+        try {
+            Class<?> pgConnectionClass = Class.forName("org.postgresql.PGConnection");
+            Object pgConnection = c.unwrap(pgConnectionClass);
+            copyManager = pgConnectionClass.getMethod("getCopyAPI").invoke(pgConnection);
+            copyIn = Class.forName("org.postgresql.copy.CopyManager").getMethod("copyIn", String.class, Reader.class);
+        } catch (Exception e) {
+            // No (suitable) PostgreSQL driver: use normal batched inserts
+            return null;
+        }
+
+        String sql = "COPY " + table.getFQTablename() + " (" + String.join(", ", names) + ") FROM STDIN WITH (FORMAT csv)";
+        try {
+            return (Long) copyIn.invoke(copyManager, sql, reader);
+        } catch (Exception e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof SQLException)
+                throw (SQLException) cause;
+            throw new GeneralException("Error running COPY into " + table.getFQTablename(), cause);
+        }
+    }
+
+    /**
+     * @return the SQL types of the given columns in the table
+     */
+    private int[] getColumnTypes(Connection c, String[] names) throws SQLException {
+        Map<String, Integer> columnTypes = new HashMap<>();
+        try (PreparedStatement stmt = c.prepareStatement("SELECT * FROM " + table.getFQTablename() + " WHERE 1=0");
+             ResultSet rs = stmt.executeQuery()) {
+            ResultSetMetaData md = rs.getMetaData();
+            for (int i = 1; i <= md.getColumnCount(); i++)
+                columnTypes.put(md.getColumnLabel(i).toLowerCase(), md.getColumnType(i));
+        }
+
+        int[] types = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            Integer type = columnTypes.get(names[i].toLowerCase());
+            if (type == null)
+                throw new GeneralException("Unknown column " + names[i] + " in table " + table.getFQTablename());
+            types[i] = type;
+        }
+        return types;
+    }
+
+    /**
+     * @return insert statement for given columns
+     */
+    private String createInsertStatement(String[] names) {
+        StringBuilder insert = new StringBuilder("INSERT INTO " + table.getFQTablename() + " (");
+        insert.append(String.join(", ", names)).append(") VALUES (");
+        for (int i = 0; i < names.length; i++)
+            insert.append(i == 0 ? "?" : ", ?");
+        insert.append(")");
+        return insert.toString();
+    }
+
+    /**
+     * Sets parameter i to the exported String value, converted into the type
+     * of the column.
+     */
+    private void setValue(PreparedStatement stmt, int i, int type, String value) throws SQLException {
+        if (value == null) {
+            stmt.setNull(i, type);
+            return;
+        }
+        switch (type) {
+            case Types.TIMESTAMP:
+                stmt.setTimestamp(i, Timestamp.valueOf(value));
+                break;
+            case Types.INTEGER:
+            case Types.SMALLINT:
+            case Types.TINYINT:
+            case Types.BIGINT:
+                stmt.setLong(i, Long.parseLong(value));
+                break;
+            case Types.BIT:
+            case Types.BOOLEAN:
+                stmt.setBoolean(i, "1".equals(value) || "t".equalsIgnoreCase(value) || Boolean.parseBoolean(value));
+                break;
+            default:
+                // Note: MariaDB does not accept LONGVARCHAR in setObject()
+                stmt.setString(i, value);
+        }
+    }
+
+    /**
+     * Parses a single NDJSON row.
+     * @param row number of the row, for the error message
+     */
+    private static Map<String, String> parseJSONLine(String line, long row) {
+        try {
+            return FlatJSONParser.parse(line);
+        } catch (IllegalArgumentException e) {
+            throw new GeneralException("Invalid JSON in row " + row + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes a single CSV line, quoting all non-null values.
+     */
+    static void writeCSVLine(Writer out, String[] values) throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0)
+                out.write(',');
+            String value = values[i];
+            if (value == null)
+                continue;
+            out.write('"');
+            for (int j = 0; j < value.length(); j++) {
+                char ch = value.charAt(j);
+                if (ch == '"')
+                    out.write('"');
+                out.write(ch);
+            }
+            out.write('"');
+        }
+        out.write('\n');
+    }
+
+    /**
+     * Parses a CSV line into its fields, unquoted empty fields become null.
+     * Quoted fields may contain newlines, in which case further lines are read
+     * from reader.
+     */
+    static String[] parseCSVLine(String line, BufferedReader reader) throws IOException {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        boolean inQuotes = false;
+        int i = 0;
+        while (true) {
+            if (i == line.length()) {
+                if (inQuotes) {
+                    // Newline inside a quoted field: continue on next line
+                    String next = reader.readLine();
+                    if (next == null)
+                        throw new GeneralException("Unterminated quoted CSV field");
+                    field.append('\n');
+                    line = next;
+                    i = 0;
+                    continue;
+                }
+                break;
+            }
+            char ch = line.charAt(i++);
+            if (inQuotes) {
+                if (ch == '"') {
+                    if (i < line.length() && line.charAt(i) == '"') {
+                        field.append('"');
+                        i++;
+                    } else {
+                        inQuotes = false;
+                    }
+                } else {
+                    field.append(ch);
+                }
+            } else if (ch == '"') {
+                inQuotes = true;
+                quoted = true;
+            } else if (ch == ',') {
+                fields.add(quoted || field.length() > 0 ? field.toString() : null);
+                field.setLength(0);
+                quoted = false;
+            } else {
+                field.append(ch);
+            }
+        }
+        fields.add(quoted || field.length() > 0 ? field.toString() : null);
+        return fields.toArray(new String[0]);
+    }
+}
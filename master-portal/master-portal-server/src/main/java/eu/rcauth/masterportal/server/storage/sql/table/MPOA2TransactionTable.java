@@ -21,5 +21,9 @@ public class MPOA2TransactionTable extends OA2TransactionTable {
                                                              Types.LONGVARCHAR));
         getColumnDescriptor().add(new ColumnDescriptorEntry( ((MPOA2TransactionKeys)getOA2Keys()).mp_client_session_identifier(),
                                                              Types.LONGVARCHAR));
+        // Only present when purging expired transactions, see MPOA2SE#getTransactionSchemaMigrator()
+        if (((MPOA2TransactionKeys)getOA2Keys()).isExpiresAtEnabled())
+            getColumnDescriptor().add(new ColumnDescriptorEntry( ((MPOA2TransactionKeys)getOA2Keys()).mp_expires_at(),
+                                                                 Types.TIMESTAMP));
     }
 }
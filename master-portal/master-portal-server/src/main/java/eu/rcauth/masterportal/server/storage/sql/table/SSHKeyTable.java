@@ -6,6 +6,7 @@ import edu.uiuc.ncsa.security.storage.sql.internals.ColumnDescriptorEntry;
 import edu.uiuc.ncsa.security.storage.sql.internals.Table;
 import eu.rcauth.masterportal.server.storage.sql.SQLSSHKeyStore;
 
+import static java.sql.Types.BIGINT;
 import static java.sql.Types.VARCHAR;
 
 /**
@@ -46,6 +47,17 @@ public class SSHKeyTable extends Table {
         // description is optional
         getColumnDescriptor().add(new ColumnDescriptorEntry(x.description(), VARCHAR));
 
+        // comment of the public key is optional
+        getColumnDescriptor().add(new ColumnDescriptorEntry(x.comment(), VARCHAR));
+
+        // fingerprint of the (normalized) public key, used for uniqueness
+        // checks. Not mandatory as it is missing for old entries.
+        getColumnDescriptor().add(new ColumnDescriptorEntry(x.fingerprint(), VARCHAR));
+
+        // version of the entry, increased on each update and used for
+        // optimistic locking
+        getColumnDescriptor().add(new ColumnDescriptorEntry(x.version(), BIGINT));
+
         // Don't create TIMESTAMP row, since it will fail with the
         // getColumnDescriptor() used in e.g. creation e.g. in
         // createRegisterStatement() in createInsertStatement() below and also
@@ -53,6 +65,24 @@ public class SSHKeyTable extends Table {
         // order the rows...
     }
 
+    /**
+     * Creates SQL select statement to obtain all entries.
+     * @return SQL select statement
+     */
+    public String createAllSelectStatement(){
+        return "SELECT * FROM " + getFQTablename();
+    }
+
+    /**
+     * Creates SQL select statement to obtain the username and public key of
+     * all entries.
+     * @return SQL select statement
+     */
+    public String createPubKeysSelectStatement(){
+        SSHKeyKeys x =  (SSHKeyKeys) keys;
+        return "SELECT " + x.userName() + ", " + x.pubKey() + " FROM " + getFQTablename();
+    }
+
     /**
      * Creates SQL select statement to obtain all entries for a single username.
      * @return SQL select statement
@@ -65,13 +95,65 @@ public class SSHKeyTable extends Table {
     }
 
     /**
-     * Creates SQL select statement for a specific pubKey.
+     * Creates SQL select statement to count the entries for a single username.
+     * @return SQL select statement
+     */
+    public String createUserCountStatement(){
+        SSHKeyKeys x =  (SSHKeyKeys) keys;
+        return "SELECT COUNT(*) FROM " + getFQTablename() + " WHERE " +
+                x.userName() + " =?";
+    }
+
+    /**
+     * Creates SQL select statement to obtain the labels for a single username
+     * starting with a given prefix (to be passed as prefix%). Note that we
+     * cannot portably cast the numeric suffix in SQL, hence the caller needs
+     * to determine the highest serial.
+     * @return SQL select statement
+     */
+    public String createUserLabelsSelectStatement(){
+        SSHKeyKeys x =  (SSHKeyKeys) keys;
+        return "SELECT " + x.label() + " FROM " + getFQTablename() + " WHERE " +
+                x.userName() + " =? AND " + x.label() + " LIKE ?";
+    }
+
+    /**
+     * Creates SQL select statement for a specific public key fingerprint.
      * @return SQL select statement
      */
     public String createKeySelectStatement(){
         SSHKeyKeys x =  (SSHKeyKeys) keys;
         return "SELECT * FROM " + getFQTablename() + " WHERE " +
-                x.pubKey() + " =?";
+                x.fingerprint() + " =?";
+    }
+
+    /**
+     * Creates SQL select statement for obtaining which of a number of public
+     * key fingerprints are already present.
+     * @param count number of fingerprints in the statement
+     * @return SQL select statement
+     */
+    public String createKeysSelectStatement(int count){
+        SSHKeyKeys x =  (SSHKeyKeys) keys;
+        StringBuilder select = new StringBuilder("SELECT " + x.fingerprint() + " FROM " + getFQTablename() + " WHERE " +
+                x.fingerprint() + " IN (");
+        for (int i = 0; i < count; i++) {
+            select.append(i == 0 ? "?" : ", ?");
+        }
+        select.append(")");
+
+        return select.toString();
+    }
+
+    /**
+     * Creates SQL select statement for entries without fingerprint, i.e. those
+     * stored before the public keys were normalized.
+     * @return SQL select statement
+     */
+    public String createUnnormalizedSelectStatement(){
+        SSHKeyKeys x =  (SSHKeyKeys) keys;
+        return "SELECT * FROM " + getFQTablename() + " WHERE " +
+                x.fingerprint() + " IS NULL";
     }
 
     /**
@@ -87,7 +169,7 @@ public class SSHKeyTable extends Table {
 
     /**
      * Creates SQL update statement for (userName,label) pair, which should be
-     * the composite primary key.
+     * the composite primary key. The version is increased by one.
      */
     @Override
     public String createUpdateStatement() {
@@ -98,18 +180,43 @@ public class SSHKeyTable extends Table {
         boolean isFirst = true;
         for (ColumnDescriptorEntry cde : getColumnDescriptor()) {
             String name = cde.getName();
-            if (!name.equals(x.userName()) && !name.equals(x.label())) {
+            if (!name.equals(x.userName()) && !name.equals(x.label()) && !name.equals(x.version())) {
                 update.append(isFirst ? "" : ", ").append(name).append("=?");
                 if (isFirst)
                     isFirst = false;
             }
         }
 
+        update.append(", ").append(x.version()).append("=").append(x.version()).append("+1");
         update.append(", ").append(TIME_LABEL).append("=CURRENT_TIMESTAMP").append(" WHERE ").append(x.userName()).append(" =? ").append(" AND ").append(x.label()).append(" =? ");
 
         return update.toString();
     }
 
+    /**
+     * Creates SQL update statement like {@link #createUpdateStatement()}, but
+     * which only updates when the version still has the expected value.
+     * @return SQL update statement
+     */
+    public String createConditionalUpdateStatement() {
+        SSHKeyKeys x =  (SSHKeyKeys) keys;
+        return createUpdateStatement() + " AND " + x.version() + " =? ";
+    }
+
+    /**
+     * Creates SQL update statement for (userName,label) pair, setting only the
+     * pubKey, comment and fingerprint and leaving the timestamp unchanged.
+     * @return SQL update statement
+     */
+    public String createNormalizeStatement() {
+        SSHKeyKeys x =  (SSHKeyKeys) keys;
+
+        return "UPDATE " + getFQTablename() + " SET " +
+               x.pubKey() + "=?, " + x.comment() + "=?, " + x.fingerprint() + "=?" +
+               " WHERE " + x.userName() + " =? " +
+               " AND " + x.label() + " =? ";
+    }
+
     /**
      * Creates SQL delete statement for (userName,label) pair, which should be
      * the composite primary key.
@@ -2,11 +2,13 @@ package eu.rcauth.masterportal.server.validators;
 
 import java.util.List;
 
+import javax.security.auth.x500.X500Principal;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.configuration.tree.ConfigurationNode;
 import eu.rcauth.masterportal.server.MPOA2ServiceTransaction;
+import eu.rcauth.masterportal.server.cache.CachedProxy;
 import eu.rcauth.masterportal.server.exception.InvalidDNException;
 import eu.rcauth.masterportal.servlet.MPOA4MPConfigTags;
 
@@ -95,9 +97,55 @@ public class DNValidator implements GetProxyRequestValidator {
         }
 
         // The DN we expect
-        String claimDN = null;
-        Object certSubjectClaim = trans.getClaims().get(inputClaim);
+        String claimDN = getClaimDN(trans);
+
+        // convert the DN from the claim into openssl format
+        String opensslClaimDN = OpensslNameUtils.convertFromRfc2253( claimDN , false);
+
+        if ( ! storedDN.equals(opensslClaimDN) ) {
+            throw new InvalidDNException("The DN returned by MyProxy INFO (" + storedDN + ") did not match the value of the claim : "
+                    + inputClaim + " (" + opensslClaimDN + ")");
+        }
 
+        logger.debug("Validation OK");
+    }
+
+    /**
+     * When the request is answered from the proxy cache, the DN of the
+     * credential the cached proxy was issued from is checked against the
+     * claim instead.
+     */
+    @Override
+    public void validateCached(MPOA2ServiceTransaction trans, HttpServletRequest request, HttpServletResponse response,
+            CachedProxy proxy) throws Throwable {
+
+        logger.debug("Starting Validator for cached proxy: " + this.getClass().getCanonicalName());
+
+        X500Principal proxyDN = proxy.getCredentialDN();
+        String claimDN = getClaimDN(trans);
+
+        X500Principal expectedDN;
+        try {
+            expectedDN = new X500Principal(claimDN);
+        } catch (IllegalArgumentException e) {
+            throw new GeneralException("Expected DN from claim : " + inputClaim + " is not a valid DN!");
+        }
+
+        if ( ! proxyDN.equals(expectedDN) ) {
+            throw new InvalidDNException("The DN of the cached proxy (" + proxyDN + ") did not match the value of the claim : "
+                    + inputClaim + " (" + claimDN + ")");
+        }
+
+        logger.debug("Validation OK");
+    }
+
+    /**
+     * @return the (RFC2253) DN from the configured claim
+     * @throws GeneralException when the claim is missing, empty or multi-valued
+     */
+    protected String getClaimDN(MPOA2ServiceTransaction trans) {
+        String claimDN;
+        Object certSubjectClaim = trans.getClaims().get(inputClaim);
 
         if ( certSubjectClaim == null ) {
             throw new GeneralException("Unable to find expected DN from claim : " + inputClaim);
@@ -111,15 +159,7 @@ public class DNValidator implements GetProxyRequestValidator {
             throw new GeneralException("Expected DN from claim : " + inputClaim + " is multi-valued!");
         }
 
-        // convert the DN from the claim into openssl format
-        String opensslClaimDN = OpensslNameUtils.convertFromRfc2253( claimDN , false);
-
-        if ( ! storedDN.equals(opensslClaimDN) ) {
-            throw new InvalidDNException("The DN returned by MyProxy INFO (" + storedDN + ") did not match the value of the claim : "
-                    + inputClaim + " (" + opensslClaimDN + ")");
-        }
-
-        logger.debug("Validation OK");
+        return claimDN;
     }
 
 }
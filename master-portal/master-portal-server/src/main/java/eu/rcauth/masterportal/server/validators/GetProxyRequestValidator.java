@@ -5,6 +5,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.configuration.tree.ConfigurationNode;
 import eu.rcauth.masterportal.server.MPOA2ServiceTransaction;
+import eu.rcauth.masterportal.server.cache.CachedProxy;
 
 import edu.uiuc.ncsa.myproxy.MyProxyCredentialInfo;
 import edu.uiuc.ncsa.security.core.util.MyLoggingFacade;
@@ -56,4 +57,21 @@ public interface GetProxyRequestValidator {
      */
     void validate(MPOA2ServiceTransaction transaction, HttpServletRequest request, HttpServletResponse response, MyProxyCredentialInfo info) throws Throwable;
 
+    /**
+     * Validator method being called instead of {@link #validate} when the
+     * request is answered from the proxy cache, i.e. without a MyProxy INFO.
+     * Implement this when the validation depends on the stored proxy, the
+     * default only validates the request by calling {@link #validate} without
+     * INFO.
+     *
+     * @param transaction The current transaction
+     * @param request The current session request
+     * @param response The current session response
+     * @param proxy The cached proxy that would be returned
+     * @throws Throwable The Exception thrown for an invalid request.
+     */
+    default void validateCached(MPOA2ServiceTransaction transaction, HttpServletRequest request, HttpServletResponse response, CachedProxy proxy) throws Throwable {
+        validate(transaction, request, response, null);
+    }
+
 }
@@ -0,0 +1,153 @@
+package eu.rcauth.masterportal.server.cache;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import javax.security.auth.x500.X500Principal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link ProxyCache}. The test proxy is valid until 2125, such
+ * that it always has sufficient remaining lifetime.
+ */
+public class ProxyCacheTest {
+    /** DN of the test credential */
+    private static final String USER_DN = "CN=Alice Test,O=Test,DC=example,DC=org";
+    /** proxy for {@link #USER_DN}, valid until 2125 */
+    private static final String PROXY_CERT =
+            "MIIBoTCCAUcCAwHiQDAKBggqhkjOPQQDAjBSMRMwEQYKCZImiZPyLGQBGRYDb3JnMRcwFQYKCZImiZPyLGQBGRYHZXhhbXBsZTEN" +
+            "MAsGA1UECgwEVGVzdDETMBEGA1UEAwwKQWxpY2UgVGVzdDAgFw0yNjEwMTkwNjMxMDdaGA8yMTI1MDUxMzA2MzEwN1owYzETMBEG" +
+            "CgmSJomT8ixkARkWA29yZzEXMBUGCgmSJomT8ixkARkWB2V4YW1wbGUxDTALBgNVBAoMBFRlc3QxEzARBgNVBAMMCkFsaWNlIFRl" +
+            "c3QxDzANBgNVBAMMBjEyMzQ1NjBZMBMGByqGSM49AgEGCCqGSM49AwEHA0IABMGWjKTUHyYNz82841e+wuXRGURLsypzefdtULYp" +
+            "8VcWlQSib8Le9JiGW4/2wZGtZxIZTFoXCQsAhi1UBVUAGzUwCgYIKoZIzj0EAwIDSAAwRQIgVsEsf9nor5IapCFdIQae4ncjhbL7" +
+            "W+Dokj2wm8HP2+ACIQCd53eTy0X8Q8IXJqyMq6IUwf4nbolNyeq90nws3ljHrA==";
+
+    private static final long HOUR = 3600L * 1000L;
+
+    private static List<X509Certificate> certificates;
+    private static KeyPair keyPair;
+
+    @BeforeClass
+    public static void setUpClass() throws GeneralSecurityException {
+        CertificateFactory factory = CertificateFactory.getInstance("X.509");
+        certificates = Collections.singletonList((X509Certificate) factory.generateCertificate(
+                new ByteArrayInputStream(Base64.getDecoder().decode(PROXY_CERT))));
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(256);
+        keyPair = generator.generateKeyPair();
+    }
+
+    @Test
+    public void testHit() {
+        ProxyCache cache = cache(10, null);
+        String key = cache.getKey("client", "alice", HOUR);
+        assertNull(cache.get(key, HOUR));
+        cache.put(key, keyPair, null, certificates);
+
+        CachedProxy proxy = cache.get(key, HOUR);
+        assertNotNull(proxy);
+        assertEquals(certificates, proxy.getCertificates());
+        assertArrayEquals(keyPair.getPrivate().getEncoded(), proxy.getKeyPair().getPrivate().getEncoded());
+        assertArrayEquals(keyPair.getPublic().getEncoded(), proxy.getKeyPair().getPublic().getEncoded());
+        assertEquals(new X500Principal(USER_DN), proxy.getCredentialDN());
+    }
+
+    @Test
+    public void testKeys() {
+        ProxyCache cache = cache(10, null);
+        // Lifetimes are rounded up to the bucket
+        assertEquals(cache.getKey("client", "alice", 1L), cache.getKey("client", "alice", HOUR));
+        assertNotEquals(cache.getKey("client", "alice", HOUR), cache.getKey("client", "alice", HOUR + 1L));
+        assertNotEquals(cache.getKey("client", "alice", HOUR), cache.getKey("client", "bob", HOUR));
+        assertNotEquals(cache.getKey("client", "alice", HOUR), cache.getKey("other", "alice", HOUR));
+    }
+
+    @Test
+    public void testClients() {
+        assertTrue(cache(10, null).isEnabled("client"));
+        ProxyCache cache = cache(10, Collections.singleton("client"));
+        assertTrue(cache.isEnabled("client"));
+        assertFalse(cache.isEnabled("other"));
+    }
+
+    /** A proxy with too little remaining lifetime is not handed out */
+    @Test
+    public void testMinRemaining() {
+        ProxyCache cache = cache(10, null);
+        long lifetime = 200L * 365L * 24L * HOUR;
+        String key = cache.getKey("client", "alice", lifetime);
+        cache.put(key, keyPair, null, certificates);
+        assertNull(cache.get(key, lifetime));
+    }
+
+    @Test
+    public void testExpiry() throws InterruptedException {
+        ProxyCache cache = new ProxyCache(1L, 10, 0.8, HOUR, null, null);
+        String key = cache.getKey("client", "alice", HOUR);
+        cache.put(key, keyPair, null, certificates);
+        Thread.sleep(10L);
+        assertNull(cache.get(key, HOUR));
+    }
+
+    /** The least recently used proxy is evicted first */
+    @Test
+    public void testEviction() {
+        ProxyCache cache = cache(2, null);
+        String alice = cache.getKey("client", "alice", HOUR);
+        String bob = cache.getKey("client", "bob", HOUR);
+        String carol = cache.getKey("client", "carol", HOUR);
+        cache.put(alice, keyPair, null, certificates);
+        cache.put(bob, keyPair, null, certificates);
+        assertNotNull(cache.get(alice, HOUR));
+        cache.put(carol, keyPair, null, certificates);
+
+        assertNull(cache.get(bob, HOUR));
+        assertNotNull(cache.get(alice, HOUR));
+        assertNotNull(cache.get(carol, HOUR));
+    }
+
+    @Test
+    public void testEvictUser() {
+        ProxyCache cache = cache(10, null);
+        List<String> aliceKeys = Arrays.asList(cache.getKey("client", "alice", HOUR),
+                                               cache.getKey("other", "alice", 2 * HOUR));
+        // Including usernames that contain "alice"
+        List<String> otherKeys = Arrays.asList(cache.getKey("client", "bob", HOUR),
+                                               cache.getKey("client", "alice2", HOUR),
+                                               cache.getKey("client", "malice", HOUR));
+        for (String key : aliceKeys)
+            cache.put(key, keyPair, null, certificates);
+        for (String key : otherKeys)
+            cache.put(key, keyPair, null, certificates);
+
+        cache.evict("alice");
+        cache.evict(null);
+        assertNull(cache.get(aliceKeys.get(0), HOUR));
+        assertNull(cache.get(aliceKeys.get(1), 2 * HOUR));
+        for (String key : otherKeys)
+            assertNotNull(cache.get(key, HOUR));
+    }
+
+    private static ProxyCache cache(int maxSize, Set<String> clients) {
+        return new ProxyCache(60000L, maxSize, 0.8, HOUR, clients, null);
+    }
+}
@@ -0,0 +1,84 @@
+package eu.rcauth.masterportal.server.ratelimit;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link ForwardBulkhead}.
+ */
+public class ForwardBulkheadTest {
+
+    @Test
+    public void testConcurrencyLimit() throws InterruptedException {
+        ForwardBulkhead bulkhead = new ForwardBulkhead(2, 0, 5L, null);
+        assertTrue(bulkhead.acquire());
+        assertTrue(bulkhead.acquire());
+        assertEquals(2, bulkhead.getActive());
+        // No queue, hence rejected directly
+        assertFalse(bulkhead.acquire());
+        assertEquals(1L, bulkhead.getRejected());
+
+        bulkhead.release();
+        assertTrue(bulkhead.acquire());
+        assertEquals(3L, bulkhead.getAccepted());
+        assertEquals(0L, bulkhead.getTimedOut());
+    }
+
+    @Test
+    public void testTimeout() throws InterruptedException {
+        ForwardBulkhead bulkhead = new ForwardBulkhead(1, 1, 1L, null);
+        assertTrue(bulkhead.acquire());
+        long start = System.currentTimeMillis();
+        assertFalse(bulkhead.acquire());
+        assertTrue(System.currentTimeMillis() - start >= 900L);
+        assertEquals(1L, bulkhead.getTimedOut());
+        assertEquals(0L, bulkhead.getRejected());
+        assertEquals(0, bulkhead.getQueueDepth());
+        assertEquals(1, bulkhead.getMaxQueueDepth());
+        assertTrue(bulkhead.getMaxWaitTime() >= 900L);
+    }
+
+    /** A full queue rejects directly, a queued request gets the released slot */
+    @Test
+    public void testQueueLimit() throws InterruptedException {
+        ForwardBulkhead bulkhead = new ForwardBulkhead(1, 1, 10L, null);
+        assertTrue(bulkhead.acquire());
+
+        AtomicBoolean acquired = new AtomicBoolean();
+        Thread waiter = new Thread(() -> {
+            try {
+                acquired.set(bulkhead.acquire());
+            } catch (InterruptedException e) {
+                // acquired stays false
+            }
+        });
+        waiter.start();
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (bulkhead.getQueueDepth() == 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10L);
+        assertEquals(1, bulkhead.getQueueDepth());
+
+        long start = System.currentTimeMillis();
+        assertFalse(bulkhead.acquire());
+        assertTrue(System.currentTimeMillis() - start < 5000L);
+        assertEquals(1L, bulkhead.getRejected());
+
+        bulkhead.release();
+        waiter.join(5000L);
+        assertTrue(acquired.get());
+        assertEquals(1, bulkhead.getActive());
+        assertEquals(2L, bulkhead.getAccepted());
+        assertEquals(0L, bulkhead.getTimedOut());
+    }
+
+    @Test
+    public void testRetryAfter() {
+        assertEquals(1L, new ForwardBulkhead(1, 0, 0L, null).getRetryAfter());
+        assertEquals(5L, new ForwardBulkhead(1, 0, 5L, null).getRetryAfter());
+    }
+}
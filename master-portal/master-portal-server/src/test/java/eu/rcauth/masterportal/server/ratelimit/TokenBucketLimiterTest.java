@@ -0,0 +1,81 @@
+package eu.rcauth.masterportal.server.ratelimit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link TokenBucketLimiter}. The rate is one request per minute,
+ * such that no noticeable refill happens while a test runs.
+ */
+public class TokenBucketLimiterTest {
+    private final TokenBucketLimiter limiter = new TokenBucketLimiter("test", 1.0, 3, 4);
+
+    @After
+    public void tearDown() {
+        limiter.stop();
+    }
+
+    @Test
+    public void testBurstThenLimited() {
+        for (int i = 0; i < 3; i++)
+            assertEquals(0L, limiter.tryAcquire("alice"));
+        long wait = limiter.tryAcquire("alice");
+        assertTrue("wait should be at most a minute, got " + wait, wait > 0L && wait <= 60000L);
+        assertEquals(3L, limiter.getAllowed());
+        assertEquals(1L, limiter.getLimited());
+    }
+
+    @Test
+    public void testKeysAreIndependent() {
+        for (int i = 0; i < 3; i++)
+            limiter.tryAcquire("alice");
+        assertTrue(limiter.tryAcquire("alice") > 0L);
+        assertEquals(0L, limiter.tryAcquire("bob"));
+        assertEquals(0L, limiter.tryAcquire(null));
+    }
+
+    @Test
+    public void testCheckDoesNotTakeTokens() {
+        assertEquals(0L, limiter.check("alice"));
+        assertEquals(0, limiter.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0L, limiter.check("alice"));
+            assertEquals(0L, limiter.tryAcquire("alice"));
+        }
+        assertTrue(limiter.check("alice") > 0L);
+        assertEquals(3L, limiter.getAllowed());
+    }
+
+    @Test
+    public void testRelease() {
+        for (int i = 0; i < 3; i++)
+            limiter.tryAcquire("alice");
+        assertTrue(limiter.tryAcquire("alice") > 0L);
+        limiter.release("alice");
+        assertEquals(0L, limiter.tryAcquire("alice"));
+        assertTrue(limiter.tryAcquire("alice") > 0L);
+        // Releasing an unknown key does nothing
+        limiter.release("bob");
+        assertEquals(1, limiter.size());
+    }
+
+    @Test
+    public void testReleaseDoesNotExceedBurst() {
+        limiter.tryAcquire("alice");
+        for (int i = 0; i < 5; i++)
+            limiter.release("alice");
+        for (int i = 0; i < 3; i++)
+            assertEquals(0L, limiter.tryAcquire("alice"));
+        assertTrue(limiter.tryAcquire("alice") > 0L);
+    }
+
+    @Test
+    public void testMaxKeys() {
+        for (int i = 0; i < 20; i++)
+            assertEquals(0L, limiter.tryAcquire("user" + i));
+        assertTrue("size should be bounded, got " + limiter.size(), limiter.size() <= 4);
+    }
+}
@@ -0,0 +1,148 @@
+package eu.rcauth.masterportal.server.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link AuthorizedKeysExporter}, in particular the manifest of the
+ * per-user mode.
+ */
+public class AuthorizedKeysExporterTest {
+    private static final String KEY_1 =
+            "ssh-ed25519 AAAAC3NzaC1lZDI1NTE5AAAAIMp70AcuUBwKc+ozCRbK0oUcXhZSAmpbB4pV8aKE6upH";
+    private static final String KEY_2 =
+            "ecdsa-sha2-nistp384 AAAAE2VjZHNhLXNoYTItbmlzdHAzODQAAAAIbmlzdHAzODQAAABhBJ9091OV97Z6s8e1Ap4RGhb03vX9" +
+            "CP4LMpo1JxNWSCOypCEb1tlTG+nIp90duXkA+7eJtWpDYy7TMPC1O9CbXByoJ0gGDU62vJsDLkw+5mA/3pKKXEvqj1tIHIu8S7a16w==";
+
+    private File directory;
+    /** keys to export, as username and public key */
+    private final Map<String, String> keys = new LinkedHashMap<>();
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("authorized-keys").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testPerUser() throws IOException {
+        AuthorizedKeysExporter exporter = new AuthorizedKeysExporter(directory, true, 60);
+        keys.put("alice", KEY_1 + " laptop");
+        keys.put("bob", KEY_2);
+        assertEquals(2, exporter.export(source()));
+        assertEquals(Arrays.asList(KEY_1), read("alice"));
+        assertEquals(Arrays.asList(KEY_2), read("bob"));
+        assertEquals(Arrays.asList("alice", "bob"), read(AuthorizedKeysExporter.MANIFEST));
+
+        // Nothing changed, nothing written
+        assertEquals(0, exporter.export(source()));
+    }
+
+    @Test
+    public void testManifestFollowsUsers() throws IOException {
+        AuthorizedKeysExporter exporter = new AuthorizedKeysExporter(directory, true, 60);
+        keys.put("alice", KEY_1);
+        keys.put("bob", KEY_2);
+        exporter.export(source());
+
+        keys.remove("bob");
+        keys.put("carol", KEY_2);
+        // carol written, bob removed
+        assertEquals(2, exporter.export(source()));
+        assertFalse(new File(directory, "bob").exists());
+        assertEquals(Arrays.asList(KEY_2), read("carol"));
+        assertEquals(Arrays.asList("alice", "carol"), read(AuthorizedKeysExporter.MANIFEST));
+
+        // A new exporter, e.g. after a restart, continues from the manifest
+        keys.clear();
+        assertEquals(2, new AuthorizedKeysExporter(directory, true, 60).export(source()));
+        assertEquals(Arrays.asList(AuthorizedKeysExporter.MANIFEST), Arrays.asList(directory.list()));
+        assertTrue(read(AuthorizedKeysExporter.MANIFEST).isEmpty());
+    }
+
+    /** Only files listed in the manifest are ever removed */
+    @Test
+    public void testKeepsOtherFiles() throws IOException {
+        AuthorizedKeysExporter exporter = new AuthorizedKeysExporter(directory, true, 60);
+        keys.put("alice", KEY_1);
+        exporter.export(source());
+        Files.write(new File(directory, "root").toPath(), "keep\n".getBytes(StandardCharsets.UTF_8));
+
+        keys.clear();
+        assertEquals(1, exporter.export(source()));
+        assertFalse(new File(directory, "alice").exists());
+        assertEquals(Arrays.asList("keep"), read("root"));
+    }
+
+    @Test
+    public void testRefusesNonEmptyDirectory() throws IOException {
+        Files.write(new File(directory, "sshd_config").toPath(), "keep\n".getBytes(StandardCharsets.UTF_8));
+        keys.put("alice", KEY_1);
+        try {
+            new AuthorizedKeysExporter(directory, true, 60).export(source());
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(Arrays.asList("sshd_config"), Arrays.asList(directory.list()));
+    }
+
+    @Test
+    public void testSkipsInvalidKeysAndUnsafeNames() throws IOException {
+        AuthorizedKeysExporter exporter = new AuthorizedKeysExporter(directory, true, 60);
+        keys.put("alice", "ssh-ed25519 invalid");
+        keys.put("../bob", KEY_1);
+        keys.put(".hidden", KEY_1);
+        keys.put("carol", "command=\"/bin/sh\" " + KEY_2);
+        assertEquals(0, exporter.export(source()));
+        assertEquals(Arrays.asList(AuthorizedKeysExporter.MANIFEST), Arrays.asList(directory.list()));
+    }
+
+    @Test
+    public void testSingleFile() throws IOException {
+        File file = new File(directory, "listing");
+        AuthorizedKeysExporter exporter = new AuthorizedKeysExporter(file, false, 60);
+        keys.put("bob", KEY_2);
+        keys.put("alice", KEY_1 + " laptop");
+        keys.put("with space", KEY_1);
+        assertEquals(1, exporter.export(source()));
+        // Sorted on username
+        assertEquals(Arrays.asList("alice " + KEY_1, "bob " + KEY_2), read("listing"));
+        assertEquals(0, exporter.export(source()));
+    }
+
+    /** @return source of {@link #keys}, like {@link SSHKeyStore#forEachPubKey} */
+    private Consumer<BiConsumer<String, String>> source() {
+        return consumer -> keys.forEach(consumer);
+    }
+
+    private List<String> read(String name) throws IOException {
+        return Files.readAllLines(new File(directory, name).toPath(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,114 @@
+package eu.rcauth.masterportal.server.storage;
+
+import eu.rcauth.masterportal.server.exception.InvalidSSHKeyException;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Base64;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link SSHPublicKey}, the fingerprints are as printed by
+ * <code>ssh-keygen -lf</code>.
+ */
+public class SSHPublicKeyTest {
+    static final String ED25519_BLOB =
+            "AAAAC3NzaC1lZDI1NTE5AAAAIMp70AcuUBwKc+ozCRbK0oUcXhZSAmpbB4pV8aKE6upH";
+    static final String ED25519_FINGERPRINT = "SHA256:kvstrIupCrCYoI4tl0fPrCHwHqci+WC4SYL0Em6Gxf8";
+
+    static final String RSA_BLOB =
+            "AAAAB3NzaC1yc2EAAAADAQABAAABAQCa14OUjfCgPJLDrrR+z5aYkxVfnCREG2mF71rnlGjiS8TZsPnPrO296reyo9AUTDfiIcO8" +
+            "ikZdgKVgc7wupe/uNXhuyZun/Bu3HhXIJ4mCs5KeMFNAfc75YxlRZn+dpvoy8Op/JCRpcxbKHBJp8LbvirSmQRAhWQQrvBiHjp7J" +
+            "j53eKdQzdcHWfAEXnMSnFDDltS4aA4KhvGYhPSfwTw6h0I1K/kZAzKZkrnknt/1cSxkyadwR4M+SgHPdyoMK5izV8Xot1pLjvhb7" +
+            "XYSxpAmY0Rc+WvkMkLmpD/TZN0afCUeToagz0660AuQ7AEres23yvW0nXCSMmFTAJ33mrYpx";
+    static final String RSA_FINGERPRINT = "SHA256:1z2TuESq5k1Jf/bmvCZnlnxOJkSBNzvzOzMzmTsbTx0";
+
+    static final String ECDSA_BLOB =
+            "AAAAE2VjZHNhLXNoYTItbmlzdHAzODQAAAAIbmlzdHAzODQAAABhBJ9091OV97Z6s8e1Ap4RGhb03vX9CP4LMpo1JxNWSCOypCEb" +
+            "1tlTG+nIp90duXkA+7eJtWpDYy7TMPC1O9CbXByoJ0gGDU62vJsDLkw+5mA/3pKKXEvqj1tIHIu8S7a16w==";
+    static final String ECDSA_FINGERPRINT = "SHA256:P7EM1k00LQ0zftGQI88r8IiH0KIcFGDxsbmNe5e4pyE";
+
+    @Test
+    public void testParseED25519() throws Exception {
+        SSHPublicKey key = SSHPublicKey.parse("ssh-ed25519 " + ED25519_BLOB + " alice@example");
+        assertEquals(SSHPublicKey.ED25519, key.getType());
+        assertEquals("alice@example", key.getComment());
+        assertEquals(256, key.getKeySize());
+        assertEquals("ssh-ed25519 " + ED25519_BLOB, key.getNormalized());
+        assertEquals(ED25519_FINGERPRINT, key.getFingerprint());
+        assertEquals("ssh-ed25519 " + ED25519_BLOB + " alice@example", key.toString());
+    }
+
+    @Test
+    public void testParseRSA() throws Exception {
+        SSHPublicKey key = SSHPublicKey.parse("ssh-rsa " + RSA_BLOB + " rsa key");
+        assertEquals(SSHPublicKey.RSA, key.getType());
+        assertEquals("rsa key", key.getComment());
+        assertEquals(2048, key.getKeySize());
+        assertEquals(RSA_FINGERPRINT, key.getFingerprint());
+    }
+
+    @Test
+    public void testParseECDSA() throws Exception {
+        SSHPublicKey key = SSHPublicKey.parse("ecdsa-sha2-nistp384 " + ECDSA_BLOB + " ");
+        assertEquals("ecdsa-sha2-nistp384", key.getType());
+        assertNull(key.getComment());
+        assertEquals(384, key.getKeySize());
+        assertEquals(ECDSA_FINGERPRINT, key.getFingerprint());
+    }
+
+    @Test
+    public void testWhitespaceAndCommentDoNotMatter() throws Exception {
+        SSHPublicKey plain = SSHPublicKey.parse("ssh-ed25519 " + ED25519_BLOB);
+        SSHPublicKey spaced = SSHPublicKey.parse("  ssh-ed25519 \t " + ED25519_BLOB + "\tother comment \n");
+        assertNull(plain.getComment());
+        assertEquals("other comment", spaced.getComment());
+        assertEquals(plain.getNormalized(), spaced.getNormalized());
+        assertEquals(plain.getFingerprint(), spaced.getFingerprint());
+    }
+
+    @Test
+    public void testFingerprintOf() {
+        assertEquals(ED25519_FINGERPRINT, SSHPublicKey.fingerprintOf("ssh-ed25519 " + ED25519_BLOB + " x"));
+        assertNull(SSHPublicKey.fingerprintOf("ssh-ed25519"));
+        assertNull(SSHPublicKey.fingerprintOf(null));
+    }
+
+    @Test
+    public void testInvalidKeys() {
+        assertInvalid(null);
+        assertInvalid("");
+        assertInvalid("ssh-ed25519");
+        assertInvalid("ssh-ed25519 not-base64!");
+        // Type does not match the type inside the blob
+        assertInvalid("ssh-rsa " + ED25519_BLOB);
+        // Curve does not match the curve inside the blob
+        assertInvalid("ecdsa-sha2-nistp256 " + ECDSA_BLOB);
+        assertInvalid("ssh-foo " + encode(new byte[] {0, 0, 0, 7, 's', 's', 'h', '-', 'f', 'o', 'o'}));
+    }
+
+    @Test
+    public void testTruncatedAndTrailingData() {
+        byte[] blob = Base64.getDecoder().decode(ED25519_BLOB);
+        assertInvalid("ssh-ed25519 " + encode(Arrays.copyOf(blob, blob.length - 1)));
+        assertInvalid("ssh-ed25519 " + encode(Arrays.copyOf(blob, 10)));
+        assertInvalid("ssh-ed25519 " + encode(Arrays.copyOf(blob, blob.length + 4)));
+    }
+
+    private static String encode(byte[] blob) {
+        return Base64.getEncoder().encodeToString(blob);
+    }
+
+    private static void assertInvalid(String key) {
+        try {
+            SSHPublicKey.parse(key);
+            fail("Expected InvalidSSHKeyException for " + key);
+        } catch (InvalidSSHKeyException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package eu.rcauth.masterportal.server.storage.impl;
+
+import eu.rcauth.masterportal.server.exception.SSHKeyVersionConflictException;
+import eu.rcauth.masterportal.server.storage.SSHKey;
+import eu.rcauth.masterportal.server.storage.SSHKeyOperation;
+
+import edu.uiuc.ncsa.security.core.exceptions.GeneralException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+import static eu.rcauth.masterportal.server.storage.impl.MemorySSHKeyStoreTest.KEY_1;
+import static eu.rcauth.masterportal.server.storage.impl.MemorySSHKeyStoreTest.KEY_2;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link FileSSHKeyStore}, in particular replaying its log after a
+ * restart or a crash.
+ */
+public class FileSSHKeyStoreTest {
+    private File directory;
+    private File logFile;
+    private FileSSHKeyStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("ssh-keys").toFile();
+        logFile = new File(directory, FileSSHKeyStore.LOG_FILE);
+        store = open();
+    }
+
+    @After
+    public void tearDown() {
+        if (store != null)
+            store.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testReplay() {
+        store.register(new SSHKey("alice", "ssh-key-1", KEY_1, "laptop"));
+        store.register(new SSHKey("alice", "ssh-key-2", KEY_2, null));
+        store.register(new SSHKey("bob", "ssh-key-1", null, null));
+        SSHKey key = store.get(new SSHKey("alice", "ssh-key-1"));
+        key.setDescription("desktop");
+        assertTrue(store.updateIfUnchanged(key));
+        store.remove(new SSHKey("bob", "ssh-key-1"));
+
+        store = reopen();
+        assertEquals(2, store.size());
+        SSHKey stored = store.get(new SSHKey("alice", "ssh-key-1"));
+        assertEquals(KEY_1, stored.getPubKey());
+        assertEquals("desktop", stored.getDescription());
+        assertEquals(1L, stored.getVersion());
+        assertEquals("alice", store.getByFingerprint(stored.getFingerprint()).getUserName());
+        assertNull(store.get(new SSHKey("alice", "ssh-key-2")).getDescription());
+        assertNull(store.get(new SSHKey("bob", "ssh-key-1")));
+    }
+
+    /** Values that net.sf.json would have turned into a null, array or object */
+    @Test
+    public void testValuesAreStoredAsIs() {
+        store.register(new SSHKey("alice", "null", KEY_1, "null"));
+        store.register(new SSHKey("alice", "ssh-key-2", KEY_2, "[1,2]"));
+        store.register(new SSHKey("alice", "ssh-key-3", null, "{\"a\":\"b\"}\n\"quoted\""));
+
+        store = reopen();
+        assertEquals("null", store.get(new SSHKey("alice", "null")).getDescription());
+        assertEquals("[1,2]", store.get(new SSHKey("alice", "ssh-key-2")).getDescription());
+        assertEquals("{\"a\":\"b\"}\n\"quoted\"", store.get(new SSHKey("alice", "ssh-key-3")).getDescription());
+    }
+
+    @Test
+    public void testFailedBatchIsNotPersisted() {
+        store.register(new SSHKey("alice", "ssh-key-1", KEY_1, null));
+        SSHKey stale = store.get(new SSHKey("alice", "ssh-key-1"));
+        stale.setVersion(3);
+        List<SSHKeyOperation> operations = Arrays.asList(
+                new SSHKeyOperation(SSHKeyOperation.Type.ADD, new SSHKey("alice", "ssh-key-2", KEY_2, null)),
+                new SSHKeyOperation(SSHKeyOperation.Type.UPDATE, stale));
+        try {
+            store.batch(operations);
+            fail("Expected SSHKeyVersionConflictException");
+        } catch (SSHKeyVersionConflictException e) {
+            // expected
+        }
+
+        store = reopen();
+        assertEquals(1, store.size());
+        assertNull(store.get(new SSHKey("alice", "ssh-key-2")));
+    }
+
+    /** A crash while appending leaves an incomplete last line */
+    @Test
+    public void testTornLastRecord() throws IOException {
+        store.register(new SSHKey("alice", "ssh-key-1", KEY_1, null));
+        store.close();
+        append("{\"op\":\"put\",\"username\":\"alice\",\"label\":\"ssh-key-2\",\"pub_k");
+
+        store = open();
+        assertEquals(1, store.size());
+        assertNull(store.get(new SSHKey("alice", "ssh-key-2")));
+        // The incomplete record has been compacted away, so new records
+        // don't end up on the same line
+        store.register(new SSHKey("alice", "ssh-key-2", KEY_2, null));
+
+        store = reopen();
+        assertEquals(2, store.size());
+        assertEquals(2, readLines().size());
+    }
+
+    @Test
+    public void testTruncatedLastRecord() throws IOException {
+        store.register(new SSHKey("alice", "ssh-key-1", KEY_1, null));
+        store.register(new SSHKey("alice", "ssh-key-2", KEY_2, null));
+        store.close();
+        byte[] log = Files.readAllBytes(logFile.toPath());
+        // Cut off the closing brace and newline of the last record
+        Files.write(logFile.toPath(), Arrays.copyOf(log, log.length - 2));
+
+        store = open();
+        assertEquals(1, store.size());
+        assertEquals(KEY_1, store.get(new SSHKey("alice", "ssh-key-1")).getPubKey());
+    }
+
+    /** Only the last record may be invalid, anything else is corruption */
+    @Test
+    public void testInvalidRecordBeforeLast() throws IOException {
+        store.register(new SSHKey("alice", "ssh-key-1", KEY_1, null));
+        store.close();
+        store = null;
+        append("{\"op\":\"put\",\"username\":\"alice\"\n");
+        append("{\"op\":\"put\",\"username\":\"alice\",\"label\":\"ssh-key-2\"}\n");
+        try {
+            open();
+            fail("Expected GeneralException");
+        } catch (GeneralException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testEmptyLinesAreIgnored() throws IOException {
+        store.register(new SSHKey("alice", "ssh-key-1", KEY_1, null));
+        store.close();
+        append("\n\n");
+
+        store = open();
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        store.register(new SSHKey("alice", "ssh-key-1", KEY_1, null));
+        int updates = FileSSHKeyStore.COMPACT_SLACK + 100;
+        for (int i = 0; i < updates; i++) {
+            SSHKey key = store.get(new SSHKey("alice", "ssh-key-1"));
+            key.setDescription("update " + i);
+            assertTrue(store.updateIfUnchanged(key));
+        }
+        assertTrue(readLines().size() < FileSSHKeyStore.COMPACT_SLACK);
+
+        store = reopen();
+        SSHKey stored = store.get(new SSHKey("alice", "ssh-key-1"));
+        assertEquals("update " + (updates - 1), stored.getDescription());
+        assertEquals(updates, stored.getVersion());
+    }
+
+    private FileSSHKeyStore open() {
+        return new FileSSHKeyStore(directory, () -> new SSHKey(null, null), null);
+    }
+
+    private FileSSHKeyStore reopen() {
+        store.close();
+        return open();
+    }
+
+    private void append(String text) throws IOException {
+        Files.write(logFile.toPath(), text.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+    }
+
+    private List<String> readLines() throws IOException {
+        return Files.readAllLines(logFile.toPath(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,146 @@
+package eu.rcauth.masterportal.server.storage.impl;
+
+import eu.rcauth.masterportal.server.exception.SSHKeyVersionConflictException;
+import eu.rcauth.masterportal.server.storage.SSHKey;
+import eu.rcauth.masterportal.server.storage.SSHKeyOperation;
+import eu.rcauth.masterportal.server.storage.SSHPublicKey;
+
+import edu.uiuc.ncsa.security.core.exceptions.GeneralException;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link MemorySSHKeyStore}.
+ */
+public class MemorySSHKeyStoreTest {
+    static final String KEY_1 =
+            "ssh-ed25519 AAAAC3NzaC1lZDI1NTE5AAAAIMp70AcuUBwKc+ozCRbK0oUcXhZSAmpbB4pV8aKE6upH";
+    static final String KEY_2 =
+            "ecdsa-sha2-nistp384 AAAAE2VjZHNhLXNoYTItbmlzdHAzODQAAAAIbmlzdHAzODQAAABhBJ9091OV97Z6s8e1Ap4RGhb03vX9" +
+            "CP4LMpo1JxNWSCOypCEb1tlTG+nIp90duXkA+7eJtWpDYy7TMPC1O9CbXByoJ0gGDU62vJsDLkw+5mA/3pKKXEvqj1tIHIu8S7a16w==";
+
+    private final MemorySSHKeyStore store = new MemorySSHKeyStore(() -> new SSHKey(null, null));
+
+    @Test
+    public void testRegisterAndGet() {
+        store.register(new SSHKey("alice", "ssh-key-1", KEY_1, "laptop"));
+        SSHKey key = store.get(new SSHKey("alice", "ssh-key-1"));
+        assertEquals(KEY_1, key.getPubKey());
+        assertEquals("laptop", key.getDescription());
+        assertEquals(0L, key.getVersion());
+        assertEquals(SSHPublicKey.fingerprintOf(KEY_1), key.getFingerprint());
+        assertEquals(1, store.size());
+        assertEquals(1, store.getCount("alice"));
+        assertEquals(0, store.getCount("bob"));
+        assertNull(store.get(new SSHKey("alice", "ssh-key-2")));
+    }
+
+    @Test
+    public void testReturnsCopies() {
+        SSHKey key = new SSHKey("alice", "ssh-key-1", KEY_1, "laptop");
+        store.register(key);
+        key.setDescription("changed");
+        SSHKey stored = store.get(new SSHKey("alice", "ssh-key-1"));
+        stored.setDescription("changed");
+        assertEquals("laptop", store.get(new SSHKey("alice", "ssh-key-1")).getDescription());
+    }
+
+    @Test(expected = GeneralException.class)
+    public void testRegisterExisting() {
+        store.register(new SSHKey("alice", "ssh-key-1", KEY_1, null));
+        store.register(new SSHKey("alice", "ssh-key-1", KEY_2, null));
+    }
+
+    @Test
+    public void testFingerprintLookups() {
+        store.register(new SSHKey("alice", "ssh-key-1", KEY_1, null));
+        String fingerprint = SSHPublicKey.fingerprintOf(KEY_1);
+        assertEquals("alice", store.getByFingerprint(fingerprint).getUserName());
+        assertNull(store.getByFingerprint(SSHPublicKey.fingerprintOf(KEY_2)));
+        assertEquals(Collections.singleton(fingerprint),
+                     store.getRegistered(Arrays.asList(fingerprint, SSHPublicKey.fingerprintOf(KEY_2))));
+        assertTrue(store.containsKey(new SSHKey("bob", "other", KEY_1 + " comment", null)));
+        assertFalse(store.containsKey(new SSHKey("bob", "other", KEY_2, null)));
+
+        store.remove(new SSHKey("alice", "ssh-key-1"));
+        assertNull(store.getByFingerprint(fingerprint));
+        assertTrue(store.isEmpty());
+    }
+
+    @Test
+    public void testUpdateIfUnchanged() {
+        store.register(new SSHKey("alice", "ssh-key-1", KEY_1, null));
+        SSHKey first = store.get(new SSHKey("alice", "ssh-key-1"));
+        SSHKey second = store.get(new SSHKey("alice", "ssh-key-1"));
+
+        first.setDescription("first");
+        assertTrue(store.updateIfUnchanged(first));
+        assertEquals(1L, first.getVersion());
+
+        second.setDescription("second");
+        assertFalse(store.updateIfUnchanged(second));
+        SSHKey stored = store.get(new SSHKey("alice", "ssh-key-1"));
+        assertEquals("first", stored.getDescription());
+        assertEquals(1L, stored.getVersion());
+    }
+
+    @Test
+    public void testBatchIsAtomic() {
+        store.register(new SSHKey("alice", "ssh-key-1", KEY_1, null));
+        SSHKey stale = store.get(new SSHKey("alice", "ssh-key-1"));
+        stale.setVersion(5);
+        List<SSHKeyOperation> operations = Arrays.asList(
+                new SSHKeyOperation(SSHKeyOperation.Type.ADD, new SSHKey("alice", "ssh-key-2", KEY_2, null)),
+                new SSHKeyOperation(SSHKeyOperation.Type.UPDATE, stale));
+        try {
+            store.batch(operations);
+            fail("Expected SSHKeyVersionConflictException");
+        } catch (SSHKeyVersionConflictException e) {
+            // expected
+        }
+        assertEquals(1, store.size());
+        assertNull(store.get(new SSHKey("alice", "ssh-key-2")));
+        assertNull(store.getByFingerprint(SSHPublicKey.fingerprintOf(KEY_2)));
+    }
+
+    @Test
+    public void testBatchSeesEarlierOperations() {
+        SSHKey key = new SSHKey("alice", "ssh-key-1", KEY_1, null);
+        SSHKey updated = new SSHKey(key);
+        updated.setDescription("updated");
+        store.batch(Arrays.asList(
+                new SSHKeyOperation(SSHKeyOperation.Type.ADD, key),
+                new SSHKeyOperation(SSHKeyOperation.Type.UPDATE, updated),
+                new SSHKeyOperation(SSHKeyOperation.Type.REMOVE, new SSHKey("alice", "absent")),
+                new SSHKeyOperation(SSHKeyOperation.Type.ADD, new SSHKey("alice", "ssh-key-2", KEY_2, null))));
+        SSHKey stored = store.get(new SSHKey("alice", "ssh-key-1"));
+        assertEquals("updated", stored.getDescription());
+        assertEquals(1L, stored.getVersion());
+        assertEquals(2, store.getCount("alice"));
+    }
+
+    @Test
+    public void testGetAllAndNextLabel() {
+        store.register(new SSHKey("alice", "ssh-key-1", KEY_1, null));
+        store.register(new SSHKey("alice", "ssh-key-7", KEY_2, null));
+        store.register(new SSHKey("alice", "work", null, null));
+        List<SSHKey> keys = store.getAll("alice");
+        assertEquals(3, keys.size());
+        // Most recent first
+        assertEquals("work", keys.get(0).getLabel());
+        assertEquals("ssh-key-1", keys.get(2).getLabel());
+        assertEquals("ssh-key-8", store.getNextLabel("alice", "ssh-key-"));
+        assertEquals("ssh-key-1", store.getNextLabel("bob", "ssh-key-"));
+        assertTrue(store.getAll("bob").isEmpty());
+    }
+}
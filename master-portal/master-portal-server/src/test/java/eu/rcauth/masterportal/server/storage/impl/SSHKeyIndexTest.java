@@ -0,0 +1,141 @@
+package eu.rcauth.masterportal.server.storage.impl;
+
+import eu.rcauth.masterportal.server.storage.SSHKey;
+import eu.rcauth.masterportal.server.storage.SSHPublicKey;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link SSHKeyIndex}.
+ */
+public class SSHKeyIndexTest {
+    private static final String ED25519 =
+            "ssh-ed25519 AAAAC3NzaC1lZDI1NTE5AAAAIMp70AcuUBwKc+ozCRbK0oUcXhZSAmpbB4pV8aKE6upH";
+    private static final String ED25519_FINGERPRINT = "SHA256:kvstrIupCrCYoI4tl0fPrCHwHqci+WC4SYL0Em6Gxf8";
+    private static final String ECDSA =
+            "ecdsa-sha2-nistp384 AAAAE2VjZHNhLXNoYTItbmlzdHAzODQAAAAIbmlzdHAzODQAAABhBJ9091OV97Z6s8e1Ap4RGhb03vX9" +
+            "CP4LMpo1JxNWSCOypCEb1tlTG+nIp90duXkA+7eJtWpDYy7TMPC1O9CbXByoJ0gGDU62vJsDLkw+5mA/3pKKXEvqj1tIHIu8S7a16w==";
+    private static final String ECDSA_FINGERPRINT = "SHA256:P7EM1k00LQ0zftGQI88r8IiH0KIcFGDxsbmNe5e4pyE";
+
+    @Test
+    public void testLookups() {
+        SSHKeyIndex index = SSHKeyIndex.build(Arrays.asList(
+                new SSHKey("alice", "ssh-key-1", ED25519 + " comment", null),
+                new SSHKey("bob", "ssh-key-1", "ssh-ed25519 invalid", null),
+                new SSHKey("bob", "ssh-key-2", ECDSA, null)));
+        assertEquals(2, index.size());
+        assertEquals(1, index.getSkipped());
+
+        assertTrue(index.contains(ED25519_FINGERPRINT));
+        assertEquals("alice", index.getUserName(ED25519_FINGERPRINT));
+        assertEquals("bob", index.getUserName(ECDSA_FINGERPRINT));
+
+        assertFalse(index.contains("SHA256:AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA"));
+        assertFalse(index.contains(ED25519_FINGERPRINT.substring(7)));
+        assertFalse(index.contains("SHA256:not base64!"));
+        assertFalse(index.contains("SHA256:AAAA"));
+        assertFalse(index.contains(null));
+        assertNull(index.getUserName("SHA256:AAAA"));
+    }
+
+    @Test
+    public void testCursor() {
+        SSHKeyIndex index = SSHKeyIndex.build(Arrays.asList(
+                new SSHKey("alice", "ssh-key-1", ED25519 + " comment", null),
+                new SSHKey("bob", "ssh-key-1", ECDSA, null)));
+
+        SSHKeyIndex.Cursor cursor = index.cursor();
+        assertTrue(cursor.next());
+        assertEquals("alice", cursor.getUserName());
+        assertArrayEquals("alice".getBytes(StandardCharsets.UTF_8), cursor.getUserNameUTF8());
+        assertEquals("ssh-ed25519", cursor.getType());
+        assertEquals(ED25519, cursor.getPubKey());
+        assertEquals(ED25519_FINGERPRINT, cursor.getFingerprint());
+        assertTrue(cursor.next());
+        assertEquals("bob", cursor.getUserName());
+        assertEquals("ecdsa-sha2-nistp384", cursor.getType());
+        assertEquals(ECDSA, cursor.getPubKey());
+        assertEquals(ECDSA_FINGERPRINT, cursor.getFingerprint());
+        assertFalse(cursor.next());
+
+        cursor = index.cursor(ECDSA_FINGERPRINT);
+        assertTrue(cursor.next());
+        assertEquals("bob", cursor.getUserName());
+        assertFalse(cursor.next());
+
+        assertFalse(index.cursor("SHA256:AAAA").next());
+    }
+
+    @Test
+    public void testDuplicateKeepsFirst() {
+        SSHKeyIndex index = SSHKeyIndex.build(Arrays.asList(
+                new SSHKey("alice", "ssh-key-1", ED25519, null),
+                new SSHKey("bob", "ssh-key-1", ED25519 + " copy", null)));
+        assertEquals(2, index.size());
+        assertEquals("alice", index.getUserName(ED25519_FINGERPRINT));
+        SSHKeyIndex.Cursor cursor = index.cursor(ED25519_FINGERPRINT);
+        assertTrue(cursor.next());
+        assertFalse(cursor.next());
+    }
+
+    @Test
+    public void testEmpty() {
+        SSHKeyIndex index = new SSHKeyIndex.Builder().build();
+        assertEquals(0, index.size());
+        assertEquals(0, index.getDataSize());
+        assertFalse(index.cursor().next());
+        assertFalse(index.contains(ED25519_FINGERPRINT));
+    }
+
+    /**
+     * Enough keys to grow the data buffer beyond its initial size and to fill
+     * many hash table slots.
+     */
+    @Test
+    public void testManyKeys() {
+        int n = 20000;
+        List<SSHKey> keys = new ArrayList<>(n);
+        List<String> fingerprints = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            String pubKey = ed25519Key(i);
+            keys.add(new SSHKey("user" + (i % 100), "ssh-key-" + i, pubKey, null));
+            fingerprints.add(SSHPublicKey.fingerprintOf(pubKey));
+        }
+        SSHKeyIndex index = SSHKeyIndex.build(keys);
+        assertEquals(n, index.size());
+        assertTrue(index.getDataSize() > 1024 * 1024);
+        for (int i = 0; i < n; i++)
+            assertEquals("user" + (i % 100), index.getUserName(fingerprints.get(i)));
+
+        SSHKeyIndex.Cursor cursor = index.cursor();
+        int i = 0;
+        while (cursor.next()) {
+            assertEquals(keys.get(i).getPubKey(), cursor.getPubKey());
+            i++;
+        }
+        assertEquals(n, i);
+    }
+
+    /**
+     * @return syntactically valid ed25519 public key, unique for i
+     */
+    private static String ed25519Key(int i) {
+        byte[] type = "ssh-ed25519".getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer blob = ByteBuffer.allocate(4 + type.length + 4 + 32);
+        blob.putInt(type.length).put(type).putInt(32).putInt(i);
+        return "ssh-ed25519 " + Base64.getEncoder().encodeToString(blob.array());
+    }
+}
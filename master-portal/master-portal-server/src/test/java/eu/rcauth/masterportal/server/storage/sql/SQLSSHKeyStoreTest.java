@@ -0,0 +1,164 @@
+package eu.rcauth.masterportal.server.storage.sql;
+
+import eu.rcauth.masterportal.server.exception.SSHKeyVersionConflictException;
+import eu.rcauth.masterportal.server.storage.SSHKey;
+import eu.rcauth.masterportal.server.storage.SSHKeyConverter;
+import eu.rcauth.masterportal.server.storage.SSHKeyIdentifierProvider;
+import eu.rcauth.masterportal.server.storage.SSHKeyKeys;
+import eu.rcauth.masterportal.server.storage.SSHKeyOperation;
+import eu.rcauth.masterportal.server.storage.impl.SSHKeyProvider;
+import eu.rcauth.masterportal.server.storage.sql.table.SSHKeyTable;
+
+import edu.uiuc.ncsa.security.core.Identifier;
+import edu.uiuc.ncsa.security.core.exceptions.GeneralException;
+import edu.uiuc.ncsa.security.storage.sql.ConnectionPool;
+
+import javax.inject.Provider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the batch operations of {@link SQLSSHKeyStore}, using an
+ * in-memory H2 database.
+ */
+public class SQLSSHKeyStoreTest {
+    private static final String KEY_1 =
+            "ssh-ed25519 AAAAC3NzaC1lZDI1NTE5AAAAIMp70AcuUBwKc+ozCRbK0oUcXhZSAmpbB4pV8aKE6upH";
+    private static final String KEY_2 =
+            "ecdsa-sha2-nistp384 AAAAE2VjZHNhLXNoYTItbmlzdHAzODQAAAAIbmlzdHAzODQAAABhBJ9091OV97Z6s8e1Ap4RGhb03vX9" +
+            "CP4LMpo1JxNWSCOypCEb1tlTG+nIp90duXkA+7eJtWpDYy7TMPC1O9CbXByoJ0gGDU62vJsDLkw+5mA/3pKKXEvqj1tIHIu8S7a16w==";
+
+    private static int databases = 0;
+
+    private String url;
+    private SQLSSHKeyStore store;
+
+    @Before
+    public void setUp() throws SQLException {
+        synchronized (SQLSSHKeyStoreTest.class) {
+            url = "jdbc:h2:mem:sshkeys" + (databases++) + ";DB_CLOSE_DELAY=-1;DATABASE_TO_LOWER=TRUE";
+        }
+        SSHKeyKeys keys = new SSHKeyKeys();
+        SSHKeyTable table = new SSHKeyTable(keys, "mp", null, SQLSSHKeyStore.DEFAULT_TABLENAME);
+        execute("CREATE SCHEMA mp");
+        execute("CREATE TABLE " + table.getFQTablename() + " (username VARCHAR(255) NOT NULL, " +
+                "label VARCHAR(255) NOT NULL, pub_key VARCHAR(4096), description VARCHAR(4096), " +
+                "import_time TIMESTAMP, comment VARCHAR(4096), fingerprint VARCHAR(64), " +
+                "version BIGINT NOT NULL DEFAULT 0, PRIMARY KEY (username, label))");
+
+        Provider<Identifier> idProv = new SSHKeyIdentifierProvider<>();
+        SSHKeyProvider<SSHKey> provider = new SSHKeyProvider<>(idProv);
+        store = new SQLSSHKeyStore(new ConnectionPool(null) {
+            @Override
+            public Connection pop() {
+                try {
+                    return DriverManager.getConnection(url);
+                } catch (SQLException e) {
+                    throw new GeneralException("Cannot connect to " + url, e);
+                }
+            }
+
+            @Override
+            public void push(Connection c) {
+                destroy(c);
+            }
+
+            @Override
+            public void destroy(Connection c) {
+                try {
+                    if (!c.isClosed())
+                        c.close();
+                } catch (SQLException e) {
+                    // ignore
+                }
+            }
+        }, table, provider, new SSHKeyConverter<>(keys, provider));
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        execute("SHUTDOWN");
+    }
+
+    @Test
+    public void testBatch() {
+        store.batch(Arrays.asList(
+                new SSHKeyOperation(SSHKeyOperation.Type.ADD, new SSHKey("alice", "ssh-key-1", KEY_1, null)),
+                new SSHKeyOperation(SSHKeyOperation.Type.ADD, new SSHKey("alice", "ssh-key-2", KEY_2, null))));
+        assertEquals(2, store.getCount("alice"));
+
+        SSHKey updated = store.get(new SSHKey("alice", "ssh-key-1"));
+        updated.setDescription("updated");
+        store.batch(Arrays.asList(
+                new SSHKeyOperation(SSHKeyOperation.Type.UPDATE, updated),
+                new SSHKeyOperation(SSHKeyOperation.Type.REMOVE, new SSHKey("alice", "ssh-key-2"))));
+        SSHKey stored = store.get(new SSHKey("alice", "ssh-key-1"));
+        assertEquals("updated", stored.getDescription());
+        assertEquals(1L, stored.getVersion());
+        assertEquals(1, store.getCount("alice"));
+    }
+
+    /** A stale update rolls back the earlier operations of the batch */
+    @Test
+    public void testRollbackOnVersionConflict() {
+        store.register(new SSHKey("alice", "ssh-key-1", KEY_1, null));
+        SSHKey stale = store.get(new SSHKey("alice", "ssh-key-1"));
+        stale.setVersion(5);
+        stale.setDescription("stale");
+        try {
+            store.batch(Arrays.asList(
+                    new SSHKeyOperation(SSHKeyOperation.Type.ADD, new SSHKey("alice", "ssh-key-2", KEY_2, null)),
+                    new SSHKeyOperation(SSHKeyOperation.Type.UPDATE, stale)));
+            fail("Expected SSHKeyVersionConflictException");
+        } catch (SSHKeyVersionConflictException e) {
+            // expected
+        }
+        assertEquals(1, store.getCount("alice"));
+        assertNull(store.get(new SSHKey("alice", "ssh-key-2")));
+        assertNull(store.get(new SSHKey("alice", "ssh-key-1")).getDescription());
+
+        // The store remains usable
+        store.batch(Arrays.asList(
+                new SSHKeyOperation(SSHKeyOperation.Type.ADD, new SSHKey("alice", "ssh-key-2", KEY_2, null))));
+        assertEquals(2, store.getCount("alice"));
+    }
+
+    /** A failing statement rolls back the earlier operations of the batch */
+    @Test
+    public void testRollbackOnSQLException() {
+        store.register(new SSHKey("alice", "ssh-key-1", KEY_1, null));
+        try {
+            store.batch(Arrays.asList(
+                    new SSHKeyOperation(SSHKeyOperation.Type.REMOVE, new SSHKey("alice", "ssh-key-1")),
+                    new SSHKeyOperation(SSHKeyOperation.Type.ADD, new SSHKey("alice", "ssh-key-2", KEY_2, null)),
+                    // duplicate primary key
+                    new SSHKeyOperation(SSHKeyOperation.Type.ADD, new SSHKey("alice", "ssh-key-2", KEY_1, null))));
+            fail("Expected GeneralException");
+        } catch (GeneralException e) {
+            // expected
+        }
+        assertNotNull(store.get(new SSHKey("alice", "ssh-key-1")));
+        assertNull(store.get(new SSHKey("alice", "ssh-key-2")));
+        assertEquals(1, store.getCount("alice"));
+    }
+
+    private void execute(String sql) throws SQLException {
+        try (Connection c = DriverManager.getConnection(url);
+             Statement stmt = c.createStatement()) {
+            stmt.execute(sql);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package eu.rcauth.masterportal.server.storage.sql;
+
+import edu.uiuc.ncsa.security.core.exceptions.GeneralException;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests for the CSV parsing and writing of {@link SQLTableTransfer}.
+ */
+public class SQLTableTransferTest {
+
+    @Test
+    public void testSimpleLine() throws IOException {
+        assertArrayEquals(new String[] {"a", "b", "c"}, parse("a,b,c"));
+        assertArrayEquals(new String[] {"a"}, parse("a"));
+    }
+
+    @Test
+    public void testEmptyFields() throws IOException {
+        assertArrayEquals(new String[] {null, "", "x"}, parse(",\"\",x"));
+        assertArrayEquals(new String[] {"a", null}, parse("a,"));
+        assertArrayEquals(new String[] {null}, parse(""));
+    }
+
+    @Test
+    public void testQuotedFields() throws IOException {
+        assertArrayEquals(new String[] {"a,b", "say \"hi\"", "null"},
+                          parse("\"a,b\",\"say \"\"hi\"\"\",\"null\""));
+    }
+
+    @Test
+    public void testNewlineInQuotedField() throws IOException {
+        BufferedReader reader = reader("line2\",x\nnext,row\n");
+        assertArrayEquals(new String[] {"line1\nline2", "x"}, SQLTableTransfer.parseCSVLine("\"line1", reader));
+        // The reader is positioned at the next row
+        assertEquals("next,row", reader.readLine());
+    }
+
+    @Test(expected = GeneralException.class)
+    public void testUnterminatedQuotedField() throws IOException {
+        SQLTableTransfer.parseCSVLine("a,\"abc", reader(""));
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        String[] values = {null, "", "plain", "a,b", "\"quoted\"", "multi\nline\n", "null", "ünïcode"};
+        StringWriter out = new StringWriter();
+        SQLTableTransfer.writeCSVLine(out, values);
+        String csv = out.toString();
+        assertEquals('\n', csv.charAt(csv.length() - 1));
+
+        BufferedReader reader = reader(csv);
+        String[] parsed = SQLTableTransfer.parseCSVLine(reader.readLine(), reader);
+        assertArrayEquals(values, parsed);
+        assertNull(reader.readLine());
+    }
+
+    private static String[] parse(String line) throws IOException {
+        return SQLTableTransfer.parseCSVLine(line, reader(""));
+    }
+
+    private static BufferedReader reader(String text) {
+        return new BufferedReader(new StringReader(text));
+    }
+}